@@ -240,8 +240,8 @@ public class Artifact
     }
     this.hashCode = execPath.hashCode();
     this.root = root;
-    this.execPath = execPath;
-    this.rootRelativePath = rootRelativePath;
+    this.execPath = execPath.intern();
+    this.rootRelativePath = rootRelativePath.intern();
     this.owner = Preconditions.checkNotNull(owner);
   }
 
@@ -22,6 +22,8 @@ import com.google.devtools.build.lib.collect.CollectionUtils;
 import com.google.devtools.build.lib.skyframe.serialization.autocodec.AutoCodec;
 import com.google.devtools.build.lib.skyframe.serialization.autocodec.AutoCodec.VisibleForSerialization;
 import com.google.devtools.build.lib.util.Fingerprint;
+import java.util.function.Consumer;
+import javax.annotation.Nullable;
 
 /** A representation of a list of arguments. */
 public abstract class CommandLine {
@@ -52,6 +54,21 @@ public abstract class CommandLine {
     return arguments();
   }
 
+  /**
+   * Passes the arguments of the command line to {@code consumer} one at a time, with enclosed
+   * artifacts expanded by {@code artifactExpander} if it is not null.
+   *
+   * <p>By default, this method evaluates the whole command line first. Subclasses which may hold a
+   * large number of arguments should override it so that they never need to be kept in memory at
+   * the same time, eg. when they are written to a parameter file.
+   */
+  public void expandTo(@Nullable ArtifactExpander artifactExpander, Consumer<String> consumer)
+      throws CommandLineExpansionException {
+    for (String arg : artifactExpander != null ? arguments(artifactExpander) : arguments()) {
+      consumer.accept(arg);
+    }
+  }
+
   public void addToFingerprint(ActionKeyContext actionKeyContext, Fingerprint fingerprint)
       throws CommandLineExpansionException {
     for (String s : arguments()) {
@@ -102,6 +119,22 @@ public abstract class CommandLine {
         throws CommandLineExpansionException {
       return Iterables.concat(executableArgs, commandLine.arguments(artifactExpander));
     }
+
+    @Override
+    public void expandTo(@Nullable ArtifactExpander artifactExpander, Consumer<String> consumer)
+        throws CommandLineExpansionException {
+      executableArgs.forEach(consumer);
+      commandLine.expandTo(artifactExpander, consumer);
+    }
+
+    @Override
+    public void addToFingerprint(ActionKeyContext actionKeyContext, Fingerprint fingerprint)
+        throws CommandLineExpansionException {
+      for (String s : executableArgs) {
+        fingerprint.addString(s);
+      }
+      commandLine.addToFingerprint(actionKeyContext, fingerprint);
+    }
   }
 
   /**
@@ -138,6 +171,22 @@ public abstract class CommandLine {
         throws CommandLineExpansionException {
       return Iterables.concat(commandLine.arguments(artifactExpander), executableArgs);
     }
+
+    @Override
+    public void expandTo(@Nullable ArtifactExpander artifactExpander, Consumer<String> consumer)
+        throws CommandLineExpansionException {
+      commandLine.expandTo(artifactExpander, consumer);
+      executableArgs.forEach(consumer);
+    }
+
+    @Override
+    public void addToFingerprint(ActionKeyContext actionKeyContext, Fingerprint fingerprint)
+        throws CommandLineExpansionException {
+      commandLine.addToFingerprint(actionKeyContext, fingerprint);
+      for (String s : executableArgs) {
+        fingerprint.addString(s);
+      }
+    }
   }
 
   /**
@@ -0,0 +1,197 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.actions;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.base.CharMatcher;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Iterables;
+import com.google.devtools.build.lib.concurrent.ThreadSafety.Immutable;
+import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.Path;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+import javax.annotation.Nullable;
+
+/**
+ * Durations of actions in previous builds, and the length of the remaining critical path at the
+ * time each action started, i.e. the duration of the action plus the longest chain of actions that
+ * depended on its outputs.
+ *
+ * <p>Actions are identified by the exec path of their primary output, which is stable across
+ * builds. Actions that are not in the history are assumed to behave like the average action with
+ * the same mnemonic.
+ *
+ * <p>Entries are ordered from the most to the least recently recorded, and the history keeps at
+ * most {@link #MAX_ENTRIES} of them, so actions that were not seen for a while are eventually
+ * dropped.
+ */
+@Immutable
+@ThreadSafe
+public final class CriticalPathHistory {
+  private static final Logger logger = Logger.getLogger(CriticalPathHistory.class.getName());
+
+  // Version of the file format; files with a different version are ignored.
+  private static final String HEADER = "critical_path_history 1";
+
+  private static final Splitter FIELD_SPLITTER = Splitter.on(' ').limit(4);
+
+  /** The maximum number of entries kept in a history. */
+  public static final int MAX_ENTRIES = 250_000;
+
+  public static final CriticalPathHistory EMPTY = new CriticalPathHistory(ImmutableMap.of());
+
+  /** The recorded data of one action. */
+  @Immutable
+  public static final class Entry {
+    private final String mnemonic;
+    private final long durationMillis;
+    private final long remainingCriticalPathMillis;
+
+    public Entry(String mnemonic, long durationMillis, long remainingCriticalPathMillis) {
+      this.mnemonic = mnemonic;
+      this.durationMillis = durationMillis;
+      this.remainingCriticalPathMillis = remainingCriticalPathMillis;
+    }
+
+    public String getMnemonic() {
+      return mnemonic;
+    }
+
+    /** The duration of the action itself. */
+    public long getDurationMillis() {
+      return durationMillis;
+    }
+
+    /** The duration of the action plus the longest chain of actions depending on it. */
+    public long getRemainingCriticalPathMillis() {
+      return remainingCriticalPathMillis;
+    }
+  }
+
+  private final ImmutableMap<String, Entry> entries;
+  private final ImmutableMap<String, Long> averageRemainingCriticalPathMillisByMnemonic;
+
+  /**
+   * Creates a history from entries keyed by the exec path of the primary output of the action,
+   * ordered from the most to the least recently recorded.
+   */
+  public CriticalPathHistory(Map<String, Entry> entries) {
+    this.entries = ImmutableMap.copyOf(entries);
+    Map<String, long[]> sums = new HashMap<>();
+    for (Entry entry : entries.values()) {
+      long[] sum = sums.computeIfAbsent(entry.mnemonic, m -> new long[2]);
+      sum[0] += entry.remainingCriticalPathMillis;
+      sum[1]++;
+    }
+    ImmutableMap.Builder<String, Long> averages = ImmutableMap.builder();
+    for (Map.Entry<String, long[]> sum : sums.entrySet()) {
+      averages.put(sum.getKey(), sum.getValue()[0] / sum.getValue()[1]);
+    }
+    this.averageRemainingCriticalPathMillisByMnemonic = averages.build();
+  }
+
+  public ImmutableMap<String, Entry> getEntries() {
+    return entries;
+  }
+
+  @Nullable
+  public Entry get(String primaryOutputExecPath) {
+    return entries.get(primaryOutputExecPath);
+  }
+
+  /**
+   * Returns the estimated length of the remaining critical path when the given action starts, or
+   * 0 if nothing is known about the action.
+   */
+  public long getRemainingCriticalPathMillis(ActionExecutionMetadata action) {
+    Entry entry = entries.get(action.getPrimaryOutput().getExecPathString());
+    if (entry != null) {
+      return entry.remainingCriticalPathMillis;
+    }
+    return averageRemainingCriticalPathMillisByMnemonic.getOrDefault(action.getMnemonic(), 0L);
+  }
+
+  /**
+   * Loads a history saved by {@link #save}. Returns an empty history if the file does not exist
+   * or cannot be parsed.
+   */
+  public static CriticalPathHistory load(Path file) {
+    if (!file.exists()) {
+      return EMPTY;
+    }
+    try {
+      List<String> lines = new ArrayList<>();
+      Iterables.addAll(lines, FileSystemUtils.readLines(file, UTF_8));
+      if (lines.isEmpty() || !lines.get(0).equals(HEADER)) {
+        logger.warning("Ignoring critical path history in unknown format: " + file);
+        return EMPTY;
+      }
+      Map<String, Entry> entries = new LinkedHashMap<>();
+      for (String line : lines.subList(1, lines.size())) {
+        if (line.isEmpty()) {
+          continue;
+        }
+        List<String> fields = FIELD_SPLITTER.splitToList(line);
+        if (fields.size() != 4) {
+          throw new IllegalArgumentException("malformed line '" + line + "'");
+        }
+        entries.put(
+            fields.get(3),
+            new Entry(
+                fields.get(2), Long.parseLong(fields.get(0)), Long.parseLong(fields.get(1))));
+      }
+      return new CriticalPathHistory(entries);
+    } catch (IOException | IllegalArgumentException e) {
+      logger.warning("Failed to load critical path history from " + file + ": " + e.getMessage());
+      return EMPTY;
+    }
+  }
+
+  /**
+   * Saves the history to the given file, replacing it atomically. The order of the entries is
+   * preserved.
+   */
+  public void save(Path file) throws IOException {
+    List<String> lines = new ArrayList<>(entries.size() + 1);
+    lines.add(HEADER);
+    for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+      Entry value = entry.getValue();
+      if (CharMatcher.whitespace().matchesAnyOf(value.mnemonic)
+          || CharMatcher.anyOf("\r\n").matchesAnyOf(entry.getKey())) {
+        // Cannot be represented in the file format.
+        continue;
+      }
+      lines.add(
+          value.durationMillis
+              + " "
+              + value.remainingCriticalPathMillis
+              + " "
+              + value.mnemonic
+              + " "
+              + entry.getKey());
+    }
+    Path tmpFile = file.getParentDirectory().getChild(file.getBaseName() + ".tmp");
+    FileSystemUtils.writeLinesAs(tmpFile, UTF_8, lines);
+    tmpFile.renameTo(file);
+  }
+}
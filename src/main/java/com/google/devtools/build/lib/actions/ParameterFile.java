@@ -14,13 +14,17 @@
 package com.google.devtools.build.lib.actions;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.devtools.build.lib.actions.Artifact.ArtifactExpander;
 import com.google.devtools.build.lib.util.FileType;
 import com.google.devtools.build.lib.util.ShellEscaper;
 import com.google.devtools.build.lib.vfs.PathFragment;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
 import java.nio.charset.Charset;
+import javax.annotation.Nullable;
 
 /**
  * Support for parameter file generation (as used by gcc and other tools, e.g.
@@ -85,37 +89,57 @@ public class ParameterFile {
   public static void writeParameterFile(
       OutputStream out, Iterable<String> arguments, ParameterFileType type, Charset charset)
       throws IOException {
-    switch (type) {
-      case SHELL_QUOTED:
-        writeContentQuoted(out, arguments, charset);
-        break;
-      case UNQUOTED:
-        writeContentUnquoted(out, arguments, charset);
-        break;
+    Writer writer = new OutputStreamWriter(out, charset);
+    for (String argument : arguments) {
+      writeArgument(writer, argument, type);
     }
+    writer.flush();
   }
 
-  /** Writes the arguments from the list into the parameter file. */
-  private static void writeContentUnquoted(
-      OutputStream outputStream, Iterable<String> arguments, Charset charset) throws IOException {
-    OutputStreamWriter out = new OutputStreamWriter(outputStream, charset);
-    for (String line : arguments) {
-      out.write(line);
-      out.write('\n');
+  /**
+   * Writes the arguments of a command line to a parameter file.
+   *
+   * <p>The arguments are expanded and encoded one at a time through the buffer of the writer, so
+   * that the whole argument list is never held in memory.
+   *
+   * @param artifactExpander the expander of the tree artifacts in the command line, or null to not
+   *     expand them
+   */
+  public static void writeParameterFile(
+      OutputStream out,
+      CommandLine commandLine,
+      @Nullable ArtifactExpander artifactExpander,
+      ParameterFileType type,
+      Charset charset)
+      throws IOException, CommandLineExpansionException {
+    Writer writer = new OutputStreamWriter(out, charset);
+    try {
+      commandLine.expandTo(
+          artifactExpander,
+          argument -> {
+            try {
+              writeArgument(writer, argument, type);
+            } catch (IOException e) {
+              throw new UncheckedIOException(e);
+            }
+          });
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
     }
-    out.flush();
+    writer.flush();
   }
 
-  /**
-   * Writes the arguments from the list into the parameter file with shell quoting (if required).
-   */
-  private static void writeContentQuoted(
-      OutputStream outputStream, Iterable<String> arguments, Charset charset) throws IOException {
-    OutputStreamWriter out = new OutputStreamWriter(outputStream, charset);
-    for (String line : ShellEscaper.escapeAll(arguments)) {
-      out.write(line);
-      out.write('\n');
+  /** Writes an argument on its own line, shell quoting it (if required). */
+  private static void writeArgument(Writer out, String argument, ParameterFileType type)
+      throws IOException {
+    switch (type) {
+      case SHELL_QUOTED:
+        out.write(ShellEscaper.escapeString(argument));
+        break;
+      case UNQUOTED:
+        out.write(argument);
+        break;
     }
-    out.flush();
+    out.write('\n');
   }
 }
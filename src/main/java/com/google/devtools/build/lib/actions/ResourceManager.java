@@ -21,11 +21,17 @@ import com.google.common.base.Preconditions;
 import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
 import com.google.devtools.build.lib.profiler.AutoProfiler;
 import com.google.devtools.build.lib.profiler.ProfilerTask;
-import com.google.devtools.build.lib.util.Pair;
+import com.google.devtools.build.lib.unix.ProcMeminfoParser;
+import com.google.devtools.build.lib.util.OS;
+import java.io.IOException;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.ListIterator;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.DoubleSupplier;
+import javax.annotation.Nullable;
 
 /**
  * Used to keep track of resources consumed by the Blaze action execution threads and throttle them
@@ -49,6 +55,11 @@ import java.util.concurrent.CountDownLatch;
  *     LocalHostCapacity#getLocalHostCapacity} method.
  * </ol>
  *
+ * <p>In adaptive mode, enabled by {@link #setResourceUsageModel}, the requested resources of an
+ * action are replaced by the resources that similar actions actually used in the past, and memory
+ * is only granted if the host currently has that much memory available, as reported by
+ * /proc/meminfo on Linux.
+ *
  * <p>The resource manager also allows a slight overallocation of the resources to account for the
  * fact that requested resources are usually estimated using a pessimistic approximation. It also
  * guarantees that at least one thread will always be able to acquire any amount of requested
@@ -115,9 +126,26 @@ public class ResourceManager {
   private static final double MIN_NECESSARY_RAM_RATIO = 1.0;
   private static final double MIN_NECESSARY_IO_RATIO = 1.0;
 
-  // List of blocked threads. Associated CountDownLatch object will always
-  // be initialized to 1 during creation in the acquire() method.
-  private final List<Pair<ResourceSet, CountDownLatch>> requestList;
+  /** A blocked request for resources. */
+  private static final class ResourceRequest {
+    final ResourceSet resources;
+    // Always initialized to 1 during creation in the acquire() method.
+    final CountDownLatch latch = new CountDownLatch(1);
+    // Requests with a higher priority are granted resources first.
+    final long priority;
+
+    ResourceRequest(ResourceSet resources, long priority) {
+      this.resources = resources;
+      this.priority = priority;
+    }
+  }
+
+  // List of blocked threads, ordered by decreasing priority, and in FIFO order among requests of
+  // the same priority.
+  private final List<ResourceRequest> requestList;
+
+  // Past durations of actions used to prioritize blocked requests, or null.
+  @Nullable private volatile CriticalPathHistory criticalPathHistory;
 
   // The total amount of resources on the local host. Must be set by
   // an explicit call to setAvailableResources(), often using
@@ -146,6 +174,23 @@ public class ResourceManager {
   public static final int DEFAULT_RAM_UTILIZATION_PERCENTAGE = 67;
   private int ramUtilizationPercentage = DEFAULT_RAM_UTILIZATION_PERCENTAGE;
 
+  // The model that predicts the resources of actions in adaptive mode, or null.
+  @Nullable private volatile ResourceUsageModel resourceUsageModel;
+
+  // How long a reading of the free memory of the host is used before it is read again.
+  private static final long FREE_MEMORY_SAMPLE_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+  // Source of the currently free memory of the host in MB.
+  private DoubleSupplier freeMemoryMbSupplier = ResourceManager::readFreeMemoryMb;
+
+  // The last reading of the free memory of the host, and when it was taken.
+  private double freeMemoryMb;
+  private long freeMemorySampleTimeNanos;
+
+  // RAM handed out since the last reading of the free memory. Processes that were just started do
+  // not show up in the free memory yet, so this is subtracted from the reading.
+  private double ramAcquiredSinceSample;
+
   private ResourceManager() {
     requestList = new LinkedList<>();
   }
@@ -163,9 +208,10 @@ public class ResourceManager {
     usedRam = 0;
     usedIo = 0;
     usedLocalTestCount = 0;
-    for (Pair<ResourceSet, CountDownLatch> request : requestList) {
+    freeMemorySampleTimeNanos = 0;
+    for (ResourceRequest request : requestList) {
       // CountDownLatch can be set only to 0 or 1.
-      request.second.countDown();
+      request.latch.countDown();
     }
     requestList.clear();
   }
@@ -192,6 +238,47 @@ public class ResourceManager {
     ramUtilizationPercentage = percentage;
   }
 
+  /**
+   * Enables adaptive mode using the given model to predict the resources of actions, or disables
+   * it if the model is null.
+   */
+  public synchronized void setResourceUsageModel(@Nullable ResourceUsageModel model) {
+    resourceUsageModel = model;
+    freeMemorySampleTimeNanos = 0;
+  }
+
+  /**
+   * Sets the history used to prioritize actions that are waiting for resources: the action with the
+   * longest remaining critical path is granted resources first. If null, requests are granted in
+   * FIFO order.
+   */
+  public void setCriticalPathHistory(@Nullable CriticalPathHistory history) {
+    criticalPathHistory = history;
+  }
+
+  /** Returns the model used in adaptive mode, or null if adaptive mode is disabled. */
+  @Nullable
+  public ResourceUsageModel getResourceUsageModel() {
+    return resourceUsageModel;
+  }
+
+  /**
+   * Records the resources used by a spawn of the given action so that future actions can be
+   * predicted, if adaptive mode is enabled.
+   */
+  public void recordResourceUsage(ActionExecutionMetadata owner, SpawnResult spawnResult) {
+    ResourceUsageModel model = resourceUsageModel;
+    if (model != null) {
+      model.record(owner, spawnResult);
+    }
+  }
+
+  @VisibleForTesting
+  synchronized void setFreeMemoryMbSupplierForTesting(DoubleSupplier supplier) {
+    freeMemoryMbSupplier = supplier;
+    freeMemorySampleTimeNanos = 0;
+  }
+
   /**
    * Acquires requested resource set. Will block if resource is not available.
    * NB! This method must be thread-safe!
@@ -203,10 +290,18 @@ public class ResourceManager {
     Preconditions.checkState(
         !threadHasResources(), "acquireResources with existing resource lock during %s", owner);
 
+    ResourceUsageModel model = resourceUsageModel;
+    if (model != null) {
+      resources = model.predict(owner, resources);
+    }
+
+    CriticalPathHistory history = criticalPathHistory;
+    long priority = history != null ? history.getRemainingCriticalPathMillis(owner) : 0;
+
     AutoProfiler p = profiled(owner.describe(), ProfilerTask.ACTION_LOCK);
     CountDownLatch latch = null;
     try {
-      latch = acquire(resources);
+      latch = acquire(resources, priority);
       if (latch != null) {
         latch.await();
       }
@@ -269,6 +364,7 @@ public class ResourceManager {
     usedRam += resources.getMemoryMb();
     usedIo += resources.getIoUsage();
     usedLocalTestCount += resources.getLocalTestCount();
+    ramAcquiredSinceSample += resources.getMemoryMb();
   }
 
   /**
@@ -313,15 +409,22 @@ public class ResourceManager {
     }
   }
 
-  private synchronized CountDownLatch acquire(ResourceSet resources) {
+  private synchronized CountDownLatch acquire(ResourceSet resources, long priority) {
     if (areResourcesAvailable(resources)) {
       incrementResources(resources);
       return null;
     }
-    Pair<ResourceSet, CountDownLatch> request =
-      new Pair<>(resources, new CountDownLatch(1));
-    requestList.add(request);
-    return request.second;
+    ResourceRequest request = new ResourceRequest(resources, priority);
+    // Most requests have the same priority, so search the insertion point from the end.
+    ListIterator<ResourceRequest> iterator = requestList.listIterator(requestList.size());
+    while (iterator.hasPrevious()) {
+      if (iterator.previous().priority >= priority) {
+        iterator.next();
+        break;
+      }
+    }
+    iterator.add(request);
+    return request.latch;
   }
 
   private synchronized boolean release(ResourceSet resources) {
@@ -353,13 +456,13 @@ public class ResourceManager {
    * Tries to unblock one or more waiting threads if there are sufficient resources available.
    */
   private synchronized void processWaitingThreads() {
-    Iterator<Pair<ResourceSet, CountDownLatch>> iterator = requestList.iterator();
+    Iterator<ResourceRequest> iterator = requestList.iterator();
     while (iterator.hasNext()) {
-      Pair<ResourceSet, CountDownLatch> request = iterator.next();
-      if (request.second.getCount() != 0) {
-        if (areResourcesAvailable(request.first)) {
-          incrementResources(request.first);
-          request.second.countDown();
+      ResourceRequest request = iterator.next();
+      if (request.latch.getCount() != 0) {
+        if (areResourcesAvailable(request.resources)) {
+          incrementResources(request.resources);
+          request.latch.countDown();
           iterator.remove();
         }
       } else {
@@ -404,9 +507,37 @@ public class ResourceManager {
     boolean ioIsAvailable = io == 0.0 || usedIo == 0.0 || usedIo + io <= availableIo;
     boolean localTestCountIsAvailable = localTestCount == 0 || usedLocalTestCount == 0
         || usedLocalTestCount + localTestCount <= availableLocalTestCount;
+    if (ramIsAvailable && resourceUsageModel != null && ram != 0.0 && usedRam != 0.0) {
+      // In adaptive mode, the estimates are supposed to be accurate, so they are also checked
+      // against the memory that is actually free, which accounts for memory used by other
+      // processes on the host.
+      ramIsAvailable = ram <= getFreeMemoryMb();
+    }
     return cpuIsAvailable && ramIsAvailable && ioIsAvailable && localTestCountIsAvailable;
   }
 
+  private double getFreeMemoryMb() {
+    long now = System.nanoTime();
+    if (freeMemorySampleTimeNanos == 0
+        || now - freeMemorySampleTimeNanos > FREE_MEMORY_SAMPLE_INTERVAL_NANOS) {
+      freeMemoryMb = freeMemoryMbSupplier.getAsDouble();
+      freeMemorySampleTimeNanos = now;
+      ramAcquiredSinceSample = 0;
+    }
+    return freeMemoryMb - ramAcquiredSinceSample;
+  }
+
+  private static double readFreeMemoryMb() {
+    if (OS.getCurrent() != OS.LINUX) {
+      return Double.MAX_VALUE;
+    }
+    try {
+      return ProcMeminfoParser.kbToMb(new ProcMeminfoParser().getFreeRamKb());
+    } catch (IOException | ProcMeminfoParser.KeywordNotFoundException e) {
+      return Double.MAX_VALUE;
+    }
+  }
+
   @VisibleForTesting
   synchronized int getWaitCount() {
     return requestList.size();
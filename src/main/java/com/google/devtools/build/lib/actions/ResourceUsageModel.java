@@ -0,0 +1,281 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.actions;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.CharMatcher;
+import com.google.common.base.Splitter;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.collect.Iterables;
+import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.Path;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+import javax.annotation.Nullable;
+
+/**
+ * Learns the CPU and memory consumption of locally executed actions from the resource usage
+ * measured for their spawns, and predicts the {@link ResourceSet} of future actions from it.
+ *
+ * <p>Observations are grouped by action mnemonic and by the order of magnitude of the number of
+ * inputs of the action, which is a cheap approximation of the size of the target: linking a
+ * binary with thousands of inputs usually needs much more memory than linking a small test.
+ *
+ * <p>The model is kept in memory during a build and saved to a small text file in the output
+ * base, so that predictions are available from the very first action of the next build.
+ */
+@ThreadSafe
+public final class ResourceUsageModel {
+  private static final Logger logger = Logger.getLogger(ResourceUsageModel.class.getName());
+
+  // Version of the file format; files with a different version are ignored.
+  private static final String HEADER = "resource_usage_model 1";
+
+  // Number of observations needed before the prediction replaces the declared resources.
+  @VisibleForTesting static final int MIN_OBSERVATIONS = 3;
+
+  // Weight of the newest observation in the exponential moving averages.
+  private static final double SMOOTHING_FACTOR = 0.25;
+
+  // Memory usage varies between runs of the same action, so the prediction leaves some headroom.
+  private static final double MEMORY_HEADROOM = 1.2;
+
+  // Lower bound for the predicted CPU usage. The resource manager treats a CPU usage of zero as
+  // "not requested", so even mostly idle actions must claim a little bit of CPU.
+  private static final double MIN_CPU_USAGE = 0.1;
+
+  private static final Splitter FIELD_SPLITTER = Splitter.on(' ');
+
+  /** Key of the observations of one kind of action. */
+  private static final class Key implements Comparable<Key> {
+    final String mnemonic;
+    final int inputSizeBucket;
+
+    Key(String mnemonic, int inputSizeBucket) {
+      this.mnemonic = mnemonic;
+      this.inputSizeBucket = inputSizeBucket;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      Key other = (Key) o;
+      return mnemonic.equals(other.mnemonic) && inputSizeBucket == other.inputSizeBucket;
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(mnemonic, inputSizeBucket);
+    }
+
+    @Override
+    public int compareTo(Key other) {
+      int result = mnemonic.compareTo(other.mnemonic);
+      return result != 0 ? result : Integer.compare(inputSizeBucket, other.inputSizeBucket);
+    }
+  }
+
+  /** Moving averages of the resources used by one kind of action. */
+  private static final class Estimate {
+    private int observations;
+    private double cpuUsage;
+    private double memoryMb;
+
+    Estimate(int observations, double cpuUsage, double memoryMb) {
+      this.observations = observations;
+      this.cpuUsage = cpuUsage;
+      this.memoryMb = memoryMb;
+    }
+
+    synchronized void add(double cpuUsage, double memoryMb) {
+      if (observations == 0) {
+        this.cpuUsage = cpuUsage;
+        this.memoryMb = memoryMb;
+      } else {
+        this.cpuUsage += SMOOTHING_FACTOR * (cpuUsage - this.cpuUsage);
+        // Memory peaks are what makes the machine swap, so a higher observation replaces the
+        // estimate immediately and only lower observations are smoothed.
+        this.memoryMb =
+            Math.max(memoryMb, this.memoryMb + SMOOTHING_FACTOR * (memoryMb - this.memoryMb));
+      }
+      observations = Math.min(observations + 1, Integer.MAX_VALUE - 1);
+    }
+
+    @Nullable
+    synchronized ResourceSet predict(ResourceSet declared) {
+      if (observations < MIN_OBSERVATIONS) {
+        return null;
+      }
+      return ResourceSet.create(
+          memoryMb * MEMORY_HEADROOM,
+          Math.max(cpuUsage, MIN_CPU_USAGE),
+          declared.getIoUsage(),
+          declared.getLocalTestCount());
+    }
+
+    synchronized String format(Key key) {
+      return String.format(
+          Locale.US,
+          "%s %d %d %.3f %.1f",
+          key.mnemonic,
+          key.inputSizeBucket,
+          observations,
+          cpuUsage,
+          memoryMb);
+    }
+  }
+
+  private final Map<Key, Estimate> estimates = new ConcurrentHashMap<>();
+
+  // The keys of the actions being scheduled or executed. Counting the inputs of an action flattens
+  // its nested set of inputs, so it is only done once per action.
+  private final LoadingCache<ActionExecutionMetadata, Key> actionKeys =
+      CacheBuilder.newBuilder().weakKeys().build(CacheLoader.from(ResourceUsageModel::computeKey));
+
+  /**
+   * Returns the bucket of the given number of inputs, which is the number of bits needed to
+   * represent it.
+   */
+  @VisibleForTesting
+  static int getInputSizeBucket(int inputCount) {
+    return Integer.SIZE - Integer.numberOfLeadingZeros(inputCount);
+  }
+
+  private static Key computeKey(ActionExecutionMetadata action) {
+    return new Key(action.getMnemonic(), getInputSizeBucket(Iterables.size(action.getInputs())));
+  }
+
+  private Key getKey(ActionExecutionMetadata action) {
+    return actionKeys.getUnchecked(action);
+  }
+
+  /**
+   * Returns the predicted resources of the given action, or the declared resources if there are
+   * not enough observations of similar actions yet.
+   */
+  public ResourceSet predict(ActionExecutionMetadata action, ResourceSet declared) {
+    if (declared == ResourceSet.ZERO || declared.getLocalTestCount() > 0) {
+      // Neither actions that don't need local resources nor tests, whose resources are governed by
+      // --local_test_jobs, are subject to the model.
+      return declared;
+    }
+    Estimate estimate = estimates.get(getKey(action));
+    if (estimate == null) {
+      return declared;
+    }
+    ResourceSet predicted = estimate.predict(declared);
+    return predicted != null ? predicted : declared;
+  }
+
+  /** Records the resources used by a spawn of the given action, if they were measured. */
+  public void record(ActionExecutionMetadata action, SpawnResult spawnResult) {
+    if (!spawnResult.getWallTime().isPresent()
+        || !spawnResult.getUserTime().isPresent()
+        || !spawnResult.getMemoryInKb().isPresent()) {
+      return;
+    }
+    long wallTimeMillis = spawnResult.getWallTime().get().toMillis();
+    if (wallTimeMillis <= 0) {
+      return;
+    }
+    long cpuTimeMillis =
+        spawnResult
+            .getUserTime()
+            .get()
+            .plus(spawnResult.getSystemTime().orElse(Duration.ZERO))
+            .toMillis();
+    record(
+        getKey(action),
+        (double) cpuTimeMillis / wallTimeMillis,
+        spawnResult.getMemoryInKb().get() / 1024.0);
+  }
+
+  private void record(Key key, double cpuUsage, double memoryMb) {
+    estimates.computeIfAbsent(key, k -> new Estimate(0, 0, 0)).add(cpuUsage, memoryMb);
+  }
+
+  @VisibleForTesting
+  void record(String mnemonic, int inputSizeBucket, double cpuUsage, double memoryMb) {
+    record(new Key(mnemonic, inputSizeBucket), cpuUsage, memoryMb);
+  }
+
+  /**
+   * Loads a model saved by {@link #save}. Returns an empty model if the file does not exist or
+   * cannot be parsed; the model is only an optimization and is relearned in that case.
+   */
+  public static ResourceUsageModel load(Path file) {
+    ResourceUsageModel model = new ResourceUsageModel();
+    if (!file.exists()) {
+      return model;
+    }
+    try {
+      List<String> lines = new ArrayList<>();
+      Iterables.addAll(lines, FileSystemUtils.readLines(file, UTF_8));
+      if (lines.isEmpty() || !lines.get(0).equals(HEADER)) {
+        logger.warning("Ignoring resource usage model in unknown format: " + file);
+        return model;
+      }
+      for (String line : lines.subList(1, lines.size())) {
+        if (line.isEmpty()) {
+          continue;
+        }
+        List<String> fields = FIELD_SPLITTER.splitToList(line);
+        if (fields.size() != 5) {
+          throw new IllegalArgumentException("malformed line '" + line + "'");
+        }
+        model.estimates.put(
+            new Key(fields.get(0), Integer.parseInt(fields.get(1))),
+            new Estimate(
+                Integer.parseInt(fields.get(2)),
+                Double.parseDouble(fields.get(3)),
+                Double.parseDouble(fields.get(4))));
+      }
+    } catch (IOException | IllegalArgumentException e) {
+      logger.warning("Failed to load resource usage model from " + file + ": " + e.getMessage());
+      return new ResourceUsageModel();
+    }
+    return model;
+  }
+
+  /** Saves the model to the given file, replacing it atomically. */
+  public void save(Path file) throws IOException {
+    List<String> lines = new ArrayList<>();
+    lines.add(HEADER);
+    for (Map.Entry<Key, Estimate> entry : new TreeMap<>(estimates).entrySet()) {
+      if (CharMatcher.whitespace().matchesAnyOf(entry.getKey().mnemonic)) {
+        // Such mnemonics can only come from Skylark rules and cannot be stored in the file format.
+        continue;
+      }
+      lines.add(entry.getValue().format(entry.getKey()));
+    }
+    Path tmpFile = file.getParentDirectory().getChild(file.getBaseName() + ".tmp");
+    FileSystemUtils.writeLinesAs(tmpFile, UTF_8, lines);
+    tmpFile.renameTo(file);
+  }
+}
@@ -16,7 +16,9 @@ package com.google.devtools.build.lib.actions;
 import com.google.common.base.Preconditions;
 import com.google.devtools.build.lib.concurrent.ThreadSafety.Immutable;
 import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
+import com.google.devtools.build.lib.shell.ExecutionStatistics.ResourceUsage;
 import com.google.devtools.build.lib.shell.TerminationStatus;
+import com.google.devtools.build.lib.util.OS;
 import java.io.InputStream;
 import java.time.Duration;
 import java.util.Locale;
@@ -182,6 +184,14 @@ public interface SpawnResult {
    */
   Optional<Long> getNumInvoluntaryContextSwitches();
 
+  /**
+   * Returns the maximum resident set size in kilobytes of the {@link Spawn}'s execution.
+   *
+   * @return the measurement, or empty in case of execution errors or when the measurement is not
+   *     implemented for the current platform
+   */
+  Optional<Long> getMemoryInKb();
+
   /** Whether the spawn result was a cache hit. */
   boolean isCacheHit();
 
@@ -219,6 +229,7 @@ public interface SpawnResult {
     private final Optional<Long> numBlockOutputOperations;
     private final Optional<Long> numBlockInputOperations;
     private final Optional<Long> numInvoluntaryContextSwitches;
+    private final Optional<Long> memoryInKb;
     private final boolean cacheHit;
     private final String failureMessage;
 
@@ -233,6 +244,7 @@ public interface SpawnResult {
       this.numBlockOutputOperations = builder.numBlockOutputOperations;
       this.numBlockInputOperations = builder.numBlockInputOperations;
       this.numInvoluntaryContextSwitches = builder.numInvoluntaryContextSwitches;
+      this.memoryInKb = builder.memoryInKb;
       this.cacheHit = builder.cacheHit;
       this.failureMessage = builder.failureMessage;
     }
@@ -300,6 +312,11 @@ public interface SpawnResult {
       return numInvoluntaryContextSwitches;
     }
 
+    @Override
+    public Optional<Long> getMemoryInKb() {
+      return memoryInKb;
+    }
+
     @Override
     public boolean isCacheHit() {
       return cacheHit;
@@ -356,6 +373,7 @@ public interface SpawnResult {
     private Optional<Long> numBlockOutputOperations = Optional.empty();
     private Optional<Long> numBlockInputOperations = Optional.empty();
     private Optional<Long> numInvoluntaryContextSwitches = Optional.empty();
+    private Optional<Long> memoryInKb = Optional.empty();
     private boolean cacheHit;
     private String failureMessage = "";
 
@@ -422,6 +440,28 @@ public interface SpawnResult {
       return this;
     }
 
+    public Builder setMemoryInKb(long memoryInKb) {
+      this.memoryInKb = Optional.of(memoryInKb);
+      return this;
+    }
+
+    /**
+     * Sets all measurements that are available from the resource usage reported for the process
+     * of the spawn, e.g. by the process-wrapper.
+     */
+    public Builder setResourceUsage(ResourceUsage resourceUsage) {
+      setUserTime(resourceUsage.getUserExecutionTime());
+      setSystemTime(resourceUsage.getSystemExecutionTime());
+      setNumBlockOutputOperations(resourceUsage.getBlockOutputOperations());
+      setNumBlockInputOperations(resourceUsage.getBlockInputOperations());
+      setNumInvoluntaryContextSwitches(resourceUsage.getInvoluntaryContextSwitches());
+      // getrusage() reports the maximum resident set size in bytes on macOS and in kilobytes on
+      // other platforms.
+      long maxResidentSetSize = resourceUsage.getMaximumResidentSetSize();
+      setMemoryInKb(OS.getCurrent() == OS.DARWIN ? maxResidentSetSize / 1024 : maxResidentSetSize);
+      return this;
+    }
+
     public Builder setWallTime(Optional<Duration> wallTime) {
       this.wallTime = wallTime;
       return this;
@@ -223,6 +223,19 @@ public class BuildView {
     )
     public long versionWindowForDirtyNodeGc;
 
+    @Option(
+      name = "experimental_nested_set_spill_threshold",
+      defaultValue = "0",
+      documentationCategory = OptionDocumentationCategory.UNDOCUMENTED,
+      effectTags = {OptionEffectTag.HOST_MACHINE_RESOURCE_OPTIMIZATIONS},
+      help =
+          "If positive, nested sets of artifacts with at least this many direct members or subsets"
+              + " which were not expanded during the build are moved from memory into a file in"
+              + " the output base after the build, and read back when needed. Reduces the memory"
+              + " retained by the analysis cache at the cost of reading sets back."
+    )
+    public int nestedSetSpillThreshold;
+
     @Deprecated
     @Option(
       name = "experimental_interleave_loading_and_analysis",
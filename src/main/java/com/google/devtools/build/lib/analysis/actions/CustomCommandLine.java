@@ -63,11 +63,11 @@ public final class CustomCommandLine extends CommandLine {
      *
      * @param arguments The command line's argument vector.
      * @param argi The index of the next available argument.
-     * @param builder The command line builder to which we should add arguments.
+     * @param consumer The consumer to which we should pass the arguments, one at a time.
      * @return The index of the next argument, after the ArgvFragment has consumed its args. If the
      *     ArgvFragment doesn't have any args, it should return {@code argi} unmodified.
      */
-    int eval(List<Object> arguments, int argi, ImmutableList.Builder<String> builder);
+    int eval(List<Object> arguments, int argi, Consumer<String> consumer);
 
     int addToFingerprint(
         List<Object> arguments,
@@ -83,8 +83,8 @@ public final class CustomCommandLine extends CommandLine {
    */
   private abstract static class StandardArgvFragment implements ArgvFragment {
     @Override
-    public final int eval(List<Object> arguments, int argi, ImmutableList.Builder<String> builder) {
-      eval(builder);
+    public final int eval(List<Object> arguments, int argi, Consumer<String> consumer) {
+      eval(consumer);
       return argi; // Doesn't consume any arguments, so return argi unmodified
     }
 
@@ -98,7 +98,7 @@ public final class CustomCommandLine extends CommandLine {
       return argi; // Doesn't consume any arguments, so return argi unmodified
     }
 
-    abstract void eval(ImmutableList.Builder<String> builder);
+    abstract void eval(Consumer<String> consumer);
 
     abstract void addToFingerprint(ActionKeyContext actionKeyContext, Fingerprint fingerprint);
   }
@@ -367,59 +367,52 @@ public final class CustomCommandLine extends CommandLine {
 
       @SuppressWarnings("unchecked")
       @Override
-      public int eval(List<Object> arguments, int argi, ImmutableList.Builder<String> builder) {
-        final List<String> mutatedValues;
+      public int eval(List<Object> arguments, int argi, Consumer<String> consumer) {
         CommandLineItem.MapFn<Object> mapFn =
             hasMapEach ? (CommandLineItem.MapFn<Object>) arguments.get(argi++) : null;
+        final Collection<Object> values;
         if (isNestedSet) {
-          NestedSet<Object> values = (NestedSet<Object>) arguments.get(argi++);
-          Collection<Object> collection = values.toCollection();
-          mutatedValues = new ArrayList<>(collection.size());
-          if (mapFn != null) {
-            Consumer<String> args = mutatedValues::add; // Hoist out of loop to reduce GC
-            for (Object object : collection) {
-              mapFn.expandToCommandLine(object, args);
-            }
-          } else {
-            for (Object object : collection) {
-              mutatedValues.add(CommandLineItem.expandToCommandLine(object));
-            }
-          }
+          values = ((NestedSet<Object>) arguments.get(argi++)).toCollection();
         } else {
           int count = (Integer) arguments.get(argi++);
-          mutatedValues = new ArrayList<>(count);
-          if (mapFn != null) {
-            Consumer<String> args = mutatedValues::add; // Hoist out of loop to reduce GC
-            for (int i = 0; i < count; ++i) {
-              mapFn.expandToCommandLine(arguments.get(argi++), args);
-            }
-          } else {
-            for (int i = 0; i < count; ++i) {
-              mutatedValues.add(CommandLineItem.expandToCommandLine(arguments.get(argi++)));
-            }
-          }
-        }
-        final int count = mutatedValues.size();
-        if (hasFormatEach) {
-          String formatStr = (String) arguments.get(argi++);
-          for (int i = 0; i < count; ++i) {
-            mutatedValues.set(
-                i, CommandLineItemSimpleFormatter.format(formatStr, mutatedValues.get(i)));
-          }
+          values = arguments.subList(argi, argi + count);
+          argi += count;
         }
+        String formatStr = hasFormatEach ? (String) arguments.get(argi++) : null;
+        // The values are passed on one at a time, so that a command line streamed to a parameter
+        // file never holds all of them in memory. Only joining them needs them all at once.
+        List<String> joinedValues = null;
+        String joinWith = null;
+        Consumer<String> args;
         if (hasBeforeEach) {
           String beforeEach = (String) arguments.get(argi++);
-          for (int i = 0; i < count; ++i) {
-            builder.add(beforeEach);
-            builder.add(mutatedValues.get(i));
-          }
+          args =
+              arg -> {
+                consumer.accept(beforeEach);
+                consumer.accept(arg);
+              };
         } else if (hasJoinWith) {
-          String joinWith = (String) arguments.get(argi++);
-          builder.add(Joiner.on(joinWith).join(mutatedValues));
+          joinWith = (String) arguments.get(argi++);
+          joinedValues = new ArrayList<>(values.size());
+          args = joinedValues::add;
         } else {
-          for (int i = 0; i < count; ++i) {
-            builder.add(mutatedValues.get(i));
+          args = consumer;
+        }
+        if (formatStr != null) {
+          Consumer<String> formattedArgs = args;
+          args = arg -> formattedArgs.accept(CommandLineItemSimpleFormatter.format(formatStr, arg));
+        }
+        if (mapFn != null) {
+          for (Object object : values) {
+            mapFn.expandToCommandLine(object, args);
           }
+        } else {
+          for (Object object : values) {
+            args.accept(CommandLineItem.expandToCommandLine(object));
+          }
+        }
+        if (joinedValues != null) {
+          consumer.accept(Joiner.on(joinWith).join(joinedValues));
         }
         return argi;
       }
@@ -502,14 +495,14 @@ public final class CustomCommandLine extends CommandLine {
     }
 
     @Override
-    public int eval(List<Object> arguments, int argi, ImmutableList.Builder<String> builder) {
+    public int eval(List<Object> arguments, int argi, Consumer<String> consumer) {
       int argCount = (Integer) arguments.get(argi++);
       String formatStr = (String) arguments.get(argi++);
       Object[] args = new Object[argCount];
       for (int i = 0; i < argCount; ++i) {
         args[i] = CommandLineItem.expandToCommandLine(arguments.get(argi++));
       }
-      builder.add(String.format(formatStr, args));
+      consumer.accept(String.format(formatStr, args));
       return argi;
     }
 
@@ -541,10 +534,10 @@ public final class CustomCommandLine extends CommandLine {
     }
 
     @Override
-    public int eval(List<Object> arguments, int argi, ImmutableList.Builder<String> builder) {
+    public int eval(List<Object> arguments, int argi, Consumer<String> consumer) {
       String before = (String) arguments.get(argi++);
       Object arg = arguments.get(argi++);
-      builder.add(before + CommandLineItem.expandToCommandLine(arg));
+      consumer.accept(before + CommandLineItem.expandToCommandLine(arg));
       return argi;
     }
 
@@ -591,10 +584,10 @@ public final class CustomCommandLine extends CommandLine {
    */
   private abstract static class TreeArtifactExpansionArgvFragment extends StandardArgvFragment {
     /**
-     * Evaluates this argument fragment into an argument string and adds it into {@code builder}.
+     * Evaluates this argument fragment into an argument string and passes it to {@code consumer}.
      * The enclosed TreeArtifact will be expanded using {@code artifactExpander}.
      */
-    abstract void eval(ImmutableList.Builder<String> builder, ArtifactExpander artifactExpander);
+    abstract void eval(Consumer<String> consumer, ArtifactExpander artifactExpander);
 
     /**
      * Returns a string that describes this argument fragment. The string can be used as part of an
@@ -611,8 +604,8 @@ public final class CustomCommandLine extends CommandLine {
      * <p>Internally this method just calls {@link #describe}.
      */
     @Override
-    void eval(ImmutableList.Builder<String> builder) {
-      builder.add(describe());
+    void eval(Consumer<String> consumer) {
+      consumer.accept(describe());
     }
   }
 
@@ -630,12 +623,12 @@ public final class CustomCommandLine extends CommandLine {
     }
 
     @Override
-    void eval(ImmutableList.Builder<String> builder, ArtifactExpander artifactExpander) {
+    void eval(Consumer<String> consumer, ArtifactExpander artifactExpander) {
       Set<Artifact> expandedArtifacts = new TreeSet<>();
       artifactExpander.expand(treeArtifact, expandedArtifacts);
 
       for (Artifact expandedArtifact : expandedArtifacts) {
-        builder.add(expandedArtifact.getExecPathString());
+        consumer.accept(expandedArtifact.getExecPathString());
       }
     }
 
@@ -1173,41 +1166,44 @@ public final class CustomCommandLine extends CommandLine {
 
   @Override
   public Iterable<String> arguments() {
-    return argumentsInternal(null);
+    ImmutableList.Builder<String> builder = ImmutableList.builder();
+    expandTo(null, builder::add);
+    return builder.build();
   }
 
   @Override
   public Iterable<String> arguments(ArtifactExpander artifactExpander) {
-    return argumentsInternal(Preconditions.checkNotNull(artifactExpander));
+    ImmutableList.Builder<String> builder = ImmutableList.builder();
+    expandTo(Preconditions.checkNotNull(artifactExpander), builder::add);
+    return builder.build();
   }
 
-  private Iterable<String> argumentsInternal(@Nullable ArtifactExpander artifactExpander) {
-    ImmutableList.Builder<String> builder = ImmutableList.builder();
+  @Override
+  public void expandTo(@Nullable ArtifactExpander artifactExpander, Consumer<String> consumer) {
     int count = arguments.size();
     for (int i = 0; i < count; ) {
       Object arg = arguments.get(i++);
       Object substitutedArg = substituteTreeFileArtifactArgvFragment(arg);
       if (substitutedArg instanceof Iterable) {
-        evalSimpleVectorArg((Iterable<?>) substitutedArg, builder);
+        evalSimpleVectorArg((Iterable<?>) substitutedArg, consumer);
       } else if (substitutedArg instanceof ArgvFragment) {
         if (artifactExpander != null
             && substitutedArg instanceof TreeArtifactExpansionArgvFragment) {
           TreeArtifactExpansionArgvFragment expansionArg =
               (TreeArtifactExpansionArgvFragment) substitutedArg;
-          expansionArg.eval(builder, artifactExpander);
+          expansionArg.eval(consumer, artifactExpander);
         } else {
-          i = ((ArgvFragment) substitutedArg).eval(arguments, i, builder);
+          i = ((ArgvFragment) substitutedArg).eval(arguments, i, consumer);
         }
       } else {
-        builder.add(CommandLineItem.expandToCommandLine(substitutedArg));
+        consumer.accept(CommandLineItem.expandToCommandLine(substitutedArg));
       }
     }
-    return builder.build();
   }
 
-  private void evalSimpleVectorArg(Iterable<?> arg, ImmutableList.Builder<String> builder) {
+  private void evalSimpleVectorArg(Iterable<?> arg, Consumer<String> consumer) {
     for (Object value : arg) {
-      builder.add(CommandLineItem.expandToCommandLine(value));
+      consumer.accept(CommandLineItem.expandToCommandLine(value));
     }
   }
 
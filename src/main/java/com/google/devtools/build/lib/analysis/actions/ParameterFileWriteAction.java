@@ -25,10 +25,8 @@ import com.google.devtools.build.lib.actions.Artifact;
 import com.google.devtools.build.lib.actions.Artifact.ArtifactExpander;
 import com.google.devtools.build.lib.actions.CommandLine;
 import com.google.devtools.build.lib.actions.CommandLineExpansionException;
-import com.google.devtools.build.lib.actions.ExecException;
 import com.google.devtools.build.lib.actions.ParameterFile;
 import com.google.devtools.build.lib.actions.ParameterFile.ParameterFileType;
-import com.google.devtools.build.lib.actions.UserExecException;
 import com.google.devtools.build.lib.concurrent.ThreadSafety.Immutable;
 import com.google.devtools.build.lib.skyframe.serialization.autocodec.AutoCodec;
 import com.google.devtools.build.lib.skyframe.serialization.autocodec.AutoCodec.VisibleForSerialization;
@@ -110,16 +108,9 @@ public final class ParameterFileWriteAction extends AbstractFileWriteAction {
   }
 
   @Override
-  public DeterministicWriter newDeterministicWriter(ActionExecutionContext ctx)
-      throws ExecException {
-    final Iterable<String> arguments;
-    try {
-      ArtifactExpander artifactExpander = Preconditions.checkNotNull(ctx.getArtifactExpander());
-      arguments = commandLine.arguments(artifactExpander);
-    } catch (CommandLineExpansionException e) {
-      throw new UserExecException(e);
-    }
-    return new ParamFileWriter(arguments, type, charset);
+  public DeterministicWriter newDeterministicWriter(ActionExecutionContext ctx) {
+    ArtifactExpander artifactExpander = Preconditions.checkNotNull(ctx.getArtifactExpander());
+    return new ParamFileWriter(commandLine, artifactExpander, type, charset);
   }
 
   @VisibleForSerialization
@@ -127,20 +118,49 @@ public final class ParameterFileWriteAction extends AbstractFileWriteAction {
     return Iterables.getOnlyElement(outputs);
   }
 
+  /**
+   * Expands the command line while writing it, so that its arguments never need to be held in
+   * memory all at once.
+   */
   private static class ParamFileWriter implements DeterministicWriter {
-    private final Iterable<String> arguments;
+    private final CommandLine commandLine;
+    private final ArtifactExpander artifactExpander;
     private final ParameterFileType type;
     private final Charset charset;
 
-    ParamFileWriter(Iterable<String> arguments, ParameterFileType type, Charset charset) {
-      this.arguments = arguments;
+    ParamFileWriter(
+        CommandLine commandLine,
+        ArtifactExpander artifactExpander,
+        ParameterFileType type,
+        Charset charset) {
+      this.commandLine = commandLine;
+      this.artifactExpander = artifactExpander;
       this.type = type;
       this.charset = charset;
     }
 
     @Override
     public void writeOutputFile(OutputStream out) throws IOException {
-      ParameterFile.writeParameterFile(out, arguments, type, charset);
+      try {
+        ParameterFile.writeParameterFile(out, commandLine, artifactExpander, type, charset);
+      } catch (CommandLineExpansionException e) {
+        throw new ParamFileExpansionException(e);
+      }
+    }
+  }
+
+  /**
+   * Thrown while writing a parameter file if its command line cannot be expanded. This is a user
+   * error, unlike the other {@link IOException}s thrown while writing.
+   */
+  public static final class ParamFileExpansionException extends IOException {
+    private ParamFileExpansionException(CommandLineExpansionException cause) {
+      super(cause.getMessage(), cause);
+    }
+
+    @Override
+    public synchronized CommandLineExpansionException getCause() {
+      return (CommandLineExpansionException) super.getCause();
     }
   }
 
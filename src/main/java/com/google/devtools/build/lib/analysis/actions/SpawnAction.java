@@ -77,6 +77,7 @@ import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.function.Consumer;
 import javax.annotation.CheckReturnValue;
 import javax.annotation.Nullable;
 
@@ -1391,6 +1392,49 @@ public class SpawnAction extends AbstractAction implements ExecutionInfoSpecifie
       return result.build();
     }
 
+    @Override
+    public void expandTo(@Nullable ArtifactExpander artifactExpander, Consumer<String> consumer)
+        throws CommandLineExpansionException {
+      int count = values.length;
+      for (int i = 0; i < count; ++i) {
+        Object value = values[i];
+        if (value instanceof String) {
+          consumer.accept((String) value);
+        } else if (value instanceof Artifact) {
+          Artifact paramFile = (Artifact) value;
+          String flagFormatString = (String) values[++i];
+          consumer.accept(
+              CommandLineItemSimpleFormatter.format(
+                  flagFormatString, paramFile.getExecPathString()));
+        } else if (value instanceof CommandLine) {
+          ((CommandLine) value).expandTo(artifactExpander, consumer);
+        }
+      }
+    }
+
+    @Override
+    public void addToFingerprint(ActionKeyContext actionKeyContext, Fingerprint fingerprint)
+        throws CommandLineExpansionException {
+      // Adds the same strings as the default implementation would, except that nested command
+      // lines add their own fingerprint, which differs from the one of their expanded arguments
+      // when they contain nested sets. Their nested sets are digested without being expanded.
+      int count = values.length;
+      for (int i = 0; i < count; ++i) {
+        Object value = values[i];
+        if (value instanceof String) {
+          fingerprint.addString((String) value);
+        } else if (value instanceof Artifact) {
+          Artifact paramFile = (Artifact) value;
+          String flagFormatString = (String) values[++i];
+          fingerprint.addString(
+              CommandLineItemSimpleFormatter.format(
+                  flagFormatString, paramFile.getExecPathString()));
+        } else if (value instanceof CommandLine) {
+          ((CommandLine) value).addToFingerprint(actionKeyContext, fingerprint);
+        }
+      }
+    }
+
     private static class Builder {
       private List<Object> values = new ArrayList<>();
 
@@ -915,7 +915,10 @@ public class BuildConfiguration {
       },
       metadataTags = { OptionMetadataTag.EXPERIMENTAL },
       help =
-          "Instantiates build configurations with the specified properties"
+          "Instantiates build configurations with the specified properties. With 'on', each "
+              + "target is analyzed with only the configuration fragments, and the options of the "
+              + "fragments, its transitive closure requires, so changing the options of a "
+              + "fragment only analyzes again the targets which need it."
     )
     public ConfigsMode configsMode;
 
@@ -22,6 +22,7 @@ import static java.lang.String.format;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Sets;
 import com.google.devtools.build.lib.authandtls.AuthAndTLSOptions;
 import com.google.devtools.build.lib.buildeventservice.client.BuildEventServiceClient;
 import com.google.devtools.build.lib.buildeventstream.BuildEventTransport;
@@ -40,10 +41,12 @@ import com.google.devtools.build.lib.runtime.SynchronizedOutputStream;
 import com.google.devtools.build.lib.util.AbruptExitException;
 import com.google.devtools.build.lib.util.ExitCode;
 import com.google.devtools.build.lib.util.io.OutErr;
+import com.google.devtools.build.lib.vfs.Path;
 import com.google.devtools.common.options.OptionsBase;
 import com.google.devtools.common.options.OptionsProvider;
 import java.io.IOException;
 import java.util.Set;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.annotation.Nullable;
 
@@ -59,10 +62,20 @@ public abstract class BuildEventServiceModule<T extends BuildEventServiceOptions
 
   private static final Logger logger = Logger.getLogger(BuildEventServiceModule.class.getName());
 
+  /** The directory in the output base build events are spooled to. */
+  private static final String SPOOL_DIRECTORY_NAME = "bes_spool";
+
   private OutErr outErr;
 
   private Set<BuildEventTransport> transports = ImmutableSet.of();
 
+  /** The directory to spool build events to, or null if they are only kept in memory. */
+  @Nullable private Path spoolDirectory;
+  /** Whether the uploads left behind by a previous server have been resumed. */
+  private boolean spoolsResumed;
+  /** The transports uploading the events left behind by a previous server. */
+  private final Set<BuildEventTransport> resumedTransports = Sets.newConcurrentHashSet();
+
   @Override
   public Iterable<Class<? extends OptionsBase>> getCommandOptions(Command command) {
     return ImmutableList.of(optionsClass(), AuthAndTLSOptions.class, BuildEventStreamOptions.class);
@@ -77,6 +90,21 @@ public abstract class BuildEventServiceModule<T extends BuildEventServiceOptions
       return;
     }
 
+    T besOptions = commandEnvironment.getOptions().getOptions(optionsClass());
+    spoolDirectory =
+        besOptions != null && besOptions.besSpool
+            ? commandEnvironment.getOutputBase().getRelative(SPOOL_DIRECTORY_NAME)
+            : null;
+    if (spoolDirectory != null && !isNullOrEmpty(besOptions.besBackend) && !spoolsResumed) {
+      spoolsResumed = true;
+      resumeSpooledUploads(
+          besOptions,
+          commandEnvironment.getOptions().getOptions(AuthAndTLSOptions.class),
+          commandEnvironment.getBlazeModuleEnvironment(),
+          commandEnvironment.getRuntime().getClock(),
+          commandEnvironment.getRuntime().getPathToUriConverter());
+    }
+
     BuildEventStreamer streamer =
         tryCreateStreamer(
             commandEnvironment.getRuntime().getStartupOptionsProvider(),
@@ -116,6 +144,42 @@ public abstract class BuildEventServiceModule<T extends BuildEventServiceOptions
     }
   }
 
+  /**
+   * Starts uploading the events spooled by a previous server in the background, which was shut down
+   * before their upload finished. These uploads are best effort and don't affect the command.
+   */
+  @SuppressWarnings("FutureReturnValueIgnored")
+  private void resumeSpooledUploads(
+      T besOptions,
+      AuthAndTLSOptions authTlsOptions,
+      ModuleEnvironment moduleEnvironment,
+      Clock clock,
+      PathConverter pathConverter) {
+    EventHandler logReporter = event -> logger.info(event.getMessage());
+    try {
+      for (Path spoolFile : BuildEventServiceSpool.findSpools(spoolDirectory)) {
+        logger.info("Resuming the upload of build events spooled to " + spoolFile);
+        BuildEventServiceTransport transport =
+            BuildEventServiceTransport.resumeFromSpool(
+                spoolFile,
+                createBesClient(besOptions, authTlsOptions),
+                besOptions.besLifecycleEvents,
+                besOptions.projectId,
+                besOptions.besMaxBufferedEvents,
+                moduleEnvironment,
+                clock,
+                pathConverter,
+                logReporter);
+        if (transport != null) {
+          resumedTransports.add(transport);
+          transport.close();
+        }
+      }
+    } catch (IOException e) {
+      logger.log(Level.WARNING, "Could not resume the upload of spooled build events", e);
+    }
+  }
+
   @Override
   public OutErr getOutputListener() {
     return outErr;
@@ -238,7 +302,9 @@ public abstract class BuildEventServiceModule<T extends BuildEventServiceOptions
               pathConverter,
               commandLineReporter,
               besOptions.projectId,
-              keywords(besOptions, startupOptionsProvider));
+              keywords(besOptions, startupOptionsProvider),
+              besOptions.besMaxBufferedEvents,
+              spoolDirectory);
       logger.fine("BuildEventServiceTransport was created successfully");
       return besTransport;
     }
@@ -249,6 +315,9 @@ public abstract class BuildEventServiceModule<T extends BuildEventServiceOptions
     for (BuildEventTransport transport : transports) {
       transport.closeNow();
     }
+    for (BuildEventTransport transport : resumedTransports) {
+      transport.closeNow();
+    }
   }
 
   protected abstract Class<T> optionsClass();
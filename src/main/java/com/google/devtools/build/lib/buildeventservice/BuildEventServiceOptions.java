@@ -104,4 +104,31 @@ public class BuildEventServiceOptions extends OptionsBase {
             + "event, even if larger than the specified value."
   )
   public long besOuterrBufferSize;
+
+  @Option(
+    name = "bes_max_buffered_events",
+    defaultValue = "10000",
+    documentationCategory = OptionDocumentationCategory.LOGGING,
+    effectTags = {OptionEffectTag.AFFECTS_OUTPUTS},
+    help =
+        "Specifies the maximal number of build events kept in memory while they wait to be "
+            + "uploaded to or acknowledged by the BES. Once exceeded, further events are spooled "
+            + "to disk if --experimental_bes_spool is set, and the build waits for the upload to "
+            + "catch up otherwise. 0 means no limit."
+  )
+  public int besMaxBufferedEvents;
+
+  @Option(
+    name = "experimental_bes_spool",
+    defaultValue = "false",
+    documentationCategory = OptionDocumentationCategory.LOGGING,
+    effectTags = {OptionEffectTag.AFFECTS_OUTPUTS},
+    help =
+        "If true, build events are written to a file in the output base until the BES has "
+            + "acknowledged them. Events exceeding --bes_max_buffered_events are then kept there "
+            + "instead of slowing down the build, and an upload interrupted by a server shutdown "
+            + "is resumed by the next server. The command still waits for the upload to finish "
+            + "unless --bes_best_effort is set."
+  )
+  public boolean besSpool;
 }
@@ -57,13 +57,28 @@ public final class BuildEventServiceProtoUtil {
       String commandName,
       Clock clock,
       Set<String> additionalKeywords) {
+    this(buildRequestId, buildInvocationId, projectId, commandName, clock, additionalKeywords, 1);
+  }
+
+  /**
+   * Creates a util whose stream continues at the given sequence number, for resuming the stream of
+   * a previous server.
+   */
+  BuildEventServiceProtoUtil(
+      String buildRequestId,
+      String buildInvocationId,
+      @Nullable String projectId,
+      String commandName,
+      Clock clock,
+      Set<String> additionalKeywords,
+      int nextSequenceNumber) {
     this.buildRequestId = buildRequestId;
     this.buildInvocationId = buildInvocationId;
     this.projectId = projectId;
     this.commandName = commandName;
     this.clock = clock;
     this.additionalKeywords = additionalKeywords;
-    this.streamSequenceNumber = new AtomicInteger(1);
+    this.streamSequenceNumber = new AtomicInteger(nextSequenceNumber);
   }
 
   public PublishLifecycleEventRequest buildEnqueued() {
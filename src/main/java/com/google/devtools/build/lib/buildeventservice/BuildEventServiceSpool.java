@@ -0,0 +1,186 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.buildeventservice;
+
+import static com.google.common.collect.ImmutableList.toImmutableList;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.ByteStreams;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.v1.PublishBuildToolEventStreamRequest;
+import com.google.protobuf.CodedOutputStream;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A file holding the requests of a build event stream, so that they don't need to be kept in memory
+ * until the BES has acknowledged them, and so that the next server can finish an upload interrupted
+ * by a shutdown.
+ *
+ * <p>The file contains the requests in the order of their sequence numbers, each written with
+ * {@link PublishBuildToolEventStreamRequest#writeDelimitedTo}. The sequence number of the last
+ * request acknowledged by the BES is written to a file next to it from time to time during the
+ * upload, and when the upload is interrupted.
+ */
+final class BuildEventServiceSpool {
+
+  private static final String SUFFIX = ".spool";
+  private static final String ACKED_SUFFIX = ".acked";
+  private static final String TMP_SUFFIX = ".tmp";
+
+  private final Path file;
+  // Guarded by this.
+  private final OutputStream out;
+  private long size;
+  // Guarded by this.
+  private boolean closed;
+
+  private BuildEventServiceSpool(Path file, OutputStream out, long size) {
+    this.file = file;
+    this.out = out;
+    this.size = size;
+  }
+
+  /** Creates an empty spool for the stream of the given invocation in the given directory. */
+  static BuildEventServiceSpool create(Path directory, String invocationId) throws IOException {
+    directory.createDirectoryAndParents();
+    Path file = directory.getRelative(invocationId + SUFFIX);
+    return new BuildEventServiceSpool(file, new BufferedOutputStream(file.getOutputStream()), 0);
+  }
+
+  /**
+   * Opens a spool left behind by a previous server for appending, dropping whatever follows the
+   * given size, such as a request the previous server didn't finish writing.
+   */
+  static BuildEventServiceSpool reopen(Path file, long size) throws IOException {
+    try (FileChannel channel =
+        FileChannel.open(file.getPathFile().toPath(), StandardOpenOption.WRITE)) {
+      channel.truncate(size);
+    }
+    return new BuildEventServiceSpool(
+        file, new BufferedOutputStream(file.getOutputStream(/*append=*/ true)), size);
+  }
+
+  /** Returns the spools in the given directory. */
+  static ImmutableList<Path> findSpools(Path directory) throws IOException {
+    if (!directory.exists()) {
+      return ImmutableList.of();
+    }
+    return directory
+        .getDirectoryEntries()
+        .stream()
+        .filter(path -> path.getBaseName().endsWith(SUFFIX))
+        .sorted()
+        .collect(toImmutableList());
+  }
+
+  Path getPath() {
+    return file;
+  }
+
+  /** Appends the given request and returns the offset it starts at. */
+  synchronized long append(PublishBuildToolEventStreamRequest request) throws IOException {
+    long offset = size;
+    int serializedSize = request.getSerializedSize();
+    request.writeDelimitedTo(out);
+    size += CodedOutputStream.computeUInt32SizeNoTag(serializedSize) + serializedSize;
+    return offset;
+  }
+
+  /**
+   * Returns a stream of the requests starting at the given offset, as returned by {@link #append}.
+   * Only the requests appended so far are guaranteed to be readable from it; later ones become
+   * readable after {@link #flush}.
+   */
+  synchronized InputStream openAt(long offset) throws IOException {
+    out.flush();
+    InputStream in = new BufferedInputStream(file.getInputStream());
+    try {
+      ByteStreams.skipFully(in, offset);
+    } catch (IOException e) {
+      in.close();
+      throw e;
+    }
+    return in;
+  }
+
+  /** Makes all requests appended so far readable. */
+  synchronized void flush() throws IOException {
+    out.flush();
+  }
+
+  /** Remembers the sequence number of the last request acknowledged by the BES. */
+  synchronized void recordAcked(long sequenceNumber) throws IOException {
+    if (closed) {
+      return;
+    }
+    out.flush();
+    // Replaces the file atomically, so that a crash can't leave it truncated.
+    Path tmpFile = ackedTmpFile(file);
+    FileSystemUtils.writeContentAsLatin1(tmpFile, Long.toString(sequenceNumber));
+    tmpFile.renameTo(ackedFile(file));
+  }
+
+  /**
+   * Returns the sequence number of the last request of the given spool acknowledged by the BES, or
+   * {@code 0} if it isn't known.
+   */
+  static long readAcked(Path file) throws IOException {
+    Path ackedFile = ackedFile(file);
+    if (!ackedFile.exists()) {
+      return 0;
+    }
+    try {
+      return Long.parseLong(new String(FileSystemUtils.readContentAsLatin1(ackedFile)).trim());
+    } catch (NumberFormatException e) {
+      return 0;
+    }
+  }
+
+  /** Closes the spool, leaving it for another server to resume. */
+  synchronized void close() throws IOException {
+    closed = true;
+    out.close();
+  }
+
+  /** Closes and deletes the spool. */
+  synchronized void delete() throws IOException {
+    try {
+      close();
+    } finally {
+      delete(file);
+    }
+  }
+
+  /** Deletes the given spool, which must not be open. */
+  static void delete(Path file) throws IOException {
+    file.delete();
+    ackedFile(file).delete();
+    ackedTmpFile(file).delete();
+  }
+
+  private static Path ackedFile(Path file) {
+    return file.getParentDirectory().getRelative(file.getBaseName() + ACKED_SUFFIX);
+  }
+
+  private static Path ackedTmpFile(Path file) {
+    return file.getParentDirectory().getRelative(file.getBaseName() + ACKED_SUFFIX + TMP_SUFFIX);
+  }
+}
@@ -29,6 +29,8 @@ import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Function;
 import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.io.CountingInputStream;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.ListeningExecutorService;
 import com.google.common.util.concurrent.SettableFuture;
@@ -50,14 +52,22 @@ import com.google.devtools.build.lib.util.AbruptExitException;
 import com.google.devtools.build.lib.util.ExitCode;
 import com.google.devtools.build.lib.util.JavaSleeper;
 import com.google.devtools.build.lib.util.Sleeper;
+import com.google.devtools.build.lib.vfs.Path;
 import com.google.devtools.build.v1.BuildStatus.Result;
 import com.google.devtools.build.v1.PublishBuildToolEventStreamRequest;
 import com.google.devtools.build.v1.PublishBuildToolEventStreamResponse;
 import com.google.devtools.build.v1.PublishLifecycleEventRequest;
+import com.google.devtools.build.v1.StreamId;
 import com.google.protobuf.Any;
+import com.google.protobuf.InvalidProtocolBufferException;
 import io.grpc.Status;
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.time.Duration;
+import java.util.ArrayList;
 import java.util.Deque;
+import java.util.List;
 import java.util.Set;
 import java.util.concurrent.BlockingDeque;
 import java.util.concurrent.Callable;
@@ -85,6 +95,10 @@ public class BuildEventServiceTransport implements BuildEventTransport {
   private static final Duration PUBLISH_EVENT_STREAM_FINISHED_TIMEOUT = Duration.ofSeconds(30);
   /** Max wait time between isStreamActive checks of the PublishBuildToolEventStream RPC. */
   private static final int STREAMING_RPC_POLL_IN_SECS = 1;
+  /** Max number of events sent over the stream between two isStreamActive checks. */
+  private static final int MAX_BATCH_SIZE = 100;
+  /** The number of acks after which the last acked event is recorded next to the spool. */
+  private static final int ACKS_PER_RECORD = 100;
 
   private final ListeningExecutorService uploaderExecutorService;
   private final Duration uploadTimeout;
@@ -100,6 +114,30 @@ public class BuildEventServiceTransport implements BuildEventTransport {
   private ConcurrentLinkedDeque<PublishBuildToolEventStreamRequest> pendingAck;
   /** Contains all events should be sent ordered by sequence number. */
   private final BlockingDeque<PublishBuildToolEventStreamRequest> pendingSend;
+  /**
+   * Max number of events in {@link #pendingSend} and {@link #pendingAck} together, or 0 if there is
+   * no limit. Further events are spooled if there is a {@link #spool}, and block the caller until
+   * there is room otherwise.
+   */
+  private final int maxBufferedEvents;
+  /** The file all events are written to until they are acked, or null if there is none. */
+  @Nullable private final BuildEventServiceSpool spool;
+  /** Whether this transport uploads the stream of a previous server from its spool. */
+  private final boolean resumed;
+  /** Whether new events are still written to the spool. Guarded by this. */
+  private boolean spooling;
+  /** The number of events only in the spool, which follow those in pendingSend. Guarded by this. */
+  private int spilledEvents;
+  /** The offset of the first of these events in the spool. Guarded by this. */
+  private long spillOffset;
+  /** Reads these events from the spool. Guarded by this. */
+  @Nullable private InputStream spillReader;
+  /** The sequence number of the last acked event. */
+  private volatile long lastAckedSequenceNumber;
+  /** The number of acks since the last acked event was recorded next to the spool. */
+  private int acksSinceLastRecord;
+  /** Whether the upload was cancelled, in which case the spool is kept to be resumed later. */
+  private volatile boolean uploadCancelled;
   /** Holds the result status of the BuildEventStreamProtos BuildFinished event. */
   private Result invocationResult;
   /** Used to block until all events have been uploaded. */
@@ -133,10 +171,12 @@ public class BuildEventServiceTransport implements BuildEventTransport {
       PathConverter pathConverter,
       EventHandler commandLineReporter,
       @Nullable String projectId,
-      Set<String> keywords) {
+      Set<String> keywords,
+      int maxBufferedEvents,
+      @Nullable Path spoolDirectory) {
     this(besClient, uploadTimeout, bestEffortUpload, publishLifecycleEvents, buildRequestId,
         invocationId, command, moduleEnvironment, clock, pathConverter, commandLineReporter,
-        projectId, keywords, new JavaSleeper());
+        projectId, keywords, maxBufferedEvents, spoolDirectory, new JavaSleeper());
   }
 
   @VisibleForTesting
@@ -154,10 +194,32 @@ public class BuildEventServiceTransport implements BuildEventTransport {
       EventHandler commandLineReporter,
       @Nullable String projectId,
       Set<String> keywords,
+      int maxBufferedEvents,
+      @Nullable Path spoolDirectory,
       Sleeper sleeper) {
+    this(besClient, uploadTimeout, bestEffortUpload, publishLifecycleEvents,
+        new BuildEventServiceProtoUtil(
+            buildRequestId, invocationId, projectId, command, clock, keywords),
+        moduleEnvironment, pathConverter, commandLineReporter, maxBufferedEvents,
+        createSpool(spoolDirectory, invocationId), /*resumed=*/ false, sleeper);
+  }
+
+  private BuildEventServiceTransport(
+      BuildEventServiceClient besClient,
+      Duration uploadTimeout,
+      boolean bestEffortUpload,
+      boolean publishLifecycleEvents,
+      BuildEventServiceProtoUtil besProtoUtil,
+      ModuleEnvironment moduleEnvironment,
+      PathConverter pathConverter,
+      EventHandler commandLineReporter,
+      int maxBufferedEvents,
+      @Nullable BuildEventServiceSpool spool,
+      boolean resumed,
+      Sleeper sleeper) {
+    Preconditions.checkArgument(maxBufferedEvents >= 0, maxBufferedEvents);
     this.besClient = besClient;
-    this.besProtoUtil = new BuildEventServiceProtoUtil(
-        buildRequestId, invocationId, projectId, command, clock, keywords);
+    this.besProtoUtil = besProtoUtil;
     this.publishLifecycleEvents = publishLifecycleEvents;
     this.moduleEnvironment = moduleEnvironment;
     this.commandLineReporter = commandLineReporter;
@@ -174,6 +236,128 @@ public class BuildEventServiceTransport implements BuildEventTransport {
     this.uploadTimeout = uploadTimeout;
     this.bestEffortUpload = bestEffortUpload;
     this.sleeper = sleeper;
+    this.maxBufferedEvents = maxBufferedEvents;
+    this.spool = spool;
+    this.spooling = spool != null && !resumed;
+    this.resumed = resumed;
+  }
+
+  @Nullable
+  private static BuildEventServiceSpool createSpool(
+      @Nullable Path spoolDirectory, String invocationId) {
+    if (spoolDirectory == null) {
+      return null;
+    }
+    try {
+      return BuildEventServiceSpool.create(spoolDirectory, invocationId);
+    } catch (IOException e) {
+      logger.log(Level.WARNING, "Could not create the spool, keeping build events in memory.", e);
+      return null;
+    }
+  }
+
+  /**
+   * Starts uploading the events left in the given spool by a previous server, which was shut down
+   * before their upload finished. The upload is best effort and continues in the background; the
+   * spool is deleted once it's done.
+   *
+   * @return the transport uploading the events, or {@code null} if all of them had been acked
+   */
+  @Nullable
+  static BuildEventServiceTransport resumeFromSpool(
+      Path spoolFile,
+      BuildEventServiceClient besClient,
+      boolean publishLifecycleEvents,
+      @Nullable String projectId,
+      int maxBufferedEvents,
+      ModuleEnvironment moduleEnvironment,
+      Clock clock,
+      PathConverter pathConverter,
+      EventHandler commandLineReporter)
+      throws IOException {
+    long lastAcked = BuildEventServiceSpool.readAcked(spoolFile);
+    PublishBuildToolEventStreamRequest first = null;
+    PublishBuildToolEventStreamRequest last = null;
+    Result result = UNKNOWN_STATUS;
+    long validSize = 0;
+    long resumeOffset = -1;
+    int unackedEvents = 0;
+    try (CountingInputStream in =
+        new CountingInputStream(new BufferedInputStream(spoolFile.getInputStream()))) {
+      while (true) {
+        long offset = in.getCount();
+        PublishBuildToolEventStreamRequest request;
+        try {
+          request = PublishBuildToolEventStreamRequest.parseDelimitedFrom(in);
+        } catch (InvalidProtocolBufferException e) {
+          // The previous server didn't finish writing the last event.
+          break;
+        }
+        if (request == null) {
+          break;
+        }
+        validSize = in.getCount();
+        if (first == null) {
+          first = request;
+        }
+        last = request;
+        result = resultOf(request, result);
+        if (request.getOrderedBuildEvent().getSequenceNumber() > lastAcked) {
+          if (unackedEvents == 0) {
+            resumeOffset = offset;
+          }
+          unackedEvents++;
+        }
+      }
+    }
+    if (first == null || (unackedEvents == 0 && isLastEvent(last))) {
+      BuildEventServiceSpool.delete(spoolFile);
+      return null;
+    }
+
+    StreamId streamId = first.getOrderedBuildEvent().getStreamId();
+    BuildEventServiceProtoUtil besProtoUtil =
+        new BuildEventServiceProtoUtil(
+            streamId.getBuildId(),
+            streamId.getInvocationId(),
+            projectId,
+            /*commandName=*/ "",
+            clock,
+            /*additionalKeywords=*/ ImmutableSet.of(),
+            (int) last.getOrderedBuildEvent().getSequenceNumber() + 1);
+    BuildEventServiceSpool spool = BuildEventServiceSpool.reopen(spoolFile, validSize);
+    if (!isLastEvent(last)) {
+      // The previous server was shut down before the build finished.
+      long offset = spool.append(besProtoUtil.streamFinished());
+      if (unackedEvents == 0) {
+        resumeOffset = offset;
+      }
+      unackedEvents++;
+    }
+    BuildEventServiceTransport transport =
+        new BuildEventServiceTransport(
+            besClient,
+            /*uploadTimeout=*/ Duration.ZERO,
+            /*bestEffortUpload=*/ true,
+            publishLifecycleEvents,
+            besProtoUtil,
+            moduleEnvironment,
+            pathConverter,
+            commandLineReporter,
+            maxBufferedEvents,
+            spool,
+            /*resumed=*/ true,
+            new JavaSleeper());
+    transport.startResumedUpload(result, resumeOffset, unackedEvents);
+    return transport;
+  }
+
+  private synchronized void startResumedUpload(
+      Result invocationResult, long spillOffset, int spilledEvents) {
+    this.invocationResult = invocationResult;
+    this.spillOffset = spillOffset;
+    this.spilledEvents = spilledEvents;
+    uploadComplete = uploaderExecutorService.submit(new BuildEventServiceUpload());
   }
 
   public boolean isStreaming() {
@@ -216,7 +400,9 @@ public class BuildEventServiceTransport implements BuildEventTransport {
     uploaderExecutorService.execute(
         () -> {
           try {
-            sendOrderedBuildEvent(besProtoUtil.streamFinished());
+            if (!resumed) {
+              sendOrderedBuildEvent(besProtoUtil.streamFinished());
+            }
 
             if (errorsReported) {
               // If we encountered errors before and have already reported them, then we should
@@ -262,8 +448,15 @@ public class BuildEventServiceTransport implements BuildEventTransport {
   }
 
   private void cancelUpload() {
+    uploadCancelled = true;
+    if (spool != null && uploadComplete != null && !uploadComplete.isDone()) {
+      // The upload may still go on in the background while the server shuts down, so remember
+      // where the next server needs to resume it.
+      recordAcked();
+    }
     if (!uploaderExecutorService.isShutdown()) {
       logger.log(Level.INFO, "Forcefully closing the build event service transport.");
+      uploadCancelled = true;
       // This will interrupt the thread doing the BES upload.
       if (uploadComplete != null) {
         uploadComplete.cancel(true);
@@ -298,17 +491,34 @@ public class BuildEventServiceTransport implements BuildEventTransport {
           }
         });
     if (PayloadCase.FINISHED.equals(eventProto.getPayloadCase())) {
-      BuildFinished finished = eventProto.getFinished();
-      if (finished.hasExitCode() && finished.getExitCode().getCode() == 0) {
-        invocationResult = COMMAND_SUCCEEDED;
-      } else {
-        invocationResult = COMMAND_FAILED;
-      }
+      invocationResult = resultOf(eventProto.getFinished());
     }
 
     sendOrderedBuildEvent(besProtoUtil.bazelEvent(Any.pack(eventProto)));
   }
 
+  private static Result resultOf(BuildFinished finished) {
+    if (finished.hasExitCode() && finished.getExitCode().getCode() == 0) {
+      return COMMAND_SUCCEEDED;
+    } else {
+      return COMMAND_FAILED;
+    }
+  }
+
+  /** Returns the invocation result after the given spooled event. */
+  private static Result resultOf(PublishBuildToolEventStreamRequest request, Result result)
+      throws InvalidProtocolBufferException {
+    Any bazelEvent = request.getOrderedBuildEvent().getEvent().getBazelEvent();
+    if (bazelEvent.is(BuildEventStreamProtos.BuildEvent.class)) {
+      BuildEventStreamProtos.BuildEvent event =
+          bazelEvent.unpack(BuildEventStreamProtos.BuildEvent.class);
+      if (PayloadCase.FINISHED.equals(event.getPayloadCase())) {
+        return resultOf(event.getFinished());
+      }
+    }
+    return result;
+  }
+
   private String errorMessageFromException(Throwable t) {
     String message;
     if (t instanceof TimeoutException) {
@@ -367,12 +577,152 @@ public class BuildEventServiceTransport implements BuildEventTransport {
       return;
     }
 
+    if (spooling) {
+      try {
+        long offset = spool.append(serialisedEvent);
+        if (spilledEvents > 0 || roomInWindow() <= 0) {
+          // Keep the event only in the spool until there is room for it.
+          if (spilledEvents == 0) {
+            spillOffset = offset;
+          }
+          spilledEvents++;
+          startUploadIfNeeded();
+          return;
+        }
+      } catch (IOException e) {
+        logger.log(
+            Level.WARNING, "Could not spool build event, keeping build events in memory.", e);
+        spooling = false;
+      }
+    }
+    awaitRoomInWindow();
     pendingSend.add(serialisedEvent);
+    startUploadIfNeeded();
+  }
+
+  private void startUploadIfNeeded() {
     if (uploadComplete == null) {
       uploadComplete = uploaderExecutorService.submit(new BuildEventServiceUpload());
     }
   }
 
+  /** Returns how many more events may be kept in memory. */
+  private int roomInWindow() {
+    if (maxBufferedEvents == 0) {
+      return Integer.MAX_VALUE;
+    }
+    return maxBufferedEvents - pendingSend.size() - pendingAck.size();
+  }
+
+  /**
+   * Blocks the caller until there is room for another event in memory and no events are spooled
+   * ahead of it, unless the upload is done. Should only be called in a synchronized context.
+   */
+  private void awaitRoomInWindow() {
+    while ((spilledEvents > 0 || roomInWindow() <= 0)
+        && uploadComplete != null
+        && !uploadComplete.isDone()) {
+      try {
+        wait(TimeUnit.SECONDS.toMillis(STREAMING_RPC_POLL_IN_SECS));
+      } catch (InterruptedException e) {
+        // Don't lose the event, but don't keep an interrupted build waiting either.
+        Thread.currentThread().interrupt();
+        return;
+      }
+    }
+  }
+
+  /**
+   * Moves the next events to send into the given list. Waits up to {@link
+   * #STREAMING_RPC_POLL_IN_SECS} for one if there are none.
+   */
+  private void takeBatch(
+      BlockingDeque<PublishBuildToolEventStreamRequest> pendingSend,
+      List<PublishBuildToolEventStreamRequest> batch)
+      throws InterruptedException, IOException {
+    if (refillFromSpool()) {
+      // New events are spooled behind the refilled ones, so don't wait for them.
+      pendingSend.drainTo(batch, MAX_BATCH_SIZE);
+      return;
+    }
+    PublishBuildToolEventStreamRequest event =
+        pendingSend.pollFirst(STREAMING_RPC_POLL_IN_SECS, TimeUnit.SECONDS);
+    if (event != null) {
+      batch.add(event);
+      pendingSend.drainTo(batch, MAX_BATCH_SIZE - 1);
+    }
+  }
+
+  /**
+   * Reads as many of the events kept only in the spool into {@link #pendingSend} as there is room
+   * for, waiting for acks to make room if there is none.
+   *
+   * @return whether there were such events
+   */
+  private synchronized boolean refillFromSpool() throws InterruptedException, IOException {
+    if (spilledEvents == 0) {
+      return false;
+    }
+    if (roomInWindow() <= 0) {
+      wait(TimeUnit.SECONDS.toMillis(STREAMING_RPC_POLL_IN_SECS));
+    }
+    int count = Math.min(Math.min(spilledEvents, roomInWindow()), MAX_BATCH_SIZE);
+    if (count <= 0) {
+      return true;
+    }
+    if (spillReader == null) {
+      spillReader = spool.openAt(spillOffset);
+    } else {
+      spool.flush();
+    }
+    for (int i = 0; i < count; i++) {
+      PublishBuildToolEventStreamRequest event =
+          PublishBuildToolEventStreamRequest.parseDelimitedFrom(spillReader);
+      if (event == null) {
+        throw new IOException("Build events missing from " + spool.getPath());
+      }
+      pendingSend.add(event);
+    }
+    spilledEvents -= count;
+    if (spilledEvents == 0) {
+      spillReader.close();
+      spillReader = null;
+      // Wakes up callers waiting for the spooled events to be sent.
+      notifyAll();
+    }
+    return true;
+  }
+
+  private synchronized void closeSpool() {
+    try {
+      if (spillReader != null) {
+        spillReader.close();
+        spillReader = null;
+      }
+      if (uploadCancelled) {
+        // Leave the spool for the next server to resume the upload.
+        recordAcked();
+        spool.close();
+      } else {
+        spool.delete();
+      }
+    } catch (IOException e) {
+      logger.log(Level.WARNING, "Could not close the spool " + spool.getPath(), e);
+    }
+  }
+
+  /**
+   * Records the last acked event next to the spool, which is where the next server resumes the
+   * upload if this one goes away before finishing it.
+   */
+  private void recordAcked() {
+    try {
+      spool.recordAcked(lastAckedSequenceNumber);
+    } catch (IOException e) {
+      logger.log(Level.WARNING, "Could not record the acked build events", e);
+    }
+  }
+
   private synchronized Result getInvocationResult() {
     return invocationResult;
   }
@@ -384,17 +734,25 @@ public class BuildEventServiceTransport implements BuildEventTransport {
     @Override
     public Void call() throws Exception {
       try {
-        publishBuildEnqueuedEvent();
-        publishInvocationStartedEvent();
+        if (!resumed) {
+          publishBuildEnqueuedEvent();
+          publishInvocationStartedEvent();
+        }
         try {
           publishEventStream0();
         } finally {
-          Result result = getInvocationResult();
-          publishInvocationFinishedEvent(result);
-          publishBuildFinishedEvent(result);
+          // If the spool is kept, the server resuming the upload finishes the invocation.
+          if (spool == null || !uploadCancelled) {
+            Result result = getInvocationResult();
+            publishInvocationFinishedEvent(result);
+            publishBuildFinishedEvent(result);
+          }
         }
       } finally {
         besClient.shutdown();
+        if (spool != null) {
+          closeSpool();
+        }
       }
       return null;
     }
@@ -481,14 +839,19 @@ public class BuildEventServiceTransport implements BuildEventTransport {
         String.format(
             "Started PublishBuildToolEventStream() RPC pendingSendCount=%s", pendingSend.size()));
     try {
-      @Nullable PublishBuildToolEventStreamRequest event;
+      List<PublishBuildToolEventStreamRequest> batch = new ArrayList<>(MAX_BATCH_SIZE);
+      @Nullable PublishBuildToolEventStreamRequest event = null;
       do {
-        event = pendingSend.pollFirst(STREAMING_RPC_POLL_IN_SECS, TimeUnit.SECONDS);
-        if (event != null) {
+        takeBatch(pendingSend, batch);
+        for (PublishBuildToolEventStreamRequest next : batch) {
+          event = next;
           pendingAck.add(event);
           besClient.sendOverStream(event);
         }
-        checkState(besClient.isStreamActive(), "Stream was closed prematurely.");
+        batch.clear();
+        // The ACK of the last event closes the stream, which may happen before we get here.
+        checkState(
+            besClient.isStreamActive() || isLastEvent(event), "Stream was closed prematurely.");
       } while (!isLastEvent(event));
       logger.log(
           Level.INFO,
@@ -561,6 +924,15 @@ public class BuildEventServiceTransport implements BuildEventTransport {
         besClient.closeStream();
       }
       acksReceivedSinceLastRetry++;
+      lastAckedSequenceNumber = ackSeq;
+      if (spool != null && ++acksSinceLastRecord >= ACKS_PER_RECORD) {
+        acksSinceLastRecord = 0;
+        recordAcked();
+      }
+      // Wakes up the uploader and callers waiting for room in the window.
+      synchronized (this) {
+        notifyAll();
+      }
       return null;
     };
   }
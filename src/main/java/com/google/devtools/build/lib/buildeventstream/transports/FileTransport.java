@@ -66,8 +66,11 @@ abstract class FileTransport implements BuildEventTransport {
 
   @Override
   public synchronized ListenableFuture<Void> close() {
+    ListenableFuture<Void> closeFuture = out.closeAsync();
+    closeFuture.addListener(
+        () -> logger.info(name() + " wrote " + out.getStats()), MoreExecutors.directExecutor());
     return Futures.catching(
-        out.closeAsync(),
+        closeFuture,
         Throwable.class,
         (t) -> {
           logger.log(Level.SEVERE, t.getMessage(), t);
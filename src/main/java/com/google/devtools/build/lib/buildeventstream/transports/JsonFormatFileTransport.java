@@ -20,7 +20,6 @@ import com.google.devtools.build.lib.buildeventstream.BuildEventConverters;
 import com.google.devtools.build.lib.buildeventstream.BuildEventTransport;
 import com.google.devtools.build.lib.buildeventstream.PathConverter;
 import com.google.protobuf.InvalidProtocolBufferException;
-import com.google.protobuf.util.JsonFormat;
 import java.io.IOException;
 
 /**
@@ -30,6 +29,8 @@ import java.io.IOException;
 public final class JsonFormatFileTransport extends FileTransport {
 
   private final PathConverter pathConverter;
+  // Reused across events to avoid growing a new builder for each of them.
+  private final StringBuilder json = new StringBuilder();
 
   JsonFormatFileTransport(String path, PathConverter pathConverter) throws IOException {
     super(path);
@@ -57,11 +58,9 @@ public final class JsonFormatFileTransport extends FileTransport {
         };
     String protoJsonRepresentation;
     try {
-      protoJsonRepresentation =
-          JsonFormat.printer()
-                  .omittingInsignificantWhitespace()
-                  .print(event.asStreamProto(converters))
-              + "\n";
+      json.setLength(0);
+      ProtoJsonPrinter.print(event.asStreamProto(converters), json);
+      protoJsonRepresentation = json.append('\n').toString();
     } catch (InvalidProtocolBufferException e) {
       // We don't expect any unknown Any fields in our protocol buffer. Nevertheless, handle
       // the exception gracefully and, at least, return valid JSON with an id field.
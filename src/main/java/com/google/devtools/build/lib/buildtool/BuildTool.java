@@ -142,6 +142,8 @@ public class BuildTool {
     BuildOptions buildOptions = runtime.createBuildOptions(request);
     // Sync the package manager before sending the BuildStartingEvent in runLoadingPhase()
     env.setupPackageCache(request, DefaultsPackage.getDefaultsPackageContent(buildOptions));
+    env.getSkyframeExecutor()
+        .setNestedSetSpillThreshold(request.getViewOptions().nestedSetSpillThreshold);
 
     ExecutionTool executionTool = null;
     boolean catastrophe = false;
@@ -288,6 +290,11 @@ public class BuildTool {
         if (versionWindow != -1) {
           env.getSkyframeExecutor().deleteOldNodes(versionWindow);
         }
+        // Sets expanded during execution are likely to be expanded again by the next build, so
+        // only spill now.
+        if (request.getViewOptions().nestedSetSpillThreshold > 0) {
+          env.getSkyframeExecutor().spillNestedSets();
+        }
         // The workspace status actions will not run with certain flags, or if an error
         // occurs early in the build. Tell a lie so that the event is not missing.
         // If multiple build_info events are sent, only the first is kept, so this does not harm
@@ -30,6 +30,7 @@ import com.google.devtools.build.lib.actions.ActionInputPrefetcher;
 import com.google.devtools.build.lib.actions.Artifact;
 import com.google.devtools.build.lib.actions.ArtifactFactory;
 import com.google.devtools.build.lib.actions.BuildFailedException;
+import com.google.devtools.build.lib.actions.CriticalPathHistory;
 import com.google.devtools.build.lib.actions.ExecException;
 import com.google.devtools.build.lib.actions.Executor;
 import com.google.devtools.build.lib.actions.ExecutorInitException;
@@ -37,6 +38,7 @@ import com.google.devtools.build.lib.actions.LocalHostCapacity;
 import com.google.devtools.build.lib.actions.PackageRoots;
 import com.google.devtools.build.lib.actions.ResourceManager;
 import com.google.devtools.build.lib.actions.ResourceSet;
+import com.google.devtools.build.lib.actions.ResourceUsageModel;
 import com.google.devtools.build.lib.actions.TestExecException;
 import com.google.devtools.build.lib.actions.cache.ActionCache;
 import com.google.devtools.build.lib.actions.cache.Protos.ActionCacheStatistics;
@@ -50,6 +52,7 @@ import com.google.devtools.build.lib.analysis.config.BuildConfiguration;
 import com.google.devtools.build.lib.analysis.config.BuildConfigurationCollection;
 import com.google.devtools.build.lib.buildtool.buildevent.ExecutionPhaseCompleteEvent;
 import com.google.devtools.build.lib.buildtool.buildevent.ExecutionStartingEvent;
+import com.google.devtools.build.lib.clock.BlazeClock;
 import com.google.devtools.build.lib.cmdline.PackageIdentifier;
 import com.google.devtools.build.lib.events.Event;
 import com.google.devtools.build.lib.events.EventHandler;
@@ -73,6 +76,7 @@ import com.google.devtools.build.lib.rules.fileset.FilesetActionContext;
 import com.google.devtools.build.lib.runtime.BlazeModule;
 import com.google.devtools.build.lib.runtime.BlazeRuntime;
 import com.google.devtools.build.lib.runtime.CommandEnvironment;
+import com.google.devtools.build.lib.runtime.CriticalPathHistoryRecorder;
 import com.google.devtools.build.lib.skyframe.AspectValue;
 import com.google.devtools.build.lib.skyframe.AspectValue.AspectKey;
 import com.google.devtools.build.lib.skyframe.Builder;
@@ -99,6 +103,7 @@ import java.util.UUID;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import javax.annotation.Nullable;
 
 /**
  * This class manages the execution phase. The entry point is {@link #executeBuild}.
@@ -114,12 +119,18 @@ import java.util.logging.Logger;
 public class ExecutionTool {
   static final Logger logger = Logger.getLogger(ExecutionTool.class.getName());
 
+  // File in the output base that stores the model of --experimental_adaptive_local_resources.
+  private static final String RESOURCE_USAGE_MODEL_FILE = "resource_usage_model";
+  // File in the output base that stores the history of --experimental_schedule_by_critical_path.
+  private static final String CRITICAL_PATH_HISTORY_FILE = "critical_path_history";
+
   private final CommandEnvironment env;
   private final BlazeRuntime runtime;
   private final BuildRequest request;
   private BlazeExecutor executor;
   private final ActionInputFileCache fileCache;
   private final ActionInputPrefetcher prefetcher;
+  @Nullable private CriticalPathHistoryRecorder criticalPathHistoryRecorder;
   private final ImmutableList<ActionContextProvider> actionContextProviders;
   private SpawnActionContextMaps spawnActionContextMaps;
 
@@ -378,6 +389,8 @@ public class ExecutionTool {
       if (buildCompleted) {
         saveActionCache(actionCache);
       }
+      saveResourceUsageModel();
+      saveCriticalPathHistory();
 
       env.getEventBus()
           .post(new ExecutionPhaseCompleteEvent(timer.stop().elapsed(TimeUnit.MILLISECONDS)));
@@ -638,6 +651,63 @@ public class ExecutionTool {
         request.getExecutionOptions().usingLocalTestJobs()
             ? request.getExecutionOptions().localTestJobs : Integer.MAX_VALUE
     ));
+    resourceMgr.setResourceUsageModel(
+        options.adaptiveLocalResources
+            ? ResourceUsageModel.load(getResourceUsageModelPath())
+            : null);
+    if (options.scheduleByCriticalPath) {
+      CriticalPathHistory history = CriticalPathHistory.load(getCriticalPathHistoryPath());
+      resourceMgr.setCriticalPathHistory(history);
+      criticalPathHistoryRecorder = new CriticalPathHistoryRecorder(history, BlazeClock.instance());
+      env.getEventBus().register(criticalPathHistoryRecorder);
+    } else {
+      resourceMgr.setCriticalPathHistory(null);
+    }
+  }
+
+  private Path getCriticalPathHistoryPath() {
+    return env.getDirectories().getOutputBase().getRelative(CRITICAL_PATH_HISTORY_FILE);
+  }
+
+  /**
+   * Saves the action durations recorded during the build, if scheduling by critical path was
+   * enabled.
+   */
+  private void saveCriticalPathHistory() {
+    CriticalPathHistoryRecorder recorder = criticalPathHistoryRecorder;
+    if (recorder == null) {
+      return;
+    }
+    criticalPathHistoryRecorder = null;
+    env.getEventBus().unregister(recorder);
+    ResourceManager.instance().setCriticalPathHistory(null);
+    try (AutoProfiler p =
+        AutoProfiler.profiled("Saving critical path history", ProfilerTask.INFO)) {
+      recorder.computeHistory().save(getCriticalPathHistoryPath());
+    } catch (IOException e) {
+      getReporter()
+          .handle(Event.warn("Failed to save the critical path history: " + e.getMessage()));
+    }
+  }
+
+  private Path getResourceUsageModelPath() {
+    return env.getDirectories().getOutputBase().getRelative(RESOURCE_USAGE_MODEL_FILE);
+  }
+
+  /** Saves the resource usage model learned during the build, if adaptive mode was enabled. */
+  private void saveResourceUsageModel() {
+    ResourceManager resourceMgr = ResourceManager.instance();
+    ResourceUsageModel model = resourceMgr.getResourceUsageModel();
+    if (model == null) {
+      return;
+    }
+    resourceMgr.setResourceUsageModel(null);
+    try (AutoProfiler p = AutoProfiler.profiled("Saving resource usage model", ProfilerTask.INFO)) {
+      model.save(getResourceUsageModelPath());
+    } catch (IOException e) {
+      getReporter()
+          .handle(Event.warn("Failed to save the resource usage model: " + e.getMessage()));
+    }
   }
 
   /**
@@ -0,0 +1,132 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.collect.nestedset;
+
+import com.google.common.base.Preconditions;
+import com.google.devtools.build.lib.collect.nestedset.NestedSetStore.NestedSetStorageEndpoint;
+import com.google.protobuf.ByteString;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import javax.annotation.Nullable;
+
+/**
+ * A {@link NestedSetStorageEndpoint} which keeps the serialized contents in a local file instead of
+ * on heap, so that they only take up memory while the operating system has them paged in.
+ *
+ * <p>The file is written in memory-mapped segments. Each entry is appended to the last segment as
+ * its length followed by its bytes; only the location of each entry is kept on heap. Entries are
+ * never removed, since the fingerprints of the stored contents never change. Instead, the whole
+ * endpoint is discarded with {@link #close} once its entries are no longer needed.
+ *
+ * <p>Where the operating system allows it, the file is deleted as soon as it is opened, so that its
+ * space is reclaimed when the process exits or when the endpoint and all the segments read from it
+ * are gone.
+ */
+final class MappedNestedSetStorageEndpoint implements NestedSetStorageEndpoint {
+
+  static final int DEFAULT_SEGMENT_SIZE = 64 << 20;
+
+  private final FileChannel channel;
+  private final int segmentSize;
+  private final List<MappedByteBuffer> segments = new CopyOnWriteArrayList<>();
+  /** The segment index in the upper and the offset in the lower half of each location. */
+  private final ConcurrentHashMap<ByteString, Long> locations = new ConcurrentHashMap<>();
+
+  // Guarded by this.
+  @Nullable private MappedByteBuffer lastSegment;
+  private long fileSize;
+
+  private MappedNestedSetStorageEndpoint(FileChannel channel, int segmentSize) {
+    this.channel = channel;
+    this.segmentSize = segmentSize;
+  }
+
+  /**
+   * Creates an endpoint writing to the given file, replacing it if it exists. The file is replaced
+   * rather than truncated, so the segments of a previous endpoint which used the same file remain
+   * readable.
+   */
+  static MappedNestedSetStorageEndpoint create(Path file, int segmentSize) throws IOException {
+    Preconditions.checkArgument(segmentSize > 0, segmentSize);
+    Files.deleteIfExists(file);
+    FileChannel channel =
+        FileChannel.open(
+            file,
+            StandardOpenOption.CREATE_NEW,
+            StandardOpenOption.READ,
+            StandardOpenOption.WRITE);
+    try {
+      Files.delete(file);
+    } catch (IOException e) {
+      // Open files cannot be deleted on Windows. The file is replaced by the next endpoint.
+    }
+    return new MappedNestedSetStorageEndpoint(channel, segmentSize);
+  }
+
+  /**
+   * Stops extending the file. The entries stored so far can still be read, but new ones cannot be
+   * stored.
+   */
+  synchronized void close() throws IOException {
+    channel.close();
+    lastSegment = null;
+  }
+
+  @Override
+  public synchronized void put(ByteString fingerprint, byte[] serializedBytes) {
+    if (locations.containsKey(fingerprint)) {
+      return;
+    }
+    int entrySize = Integer.BYTES + serializedBytes.length;
+    if (lastSegment == null || lastSegment.remaining() < entrySize) {
+      int size = Math.max(segmentSize, entrySize);
+      try {
+        lastSegment = channel.map(MapMode.READ_WRITE, fileSize, size);
+      } catch (IOException e) {
+        throw new UncheckedIOException("Could not extend the NestedSet storage", e);
+      }
+      fileSize += size;
+      segments.add(lastSegment);
+    }
+    long location = ((long) (segments.size() - 1) << 32) | lastSegment.position();
+    lastSegment.putInt(serializedBytes.length);
+    lastSegment.put(serializedBytes);
+    locations.put(fingerprint, location);
+  }
+
+  @Override
+  @Nullable
+  public byte[] get(ByteString fingerprint) {
+    Long location = locations.get(fingerprint);
+    if (location == null) {
+      return null;
+    }
+    // Only the writer moves the position of the segments, so read through a private view.
+    ByteBuffer segment = segments.get((int) (location >>> 32)).duplicate();
+    segment.position((int) (long) location);
+    byte[] serializedBytes = new byte[segment.getInt()];
+    segment.get(serializedBytes);
+    return serializedBytes;
+  }
+}
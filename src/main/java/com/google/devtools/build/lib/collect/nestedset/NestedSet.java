@@ -40,7 +40,10 @@ import javax.annotation.Nullable;
 public final class NestedSet<E> implements Iterable<E> {
 
   private final Order order;
-  private final Object children;
+  // Either the contents of this set, or a NestedSetSpiller.Spilled handle they can be read back
+  // from. Not final because spilling replaces it, so it is volatile to keep the safe publication
+  // that a final field gives sets shared across threads.
+  private volatile Object children;
   private byte[] memo;
 
   private static final byte[] LEAF_MEMO = {};
@@ -107,7 +110,7 @@ public final class NestedSet<E> implements Iterable<E> {
       } else if ((pass == 1) == preorder && !transitive.isEmpty()) {
         CompactHashSet<E> hoisted = CompactHashSet.create();
         for (NestedSet<E> subset : transitiveOrder) {
-          Object c = subset.children;
+          Object c = subset.rawChildren();
           if (c instanceof Object[]) {
             Object[] a = (Object[]) c;
             if (a.length < 2) {
@@ -138,16 +141,17 @@ public final class NestedSet<E> implements Iterable<E> {
     if (leaf) {
       this.memo = LEAF_MEMO;
     }
+    NestedSetSpiller.maybeTrack(this, n);
   }
 
   // Only used by deserialization
   @AutoCodec.Instantiator
-  NestedSet(Order order, Object children) {
+  NestedSet(Order order, Object rawChildren) {
     this.order = order;
-    this.children = children;
+    this.children = rawChildren;
     boolean hasChildren =
-        children instanceof Object[]
-            && (Arrays.stream((Object[]) children).anyMatch(child -> child instanceof Object[]));
+        rawChildren instanceof Object[]
+            && (Arrays.stream((Object[]) rawChildren).anyMatch(child -> child instanceof Object[]));
     this.memo = hasChildren ? null : LEAF_MEMO;
   }
 
@@ -163,7 +167,31 @@ public final class NestedSet<E> implements Iterable<E> {
    * classes also have knowledge of the internal implementation of NestedSet.
    */
   Object rawChildren() {
-    return children;
+    Object children = this.children;
+    return children instanceof NestedSetSpiller.Spilled
+        ? ((NestedSetSpiller.Spilled) children).rehydrate()
+        : children;
+  }
+
+  /**
+   * Replaces the contents of this set on heap by the given handle to them, unless the set has
+   * already been expanded into a list, which suggests it will be expanded again.
+   *
+   * @return whether the contents were replaced
+   */
+  synchronized boolean spill(Object children, NestedSetSpiller.Spilled spilled) {
+    if (this.children != children || (memo != null && memo != LEAF_MEMO)) {
+      return false;
+    }
+    this.children = spilled;
+    return true;
+  }
+
+  /** Returns the contents of this set if they are on heap, or null if they have been spilled. */
+  @Nullable
+  Object childrenIfNotSpilled() {
+    Object children = this.children;
+    return children instanceof NestedSetSpiller.Spilled ? null : children;
   }
 
   /**
@@ -175,7 +203,8 @@ public final class NestedSet<E> implements Iterable<E> {
 
   /** Returns true if the set has exactly one element. */
   public boolean isSingleton() {
-    return !(children instanceof Object[]);
+    Object children = this.children;
+    return !(children instanceof Object[]) && !(children instanceof NestedSetSpiller.Spilled);
   }
 
   /**
@@ -232,7 +261,7 @@ public final class NestedSet<E> implements Iterable<E> {
         && order == other.order
         && (children.equals(other.children)
             || (!isSingleton() && !other.isSingleton()
-                && Arrays.equals((Object[]) children, (Object[]) other.children)));
+                && Arrays.equals((Object[]) rawChildren(), (Object[]) other.rawChildren())));
   }
 
   /**
@@ -247,12 +276,12 @@ public final class NestedSet<E> implements Iterable<E> {
   public int shallowHashCode() {
     return isSingleton()
         ? Objects.hash(order, children)
-        : Objects.hash(order, Arrays.hashCode((Object[]) children));
+        : Objects.hash(order, Arrays.hashCode((Object[]) rawChildren()));
   }
 
   @Override
   public String toString() {
-    return isSingleton() ? "{" + children + "}" : childrenToString(children);
+    return isSingleton() ? "{" + children + "}" : childrenToString(rawChildren());
   }
 
   // TODO:  this leaves LINK_ORDER backwards
@@ -287,13 +316,13 @@ public final class NestedSet<E> implements Iterable<E> {
   private ImmutableList<E> expand() {
     // This value is only set in the constructor, so safe to test here with no lock.
     if (memo == LEAF_MEMO) {
-      return ImmutableList.copyOf(new ArraySharingCollection<>((Object[]) children));
+      return ImmutableList.copyOf(new ArraySharingCollection<>((Object[]) rawChildren()));
     }
     CompactHashSet<E> members = lockedExpand();
     if (members != null) {
       return ImmutableList.copyOf(members);
     }
-    Object[] children = (Object[]) this.children;
+    Object[] children = (Object[]) rawChildren();
     // TODO:  We could record the exact size (inside memo, or by making order an int with two bits
     // for Order.ordinal()) and avoid an array copy here.  It's not directly visible in profiles but
     // it would reduce garbage generated.
@@ -328,7 +357,7 @@ public final class NestedSet<E> implements Iterable<E> {
     if (memo != null) {
       return null;
     }
-    Object[] children = (Object[]) this.children;
+    Object[] children = (Object[]) rawChildren();
     CompactHashSet<E> members = CompactHashSet.createWithExpectedSize(128);
     CompactHashSet<Object> sets = CompactHashSet.createWithExpectedSize(128);
     sets.add(children);
@@ -64,7 +64,7 @@ public class NestedSetFingerprintCache {
     }
   }
 
-  public void clear() {
+  public synchronized void clear() {
     mapFnToDigestMap = createMap();
     seenMapFns.clear();
     seenParametrizedMapFns.clear();
@@ -99,7 +99,8 @@ public class NestedSetFingerprintCache {
     return new ConcurrentHashMap<>();
   }
 
-  private DigestMap newDigestMap(CommandLineItem.MapFn<?> mapFn) {
+  // Synchronized since digest maps for different map functions may be created concurrently.
+  private synchronized DigestMap newDigestMap(CommandLineItem.MapFn<?> mapFn) {
     Class<?> mapFnClass = mapFn.getClass();
     if (mapFn instanceof CommandLineItem.ParametrizedMapFn) {
       int occurrences = seenParametrizedMapFns.add(mapFnClass, 1) + 1;
@@ -0,0 +1,235 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.collect.nestedset;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ExecutionError;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import com.google.devtools.build.lib.skyframe.serialization.DeserializationContext;
+import com.google.devtools.build.lib.skyframe.serialization.ObjectCodecRegistry;
+import com.google.devtools.build.lib.skyframe.serialization.SerializationContext;
+import com.google.devtools.build.lib.skyframe.serialization.SerializationException;
+import com.google.protobuf.ByteString;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Predicate;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Moves the contents of large {@link NestedSet}s which have never been expanded out of the heap.
+ *
+ * <p>While tracking is on, every {@link NestedSet} built with at least the threshold number
+ * of children is remembered. {@link #spillTracked} then serializes the contents of each of them
+ * that is still alive and has not been expanded into a list since through a {@link NestedSetStore}
+ * backed by a memory-mapped file, and replaces them in the set by a small {@link Spilled} handle.
+ * The store decomposes the contents by fingerprint, so contents shared between sets are only
+ * written once. When a spilled set is expanded or visited, its contents are deserialized again and
+ * kept in a small LRU cache.
+ *
+ * <p>The deserialized elements are equal to, but not the same objects as the original ones, so only
+ * sets whose elements have value semantics may be spilled. Likewise, subsets of spilled sets may be
+ * read back as other arrays, which {@link NestedSet#shallowEquals} is allowed to miss.
+ */
+public final class NestedSetSpiller {
+  private static final Logger logger = Logger.getLogger(NestedSetSpiller.class.getName());
+
+  /** How many spilled sets are kept deserialized. */
+  @VisibleForTesting static final int REHYDRATED_CACHE_SIZE = 1_000;
+
+  private static final Queue<WeakReference<NestedSet<?>>> trackedSets =
+      new ConcurrentLinkedQueue<>();
+  private static volatile int trackingThreshold = Integer.MAX_VALUE;
+
+  private final MappedNestedSetStorageEndpoint storageEndpoint;
+  private final NestedSetStore nestedSetStore;
+  private final SerializationContext serializationContext;
+  private final DeserializationContext deserializationContext;
+  private final Predicate<Object> spillableElements;
+  private final Cache<ByteString, Object> rehydrated =
+      CacheBuilder.newBuilder().maximumSize(REHYDRATED_CACHE_SIZE).build();
+
+  private NestedSetSpiller(
+      MappedNestedSetStorageEndpoint storageEndpoint,
+      ObjectCodecRegistry codecRegistry,
+      ImmutableMap<Class<?>, Object> dependencies,
+      Predicate<Object> spillableElements) {
+    this.storageEndpoint = storageEndpoint;
+    this.nestedSetStore = new NestedSetStore(storageEndpoint);
+    this.serializationContext = new SerializationContext(codecRegistry, dependencies);
+    this.deserializationContext = new DeserializationContext(codecRegistry, dependencies);
+    this.spillableElements = spillableElements;
+  }
+
+  /**
+   * Creates a spiller writing to the given file, replacing it. A spiller which used the same file
+   * before must have been {@linkplain #close closed}.
+   *
+   * @param codecRegistry the codecs to serialize the elements of the sets with
+   * @param dependencies the dependencies of these codecs
+   * @param spillableElements whether sets with the given element may be spilled. Spilled elements
+   *     are read back as equal but different objects.
+   */
+  public static NestedSetSpiller create(
+      Path file,
+      ObjectCodecRegistry codecRegistry,
+      ImmutableMap<Class<?>, Object> dependencies,
+      Predicate<Object> spillableElements)
+      throws IOException {
+    return new NestedSetSpiller(
+        MappedNestedSetStorageEndpoint.create(
+            file, MappedNestedSetStorageEndpoint.DEFAULT_SEGMENT_SIZE),
+        codecRegistry,
+        dependencies,
+        spillableElements);
+  }
+
+  /**
+   * Stops spilling sets. The sets spilled so far can still be read back, and the space they take
+   * up is reclaimed once they are gone.
+   */
+  public void close() throws IOException {
+    storageEndpoint.close();
+  }
+
+  /**
+   * Remembers the sets built from now on with at least the given number of children, to be spilled
+   * by the next call to {@link #spillTracked}.
+   */
+  public static void startTracking(int threshold) {
+    Preconditions.checkArgument(threshold > 1, threshold);
+    trackingThreshold = threshold;
+  }
+
+  /** Stops remembering new sets and forgets those remembered so far. */
+  public static void stopTracking() {
+    trackingThreshold = Integer.MAX_VALUE;
+    trackedSets.clear();
+  }
+
+  /** Called by the constructor of every non-trivial {@link NestedSet}. */
+  static void maybeTrack(NestedSet<?> set, int numChildren) {
+    if (numChildren >= trackingThreshold) {
+      trackedSets.add(new WeakReference<>(set));
+    }
+  }
+
+  /**
+   * Spills each of the sets remembered so far which is still alive, has not been expanded into a
+   * list, and has only spillable elements. Forgets all of them.
+   *
+   * @return the number of spilled sets
+   */
+  public int spillTracked() {
+    // The arrays found to be spillable. Subsets are shared by many sets, so this avoids checking
+    // them again for every set containing them.
+    Set<Object[]> checked = Sets.newIdentityHashSet();
+    int spilled = 0;
+    int failed = 0;
+    for (WeakReference<NestedSet<?>> ref = trackedSets.poll();
+        ref != null;
+        ref = trackedSets.poll()) {
+      NestedSet<?> set = ref.get();
+      if (set == null) {
+        continue;
+      }
+      try {
+        if (spill(set, checked)) {
+          spilled++;
+        }
+      } catch (SerializationException | UncheckedIOException e) {
+        // The set just stays on heap.
+        if (failed++ == 0) {
+          logger.log(Level.WARNING, "Could not spill NestedSet", e);
+        }
+      }
+    }
+    if (failed > 0) {
+      logger.warning("Could not spill " + failed + " NestedSets");
+    }
+    return spilled;
+  }
+
+  private boolean spill(NestedSet<?> set, Set<Object[]> checked) throws SerializationException {
+    Object children = set.childrenIfNotSpilled();
+    if (!(children instanceof Object[]) || !isSpillable((Object[]) children, checked)) {
+      return false;
+    }
+    ByteString fingerprint =
+        nestedSetStore.computeFingerprintAndStore(children, serializationContext);
+    return set.spill(children, new Spilled(this, fingerprint));
+  }
+
+  private boolean isSpillable(Object[] children, Set<Object[]> checked) {
+    if (checked.contains(children)) {
+      return true;
+    }
+    for (Object child : children) {
+      if (child instanceof Object[]
+          ? !isSpillable((Object[]) child, checked)
+          : !spillableElements.test(child)) {
+        return false;
+      }
+    }
+    checked.add(children);
+    return true;
+  }
+
+  private Object rehydrate(ByteString fingerprint) {
+    try {
+      return rehydrated.get(
+          fingerprint,
+          () -> nestedSetStore.getContentsAndDeserialize(fingerprint, deserializationContext));
+    } catch (ExecutionException | UncheckedExecutionException | ExecutionError e) {
+      // The contents were serialized by this process, so reading them back must not fail.
+      throw new IllegalStateException("Could not read back spilled NestedSet " + fingerprint, e);
+    }
+  }
+
+  /** Stands in for the contents of a spilled set. */
+  static final class Spilled {
+    private final NestedSetSpiller spiller;
+    // The fingerprint of the contents, which is 16 bytes long. Kept in fields rather than in a
+    // ByteString to keep the handle small.
+    private final long fingerprintHigh;
+    private final long fingerprintLow;
+
+    private Spilled(NestedSetSpiller spiller, ByteString fingerprint) {
+      Preconditions.checkArgument(fingerprint.size() == 2 * Long.BYTES, fingerprint);
+      ByteBuffer buffer = fingerprint.asReadOnlyByteBuffer();
+      this.spiller = spiller;
+      this.fingerprintHigh = buffer.getLong();
+      this.fingerprintLow = buffer.getLong();
+    }
+
+    /** Returns the contents of the set, reading them back if they aren't cached. */
+    Object rehydrate() {
+      ByteBuffer fingerprint = ByteBuffer.allocate(2 * Long.BYTES);
+      fingerprint.putLong(fingerprintHigh).putLong(fingerprintLow).flip();
+      return spiller.rehydrate(ByteString.copyFrom(fingerprint));
+    }
+  }
+}
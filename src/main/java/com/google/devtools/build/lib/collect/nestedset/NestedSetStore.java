@@ -123,8 +123,17 @@ public class NestedSetStore {
   }
 
   private final NestedSetCache nestedSetCache = new NestedSetCache();
-  private final NestedSetStorageEndpoint nestedSetStorageEndpoint =
-      new InMemoryNestedSetStorageEndpoint();
+  private final NestedSetStorageEndpoint nestedSetStorageEndpoint;
+
+  /** Creates a NestedSetStore keeping the serialized contents in memory. */
+  public NestedSetStore() {
+    this(new InMemoryNestedSetStorageEndpoint());
+  }
+
+  /** Creates a NestedSetStore keeping the serialized contents in the given endpoint. */
+  NestedSetStore(NestedSetStorageEndpoint nestedSetStorageEndpoint) {
+    this.nestedSetStorageEndpoint = nestedSetStorageEndpoint;
+  }
 
   /**
    * Computes and returns the fingerprint for the given NestedSet contents using the given {@link
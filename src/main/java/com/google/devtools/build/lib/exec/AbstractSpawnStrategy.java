@@ -25,6 +25,7 @@ import com.google.devtools.build.lib.actions.ActionStatusMessage;
 import com.google.devtools.build.lib.actions.Artifact.ArtifactExpander;
 import com.google.devtools.build.lib.actions.EnvironmentalExecException;
 import com.google.devtools.build.lib.actions.ExecException;
+import com.google.devtools.build.lib.actions.ResourceManager;
 import com.google.devtools.build.lib.actions.SandboxedSpawnActionContext;
 import com.google.devtools.build.lib.actions.Spawn;
 import com.google.devtools.build.lib.actions.SpawnActionContext;
@@ -35,6 +36,8 @@ import com.google.devtools.build.lib.events.Event;
 import com.google.devtools.build.lib.exec.SpawnCache.CacheHandle;
 import com.google.devtools.build.lib.exec.SpawnRunner.ProgressStatus;
 import com.google.devtools.build.lib.exec.SpawnRunner.SpawnExecutionContext;
+import com.google.devtools.build.lib.profiler.Profiler;
+import com.google.devtools.build.lib.profiler.ProfilerTask;
 import com.google.devtools.build.lib.rules.fileset.FilesetActionContext;
 import com.google.devtools.build.lib.util.CommandFailureUtils;
 import com.google.devtools.build.lib.util.io.FileOutErr;
@@ -88,6 +91,7 @@ public abstract class AbstractSpawnStrategy implements SandboxedSpawnActionConte
     }
     SpawnResult spawnResult;
     ExecException ex = null;
+    long startTime = Profiler.nanoTimeMaybe();
     try {
       try (CacheHandle cacheHandle = cache.lookup(spawn, context)) {
         if (cacheHandle.hasResult()) {
@@ -109,6 +113,11 @@ public abstract class AbstractSpawnStrategy implements SandboxedSpawnActionConte
       // Log the Spawn and re-throw.
     }
 
+    if (!spawnResult.isCacheHit()) {
+      logResourceUsage(spawn, spawnResult, startTime);
+      ResourceManager.instance().recordResourceUsage(spawn.getResourceOwner(), spawnResult);
+    }
+
     SpawnLogContext spawnLogContext = actionExecutionContext.getContext(SpawnLogContext.class);
     if (spawnLogContext != null) {
       try {
@@ -145,6 +154,42 @@ public abstract class AbstractSpawnStrategy implements SandboxedSpawnActionConte
     return ImmutableList.of(spawnResult);
   }
 
+  /**
+   * Records the resources used by the process of the spawn in the profile, if the spawn runner
+   * measured them.
+   */
+  private static void logResourceUsage(Spawn spawn, SpawnResult spawnResult, long startTime) {
+    Profiler profiler = Profiler.instance();
+    if (!profiler.isActive()
+        || !profiler.isProfiling(ProfilerTask.LOCAL_EXECUTION)
+        || !spawnResult.getUserTime().isPresent()) {
+      return;
+    }
+    StringBuilder description =
+        new StringBuilder(spawn.getMnemonic())
+            .append(' ')
+            .append(spawn.getResourceOwner().prettyPrint())
+            .append(": user ")
+            .append(spawnResult.getUserTime().get().toMillis())
+            .append(" ms, system ")
+            .append(spawnResult.getSystemTime().map(Duration::toMillis).orElse(0L))
+            .append(" ms");
+    if (spawnResult.getMemoryInKb().isPresent()) {
+      description.append(", max RSS ").append(spawnResult.getMemoryInKb().get()).append(" KB");
+    }
+    if (spawnResult.getNumBlockInputOperations().isPresent()) {
+      description
+          .append(", block input ")
+          .append(spawnResult.getNumBlockInputOperations().get());
+    }
+    if (spawnResult.getNumBlockOutputOperations().isPresent()) {
+      description
+          .append(", block output ")
+          .append(spawnResult.getNumBlockOutputOperations().get());
+    }
+    profiler.logSimpleTask(startTime, ProfilerTask.LOCAL_EXECUTION, description.toString());
+  }
+
   private List<Path> listExistingOutputFiles(Spawn spawn, Path execRoot) {
     ArrayList<Path> outputFiles = new ArrayList<>();
     for (ActionInput output : spawn.getOutputFiles()) {
@@ -208,6 +208,34 @@ public class ExecutionOptions extends OptionsBase {
   )
   public int ramUtilizationPercentage;
 
+  @Option(
+    name = "experimental_adaptive_local_resources",
+    defaultValue = "false",
+    documentationCategory = OptionDocumentationCategory.EXECUTION_STRATEGY,
+    effectTags = {OptionEffectTag.EXECUTION},
+    help =
+        "If enabled, the CPU and memory used by locally executed actions is learned per mnemonic "
+            + "and input size, persisted in the output base, and used instead of the static "
+            + "estimates when scheduling local actions. Memory is additionally only handed out if "
+            + "the host currently has it available. Requires resource usage to be collected, "
+            + "see --experimental_collect_local_action_metrics and "
+            + "--experimental_collect_local_sandbox_action_metrics."
+  )
+  public boolean adaptiveLocalResources;
+
+  @Option(
+    name = "experimental_schedule_by_critical_path",
+    defaultValue = "false",
+    documentationCategory = OptionDocumentationCategory.EXECUTION_STRATEGY,
+    effectTags = {OptionEffectTag.EXECUTION},
+    help =
+        "If enabled, actions waiting for local resources are started in order of their estimated "
+            + "remaining critical path, so that the actions that lengthen the build the most start "
+            + "first. The estimates are based on the action durations of previous builds, which "
+            + "are persisted in the output base."
+  )
+  public boolean scheduleByCriticalPath;
+
   @Option(
     name = "local_resources",
     defaultValue = "null",
@@ -21,8 +21,10 @@ import com.google.devtools.build.lib.actions.EnvironmentalExecException;
 import com.google.devtools.build.lib.actions.ExecException;
 import com.google.devtools.build.lib.actions.ExecutionStrategy;
 import com.google.devtools.build.lib.actions.SpawnResult;
+import com.google.devtools.build.lib.actions.UserExecException;
 import com.google.devtools.build.lib.analysis.actions.AbstractFileWriteAction;
 import com.google.devtools.build.lib.analysis.actions.FileWriteActionContext;
+import com.google.devtools.build.lib.analysis.actions.ParameterFileWriteAction.ParamFileExpansionException;
 import com.google.devtools.build.lib.profiler.AutoProfiler;
 import com.google.devtools.build.lib.vfs.Path;
 import java.io.BufferedOutputStream;
@@ -59,6 +61,8 @@ public final class FileWriteStrategy implements FileWriteActionContext {
         if (action.makeExecutable()) {
           outputPath.setExecutable(true);
         }
+      } catch (ParamFileExpansionException e) {
+        throw new UserExecException(e.getCause());
       } catch (IOException e) {
         throw new EnvironmentalExecException("failed to create file '"
             + Iterables.getOnlyElement(action.getOutputs()).prettyPrint()
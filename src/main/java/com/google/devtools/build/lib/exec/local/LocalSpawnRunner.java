@@ -341,17 +341,7 @@ public class LocalSpawnRunner implements SpawnRunner {
                 .setWallTime(wallTime);
         if (statisticsPath != null) {
           ExecutionStatistics.getResourceUsage(statisticsPath)
-              .ifPresent(
-                  resourceUsage -> {
-                    spawnResultBuilder.setUserTime(resourceUsage.getUserExecutionTime());
-                    spawnResultBuilder.setSystemTime(resourceUsage.getSystemExecutionTime());
-                    spawnResultBuilder.setNumBlockOutputOperations(
-                        resourceUsage.getBlockOutputOperations());
-                    spawnResultBuilder.setNumBlockInputOperations(
-                        resourceUsage.getBlockInputOperations());
-                    spawnResultBuilder.setNumInvoluntaryContextSwitches(
-                        resourceUsage.getInvoluntaryContextSwitches());
-                  });
+              .ifPresent(spawnResultBuilder::setResourceUsage);
         }
         return spawnResultBuilder.build();
       } finally {
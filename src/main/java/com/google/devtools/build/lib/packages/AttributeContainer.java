@@ -219,6 +219,28 @@ public class AttributeContainer {
     attributeLocations[locationIndex] = location;
   }
 
+  /**
+   * Replaces the attribute values and the record of explicitly set attributes by canonical
+   * instances shared with other rules. Must only be called once the rule is complete.
+   */
+  void internValues(AttributeValueInterner interner) {
+    for (int i = 0; i < attributeValues.length; i++) {
+      attributeValues[i] = interner.intern(attributeValues[i]);
+    }
+    // Drop the unused zero bytes between the two lists, which makes equal states share an array.
+    // As the shared array has no room left, a later setExplicit() or addLocationIndex() would
+    // copy it in ensureSpace() instead of modifying it.
+    int n = explicitCount() + 1;
+    int locations = 0;
+    while (locations < state.length - n && state[state.length - 1 - locations] != 0) {
+      locations++;
+    }
+    byte[] trimmedState = new byte[n + locations];
+    System.arraycopy(state, 0, trimmedState, 0, n);
+    System.arraycopy(state, state.length - locations, trimmedState, n, locations);
+    state = interner.internState(trimmedState);
+  }
+
   @VisibleForTesting
   void setAttributeLocation(Attribute attribute, Location location) {
     Integer index = ruleClass.getAttributeIndex(attribute.getName());
@@ -0,0 +1,160 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.packages;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Interner;
+import com.google.devtools.build.lib.cmdline.Label;
+import com.google.devtools.build.lib.concurrent.BlazeInterners;
+import com.google.devtools.build.lib.packages.BuildType.Selector;
+import com.google.devtools.build.lib.packages.BuildType.SelectorList;
+import com.google.devtools.build.lib.syntax.GlobList;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import javax.annotation.Nullable;
+
+/**
+ * Deduplicates the attribute values of the rules of a package once the package is complete, so
+ * that the many rules of a package which have equal values for an attribute, such as {@code
+ * licenses}, {@code copts}, {@code tags} or a {@code select()} shared through a macro, reference
+ * a single instance.
+ *
+ * <p>Only values known to be deeply immutable are shared: strings, labels, numbers, booleans,
+ * tristates, and lists, dicts and {@code select()}s of them. Lists are frozen into {@link
+ * ImmutableList}s on the way, which also drops their spare capacity, and lists of strings or
+ * labels are interned across packages, since the same {@code visibility} or {@code tags} lists
+ * show up everywhere. {@link GlobList}s are kept as they are because they carry the criteria of
+ * the glob which produced them.
+ *
+ * <p>Not thread-safe; an instance is used by a single {@link Package.Builder}.
+ */
+final class AttributeValueInterner {
+
+  private static final Interner<ImmutableList<?>> LIST_INTERNER =
+      BlazeInterners.newWeakInterner();
+
+  // Distinguishes the keys of dicts from those of lists in canonicalValues.
+  private static final Object DICT_MARKER = new Object();
+
+  private final Map<Object, Object> canonicalValues = new HashMap<>();
+  private final Map<ByteBuffer, byte[]> canonicalStates = new HashMap<>();
+
+  /**
+   * Returns a canonical instance equal to the given attribute value, or the value itself if it
+   * may be mutable.
+   */
+  @Nullable
+  Object intern(@Nullable Object value) {
+    if (value == null) {
+      return null;
+    }
+    Object frozen = freeze(value);
+    return frozen != null ? frozen : value;
+  }
+
+  /** Returns a canonical array with the same contents as the given one. */
+  byte[] internState(byte[] state) {
+    return canonicalStates.computeIfAbsent(ByteBuffer.wrap(state), k -> state);
+  }
+
+  /** Returns the canonical immutable equivalent of the value, or null if there is none. */
+  @Nullable
+  private Object freeze(Object value) {
+    if (value instanceof String || value instanceof Label) {
+      return canonicalize(value, value);
+    }
+    if (value instanceof Integer || value instanceof Boolean || value instanceof TriState) {
+      // Already canonical, or too small to be worth sharing.
+      return value;
+    }
+    if (value instanceof List && !(value instanceof GlobList)) {
+      return freezeList((List<?>) value);
+    }
+    if (value instanceof ImmutableMap) {
+      return freezeDict((ImmutableMap<?, ?>) value);
+    }
+    if (value instanceof SelectorList) {
+      return freezeSelectorList((SelectorList<?>) value);
+    }
+    return null;
+  }
+
+  @Nullable
+  private Object freezeList(List<?> list) {
+    boolean onlyStringsAndLabels = true;
+    ImmutableList.Builder<Object> builder = ImmutableList.builder();
+    for (Object element : list) {
+      Object frozen = element != null ? freeze(element) : null;
+      if (frozen == null) {
+        return null;
+      }
+      onlyStringsAndLabels &= frozen instanceof String || frozen instanceof Label;
+      builder.add(frozen);
+    }
+    ImmutableList<Object> frozenList = builder.build();
+    if (onlyStringsAndLabels) {
+      return canonicalize(frozenList, LIST_INTERNER.intern(frozenList));
+    }
+    return canonicalize(frozenList, frozenList);
+  }
+
+  @Nullable
+  private Object freezeDict(ImmutableMap<?, ?> dict) {
+    ImmutableMap.Builder<Object, Object> builder = ImmutableMap.builder();
+    // ImmutableMap.equals() ignores the order of the entries, which matters for attributes.
+    List<Object> key = new ArrayList<>(2 * dict.size() + 1);
+    key.add(DICT_MARKER);
+    for (Map.Entry<?, ?> entry : dict.entrySet()) {
+      Object frozenKey = freeze(entry.getKey());
+      Object frozenValue = entry.getValue() != null ? freeze(entry.getValue()) : null;
+      if (frozenKey == null || frozenValue == null) {
+        return null;
+      }
+      builder.put(frozenKey, frozenValue);
+      key.add(frozenKey);
+      key.add(frozenValue);
+    }
+    return canonicalize(key, builder.build());
+  }
+
+  @Nullable
+  private <T> Object freezeSelectorList(SelectorList<T> selectorList) {
+    List<Selector<T>> selectors = new ArrayList<>(selectorList.getSelectors().size());
+    for (Selector<T> selector : selectorList.getSelectors()) {
+      LinkedHashMap<Label, T> entries = new LinkedHashMap<>();
+      for (Map.Entry<Label, T> entry : selector.getEntries().entrySet()) {
+        // Conditions reverting to the default value of the attribute may map to null.
+        Object frozen = entry.getValue() != null ? freeze(entry.getValue()) : null;
+        if (frozen == null && entry.getValue() != null) {
+          return null;
+        }
+        entries.put(
+            (Label) freeze(entry.getKey()), selectorList.getOriginalType().cast(frozen));
+      }
+      selectors.add(selector.withEntries(entries));
+    }
+    SelectorList<T> frozen = new SelectorList<>(selectors, selectorList.getOriginalType());
+    return canonicalize(frozen, frozen);
+  }
+
+  private Object canonicalize(Object key, Object value) {
+    Object canonical = canonicalValues.putIfAbsent(key, value);
+    return canonical != null ? canonical : value;
+  }
+}
@@ -19,6 +19,7 @@ import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
 import com.google.common.collect.Maps;
 import com.google.devtools.build.lib.cmdline.Label;
 import com.google.devtools.build.lib.cmdline.LabelSyntaxException;
@@ -43,6 +44,7 @@ import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Objects;
 import java.util.Set;
 import javax.annotation.Nullable;
 
@@ -510,6 +512,23 @@ public final class BuildType {
       return keys.build();
     }
 
+    @Override
+    public boolean equals(Object other) {
+      if (this == other) {
+        return true;
+      }
+      if (!(other instanceof SelectorList)) {
+        return false;
+      }
+      SelectorList<?> that = (SelectorList<?>) other;
+      return originalType.equals(that.originalType) && elements.equals(that.elements);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(originalType, elements);
+    }
+
     @Override
     public String toString() {
       return Printer.repr(this);
@@ -614,6 +633,16 @@ public final class BuildType {
       return map;
     }
 
+    /** Returns a selector like this one, but with the given entries. */
+    Selector<T> withEntries(LinkedHashMap<Label, T> entries) {
+      return new Selector<>(
+          entries,
+          originalType,
+          noMatchError,
+          ImmutableSet.copyOf(conditionsWithDefaultValues),
+          hasDefaultCondition);
+    }
+
     /**
      * Returns the value to use when none of the attribute's selection keys match.
      */
@@ -667,6 +696,28 @@ public final class BuildType {
     public static boolean isReservedLabel(Label label) {
       return DEFAULT_CONDITION_LABEL.equals(label);
     }
+
+    @Override
+    public boolean equals(Object other) {
+      if (this == other) {
+        return true;
+      }
+      if (!(other instanceof Selector)) {
+        return false;
+      }
+      Selector<?> that = (Selector<?>) other;
+      // The order of the conditions matters, so the maps are compared entry by entry.
+      return originalType.equals(that.originalType)
+          && Iterables.elementsEqual(map.entrySet(), that.map.entrySet())
+          && noMatchError.equals(that.noMatchError)
+          && conditionsWithDefaultValues.equals(that.conditionsWithDefaultValues)
+          && hasDefaultCondition == that.hasDefaultCondition;
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(originalType, map, noMatchError, conditionsWithDefaultValues);
+    }
   }
 
   /**
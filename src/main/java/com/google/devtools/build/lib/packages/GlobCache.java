@@ -17,8 +17,12 @@ import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Predicate;
 import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
 import com.google.common.util.concurrent.SettableFuture;
 import com.google.devtools.build.lib.cmdline.PackageIdentifier;
 import com.google.devtools.build.lib.concurrent.ThreadSafety;
@@ -57,6 +61,12 @@ public class GlobCache {
    */
   private final Map<Pair<String, Boolean>, Future<List<Path>>> globCache = new HashMap<>();
 
+  /**
+   * The traversals started by {@link #startGlobsAsync}, each of which computes the entries of
+   * {@link #globCache} for several patterns.
+   */
+  private final List<Future<?>> sharedGlobs = new ArrayList<>();
+
   /**
    * The directory in which our package's BUILD file resides.
    */
@@ -148,6 +158,47 @@ public class GlobCache {
     return cached;
   }
 
+  /**
+   * Starts evaluating the given patterns which are not in this package's cache yet. They are
+   * evaluated together, in a single traversal of the package's directory, so that the directories
+   * matched by several of them are only listed once.
+   *
+   * @throws BadGlobException if any of the patterns was syntactically invalid, or contained
+   *     uplevel references.
+   */
+  void startGlobsAsync(Collection<String> patterns, boolean excludeDirs) throws BadGlobException {
+    List<String> newPatterns = new ArrayList<>();
+    for (String pattern : patterns) {
+      if (!globCache.containsKey(Pair.of(pattern, excludeDirs)) && !newPatterns.contains(pattern)) {
+        checkPattern(pattern);
+        newPatterns.add(pattern);
+      }
+    }
+    if (newPatterns.isEmpty()) {
+      return;
+    }
+    if (maxDirectoriesToEagerlyVisit > -1 && !globalStarted.getAndSet(true)) {
+      packageDirectory.prefetchPackageAsync(maxDirectoriesToEagerlyVisit);
+    }
+    ListenableFuture<List<List<Path>>> matches =
+        UnixGlob.forPath(packageDirectory)
+            .addPatterns(newPatterns)
+            .setExcludeDirectories(excludeDirs)
+            .setDirectoryFilter(childDirectoryPredicate)
+            .setThreadPool(globExecutor)
+            .setFilesystemCalls(syscalls)
+            .globByPatternAsync(true);
+    sharedGlobs.add(matches);
+    for (int i = 0; i < newPatterns.size(); i++) {
+      int patternIndex = i;
+      setGlobPaths(
+          newPatterns.get(i),
+          excludeDirs,
+          Futures.transform(
+              matches, byPattern -> byPattern.get(patternIndex), MoreExecutors.directExecutor()));
+    }
+  }
+
   @VisibleForTesting
   List<String> getGlobUnsorted(String pattern)
       throws IOException, BadGlobException, InterruptedException {
@@ -191,6 +242,17 @@ public class GlobCache {
    */
   @VisibleForTesting
   Future<List<Path>> safeGlobUnsorted(String pattern, boolean excludeDirs) throws BadGlobException {
+    checkPattern(pattern);
+    return UnixGlob.forPath(packageDirectory)
+        .addPattern(pattern)
+        .setExcludeDirectories(excludeDirs)
+        .setDirectoryFilter(childDirectoryPredicate)
+        .setThreadPool(globExecutor)
+        .setFilesystemCalls(syscalls)
+        .globAsync(true);
+  }
+
+  private static void checkPattern(String pattern) throws BadGlobException {
     // Forbidden patterns:
     if (pattern.indexOf('?') != -1) {
       throw new BadGlobException("glob pattern '" + pattern + "' contains forbidden '?' wildcard");
@@ -200,20 +262,13 @@ public class GlobCache {
     if (error != null) {
       throw new BadGlobException(error + " (in glob pattern '" + pattern + "')");
     }
-    return UnixGlob.forPath(packageDirectory)
-        .addPattern(pattern)
-        .setExcludeDirectories(excludeDirs)
-        .setDirectoryFilter(childDirectoryPredicate)
-        .setThreadPool(globExecutor)
-        .setFilesystemCalls(syscalls)
-        .globAsync(true);
   }
 
   /**
    * Sanitize the future exceptions - the only expected checked exception
    * is IOException.
    */
-  private static List<Path> fromFuture(Future<List<Path>> future)
+  private static <T> T fromFuture(Future<T> future)
       throws IOException, InterruptedException {
     try {
       return future.get();
@@ -238,10 +293,7 @@ public class GlobCache {
     // Start globbing all patterns in parallel. The getGlob() calls below will
     // block on an individual pattern's results, but the other globs can
     // continue in the background.
-    for (String pattern : Iterables.concat(includes, excludes)) {
-      @SuppressWarnings("unused") 
-      Future<?> possiblyIgnoredError = getGlobUnsortedAsync(pattern, excludeDirs);
-    }
+    startGlobsAsync(ImmutableList.copyOf(Iterables.concat(includes, excludes)), excludeDirs);
 
     HashSet<String> results = new HashSet<>();
     for (String pattern : includes) {
@@ -266,14 +318,16 @@ public class GlobCache {
    */
   public void finishBackgroundTasks() {
     finishBackgroundTasks(globCache.values());
+    finishBackgroundTasks(sharedGlobs);
   }
 
   public void cancelBackgroundTasks() {
     cancelBackgroundTasks(globCache.values());
+    cancelBackgroundTasks(sharedGlobs);
   }
 
-  private static void finishBackgroundTasks(Collection<Future<List<Path>>> tasks) {
-    for (Future<List<Path>> task : tasks) {
+  private static void finishBackgroundTasks(Collection<? extends Future<?>> tasks) {
+    for (Future<?> task : tasks) {
       try {
         fromFuture(task);
       } catch (CancellationException | IOException | InterruptedException e) {
@@ -283,12 +337,12 @@ public class GlobCache {
     }
   }
 
-  private static void cancelBackgroundTasks(Collection<Future<List<Path>>> tasks) {
-    for (Future<List<Path>> task : tasks) {
+  private static void cancelBackgroundTasks(Collection<? extends Future<?>> tasks) {
+    for (Future<?> task : tasks) {
       task.cancel(true);
     }
 
-    for (Future<List<Path>> task : tasks) {
+    for (Future<?> task : tasks) {
       try {
         task.get();
       } catch (CancellationException | ExecutionException | InterruptedException e) {
@@ -0,0 +1,317 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.packages;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.devtools.build.lib.concurrent.ThreadSafety.Immutable;
+import com.google.devtools.build.lib.syntax.Argument;
+import com.google.devtools.build.lib.syntax.BinaryOperatorExpression;
+import com.google.devtools.build.lib.syntax.BuildFileAST;
+import com.google.devtools.build.lib.syntax.Expression;
+import com.google.devtools.build.lib.syntax.ExpressionStatement;
+import com.google.devtools.build.lib.syntax.FuncallExpression;
+import com.google.devtools.build.lib.syntax.Identifier;
+import com.google.devtools.build.lib.syntax.ListLiteral;
+import com.google.devtools.build.lib.syntax.Operator;
+import com.google.devtools.build.lib.syntax.Statement;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import javax.annotation.Nullable;
+
+/**
+ * Records which attributes of which rules the results of the {@code glob()} calls of a package
+ * flowed into, so that a change to the results can be applied to the package by {@link
+ * PackageFactory#patchGlobResults} without evaluating the BUILD file again.
+ *
+ * <p>A package only has one if the result of every {@code glob()} call was used as the value, or
+ * part of a {@code +} concatenation which is the value, of a keyword argument of a top-level call
+ * of the BUILD file which directly creates a rule. In any other case, such as a glob in a macro,
+ * a glob assigned to a variable, or a rule read back with {@code existing_rules()}, the results
+ * may have influenced the package in ways which can't be patched.
+ */
+@Immutable
+public final class GlobResultUsage {
+
+  /** A {@code glob()} call whose result is part of the value of a rule attribute. */
+  @Immutable
+  public static final class GlobCall {
+    private final String ruleName;
+    private final String attributeName;
+    private final ImmutableList<String> includes;
+    private final ImmutableList<String> excludes;
+    private final boolean excludeDirs;
+    private final int numMatches;
+    private final int literalElementsBefore;
+    private final int literalElementsOfAttribute;
+
+    private GlobCall(
+        String ruleName,
+        String attributeName,
+        ImmutableList<String> includes,
+        ImmutableList<String> excludes,
+        boolean excludeDirs,
+        int numMatches,
+        int literalElementsBefore,
+        int literalElementsOfAttribute) {
+      this.ruleName = ruleName;
+      this.attributeName = attributeName;
+      this.includes = includes;
+      this.excludes = excludes;
+      this.excludeDirs = excludeDirs;
+      this.numMatches = numMatches;
+      this.literalElementsBefore = literalElementsBefore;
+      this.literalElementsOfAttribute = literalElementsOfAttribute;
+    }
+
+    private GlobCall withRuleNameAndMatches(String ruleName, int numMatches) {
+      return new GlobCall(
+          ruleName,
+          attributeName,
+          includes,
+          excludes,
+          excludeDirs,
+          numMatches,
+          literalElementsBefore,
+          literalElementsOfAttribute);
+    }
+
+    /** Returns the name of the rule whose attribute the result of the call is part of. */
+    public String getRuleName() {
+      return ruleName;
+    }
+
+    public String getAttributeName() {
+      return attributeName;
+    }
+
+    public ImmutableList<String> getIncludes() {
+      return includes;
+    }
+
+    public ImmutableList<String> getExcludes() {
+      return excludes;
+    }
+
+    public boolean excludeDirs() {
+      return excludeDirs;
+    }
+
+    /** Returns the number of matches the call had when the package was loaded. */
+    int getNumMatches() {
+      return numMatches;
+    }
+
+    /**
+     * Returns the number of elements of list literals which precede the result of the call in the
+     * value of the attribute.
+     */
+    int getLiteralElementsBefore() {
+      return literalElementsBefore;
+    }
+
+    /** Returns the number of elements of list literals in the value of the attribute. */
+    int getLiteralElementsOfAttribute() {
+      return literalElementsOfAttribute;
+    }
+  }
+
+  private final ImmutableList<GlobCall> globCalls;
+
+  private GlobResultUsage(ImmutableList<GlobCall> globCalls) {
+    this.globCalls = globCalls;
+  }
+
+  /** Returns the {@code glob()} calls of the package, in the order they were evaluated. */
+  public ImmutableList<GlobCall> getGlobCalls() {
+    return globCalls;
+  }
+
+  /** Returns the usage of a package patched with the given matches of the calls. */
+  GlobResultUsage withMatches(List<? extends List<String>> matches) {
+    Preconditions.checkArgument(matches.size() == globCalls.size());
+    ImmutableList.Builder<GlobCall> result = ImmutableList.builder();
+    for (int i = 0; i < globCalls.size(); i++) {
+      GlobCall call = globCalls.get(i);
+      result.add(call.withRuleNameAndMatches(call.ruleName, matches.get(i).size()));
+    }
+    return new GlobResultUsage(result.build());
+  }
+
+  /**
+   * The call of a BUILD file creating a rule, the attribute a glob is part of the value of, and
+   * where in the value.
+   */
+  private static final class GlobSite {
+    private final FuncallExpression ruleCall;
+    private final String attributeName;
+    private final int literalElementsBefore;
+    private final int literalElementsOfAttribute;
+
+    private GlobSite(
+        FuncallExpression ruleCall,
+        String attributeName,
+        int literalElementsBefore,
+        int literalElementsOfAttribute) {
+      this.ruleCall = ruleCall;
+      this.attributeName = attributeName;
+      this.literalElementsBefore = literalElementsBefore;
+      this.literalElementsOfAttribute = literalElementsOfAttribute;
+    }
+  }
+
+  /**
+   * Collects the {@code glob()} calls and rule creations while a BUILD file is evaluated. Not
+   * thread-safe; used by a single {@link Package.Builder}.
+   */
+  static final class Recorder {
+    // The glob() calls of the BUILD file which may be patched, keyed by identity.
+    private final Map<FuncallExpression, GlobSite> globSites = new IdentityHashMap<>();
+    private final Map<FuncallExpression, String> rulesByCall = new IdentityHashMap<>();
+    private final List<FuncallExpression> globCallSites = new ArrayList<>();
+    private final List<GlobCall> globCalls = new ArrayList<>();
+    private boolean patchable = true;
+
+    /**
+     * Finds the {@code glob()} calls of the given BUILD file whose result can only flow into an
+     * attribute of a rule.
+     */
+    void findGlobSites(BuildFileAST buildFileAST) {
+      for (Statement statement : buildFileAST.getStatements()) {
+        if (!(statement instanceof ExpressionStatement)
+            || !(((ExpressionStatement) statement).getExpression() instanceof FuncallExpression)) {
+          continue;
+        }
+        FuncallExpression call =
+            (FuncallExpression) ((ExpressionStatement) statement).getExpression();
+        for (Argument.Passed argument : call.getArguments()) {
+          // The operands of the concatenation, in order; null for a glob.
+          List<Expression> operands = new ArrayList<>();
+          if (!argument.isKeyword() || !collectOperands(argument.getValue(), operands)) {
+            continue;
+          }
+          int literalElements = 0;
+          for (Expression operand : operands) {
+            if (operand instanceof ListLiteral) {
+              literalElements += ((ListLiteral) operand).getElements().size();
+            }
+          }
+          int literalElementsBefore = 0;
+          for (Expression operand : operands) {
+            if (operand instanceof ListLiteral) {
+              literalElementsBefore += ((ListLiteral) operand).getElements().size();
+            } else {
+              globSites.put(
+                  (FuncallExpression) operand,
+                  new GlobSite(call, argument.getName(), literalElementsBefore, literalElements));
+            }
+          }
+        }
+      }
+    }
+
+    /**
+     * Adds the operands of a {@code +} concatenation of globs and list literals to the given list.
+     * Returns false if the expression is anything else.
+     */
+    private static boolean collectOperands(Expression expression, List<Expression> operands) {
+      if (expression instanceof BinaryOperatorExpression) {
+        BinaryOperatorExpression binaryOperation = (BinaryOperatorExpression) expression;
+        return binaryOperation.getOperator() == Operator.PLUS
+            && collectOperands(binaryOperation.getLhs(), operands)
+            && collectOperands(binaryOperation.getRhs(), operands);
+      }
+      if (expression instanceof FuncallExpression) {
+        Expression function = ((FuncallExpression) expression).getFunction();
+        if (function instanceof Identifier && ((Identifier) function).getName().equals("glob")) {
+          operands.add(expression);
+          return true;
+        }
+        return false;
+      }
+      if (expression instanceof ListLiteral) {
+        operands.add(expression);
+        return true;
+      }
+      return false;
+    }
+
+    /** Records an evaluated {@code glob()} call. */
+    void recordGlob(
+        @Nullable FuncallExpression ast,
+        ImmutableList<String> includes,
+        ImmutableList<String> excludes,
+        boolean excludeDirs,
+        int numMatches) {
+      if (!patchable) {
+        return;
+      }
+      GlobSite site = ast != null ? globSites.get(ast) : null;
+      if (site == null) {
+        patchable = false;
+        return;
+      }
+      globCallSites.add(ast);
+      // The name of the rule is filled in by build(), once the rule exists.
+      globCalls.add(
+          new GlobCall(
+              null,
+              site.attributeName,
+              includes,
+              excludes,
+              excludeDirs,
+              numMatches,
+              site.literalElementsBefore,
+              site.literalElementsOfAttribute));
+    }
+
+    /** Records the creation of a rule by the given call. */
+    void recordRule(@Nullable FuncallExpression ast, Rule rule) {
+      if (ast != null && rulesByCall.put(ast, rule.getName()) != null) {
+        // The call was evaluated more than once.
+        patchable = false;
+      }
+    }
+
+    /** Records that the attribute values of the rules of the package were read while loading. */
+    void recordAttributesRead() {
+      patchable = false;
+    }
+
+    /**
+     * Returns the recorded usage, or null if the results of some glob can't be patched or if there
+     * were no globs.
+     */
+    @Nullable
+    GlobResultUsage build() {
+      if (!patchable || globCalls.isEmpty()) {
+        return null;
+      }
+      ImmutableList.Builder<GlobCall> result = ImmutableList.builder();
+      for (int i = 0; i < globCalls.size(); i++) {
+        GlobSite site = Preconditions.checkNotNull(globSites.get(globCallSites.get(i)));
+        String ruleName = rulesByCall.get(site.ruleCall);
+        if (ruleName == null) {
+          // The call didn't directly create a rule; it may be a macro.
+          return null;
+        }
+        GlobCall call = globCalls.get(i);
+        result.add(call.withRuleNameAndMatches(ruleName, call.numMatches));
+      }
+      return new GlobResultUsage(result.build());
+    }
+  }
+}
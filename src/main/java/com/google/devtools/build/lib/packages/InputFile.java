@@ -21,6 +21,7 @@ import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
 import com.google.devtools.build.lib.events.Location;
 import com.google.devtools.build.lib.vfs.Path;
 import com.google.devtools.build.lib.vfs.PathFragment;
+import javax.annotation.Nullable;
 
 /**
  * A file that is an input to the build system.
@@ -76,6 +77,12 @@ public final class InputFile extends FileTarget {
     return false;
   }
 
+  /** Returns the license given to this file, or null if it has the default one of the package. */
+  @Nullable
+  License getDeclaredLicense() {
+    return license;
+  }
+
   public boolean isLicenseSpecified() {
     return license != null && license.isSpecified();
   }
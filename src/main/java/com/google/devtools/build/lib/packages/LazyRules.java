@@ -0,0 +1,327 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.packages;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableListMultimap;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Iterables;
+import com.google.devtools.build.lib.cmdline.Label;
+import com.google.devtools.build.lib.collect.ImmutableSortedKeyMap;
+import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
+import com.google.devtools.build.lib.events.Location;
+import java.lang.ref.SoftReference;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import javax.annotation.Nullable;
+
+/**
+ * The rules of a package with very many targets, and their output files, kept in a compact form
+ * from which the {@link Rule} and {@link OutputFile} objects are materialized when they are looked
+ * up.
+ *
+ * <p>A rule is kept as the values of its attributes which were explicitly specified or differ
+ * from the default of the attribute, instead of a value for every attribute of its rule class,
+ * and its output files as their labels. Materialized rules are kept while they are reachable from
+ * elsewhere, so that looking up a target in use always returns the same object, and the most
+ * recently used ones are kept in any case. A rule which is no longer reachable may be materialized
+ * again as a new, equivalent object.
+ *
+ * <p>Once all the targets have been requested, they are kept softly, and every later lookup
+ * returns the objects among them until the garbage collector needs the memory. Package-wide scans
+ * which don't need the targets to outlive the scan should use {@link #iterateTargets} instead,
+ * which materializes one rule at a time.
+ */
+@ThreadSafe
+final class LazyRules {
+
+  /** The number of materialized rules of a package kept after they were last looked up. */
+  private static final int RECENTLY_USED_RULES = 256;
+
+  /** The state of a {@link Rule} which isn't implied by its rule class. */
+  private static final class CompactRule {
+    private final Label label;
+    private final RuleClass ruleClass;
+    private final Location location;
+    private final ImplicitOutputsFunction implicitOutputsFunction;
+    @Nullable private final RuleVisibility visibility;
+    // The indices and values of the attributes which don't have their default value; the
+    // explicitly specified ones first.
+    private final byte[] attributeIndices;
+    private final Object[] attributeValues;
+    private final int explicitAttributes;
+    private final byte[] locationIndices;
+    private final Location[] attributeLocations;
+    private final Label[] outputLabels;
+    // The attribute each output file was declared in, or null for an implicit output. Null if
+    // all the outputs are implicit.
+    @Nullable private final String[] outputAttributeNames;
+
+    private CompactRule(Rule rule) {
+      this.label = rule.getLabel();
+      this.ruleClass = rule.getRuleClassObject();
+      this.location = rule.getLocation();
+      this.implicitOutputsFunction = rule.getImplicitOutputsFunction();
+      this.visibility = rule.isVisibilitySpecified() ? rule.getVisibility() : null;
+
+      AttributeContainer attributes = rule.getAttributeContainer();
+      List<Integer> explicitIndices = new ArrayList<>();
+      List<Integer> otherIndices = new ArrayList<>();
+      List<Integer> indicesWithLocation = new ArrayList<>();
+      for (int i = 0; i < ruleClass.getAttributeCount(); i++) {
+        Attribute attribute = ruleClass.getAttribute(i);
+        if (attributes.isAttributeValueExplicitlySpecified(attribute)) {
+          explicitIndices.add(i);
+        } else if (!hasDefaultValue(attribute, attributes.getAttributeValue(i))) {
+          otherIndices.add(i);
+        }
+        if (attributes.getAttributeLocation(attribute.getName()) != null) {
+          indicesWithLocation.add(i);
+        }
+      }
+      this.explicitAttributes = explicitIndices.size();
+      explicitIndices.addAll(otherIndices);
+      this.attributeIndices = new byte[explicitIndices.size()];
+      this.attributeValues = new Object[explicitIndices.size()];
+      for (int i = 0; i < attributeIndices.length; i++) {
+        int index = explicitIndices.get(i);
+        // AttributeContainer guarantees that indices fit in a byte.
+        attributeIndices[i] = (byte) index;
+        attributeValues[i] = attributes.getAttributeValue(index);
+      }
+      this.locationIndices = new byte[indicesWithLocation.size()];
+      this.attributeLocations = new Location[indicesWithLocation.size()];
+      for (int i = 0; i < locationIndices.length; i++) {
+        int index = indicesWithLocation.get(i);
+        locationIndices[i] = (byte) index;
+        attributeLocations[i] =
+            attributes.getAttributeLocation(ruleClass.getAttribute(index).getName());
+      }
+
+      List<OutputFile> outputFiles = ImmutableList.copyOf(rule.getOutputFiles());
+      Map<OutputFile, String> outputAttributes = new HashMap<>();
+      for (Map.Entry<String, OutputFile> entry : rule.getOutputFileMap().entries()) {
+        outputAttributes.put(entry.getValue(), entry.getKey());
+      }
+      this.outputLabels = new Label[outputFiles.size()];
+      String[] outputAttributeNames = new String[outputFiles.size()];
+      for (int i = 0; i < outputLabels.length; i++) {
+        outputLabels[i] = outputFiles.get(i).getLabel();
+        outputAttributeNames[i] = outputAttributes.get(outputFiles.get(i));
+      }
+      this.outputAttributeNames = outputAttributes.isEmpty() ? null : outputAttributeNames;
+    }
+
+    /** Returns whether the given non-explicit value of the attribute is the one it has anyway. */
+    private static boolean hasDefaultValue(Attribute attribute, Object value) {
+      // Computed defaults depend on the other attributes, so they are always kept.
+      return !attribute.hasComputedDefault() && value == attribute.getDefaultValue(null);
+    }
+
+    private Rule materialize(Package pkg) {
+      AttributeContainer attributes = new AttributeContainer(ruleClass);
+      Rule rule = new Rule(pkg, label, ruleClass, location, attributes, implicitOutputsFunction);
+      boolean[] hasValue = new boolean[ruleClass.getAttributeCount()];
+      for (int i = 0; i < attributeIndices.length; i++) {
+        int index = 0xff & attributeIndices[i];
+        attributes.setAttributeValue(
+            ruleClass.getAttribute(index), attributeValues[i], i < explicitAttributes);
+        hasValue[index] = true;
+      }
+      for (int i = 0; i < hasValue.length; i++) {
+        if (!hasValue[i]) {
+          Attribute attribute = ruleClass.getAttribute(i);
+          attributes.setAttributeValue(
+              attribute, attribute.getDefaultValue(null), /*explicit=*/ false);
+        }
+      }
+      for (int i = 0; i < locationIndices.length; i++) {
+        attributes.setAttributeLocation(0xff & locationIndices[i], attributeLocations[i]);
+      }
+      if (visibility != null) {
+        rule.setVisibility(visibility);
+      }
+
+      ImmutableList.Builder<OutputFile> outputFiles = ImmutableList.builder();
+      ImmutableListMultimap.Builder<String, OutputFile> outputFileMap =
+          ImmutableListMultimap.builder();
+      for (int i = 0; i < outputLabels.length; i++) {
+        OutputFile outputFile = new OutputFile(pkg, outputLabels[i], rule);
+        outputFiles.add(outputFile);
+        if (outputAttributeNames != null && outputAttributeNames[i] != null) {
+          outputFileMap.put(outputAttributeNames[i], outputFile);
+        }
+      }
+      rule.setOutputFiles(outputFiles.build(), outputFileMap.build());
+      return rule;
+    }
+  }
+
+  private final Package pkg;
+  private final ImmutableMap<String, CompactRule> rules;
+  private final ImmutableMap<String, String> ruleNamesByOutputFile;
+  private final Cache<String, Rule> recentlyUsedRules =
+      CacheBuilder.newBuilder().maximumSize(RECENTLY_USED_RULES).build();
+  private final Cache<String, Rule> reachableRules = CacheBuilder.newBuilder().weakValues().build();
+  // All the targets of the package, once they have been requested.
+  @Nullable private volatile SoftReference<ImmutableSortedKeyMap<String, Target>> allTargets;
+
+  private LazyRules(
+      Package pkg,
+      ImmutableMap<String, CompactRule> rules,
+      ImmutableMap<String, String> ruleNamesByOutputFile) {
+    this.pkg = pkg;
+    this.rules = rules;
+    this.ruleNamesByOutputFile = ruleNamesByOutputFile;
+  }
+
+  /**
+   * Returns the compact form of the rules among the given targets of a package, and of their
+   * output files. Rules which can't be materialized exactly as they are stay in the map, together
+   * with their output files; the others are removed from it.
+   */
+  static LazyRules create(Package pkg, Map<String, Target> targets) {
+    ImmutableMap.Builder<String, CompactRule> rules = ImmutableMap.builder();
+    ImmutableMap.Builder<String, String> ruleNamesByOutputFile = ImmutableMap.builder();
+    List<String> compactedNames = new ArrayList<>();
+    for (Target target : targets.values()) {
+      if (!(target instanceof Rule) || !canCompact((Rule) target, targets)) {
+        continue;
+      }
+      Rule rule = (Rule) target;
+      rules.put(rule.getName(), new CompactRule(rule));
+      compactedNames.add(rule.getName());
+      for (OutputFile outputFile : rule.getOutputFiles()) {
+        ruleNamesByOutputFile.put(outputFile.getName(), rule.getName());
+        compactedNames.add(outputFile.getName());
+      }
+    }
+    targets.keySet().removeAll(compactedNames);
+    return new LazyRules(pkg, rules.build(), ruleNamesByOutputFile.build());
+  }
+
+  private static boolean canCompact(Rule rule, Map<String, Target> targets) {
+    if (rule.containsErrors()
+        || rule.getAttributeContainer().getClass() != AttributeContainer.class
+        || targets.get(rule.getName()) != rule) {
+      return false;
+    }
+    // The rule and its output files must be looked up as a whole.
+    for (OutputFile outputFile : rule.getOutputFiles()) {
+      if (targets.get(outputFile.getName()) != outputFile) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** Returns the rule or output file of the given name, or null if there is none. */
+  @Nullable
+  Target getTarget(String name) {
+    ImmutableSortedKeyMap<String, Target> allTargets = getKeptTargets();
+    if (allTargets != null) {
+      return allTargets.get(name);
+    }
+    if (rules.containsKey(name)) {
+      return getRule(name);
+    }
+    String ruleName = ruleNamesByOutputFile.get(name);
+    if (ruleName == null) {
+      return null;
+    }
+    for (OutputFile outputFile : getRule(ruleName).getOutputFiles()) {
+      if (outputFile.getName().equals(name)) {
+        return outputFile;
+      }
+    }
+    throw new IllegalStateException(ruleName + " has no output file " + name);
+  }
+
+  private Rule getRule(String name) {
+    try {
+      return recentlyUsedRules.get(
+          name, () -> reachableRules.get(name, () -> rules.get(name).materialize(pkg)));
+    } catch (ExecutionException e) {
+      throw new IllegalStateException(e.getCause());
+    }
+  }
+
+  /**
+   * Returns all the targets of the package, the given ones and those kept here. The result is kept
+   * softly, so that later calls return the same map while memory allows.
+   */
+  ImmutableSortedKeyMap<String, Target> getAllTargets(Map<String, Target> otherTargets) {
+    ImmutableSortedKeyMap<String, Target> result = getKeptTargets();
+    if (result != null) {
+      return result;
+    }
+    synchronized (this) {
+      result = getKeptTargets();
+      if (result == null) {
+        result = materializeAll(otherTargets);
+        allTargets = new SoftReference<>(result);
+      }
+      return result;
+    }
+  }
+
+  /**
+   * Returns all the targets of the package, the given ones first, without keeping the rules kept
+   * here once the caller is done with them. Each rule is materialized when the iteration reaches
+   * it, and is followed by its output files. The rules may not be the objects {@link #getTarget}
+   * returns.
+   */
+  Iterable<Target> iterateTargets(Map<String, Target> otherTargets) {
+    ImmutableSortedKeyMap<String, Target> allTargets = getKeptTargets();
+    if (allTargets != null) {
+      return allTargets.values();
+    }
+    return Iterables.concat(
+        otherTargets.values(),
+        Iterables.concat(
+            Iterables.transform(
+                rules.keySet(),
+                name -> {
+                  Rule rule = reachableRules.getIfPresent(name);
+                  if (rule == null) {
+                    rule = rules.get(name).materialize(pkg);
+                  }
+                  return Iterables.concat(ImmutableList.of(rule), rule.getOutputFiles());
+                })));
+  }
+
+  @Nullable
+  private ImmutableSortedKeyMap<String, Target> getKeptTargets() {
+    SoftReference<ImmutableSortedKeyMap<String, Target>> allTargets = this.allTargets;
+    return allTargets != null ? allTargets.get() : null;
+  }
+
+  private ImmutableSortedKeyMap<String, Target> materializeAll(Map<String, Target> otherTargets) {
+    ImmutableSortedKeyMap.Builder<String, Target> builder = ImmutableSortedKeyMap.builder();
+    builder.putAll(otherTargets);
+    for (String name : rules.keySet()) {
+      Rule rule = getRule(name);
+      builder.put(name, rule);
+      for (OutputFile outputFile : rule.getOutputFiles()) {
+        builder.put(outputFile.getName(), outputFile);
+      }
+    }
+    return builder.build();
+  }
+}
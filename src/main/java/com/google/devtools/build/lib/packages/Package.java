@@ -123,9 +123,15 @@ public class Package {
    */
   private ImmutableMap<String, String> makeEnv;
 
-  /** The collection of all targets defined in this package, indexed by name. */
+  /**
+   * The collection of all targets defined in this package, indexed by name, except for those in
+   * {@link #lazyRules}.
+   */
   protected ImmutableSortedKeyMap<String, Target> targets;
 
+  /** The rules and output files of a very large package, which are materialized on demand. */
+  @Nullable private LazyRules lazyRules;
+
   /**
    * Default visibility for rules that do not specify it.
    */
@@ -200,6 +206,8 @@ public class Package {
   private ImmutableList<String> registeredExecutionPlatforms;
   private ImmutableList<String> registeredToolchains;
 
+  @Nullable private GlobResultUsage globResultUsage;
+
   /**
    * Package initialization, part 1 of 3: instantiates a new package with the
    * given name.
@@ -317,7 +325,14 @@ public class Package {
     }
 
     this.makeEnv = ImmutableMap.copyOf(builder.makeEnv);
-    this.targets = ImmutableSortedKeyMap.copyOf(builder.targets);
+    Map<String, Target> targets = builder.targets;
+    if (!builder.containsErrors
+        && builder.lazyTargetMaterializationThreshold >= 0
+        && targets.size() > builder.lazyTargetMaterializationThreshold) {
+      targets = new HashMap<>(targets);
+      this.lazyRules = LazyRules.create(this, targets);
+    }
+    this.targets = ImmutableSortedKeyMap.copyOf(targets);
     this.defaultVisibility = builder.defaultVisibility;
     this.defaultVisibilitySet = builder.defaultVisibilitySet;
     if (builder.defaultCopts == null) {
@@ -335,6 +350,7 @@ public class Package {
     this.posts = ImmutableList.copyOf(builder.posts);
     this.registeredExecutionPlatforms = ImmutableList.copyOf(builder.registeredExecutionPlatforms);
     this.registeredToolchains = ImmutableList.copyOf(builder.registeredToolchains);
+    this.globResultUsage = builder.containsErrors ? null : builder.getGlobResultUsage();
   }
 
   /**
@@ -418,9 +434,26 @@ public class Package {
     return events;
   }
 
-  /** Returns an (immutable, ordered) view of all the targets belonging to this package. */
+  /**
+   * Returns an (immutable, ordered) view of all the targets belonging to this package.
+   *
+   * <p>Prefer {@link #getTarget} for looking up individual targets, and {@link #iterateTargets}
+   * for visiting all of them, which don't materialize all the rules of a very large package at
+   * once. Once this has been called, the package keeps all its targets softly, and {@link
+   * #getTarget} returns the same objects as the returned map while they are kept.
+   */
   public ImmutableSortedKeyMap<String, Target> getTargets() {
-    return targets;
+    return lazyRules != null ? lazyRules.getAllTargets(targets) : targets;
+  }
+
+  /**
+   * Returns all the targets belonging to this package, in no particular order. Unlike {@link
+   * #getTargets}, this materializes the rules of a very large package one at a time as the
+   * iteration reaches them, and doesn't keep them afterwards; each rule is followed by its output
+   * files. The returned objects may therefore differ from those {@link #getTarget} returns.
+   */
+  public Iterable<Target> iterateTargets() {
+    return lazyRules != null ? lazyRules.iterateTargets(targets) : targets.values();
   }
 
   /**
@@ -435,7 +468,7 @@ public class Package {
    * to this package which are instances of the specified class.
    */
   public <T extends Target> Iterable<T> getTargets(Class<T> targetClass) {
-    return getTargets(targets, targetClass);
+    return getTargets(getTargets(), targetClass);
   }
 
   /**
@@ -454,7 +487,16 @@ public class Package {
    */
   @VisibleForTesting // Should be package-private
   public Rule getRule(String targetName) {
-    return (Rule) targets.get(targetName);
+    return (Rule) getTargetOrNull(targetName);
+  }
+
+  @Nullable
+  private Target getTargetOrNull(String targetName) {
+    Target target = targets.get(targetName);
+    if (target == null && lazyRules != null) {
+      target = lazyRules.getTarget(targetName);
+    }
+    return target;
   }
 
   /** Returns all rules in the package that match the given rule class. */
@@ -485,7 +527,7 @@ public class Package {
    * @throws NoSuchTargetException if the specified target was not found.
    */
   public Target getTarget(String targetName) throws NoSuchTargetException {
-    Target target = targets.get(targetName);
+    Target target = getTargetOrNull(targetName);
     if (target != null) {
       return target;
     }
@@ -512,7 +554,7 @@ public class Package {
       suffix = "; however, a source file of this name exists.  (Perhaps add "
           + "'exports_files([\"" + targetName + "\"])' to " + name + "/BUILD?)";
     } else {
-      suffix = SpellChecker.didYouMean(targetName, targets.keySet());
+      suffix = SpellChecker.didYouMean(targetName, getTargets().keySet());
     }
 
     throw makeNoSuchTargetException(targetName, suffix);
@@ -629,6 +671,15 @@ public class Package {
     return registeredToolchains;
   }
 
+  /**
+   * Returns where the results of the globs of this package went, or null if this package can't be
+   * patched with new glob results.
+   */
+  @Nullable
+  public GlobResultUsage getGlobResultUsage() {
+    return globResultUsage;
+  }
+
   @Override
   public String toString() {
     return "Package(" + name + ")="
@@ -772,6 +823,11 @@ public class Package {
 
     private boolean alreadyBuilt = false;
 
+    private int lazyTargetMaterializationThreshold = -1;
+
+    private GlobResultUsage.Recorder globResultUsageRecorder = new GlobResultUsage.Recorder();
+    @Nullable private GlobResultUsage patchedGlobResultUsage;
+
     private EventHandler builderEventHandler = new EventHandler() {
       @Override
       public void handle(Event event) {
@@ -951,6 +1007,61 @@ public class Package {
       return this;
     }
 
+    /**
+     * Copies everything but the targets from the given package, which must have been loaded from
+     * the same BUILD file, to the package under construction.
+     */
+    Builder copySettingsFrom(Package other) {
+      Preconditions.checkArgument(
+          other.getPackageIdentifier().equals(pkg.getPackageIdentifier()), other);
+      setFilename(other.filename);
+      makeEnv.putAll(other.makeEnv);
+      defaultVisibility = other.defaultVisibility;
+      defaultVisibilitySet = other.defaultVisibilitySet;
+      pkg.setDefaultTestOnly(other.defaultTestOnly);
+      pkg.setDefaultDeprecation(other.defaultDeprecation);
+      pkg.setDefaultHdrsCheck(other.defaultHdrsCheck);
+      pkg.setDefaultCompatibleWith(other.defaultCompatibleWith);
+      pkg.setDefaultRestrictedTo(other.defaultRestrictedTo);
+      pkg.workspaceName = other.workspaceName;
+      defaultCopts = other.defaultCopts;
+      features.addAll(other.features);
+      events.addAll(other.events);
+      posts.addAll(other.posts);
+      defaultLicense = other.defaultLicense;
+      defaultDistributionSet = other.defaultDistributionSet;
+      skylarkFileDependencies = other.skylarkFileDependencies;
+      registeredExecutionPlatforms.addAll(other.registeredExecutionPlatforms);
+      registeredToolchains.addAll(other.registeredToolchains);
+      return this;
+    }
+
+    /**
+     * Makes the package keep its rules in a compact form, materializing them on demand, if it has
+     * more than the given number of targets. Negative values disable this.
+     */
+    Builder setLazyTargetMaterializationThreshold(int lazyTargetMaterializationThreshold) {
+      this.lazyTargetMaterializationThreshold = lazyTargetMaterializationThreshold;
+      return this;
+    }
+
+    /** Returns the recorder of the glob results and the rules of the package. */
+    GlobResultUsage.Recorder getGlobResultUsageRecorder() {
+      return globResultUsageRecorder;
+    }
+
+    /** Sets the glob result usage of a package patched by {@link PackageFactory}. */
+    void setPatchedGlobResultUsage(GlobResultUsage globResultUsage) {
+      this.patchedGlobResultUsage = globResultUsage;
+    }
+
+    @Nullable
+    private GlobResultUsage getGlobResultUsage() {
+      return patchedGlobResultUsage != null
+          ? patchedGlobResultUsage
+          : globResultUsageRecorder.build();
+    }
+
     Builder setSkylarkFileDependencies(ImmutableList<Label> skylarkFileDependencies) {
       this.skylarkFileDependencies = skylarkFileDependencies;
       return this;
@@ -1342,6 +1453,12 @@ public class Package {
         }
       }
 
+      // The attribute values of the rules are final now, so equal ones can be shared.
+      AttributeValueInterner attributeValueInterner = new AttributeValueInterner();
+      for (Rule rule : getTargets(Rule.class)) {
+        rule.getAttributeContainer().internValues(attributeValueInterner);
+      }
+
       // Build the package.
       pkg.finishInit(this);
       alreadyBuilt = true;
@@ -31,6 +31,7 @@ import com.google.devtools.build.lib.events.ExtendedEventHandler;
 import com.google.devtools.build.lib.events.ExtendedEventHandler.Postable;
 import com.google.devtools.build.lib.events.Location;
 import com.google.devtools.build.lib.events.StoredEventHandler;
+import com.google.devtools.build.lib.packages.Attribute.SkylarkComputedDefaultTemplate.CannotPrecomputeDefaultsException;
 import com.google.devtools.build.lib.packages.Globber.BadGlobException;
 import com.google.devtools.build.lib.packages.License.DistributionType;
 import com.google.devtools.build.lib.packages.RuleFactory.BuildLangTypedAttributeValuesMap;
@@ -64,21 +65,24 @@ import com.google.devtools.build.lib.syntax.Type;
 import com.google.devtools.build.lib.syntax.Type.ConversionException;
 import com.google.devtools.build.lib.vfs.FileSystemUtils;
 import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.Root;
 import com.google.devtools.build.lib.vfs.UnixGlob;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 import java.util.TreeMap;
-import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.UnaryOperator;
 import java.util.logging.Logger;
 import javax.annotation.Nullable;
 
@@ -290,10 +294,8 @@ public final class PackageFactory {
     @Override
     public Token runAsync(List<String> includes, List<String> excludes, boolean excludeDirs)
         throws BadGlobException {
-      for (String pattern : Iterables.concat(includes, excludes)) {
-        @SuppressWarnings("unused")
-        Future<?> possiblyIgnoredError = globCache.getGlobUnsortedAsync(pattern, excludeDirs);
-      }
+      globCache.startGlobsAsync(
+          ImmutableList.copyOf(Iterables.concat(includes, excludes)), excludeDirs);
       return new Token(includes, excludes, excludeDirs);
     }
 
@@ -336,6 +338,8 @@ public final class PackageFactory {
 
   private int maxDirectoriesToEagerlyVisitInGlobbing;
 
+  private int lazyTargetMaterializationThreshold = -1;
+
   private final ImmutableList<EnvironmentExtension> environmentExtensions;
   private final ImmutableMap<String, PackageArgument<?>> packageArguments;
 
@@ -349,6 +353,8 @@ public final class PackageFactory {
     protected Function<RuleClass, AttributeContainer> attributeContainerFactory =
         AttributeContainer::new;
     protected boolean doChecksForTesting = true;
+    protected UnaryOperator<Package.Builder.Helper> packageBuilderHelperWrapper =
+        UnaryOperator.identity();
 
     public BuilderForTesting setEnvironmentExtensions(
         Iterable<EnvironmentExtension> environmentExtensions) {
@@ -361,6 +367,13 @@ public final class PackageFactory {
       return this;
     }
 
+    /** Makes the factory use the given wrapper of the {@link Package.Builder.Helper} it uses. */
+    public BuilderForTesting wrapPackageBuilderHelper(
+        UnaryOperator<Package.Builder.Helper> packageBuilderHelperWrapper) {
+      this.packageBuilderHelperWrapper = packageBuilderHelperWrapper;
+      return this;
+    }
+
     public abstract PackageFactory build(RuleClassProvider ruleClassProvider);
   }
 
@@ -428,6 +441,15 @@ public final class PackageFactory {
     this.maxDirectoriesToEagerlyVisitInGlobbing = maxDirectoriesToEagerlyVisitInGlobbing;
   }
 
+  /**
+   * Sets the number of targets above which packages keep their rules in a compact form and
+   * materialize them on demand. -1 means that all packages keep their rules as they are. See
+   * {@code PackageCacheOptions#lazyTargetMaterializationThreshold}.
+   */
+  public void setLazyTargetMaterializationThreshold(int lazyTargetMaterializationThreshold) {
+    this.lazyTargetMaterializationThreshold = lazyTargetMaterializationThreshold;
+  }
+
   /**
    * Returns the immutable, unordered set of names of all the known rule
    * classes.
@@ -560,8 +582,10 @@ public final class PackageFactory {
       context = originalContext;
     }
 
-    List<String> includes = Type.STRING_LIST.convert(include, "'glob' argument");
-    List<String> excludes = Type.STRING_LIST.convert(exclude, "'glob' argument");
+    ImmutableList<String> includes =
+        ImmutableList.copyOf(Type.STRING_LIST.convert(include, "'glob' argument"));
+    ImmutableList<String> excludes =
+        ImmutableList.copyOf(Type.STRING_LIST.convert(exclude, "'glob' argument"));
 
     List<String> matches;
     try {
@@ -580,6 +604,9 @@ public final class PackageFactory {
       throw new EvalException(ast.getLocation(), e.getMessage());
     }
 
+    context.pkgBuilder
+        .getGlobResultUsageRecorder()
+        .recordGlob(ast, includes, excludes, excludeDirs, matches.size());
     GlobList<String> globList = GlobList.captureResults(includes, excludes, matches);
     if (env.getSemantics().incompatibleDisableGlobTracking()) {
       // Converting to ImmutableList will remove glob information from the list.
@@ -875,6 +902,7 @@ public final class PackageFactory {
       String name, FuncallExpression ast, Environment env)
       throws EvalException, ConversionException {
     PackageContext context = getContext(env, ast.getLocation());
+    context.pkgBuilder.getGlobResultUsageRecorder().recordAttributesRead();
     Target target = context.pkgBuilder.getTarget(name);
 
     return targetDict(target, ast.getLocation(), env);
@@ -1041,6 +1069,7 @@ public final class PackageFactory {
       FuncallExpression ast, Environment env)
       throws EvalException {
     PackageContext context = getContext(env, ast.getLocation());
+    context.pkgBuilder.getGlobResultUsageRecorder().recordAttributesRead();
     Collection<Target> targets = context.pkgBuilder.getTargets();
     Location loc = ast.getLocation();
 
@@ -1626,6 +1655,7 @@ public final class PackageFactory {
       SkylarkUtils.setToolsRepository(pkgEnv, ruleClassProvider.getToolsRepository());
 
       pkgBuilder.setFilename(buildFilePath)
+          .setLazyTargetMaterializationThreshold(lazyTargetMaterializationThreshold)
           .setDefaultVisibility(defaultVisibility)
           // "defaultVisibility" comes from the command line. Let's give the BUILD file a chance to
           // set default_visibility once, be reseting the PackageBuilder.defaultVisibilitySet flag.
@@ -1652,6 +1682,8 @@ public final class PackageFactory {
         pkgBuilder.setContainsErrors();
       }
 
+      pkgBuilder.getGlobResultUsageRecorder().findGlobSites(buildFileAST);
+
       // TODO(bazel-team): (2009) the invariant "if errors are reported, mark the package
       // as containing errors" is strewn all over this class.  Refactor to use an
       // event sensor--and see if we can simplify the calling code in
@@ -1666,6 +1698,233 @@ public final class PackageFactory {
     return pkgBuilder;
   }
 
+  /**
+   * Returns the builder of a package equal to the given one, except that its {@code glob()} calls
+   * had the given results, without evaluating the BUILD file again. Returns null if the new
+   * results don't simply replace the old ones in the attributes of the rules, for instance if a
+   * rule now has an error.
+   *
+   * <p>The rules of the package are created again from their attribute values, so that their
+   * output files, computed defaults and input files are brought up to date.
+   *
+   * @param globMatches the sorted matches of each of the {@link GlobResultUsage#getGlobCalls} of
+   *     the package
+   */
+  @Nullable
+  public Package.Builder patchGlobResults(Package pkg, List<? extends List<String>> globMatches)
+      throws InterruptedException {
+    GlobResultUsage globResultUsage = Preconditions.checkNotNull(pkg.getGlobResultUsage(), pkg);
+    List<GlobResultUsage.GlobCall> globCalls = globResultUsage.getGlobCalls();
+    Preconditions.checkArgument(globCalls.size() == globMatches.size());
+    Map<String, List<Integer>> globCallsByRule = new HashMap<>();
+    for (int i = 0; i < globCalls.size(); i++) {
+      globCallsByRule
+          .computeIfAbsent(globCalls.get(i).getRuleName(), k -> new ArrayList<>())
+          .add(i);
+    }
+
+    Package.Builder pkgBuilder = new Package.Builder(packageBuilderHelper.createFreshPackage(
+        pkg.getPackageIdentifier(), ruleClassProvider.getRunfilesPrefix()));
+    pkgBuilder
+        .copySettingsFrom(pkg)
+        .setLazyTargetMaterializationThreshold(lazyTargetMaterializationThreshold);
+    for (Target target : pkg.iterateTargets()) {
+      if (target instanceof Rule) {
+        List<Integer> ruleGlobCalls =
+            globCallsByRule.getOrDefault(target.getName(), ImmutableList.of());
+        if (!copyRule(pkgBuilder, (Rule) target, ruleGlobCalls, globCalls, globMatches)) {
+          return null;
+        }
+      } else if (target instanceof InputFile) {
+        // Input files only referred to by rules are created again by Package.Builder#build.
+        InputFile inputFile = (InputFile) target;
+        if (inputFile.isVisibilitySpecified()) {
+          try {
+            pkgBuilder.setVisibilityAndLicense(
+                pkgBuilder.createInputFile(inputFile.getName(), inputFile.getLocation()),
+                inputFile.getVisibility(),
+                inputFile.getDeclaredLicense());
+          } catch (Package.Builder.GeneratedLabelConflict e) {
+            return null;
+          }
+        }
+      } else if (!(target instanceof OutputFile)) {
+        // Package groups and environment groups are rare in packages worth patching.
+        return null;
+      }
+    }
+    pkgBuilder.setPatchedGlobResultUsage(globResultUsage.withMatches(globMatches));
+    return pkgBuilder;
+  }
+
+  /**
+   * Adds a rule equal to the given one to the package under construction, except that the given
+   * glob calls of its attributes have the given matches. Returns false if that isn't possible.
+   */
+  private boolean copyRule(
+      Package.Builder pkgBuilder,
+      Rule rule,
+      List<Integer> ruleGlobCalls,
+      List<GlobResultUsage.GlobCall> globCalls,
+      List<? extends List<String>> globMatches)
+      throws InterruptedException {
+    RuleClass ruleClass = rule.getRuleClassObject();
+    AttributeContainer attributes = rule.getAttributeContainer();
+    Map<String, Object> attributeValues = new LinkedHashMap<>();
+    for (Attribute attribute : rule.getAttributes()) {
+      if (attributes.isAttributeValueExplicitlySpecified(attribute)) {
+        attributeValues.put(attribute.getName(), attributes.getAttr(attribute.getName()));
+      }
+    }
+    Map<String, List<Integer>> globCallsByAttribute = new LinkedHashMap<>();
+    for (int i : ruleGlobCalls) {
+      globCallsByAttribute
+          .computeIfAbsent(globCalls.get(i).getAttributeName(), k -> new ArrayList<>())
+          .add(i);
+    }
+    for (Map.Entry<String, List<Integer>> entry : globCallsByAttribute.entrySet()) {
+      Object value = attributeValues.get(entry.getKey());
+      if (!(value instanceof List)) {
+        return false;
+      }
+      Object patchedValue =
+          patchAttributeValue(
+              rule,
+              ruleClass.getAttributeByName(entry.getKey()),
+              (List<?>) value,
+              entry.getValue(),
+              globCalls,
+              globMatches);
+      if (patchedValue == null) {
+        return false;
+      }
+      attributeValues.put(entry.getKey(), patchedValue);
+    }
+
+    StoredEventHandler eventHandler = new StoredEventHandler();
+    Rule copy;
+    try {
+      copy =
+          ruleClass.createRule(
+              pkgBuilder,
+              rule.getLabel(),
+              new RuleFactory.NativeTypedAttributeValuesMap(attributeValues),
+              eventHandler,
+              /*ast=*/ null,
+              rule.getLocation(),
+              ruleFactory.getAttributeContainer(ruleClass));
+    } catch (LabelSyntaxException | CannotPrecomputeDefaultsException e) {
+      return false;
+    }
+    // The events of the rules that didn't change are already among those of the package.
+    if (copy.containsErrors() || (!ruleGlobCalls.isEmpty() && !eventHandler.isEmpty())) {
+      return false;
+    }
+    for (Attribute attribute : rule.getAttributes()) {
+      Location location = attributes.getAttributeLocation(attribute.getName());
+      if (location != null) {
+        copy.getAttributeContainer().setAttributeLocation(attribute, location);
+      }
+    }
+    try {
+      pkgBuilder.addRule(copy);
+    } catch (Package.NameConflictException e) {
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Returns the given value of an attribute with the matches of its globs replaced by the given
+   * ones, or null if the value isn't the concatenation of the globs and of list literals.
+   */
+  @Nullable
+  private static List<Object> patchAttributeValue(
+      Rule rule,
+      Attribute attribute,
+      List<?> value,
+      List<Integer> attributeGlobCalls,
+      List<GlobResultUsage.GlobCall> globCalls,
+      List<? extends List<String>> globMatches) {
+    if (attribute.isOrderIndependent() && !(value instanceof GlobList)) {
+      // The elements were sorted, so the matches can't be found in the value.
+      return null;
+    }
+    List<Object> elements = new ArrayList<>();
+    // The position in the value after the matches of the previous glob call.
+    int start = 0;
+    int numMatches = 0;
+    for (int i : attributeGlobCalls) {
+      GlobResultUsage.GlobCall globCall = globCalls.get(i);
+      int offset = globCall.getLiteralElementsBefore() + numMatches;
+      if (offset < start || offset + globCall.getNumMatches() > value.size()) {
+        return null;
+      }
+      elements.addAll(value.subList(start, offset));
+      try {
+        elements.addAll(
+            (List<?>) attribute.getType().convert(globMatches.get(i), attribute, rule.getLabel()));
+      } catch (ConversionException e) {
+        return null;
+      }
+      start = offset + globCall.getNumMatches();
+      numMatches += globCall.getNumMatches();
+    }
+    GlobResultUsage.GlobCall lastGlobCall = globCalls.get(Iterables.getLast(attributeGlobCalls));
+    if (value.size() != lastGlobCall.getLiteralElementsOfAttribute() + numMatches) {
+      return null;
+    }
+    elements.addAll(value.subList(start, value.size()));
+    return value instanceof GlobList
+        ? new GlobList<>(((GlobList<?>) value).getCriteria(), elements)
+        : elements;
+  }
+
+  /**
+   * Returns a snapshot of the given package from which {@link #restorePackage} can create it
+   * again, also in another workspace, or null if the package can't be created again that way.
+   *
+   * @param imports the extensions loaded by the BUILD file of the package, by import string
+   * @param packageRoot the package path entry the package was loaded from
+   */
+  @Nullable
+  public byte[] snapshotPackage(Package pkg, Map<String, Extension> imports, Root packageRoot) {
+    return PackageSnapshot.write(
+        pkg, imports, ruleClassProvider.getRuleClassMap(), packageRoot);
+  }
+
+  /**
+   * Returns the builder of the package a snapshot was taken of by {@link #snapshotPackage}, without
+   * evaluating its BUILD file, or null if the snapshot doesn't fit the current rule classes or the
+   * given imports. The BUILD file must have the contents and loads it had when the snapshot was
+   * taken.
+   */
+  @Nullable
+  public Package.Builder restorePackage(
+      byte[] snapshot,
+      String workspaceName,
+      PackageIdentifier packageId,
+      Path buildFilePath,
+      Map<String, Extension> imports,
+      ImmutableList<Label> skylarkFileDependencies,
+      Root packageRoot)
+      throws InterruptedException {
+    Package.Builder pkgBuilder = new Package.Builder(packageBuilderHelper.createFreshPackage(
+        packageId, ruleClassProvider.getRunfilesPrefix()));
+    pkgBuilder
+        .setFilename(buildFilePath)
+        .setLazyTargetMaterializationThreshold(lazyTargetMaterializationThreshold)
+        .setSkylarkFileDependencies(skylarkFileDependencies)
+        .setWorkspaceName(workspaceName);
+    return PackageSnapshot.read(
+        snapshot,
+        pkgBuilder,
+        imports,
+        ruleClassProvider.getRuleClassMap(),
+        ruleFactory.getAttributeContainerFactory(),
+        packageRoot);
+  }
+
   // Reports an error and returns false iff package identifier was illegal.
   private static boolean validatePackageIdentifier(
       PackageIdentifier packageId, Location location, ExtendedEventHandler eventHandler) {
@@ -0,0 +1,400 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.packages;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.devtools.build.lib.cmdline.Label;
+import com.google.devtools.build.lib.cmdline.LabelSyntaxException;
+import com.google.devtools.build.lib.events.Location;
+import com.google.devtools.build.lib.events.Location.LineAndColumn;
+import com.google.devtools.build.lib.events.StoredEventHandler;
+import com.google.devtools.build.lib.packages.Attribute.SkylarkComputedDefaultTemplate.CannotPrecomputeDefaultsException;
+import com.google.devtools.build.lib.packages.License.DistributionType;
+import com.google.devtools.build.lib.skyframe.serialization.DeserializationContext;
+import com.google.devtools.build.lib.skyframe.serialization.SerializationContext;
+import com.google.devtools.build.lib.skyframe.serialization.SerializationException;
+import com.google.devtools.build.lib.syntax.Environment.Extension;
+import com.google.devtools.build.lib.syntax.EvalException;
+import com.google.devtools.build.lib.vfs.PathFragment;
+import com.google.devtools.build.lib.vfs.Root;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import javax.annotation.Nullable;
+
+/**
+ * Writes a loaded {@link Package} in a form which can be shared between workspaces, and creates
+ * the package again from it without evaluating the BUILD file.
+ *
+ * <p>A snapshot holds the settings of the package, the explicitly specified attribute values of
+ * its rules and the input files the BUILD file declared. The rules are created again from their
+ * attribute values by {@link RuleClass#createRule}, as if the BUILD file had been evaluated, so
+ * their computed defaults, output files and the input files they refer to don't have to be
+ * stored. A rule of a Starlark rule class refers to its class by the name the class is bound to
+ * in one of the files the BUILD file loads. Locations are stored relative to the package path
+ * entry of the package, so that a snapshot can be used in a workspace in another directory.
+ */
+final class PackageSnapshot {
+
+  /** Changed whenever the format of the snapshots changes. */
+  private static final int FORMAT_VERSION = 1;
+
+  private static final int END_OF_TARGETS = 0;
+  private static final int RULE = 1;
+  private static final int INPUT_FILE = 2;
+
+  private PackageSnapshot() {}
+
+  /**
+   * Returns the snapshot of the given package, or null if the package can't be created again from
+   * one, for instance because it has errors or events, has a package group, or has a rule whose
+   * rule class or attribute values can't be written.
+   *
+   * @param imports the extensions loaded by the BUILD file of the package, by import string
+   * @param nativeRuleClasses the native rule classes, by name
+   * @param packageRoot the package path entry the package was loaded from
+   */
+  @Nullable
+  static byte[] write(
+      Package pkg,
+      Map<String, Extension> imports,
+      Map<String, RuleClass> nativeRuleClasses,
+      Root packageRoot) {
+    if (pkg.containsErrors() || !pkg.getEvents().isEmpty() || !pkg.getPosts().isEmpty()) {
+      return null;
+    }
+    // The import string and binding name of each Starlark rule class the package may use.
+    Map<RuleClass, String[]> skylarkRuleClasses = new IdentityHashMap<>();
+    for (Map.Entry<String, Extension> extension : imports.entrySet()) {
+      for (Map.Entry<String, Object> binding : extension.getValue().getBindings().entrySet()) {
+        if (binding.getValue() instanceof RuleFunction) {
+          skylarkRuleClasses.putIfAbsent(
+              ((RuleFunction) binding.getValue()).getRuleClass(),
+              new String[] {extension.getKey(), binding.getKey()});
+        }
+      }
+    }
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    CodedOutputStream out = CodedOutputStream.newInstance(bytes);
+    SerializationContext context =
+        new SerializationContext(ImmutableMap.of()).getNewMemoizingContext();
+    try {
+      out.writeInt32NoTag(FORMAT_VERSION);
+      writeSettings(pkg, context, out);
+      for (Target target : pkg.iterateTargets()) {
+        if (target instanceof Rule) {
+          out.writeInt32NoTag(RULE);
+          if (!writeRule(
+              (Rule) target, nativeRuleClasses, skylarkRuleClasses, packageRoot, context, out)) {
+            return null;
+          }
+        } else if (target instanceof InputFile) {
+          InputFile inputFile = (InputFile) target;
+          // Input files only referred to by rules are created again by Package.Builder#build.
+          if (inputFile.isVisibilitySpecified()) {
+            out.writeInt32NoTag(INPUT_FILE);
+            out.writeStringNoTag(inputFile.getName());
+            if (!writeLocation(inputFile.getLocation(), packageRoot, out)) {
+              return null;
+            }
+            context.serialize(
+                ImmutableList.copyOf(inputFile.getVisibility().getDeclaredLabels()), out);
+            context.serialize(inputFile.getDeclaredLicense(), out);
+          }
+        } else if (!(target instanceof OutputFile)) {
+          // Package groups and environment groups are rare enough not to be worth sharing.
+          return null;
+        }
+      }
+      out.writeInt32NoTag(END_OF_TARGETS);
+      out.flush();
+    } catch (IOException | SerializationException e) {
+      return null;
+    }
+    return bytes.toByteArray();
+  }
+
+  private static void writeSettings(
+      Package pkg, SerializationContext context, CodedOutputStream out)
+      throws IOException, SerializationException {
+    context.serialize(pkg.getMakeEnvironment(), out);
+    context.serialize(ImmutableList.copyOf(pkg.getDefaultVisibility().getDeclaredLabels()), out);
+    out.writeBoolNoTag(pkg.isDefaultVisibilitySet());
+    out.writeBoolNoTag(pkg.getDefaultTestOnly());
+    context.serialize(pkg.getDefaultDeprecation(), out);
+    context.serialize(pkg.isDefaultHdrsCheckSet() ? pkg.getDefaultHdrsCheck() : null, out);
+    context.serialize(pkg.getDefaultCopts(), out);
+    context.serialize(pkg.getFeatures(), out);
+    context.serialize(pkg.getDefaultLicense(), out);
+    context.serialize(ImmutableSet.copyOf(pkg.getDefaultDistribs()), out);
+    context.serialize(ImmutableSet.copyOf(pkg.getDefaultCompatibleWith()), out);
+    context.serialize(ImmutableSet.copyOf(pkg.getDefaultRestrictedTo()), out);
+    context.serialize(pkg.getRegisteredExecutionPlatforms(), out);
+    context.serialize(pkg.getRegisteredToolchains(), out);
+  }
+
+  private static boolean writeRule(
+      Rule rule,
+      Map<String, RuleClass> nativeRuleClasses,
+      Map<RuleClass, String[]> skylarkRuleClasses,
+      Root packageRoot,
+      SerializationContext context,
+      CodedOutputStream out)
+      throws IOException, SerializationException {
+    RuleClass ruleClass = rule.getRuleClassObject();
+    if (nativeRuleClasses.get(ruleClass.getName()) == ruleClass) {
+      out.writeStringNoTag("");
+      out.writeStringNoTag(ruleClass.getName());
+    } else {
+      String[] binding = skylarkRuleClasses.get(ruleClass);
+      if (binding == null) {
+        // The rule class comes from a file the BUILD file doesn't load itself.
+        return false;
+      }
+      out.writeStringNoTag(binding[0]);
+      out.writeStringNoTag(binding[1]);
+    }
+    out.writeStringNoTag(rule.getName());
+    if (!writeLocation(rule.getLocation(), packageRoot, out)) {
+      return false;
+    }
+
+    AttributeContainer attributes = rule.getAttributeContainer();
+    List<Attribute> explicitAttributes = new ArrayList<>();
+    List<Attribute> attributesWithLocation = new ArrayList<>();
+    for (Attribute attribute : rule.getAttributes()) {
+      // Implicit attributes are only ever set by Package.Builder, which sets them again.
+      if (attributes.isAttributeValueExplicitlySpecified(attribute)
+          && !attribute.isImplicit()
+          && !attribute.isLateBound()) {
+        explicitAttributes.add(attribute);
+      }
+      if (attributes.getAttributeLocation(attribute.getName()) != null) {
+        attributesWithLocation.add(attribute);
+      }
+    }
+    out.writeInt32NoTag(explicitAttributes.size());
+    for (Attribute attribute : explicitAttributes) {
+      out.writeStringNoTag(attribute.getName());
+      context.serialize(attributes.getAttr(attribute.getName()), out);
+    }
+    out.writeInt32NoTag(attributesWithLocation.size());
+    for (Attribute attribute : attributesWithLocation) {
+      out.writeStringNoTag(attribute.getName());
+      if (!writeLocation(
+          attributes.getAttributeLocation(attribute.getName()), packageRoot, out)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** Writes a location within the package root. Returns false if it isn't within it. */
+  private static boolean writeLocation(Location location, Root packageRoot, CodedOutputStream out)
+      throws IOException {
+    PathFragment path = location.getPath();
+    LineAndColumn lineAndColumn = location.getStartLineAndColumn();
+    if (path == null
+        || !path.isAbsolute()
+        || !packageRoot.contains(path)
+        || lineAndColumn == null) {
+      return false;
+    }
+    out.writeStringNoTag(packageRoot.relativize(path).getPathString());
+    out.writeInt32NoTag(location.getStartOffset());
+    out.writeInt32NoTag(location.getEndOffset());
+    out.writeInt32NoTag(lineAndColumn.getLine());
+    out.writeInt32NoTag(lineAndColumn.getColumn());
+    return true;
+  }
+
+  /**
+   * Adds the targets and settings of the given snapshot to the given builder of a new package.
+   * Returns the builder, or null if the snapshot doesn't fit the current rule classes or the
+   * given imports, in which case the builder must be discarded.
+   */
+  @Nullable
+  static Package.Builder read(
+      byte[] snapshot,
+      Package.Builder pkgBuilder,
+      Map<String, Extension> imports,
+      Map<String, RuleClass> nativeRuleClasses,
+      Function<RuleClass, AttributeContainer> attributeContainerFactory,
+      Root packageRoot)
+      throws InterruptedException {
+    CodedInputStream in = CodedInputStream.newInstance(snapshot);
+    DeserializationContext context =
+        new DeserializationContext(ImmutableMap.of()).getNewMemoizingContext();
+    try {
+      if (in.readInt32() != FORMAT_VERSION) {
+        return null;
+      }
+      readSettings(pkgBuilder, context, in);
+      for (int kind = in.readInt32(); kind != END_OF_TARGETS; kind = in.readInt32()) {
+        if (kind == RULE) {
+          if (!readRule(
+              pkgBuilder,
+              imports,
+              nativeRuleClasses,
+              attributeContainerFactory,
+              packageRoot,
+              context,
+              in)) {
+            return null;
+          }
+        } else if (kind == INPUT_FILE) {
+          String name = in.readString();
+          Location location = readLocation(packageRoot, in);
+          List<Label> visibility = context.deserialize(in);
+          License license = context.deserialize(in);
+          InputFile inputFile = pkgBuilder.createInputFile(name, location);
+          pkgBuilder.setVisibilityAndLicense(
+              inputFile,
+              PackageFactory.getVisibility(inputFile.getLabel(), visibility),
+              license);
+        } else {
+          return null;
+        }
+      }
+    } catch (IOException
+        | SerializationException
+        | EvalException
+        | Package.Builder.GeneratedLabelConflict e) {
+      return null;
+    }
+    return pkgBuilder;
+  }
+
+  private static void readSettings(
+      Package.Builder pkgBuilder, DeserializationContext context, CodedInputStream in)
+      throws IOException, SerializationException, EvalException {
+    Map<String, String> makeEnv = context.deserialize(in);
+    for (Map.Entry<String, String> entry : makeEnv.entrySet()) {
+      pkgBuilder.setMakeVariable(entry.getKey(), entry.getValue());
+    }
+    List<Label> defaultVisibility = context.deserialize(in);
+    pkgBuilder
+        .setDefaultVisibility(
+            PackageFactory.getVisibility(pkgBuilder.getBuildFileLabel(), defaultVisibility))
+        .setDefaultVisibilitySet(in.readBool())
+        .setDefaultTestonly(in.readBool());
+    pkgBuilder.setDefaultDeprecation(context.deserialize(in));
+    String defaultHdrsCheck = context.deserialize(in);
+    if (defaultHdrsCheck != null) {
+      pkgBuilder.setDefaultHdrsCheck(defaultHdrsCheck);
+    }
+    List<String> defaultCopts = context.deserialize(in);
+    if (defaultCopts != null) {
+      pkgBuilder.setDefaultCopts(defaultCopts);
+    }
+    pkgBuilder.addFeatures(context.<Iterable<String>>deserialize(in));
+    pkgBuilder.setDefaultLicense(context.deserialize(in));
+    pkgBuilder.setDefaultDistribs(context.<ImmutableSet<DistributionType>>deserialize(in));
+    pkgBuilder.pkg.setDefaultCompatibleWith(context.<ImmutableSet<Label>>deserialize(in));
+    pkgBuilder.pkg.setDefaultRestrictedTo(context.<ImmutableSet<Label>>deserialize(in));
+    pkgBuilder.addRegisteredExecutionPlatforms(context.deserialize(in));
+    pkgBuilder.addRegisteredToolchains(context.deserialize(in));
+  }
+
+  private static boolean readRule(
+      Package.Builder pkgBuilder,
+      Map<String, Extension> imports,
+      Map<String, RuleClass> nativeRuleClasses,
+      Function<RuleClass, AttributeContainer> attributeContainerFactory,
+      Root packageRoot,
+      DeserializationContext context,
+      CodedInputStream in)
+      throws IOException, SerializationException, InterruptedException {
+    String importString = in.readString();
+    String ruleClassName = in.readString();
+    RuleClass ruleClass;
+    if (importString.isEmpty()) {
+      ruleClass = nativeRuleClasses.get(ruleClassName);
+    } else {
+      Extension extension = imports.get(importString);
+      Object ruleFunction = extension != null ? extension.getBindings().get(ruleClassName) : null;
+      ruleClass =
+          ruleFunction instanceof RuleFunction ? ((RuleFunction) ruleFunction).getRuleClass() : null;
+    }
+    if (ruleClass == null) {
+      return false;
+    }
+    String name = in.readString();
+    Location location = readLocation(packageRoot, in);
+    Map<String, Object> attributeValues = new LinkedHashMap<>();
+    for (int i = in.readInt32(); i > 0; i--) {
+      String attributeName = in.readString();
+      attributeValues.put(attributeName, context.deserialize(in));
+    }
+    Map<String, Location> attributeLocations = new LinkedHashMap<>();
+    for (int i = in.readInt32(); i > 0; i--) {
+      String attributeName = in.readString();
+      attributeLocations.put(attributeName, readLocation(packageRoot, in));
+    }
+
+    StoredEventHandler eventHandler = new StoredEventHandler();
+    Rule rule;
+    try {
+      rule =
+          ruleClass.createRule(
+              pkgBuilder,
+              pkgBuilder.createLabel(name),
+              new RuleFactory.NativeTypedAttributeValuesMap(attributeValues),
+              eventHandler,
+              /*ast=*/ null,
+              location,
+              attributeContainerFactory.apply(ruleClass));
+    } catch (LabelSyntaxException | CannotPrecomputeDefaultsException e) {
+      return false;
+    }
+    // The rule had no errors or events when the snapshot was written.
+    if (rule.containsErrors() || !eventHandler.isEmpty()) {
+      return false;
+    }
+    for (Map.Entry<String, Location> entry : attributeLocations.entrySet()) {
+      Attribute attribute = ruleClass.getAttributeByNameMaybe(entry.getKey());
+      if (attribute == null) {
+        return false;
+      }
+      rule.getAttributeContainer().setAttributeLocation(attribute, entry.getValue());
+    }
+    try {
+      pkgBuilder.addRule(rule);
+    } catch (Package.NameConflictException e) {
+      return false;
+    }
+    return true;
+  }
+
+  private static Location readLocation(Root packageRoot, CodedInputStream in)
+      throws IOException {
+    PathFragment path = packageRoot.getRelative(in.readString()).asFragment();
+    int startOffset = in.readInt32();
+    int endOffset = in.readInt32();
+    int line = in.readInt32();
+    int column = in.readInt32();
+    return Location.fromPathAndStartColumn(
+        path, startOffset, endOffset, new LineAndColumn(line, column));
+  }
+}
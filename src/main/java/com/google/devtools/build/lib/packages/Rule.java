@@ -485,6 +485,14 @@ public final class Rule implements Target, DependencyFilter.AttributeInfoProvide
     }
   }
 
+  /** Sets the output files of a rule materialized by {@link LazyRules}. */
+  void setOutputFiles(
+      List<OutputFile> outputFiles, ListMultimap<String, OutputFile> outputFileMap) {
+    Preconditions.checkState(this.outputFiles == null);
+    this.outputFiles = outputFiles;
+    this.outputFileMap = outputFileMap;
+  }
+
   void populateOutputFilesInternal(
       EventHandler eventHandler, Package.Builder pkgBuilder, boolean performChecks)
       throws LabelSyntaxException, InterruptedException {
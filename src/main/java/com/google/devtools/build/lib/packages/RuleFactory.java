@@ -184,6 +184,7 @@ public class RuleFactory {
             env,
             attributeContainer);
     pkgBuilder.addRule(rule);
+    pkgBuilder.getGlobResultUsageRecorder().recordRule(ast, rule);
     return rule;
   }
 
@@ -310,6 +311,41 @@ public class RuleFactory {
     }
   }
 
+  /** A {@link AttributeValues} of explicit "native" values. */
+  static final class NativeTypedAttributeValuesMap
+      implements AttributeValues<Map.Entry<String, Object>> {
+    private final Map<String, Object> attributeValues;
+
+    NativeTypedAttributeValuesMap(Map<String, Object> attributeValues) {
+      this.attributeValues = attributeValues;
+    }
+
+    @Override
+    public boolean valuesAreBuildLanguageTyped() {
+      return false;
+    }
+
+    @Override
+    public Iterable<Map.Entry<String, Object>> getAttributeAccessors() {
+      return attributeValues.entrySet();
+    }
+
+    @Override
+    public String getName(Map.Entry<String, Object> attributeAccessor) {
+      return attributeAccessor.getKey();
+    }
+
+    @Override
+    public Object getValue(Map.Entry<String, Object> attributeAccessor) {
+      return attributeAccessor.getValue();
+    }
+
+    @Override
+    public boolean isExplicitlySpecified(Map.Entry<String, Object> attributeAccessor) {
+      return true;
+    }
+  }
+
   /**
    * If the rule was created by a macro, this method sets the appropriate values for the
    * attributes generator_{name, function, location} and returns all attributes.
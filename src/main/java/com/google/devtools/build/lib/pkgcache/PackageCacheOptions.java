@@ -144,6 +144,18 @@ public class PackageCacheOptions extends OptionsBase {
   )
   public int maxDirectoriesToEagerlyVisitInGlobbing;
 
+  @Option(
+    name = "experimental_lazy_target_materialization_threshold",
+    defaultValue = "-1",
+    documentationCategory = OptionDocumentationCategory.UNDOCUMENTED,
+    effectTags = {OptionEffectTag.UNKNOWN},
+    help =
+        "If non-negative, packages with more than this many targets keep their rules in a compact "
+            + "form and only create the rule objects when they are looked up, which saves memory "
+            + "when only a few of the targets of a large package are used."
+  )
+  public int lazyTargetMaterializationThreshold;
+
   @Option(
     name = "fetch",
     defaultValue = "true",
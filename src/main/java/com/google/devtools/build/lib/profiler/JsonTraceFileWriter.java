@@ -0,0 +1,293 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.profiler;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.ref.WeakReference;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Writes profiled tasks in the Chrome trace event JSON format, which can be loaded directly into
+ * chrome://tracing.
+ *
+ * <p>Recording a task must be cheap enough to keep profiling enabled for every build. Each thread
+ * therefore records its completed tasks into its own single-producer, single-consumer ring buffer
+ * of primitive arrays, without taking locks or allocating per-task objects. A background thread
+ * periodically drains all ring buffers and appends the events to the output stream. If a thread
+ * fills its ring buffer faster than it is drained, it wakes up the writer thread and waits for it
+ * to make room. The ring buffer of a thread is released once the thread ended and its tasks were
+ * written, since thread pools come and go during a build.
+ *
+ * <pre>
+ * {"otherData":{"comment":...},"traceEvents":[
+ *   {"name":"thread_name","ph":"M","pid":1,"tid":...,"args":{"name":...}},
+ *   {"cat":...,"name":...,"ph":"X","ts":...,"dur":...,"pid":1,"tid":...},
+ *   ...
+ * ]}
+ * </pre>
+ *
+ * <p>Timestamps and durations are in microseconds relative to the start of the profile.
+ */
+@ThreadSafe
+final class JsonTraceFileWriter implements Runnable {
+  // Number of tasks each thread can record before the writer thread needs to catch up. Must be a
+  // power of two.
+  private static final int RING_BUFFER_SIZE = 1 << 12;
+  private static final int RING_BUFFER_MASK = RING_BUFFER_SIZE - 1;
+
+  // The writer thread drains the ring buffers at least this often.
+  private static final long FLUSH_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(500);
+
+  /** Per-thread ring buffer of completed tasks. */
+  private static final class RingBuffer {
+    // Not a strong reference, so that the ring buffer doesn't keep the thread alive.
+    final WeakReference<Thread> thread;
+    final long threadId;
+    final String threadName;
+    final long[] startTimes = new long[RING_BUFFER_SIZE];
+    final long[] durations = new long[RING_BUFFER_SIZE];
+    final ProfilerTask[] types = new ProfilerTask[RING_BUFFER_SIZE];
+    final String[] descriptions = new String[RING_BUFFER_SIZE];
+
+    // Index of the next slot to write. Only advanced by the owning thread.
+    final AtomicLong head = new AtomicLong();
+    // Index of the next slot to read. Only advanced by the writer thread.
+    final AtomicLong tail = new AtomicLong();
+    // Whether the thread name metadata was written for this buffer. Only used by the writer.
+    boolean described;
+
+    RingBuffer(Thread thread) {
+      this.thread = new WeakReference<>(thread);
+      this.threadId = thread.getId();
+      this.threadName = thread.getName();
+    }
+  }
+
+  private final Writer out;
+  private final String comment;
+  private final long profileStartTimeNanos;
+  private final Thread writerThread;
+  private final Queue<RingBuffer> ringBuffers = new ConcurrentLinkedQueue<>();
+  private final ThreadLocal<RingBuffer> threadRingBuffer =
+      new ThreadLocal<RingBuffer>() {
+        @Override
+        protected RingBuffer initialValue() {
+          RingBuffer buffer = new RingBuffer(Thread.currentThread());
+          ringBuffers.add(buffer);
+          return buffer;
+        }
+      };
+
+  private volatile boolean stopped = false;
+  private boolean firstEvent = true;
+  private IOException saveException;
+
+  JsonTraceFileWriter(OutputStream stream, String comment, long profileStartTimeNanos) {
+    this.out = new BufferedWriter(new OutputStreamWriter(stream, UTF_8), 262144);
+    this.comment = comment;
+    this.profileStartTimeNanos = profileStartTimeNanos;
+    this.writerThread = new Thread(this, "profile-json-writer");
+    this.writerThread.setDaemon(true);
+  }
+
+  void start() {
+    writerThread.start();
+  }
+
+  /**
+   * Records a completed task on behalf of the current thread. Never blocks unless the ring buffer
+   * of the current thread is full.
+   */
+  void enqueue(long startTimeNanos, long durationNanos, ProfilerTask type, String description) {
+    RingBuffer buffer = threadRingBuffer.get();
+    long head = buffer.head.get();
+    while (head - buffer.tail.get() >= RING_BUFFER_SIZE) {
+      if (stopped) {
+        // The profile is being finished; tasks recorded from now on are not written.
+        return;
+      }
+      LockSupport.unpark(writerThread);
+      LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(100));
+    }
+    int index = (int) (head & RING_BUFFER_MASK);
+    buffer.startTimes[index] = startTimeNanos;
+    buffer.durations[index] = durationNanos;
+    buffer.types[index] = type;
+    buffer.descriptions[index] = description;
+    // Publishes the slot to the writer thread.
+    buffer.head.lazySet(head + 1);
+    if (head - buffer.tail.get() == RING_BUFFER_SIZE / 2) {
+      LockSupport.unpark(writerThread);
+    }
+  }
+
+  /**
+   * Stops the writer thread after it wrote all tasks recorded so far, and completes the profile.
+   *
+   * @throws IOException if writing the profile failed
+   */
+  void close() throws IOException {
+    stopped = true;
+    LockSupport.unpark(writerThread);
+    try {
+      writerThread.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while writing the profile", e);
+    }
+    if (saveException != null) {
+      throw saveException;
+    }
+  }
+
+  @Override
+  public void run() {
+    try {
+      out.write("{\"otherData\":{\"comment\":");
+      writeString(comment);
+      out.write("},\"traceEvents\":[\n");
+      while (!stopped) {
+        LockSupport.parkNanos(FLUSH_INTERVAL_NANOS);
+        drain();
+      }
+      drain();
+      out.write("\n]}\n");
+      out.close();
+    } catch (IOException e) {
+      saveException = e;
+      try {
+        out.close();
+      } catch (IOException e2) {
+        // ignore it
+      }
+    }
+  }
+
+  private void drain() throws IOException {
+    for (Iterator<RingBuffer> it = ringBuffers.iterator(); it.hasNext(); ) {
+      RingBuffer buffer = it.next();
+      // Checked before reading the head: once a thread ended, all its tasks are visible here.
+      Thread thread = buffer.thread.get();
+      if (thread == null || !thread.isAlive()) {
+        it.remove();
+      }
+      long tail = buffer.tail.get();
+      long head = buffer.head.get();
+      if (tail == head) {
+        continue;
+      }
+      if (!buffer.described) {
+        writeThreadName(buffer);
+        buffer.described = true;
+      }
+      for (; tail < head; tail++) {
+        int index = (int) (tail & RING_BUFFER_MASK);
+        writeEvent(
+            buffer.threadId,
+            buffer.startTimes[index],
+            buffer.durations[index],
+            buffer.types[index],
+            buffer.descriptions[index]);
+        // Drop the reference so that the description can be garbage collected.
+        buffer.descriptions[index] = null;
+      }
+      // Hands the drained slots back to the owning thread.
+      buffer.tail.lazySet(head);
+    }
+    out.flush();
+  }
+
+  @VisibleForTesting
+  int getRingBufferCount() {
+    return ringBuffers.size();
+  }
+
+  private void startEvent() throws IOException {
+    if (firstEvent) {
+      firstEvent = false;
+    } else {
+      out.write(",\n");
+    }
+  }
+
+  private void writeThreadName(RingBuffer buffer) throws IOException {
+    startEvent();
+    out.write("{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":1,\"tid\":");
+    out.write(Long.toString(buffer.threadId));
+    out.write(",\"args\":{\"name\":");
+    writeString(buffer.threadName);
+    out.write("}}");
+  }
+
+  private void writeEvent(
+      long threadId, long startTimeNanos, long durationNanos, ProfilerTask type, String description)
+      throws IOException {
+    startEvent();
+    out.write("{\"cat\":");
+    writeString(type.description);
+    out.write(",\"name\":");
+    writeString(description);
+    out.write(",\"ph\":\"X\",\"ts\":");
+    out.write(Long.toString(TimeUnit.NANOSECONDS.toMicros(startTimeNanos - profileStartTimeNanos)));
+    out.write(",\"dur\":");
+    out.write(Long.toString(TimeUnit.NANOSECONDS.toMicros(durationNanos)));
+    out.write(",\"pid\":1,\"tid\":");
+    out.write(Long.toString(threadId));
+    out.write('}');
+  }
+
+  private void writeString(String s) throws IOException {
+    out.write('"');
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      switch (c) {
+        case '"':
+          out.write("\\\"");
+          break;
+        case '\\':
+          out.write("\\\\");
+          break;
+        case '\n':
+          out.write("\\n");
+          break;
+        case '\r':
+          out.write("\\r");
+          break;
+        case '\t':
+          out.write("\\t");
+          break;
+        default:
+          if (c < 0x20) {
+            out.write(String.format("\\u%04x", (int) c));
+          } else {
+            out.write(c);
+          }
+      }
+    }
+    out.write('"');
+  }
+}
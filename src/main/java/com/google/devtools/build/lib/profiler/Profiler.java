@@ -67,6 +67,11 @@ import java.util.zip.DeflaterOutputStream;
  * format is described here it is considered internal and can change at any time. For scripting,
  * using blaze analyze-profile --dump=raw would be more robust and stable solution.
  *
+ * <p>Alternatively, with {@link Format#JSON_TRACE_FILE_FORMAT}, the profile is written in the
+ * Chrome trace event JSON format instead (see {@link JsonTraceFileWriter}). In that mode completed
+ * tasks bypass the task queue and are recorded into per-thread ring buffers, which keeps the
+ * overhead low enough to leave profiling enabled for every build.
+ *
  * <p>
  *
  * <pre>
@@ -382,6 +387,14 @@ public final class Profiler {
     }
   }
 
+  /** File format of the profile written by the profiler. */
+  public enum Format {
+    /** The deflated binary format described above, read by {@code analyze-profile}. */
+    BINARY_BAZEL_FORMAT,
+    /** The Chrome trace event JSON format, viewable in chrome://tracing. */
+    JSON_TRACE_FILE_FORMAT
+  }
+
   /**
    * Which {@link ProfilerTask}s are profiled.
    */
@@ -437,6 +450,7 @@ public final class Profiler {
   private TaskStack taskStack;
   private Queue<TaskData> taskQueue;
   private DataOutputStream out;
+  private JsonTraceFileWriter writer;
   private Timer timer;
   private IOException saveException;
   private ObjectDescriber describer;
@@ -507,9 +521,33 @@ public final class Profiler {
    * @param clock a {@code BlazeClock.instance()}
    * @param execStartTimeNanos execution start time in nanos obtained from {@code clock.nanoTime()}
    */
-  public synchronized void start(ProfiledTaskKinds profiledTaskKinds, OutputStream stream,
+  public void start(ProfiledTaskKinds profiledTaskKinds, OutputStream stream,
       String comment, boolean recordAllDurations, Clock clock, long execStartTimeNanos)
       throws IOException {
+    start(
+        profiledTaskKinds,
+        stream,
+        Format.BINARY_BAZEL_FORMAT,
+        comment,
+        recordAllDurations,
+        clock,
+        execStartTimeNanos);
+  }
+
+  /**
+   * Enable profiling, writing the profile in the given format.
+   *
+   * @see #start(ProfiledTaskKinds, OutputStream, String, boolean, Clock, long)
+   */
+  public synchronized void start(
+      ProfiledTaskKinds profiledTaskKinds,
+      OutputStream stream,
+      Format format,
+      String comment,
+      boolean recordAllDurations,
+      Clock clock,
+      long execStartTimeNanos)
+      throws IOException {
     Preconditions.checkState(!isActive(), "Profiler already active");
     taskStack = new TaskStack();
     taskQueue = new ConcurrentLinkedQueue<>();
@@ -527,7 +565,12 @@ public final class Profiler {
     taskId.set(0);
     this.recordAllDurations = recordAllDurations;
     this.saveException = null;
-    if (stream != null) {
+    this.out = null;
+    this.writer = null;
+    if (stream != null && format == Format.JSON_TRACE_FILE_FORMAT) {
+      this.writer = new JsonTraceFileWriter(stream, comment, execStartTimeNanos);
+      this.writer.start();
+    } else if (stream != null) {
       this.timer = new Timer("ProfilerTimer", true);
       // Wrapping deflater stream in the buffered stream proved to reduce CPU consumption caused by
       // the save() method. Values for buffer sizes were chosen by running small amount of tests
@@ -550,8 +593,6 @@ public final class Profiler {
       timer.schedule(new TimerTask() {
         @Override public void run() { save(); }
       }, SAVE_DELAY, SAVE_DELAY);
-    } else {
-      this.out = null;
     }
 
     // activate profiler
@@ -601,6 +642,11 @@ public final class Profiler {
       out.close();
       out = null;
     }
+    if (writer != null) {
+      JsonTraceFileWriter localWriter = writer;
+      writer = null;
+      localWriter.close();
+    }
   }
 
   /**
@@ -730,14 +776,22 @@ public final class Profiler {
       parent.aggregateChild(type, duration);
     }
     if (wasTaskSlowEnoughToRecord(type, duration)) {
+      JsonTraceFileWriter localWriter = writer;
+      if (localWriter != null) {
+        localWriter.enqueue(startTime, duration, type, description);
+      }
+
+      SlowestTaskAggregator aggregator = slowestTasks[type.ordinal()];
+      if (out == null && aggregator == null) {
+        // Nobody needs a TaskData instance for this task.
+        return;
+      }
       TaskData data = localStack.create(startTime, type, description);
       data.duration = duration;
       if (out != null) {
         localQueue.add(data);
       }
 
-      SlowestTaskAggregator aggregator = slowestTasks[type.ordinal()];
-
       if (aggregator != null) {
         aggregator.add(data);
       }
@@ -851,6 +905,10 @@ public final class Profiler {
       if (out != null && (shouldRecordTask || data.counts != null)) {
         taskQueue.add(data);
       }
+      JsonTraceFileWriter localWriter = writer;
+      if (localWriter != null && shouldRecordTask) {
+        localWriter.enqueue(data.startTime, data.duration, type, data.description);
+      }
 
       if (shouldRecordTask) {
         SlowestTaskAggregator aggregator = slowestTasks[type.ordinal()];
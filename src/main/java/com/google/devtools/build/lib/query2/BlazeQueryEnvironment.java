@@ -15,10 +15,20 @@ package com.google.devtools.build.lib.query2;
 
 import static com.google.common.collect.ImmutableSet.toImmutableSet;
 
+import com.google.common.base.Function;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Predicate;
+import com.google.common.collect.HashMultimap;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Multimaps;
+import com.google.common.collect.SetMultimap;
+import com.google.common.util.concurrent.AsyncCallable;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
 import com.google.devtools.build.lib.cmdline.Label;
 import com.google.devtools.build.lib.cmdline.PackageIdentifier;
 import com.google.devtools.build.lib.cmdline.ResolvedTargets;
@@ -27,8 +37,11 @@ import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
 import com.google.devtools.build.lib.events.ExtendedEventHandler;
 import com.google.devtools.build.lib.graph.Digraph;
 import com.google.devtools.build.lib.graph.Node;
+import com.google.devtools.build.lib.packages.AspectDefinition;
 import com.google.devtools.build.lib.packages.Attribute;
 import com.google.devtools.build.lib.packages.CachingPackageLocator;
+import com.google.devtools.build.lib.packages.DependencyFilter;
+import com.google.devtools.build.lib.packages.NoSuchTargetException;
 import com.google.devtools.build.lib.packages.NoSuchThingException;
 import com.google.devtools.build.lib.packages.OutputFile;
 import com.google.devtools.build.lib.packages.Package;
@@ -40,10 +53,12 @@ import com.google.devtools.build.lib.pkgcache.TargetProvider;
 import com.google.devtools.build.lib.pkgcache.TransitivePackageLoader;
 import com.google.devtools.build.lib.query2.engine.Callback;
 import com.google.devtools.build.lib.query2.engine.DigraphQueryEvalResult;
+import com.google.devtools.build.lib.query2.engine.IndexedRdepsQueryEnvironment;
 import com.google.devtools.build.lib.query2.engine.MinDepthUniquifier;
 import com.google.devtools.build.lib.query2.engine.QueryEvalResult;
 import com.google.devtools.build.lib.query2.engine.QueryException;
 import com.google.devtools.build.lib.query2.engine.QueryExpression;
+import com.google.devtools.build.lib.query2.engine.QueryUtil;
 import com.google.devtools.build.lib.query2.engine.QueryUtil.MinDepthUniquifierImpl;
 import com.google.devtools.build.lib.query2.engine.QueryUtil.MutableKeyExtractorBackedMapImpl;
 import com.google.devtools.build.lib.query2.engine.QueryUtil.ThreadSafeMutableKeyExtractorBackedSetImpl;
@@ -51,12 +66,15 @@ import com.google.devtools.build.lib.query2.engine.QueryUtil.UniquifierImpl;
 import com.google.devtools.build.lib.query2.engine.SkyframeRestartQueryException;
 import com.google.devtools.build.lib.query2.engine.ThreadSafeOutputFormatterCallback;
 import com.google.devtools.build.lib.query2.engine.Uniquifier;
+import com.google.devtools.build.lib.query2.engine.VariableContext;
 import com.google.devtools.build.lib.skyframe.SkyframeLabelVisitor;
 import com.google.devtools.build.lib.vfs.Path;
 import com.google.devtools.build.lib.vfs.PathFragment;
 import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -64,13 +82,30 @@ import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Supplier;
+import javax.annotation.Nullable;
 
 /**
  * The environment of a Blaze query. Not thread-safe.
+ *
+ * <p>With {@link Setting#PARALLEL_EVALUATION}, a single call to {@link #evaluateQuery} evaluates
+ * independent subexpressions concurrently on a fork-join pool. Concurrent calls to {@link
+ * #buildTransitiveClosure} each use their own {@link LabelVisitor}; the Skyframe evaluations they
+ * need to load packages are still run one at a time, each using {@code loadingPhaseThreads}.
  */
-public class BlazeQueryEnvironment extends AbstractBlazeQueryEnvironment<Target> {
+public class BlazeQueryEnvironment extends AbstractBlazeQueryEnvironment<Target>
+    implements IndexedRdepsQueryEnvironment<Target> {
   private static final int MAX_DEPTH_FULL_SCAN_LIMIT = 20;
-  private final Map<String, Set<Target>> resolvedTargetPatterns = new HashMap<>();
+  private static final int PARALLELISM = Runtime.getRuntime().availableProcessors();
+  // Sets of targets smaller than this are not worth splitting across threads when computing their
+  // direct dependencies.
+  private static final int MIN_PARALLEL_NEIGHBORS_SIZE = 1000;
+  private final Map<String, Set<Target>> resolvedTargetPatterns = new ConcurrentHashMap<>();
   private final TargetPatternEvaluator targetPatternEvaluator;
   private final TransitivePackageLoader transitivePackageLoader;
   private final TargetProvider targetProvider;
@@ -78,10 +113,20 @@ public class BlazeQueryEnvironment extends AbstractBlazeQueryEnvironment<Target>
   private final Digraph<Target> graph = new Digraph<>();
   private final ErrorPrintingTargetEdgeErrorObserver errorObserver;
   private final LabelVisitor labelVisitor;
+  // The targets whose transitive closure was built by a completed call to buildTransitiveClosure().
+  // Only used with Setting.PARALLEL_EVALUATION, in which case labelVisitor is not used.
+  private final Set<Label> builtLabels = ConcurrentHashMap.newKeySet();
   protected final int loadingPhaseThreads;
 
   private final BlazeTargetAccessor accessor = new BlazeTargetAccessor(this);
 
+  @Nullable private ReverseDependencyIndex reverseDependencyIndex;
+  @Nullable private Supplier<Iterable<Package>> loadedPackages;
+
+  // Only set during evaluateQuery() with Setting.PARALLEL_EVALUATION.
+  @Nullable private volatile ForkJoinPool forkJoinPool;
+  @Nullable private volatile ListeningExecutorService executor;
+
   /**
    * Note that the correct operation of this class critically depends on the Reporter being a
    * singleton object, shared by all cooperating classes contributing to Query.
@@ -118,7 +163,30 @@ public class BlazeQueryEnvironment extends AbstractBlazeQueryEnvironment<Target>
 
   @Override
   public void close() {
-    // BlazeQueryEnvironment has no resources that need to be cleaned up.
+    // The fork-join pool only lives during evaluateQuery(), so there is nothing to clean up here.
+  }
+
+  /**
+   * Makes rdeps() consult the given index instead of computing the transitive closure of its
+   * universe with the {@link LabelVisitor}, and enables rbuildfiles(), which answers from the
+   * index. The index must be enabled, and kept up to date by the package loading of {@code
+   * loadedPackages}, which returns the packages currently loaded in Skyframe.
+   */
+  public void setReverseDependencyIndex(
+      ReverseDependencyIndex reverseDependencyIndex, Supplier<Iterable<Package>> loadedPackages) {
+    this.reverseDependencyIndex = reverseDependencyIndex;
+    this.loadedPackages = loadedPackages;
+  }
+
+  @Override
+  public Iterable<QueryFunction> getFunctions() {
+    if (reverseDependencyIndex == null) {
+      return super.getFunctions();
+    }
+    return ImmutableList.<QueryFunction>builder()
+        .addAll(super.getFunctions())
+        .add(new RBuildFilesFunction())
+        .build();
   }
 
   @Override
@@ -127,11 +195,90 @@ public class BlazeQueryEnvironment extends AbstractBlazeQueryEnvironment<Target>
       ThreadSafeOutputFormatterCallback<Target> callback)
           throws QueryException, InterruptedException, IOException {
     resolvedTargetPatterns.clear();
-    QueryEvalResult queryEvalResult = super.evaluateQuery(expr, callback);
+    if (isSettingEnabled(Setting.PARALLEL_EVALUATION)) {
+      forkJoinPool = new ForkJoinPool(PARALLELISM);
+      executor = MoreExecutors.listeningDecorator(forkJoinPool);
+    }
+    QueryEvalResult queryEvalResult;
+    try {
+      queryEvalResult = super.evaluateQuery(expr, callback);
+    } finally {
+      if (executor != null) {
+        executor.shutdownNow();
+        executor = null;
+        forkJoinPool = null;
+      }
+    }
     return new DigraphQueryEvalResult<>(
         queryEvalResult.getSuccess(), queryEvalResult.isEmpty(), graph);
   }
 
+  private <R> ListenableFuture<R> safeSubmit(
+      ListeningExecutorService executor, Callable<R> callable) {
+    try {
+      return executor.submit(callable);
+    } catch (RejectedExecutionException e) {
+      return Futures.immediateCancelledFuture();
+    }
+  }
+
+  private <R> ListenableFuture<R> safeSubmitAsync(
+      ListeningExecutorService executor, AsyncCallable<R> callable) {
+    try {
+      return Futures.submitAsync(callable, executor);
+    } catch (RejectedExecutionException e) {
+      return Futures.immediateCancelledFuture();
+    }
+  }
+
+  @ThreadSafe
+  @Override
+  public QueryTaskFuture<Void> eval(
+      QueryExpression expr, VariableContext<Target> context, Callback<Target> callback) {
+    ListeningExecutorService executor = this.executor;
+    if (executor == null) {
+      return super.eval(expr, context, callback);
+    }
+    AsyncCallable<Void> task =
+        () ->
+            (QueryTaskFutureImpl<Void>) BlazeQueryEnvironment.super.eval(expr, context, callback);
+    return QueryTaskFutureImpl.ofDelegate(safeSubmitAsync(executor, task));
+  }
+
+  @Override
+  public <R> QueryTaskFuture<R> executeAsync(QueryTaskCallable<R> callable) {
+    ListeningExecutorService executor = this.executor;
+    if (executor == null) {
+      return super.executeAsync(callable);
+    }
+    return QueryTaskFutureImpl.ofDelegate(safeSubmit(executor, callable));
+  }
+
+  @Override
+  public <T1, T2> QueryTaskFuture<T2> transformAsync(
+      QueryTaskFuture<T1> future, Function<T1, QueryTaskFuture<T2>> function) {
+    ListeningExecutorService executor = this.executor;
+    if (executor == null) {
+      return super.transformAsync(future, function);
+    }
+    return QueryTaskFutureImpl.ofDelegate(
+        Futures.transformAsync(
+            (QueryTaskFutureImpl<T1>) future,
+            input -> (QueryTaskFutureImpl<T2>) function.apply(input),
+            executor));
+  }
+
+  @Override
+  public <R> QueryTaskFuture<R> whenAllSucceedCall(
+      Iterable<? extends QueryTaskFuture<?>> futures, QueryTaskCallable<R> callable) {
+    ListeningExecutorService executor = this.executor;
+    if (executor == null) {
+      return super.whenAllSucceedCall(futures, callable);
+    }
+    return QueryTaskFutureImpl.ofDelegate(
+        Futures.whenAllSucceed(cast(futures)).call(callable, executor));
+  }
+
   @Override
   public Collection<Target> getSiblingTargetsInPackage(Target target) {
     Collection<Target> siblings = target.getPackage().getTargets().values();
@@ -241,22 +388,288 @@ public class BlazeQueryEnvironment extends AbstractBlazeQueryEnvironment<Target>
 
   @Override
   public Collection<Target> getFwdDeps(Iterable<Target> targets) {
-    ThreadSafeMutableSet<Target> result = createThreadSafeMutableSet();
-    for (Target target : targets) {
-      result.addAll(getTargetsFromNodes(getNode(target).getSuccessors()));
-    }
-    return result;
+    return getNeighbors(targets, Node::getSuccessors);
   }
 
   @Override
   public Collection<Target> getReverseDeps(Iterable<Target> targets) {
+    return getNeighbors(targets, Node::getPredecessors);
+  }
+
+  private Collection<Target> getNeighbors(
+      Iterable<Target> targets, Function<Node<Target>, Collection<Node<Target>>> neighbors) {
     ThreadSafeMutableSet<Target> result = createThreadSafeMutableSet();
+    ForkJoinPool pool = forkJoinPool;
+    if (pool != null
+        && targets instanceof Collection
+        && ((Collection<Target>) targets).size() >= MIN_PARALLEL_NEIGHBORS_SIZE) {
+      Collection<Target> targetCollection = (Collection<Target>) targets;
+      // The nodes of the graph and the result set are thread-safe, and invoke() runs the stream on
+      // the pool even when called from outside of it.
+      pool.invoke(
+          ForkJoinTask.adapt(
+              () ->
+                  targetCollection
+                      .parallelStream()
+                      .forEach(
+                          target ->
+                              result.addAll(
+                                  getTargetsFromNodes(neighbors.apply(getNode(target)))))));
+      return result;
+    }
     for (Target target : targets) {
-      result.addAll(getTargetsFromNodes(getNode(target).getPredecessors()));
+      result.addAll(getTargetsFromNodes(neighbors.apply(getNode(target))));
     }
     return result;
   }
 
+  @Nullable
+  @Override
+  public QueryTaskFuture<Void> getRdepsFromIndex(
+      QueryExpression caller,
+      QueryExpression expression,
+      int depth,
+      QueryExpression universe,
+      VariableContext<Target> context,
+      Callback<Target> callback) {
+    if (reverseDependencyIndex == null
+        || transitivePackageLoader == null
+        || dependencyFilter != DependencyFilter.ALL_DEPS) {
+      // The index records all edges and cannot tell which attribute contributed them.
+      return null;
+    }
+    QueryTaskFuture<ThreadSafeMutableSet<Target>> universeFuture =
+        QueryUtil.evalAll(this, context, universe);
+    QueryTaskFuture<ThreadSafeMutableSet<Target>> argumentFuture =
+        QueryUtil.evalAll(this, context, expression);
+    return whenAllSucceedCall(
+        ImmutableList.of(universeFuture, argumentFuture),
+        () -> {
+          callback.process(
+              getRdepsFromIndex(
+                  caller,
+                  universeFuture.getIfSuccessful(),
+                  argumentFuture.getIfSuccessful(),
+                  depth));
+          return null;
+        });
+  }
+
+  /**
+   * Computes rdeps from the reverse dependencies recorded in the index, only visiting the targets
+   * which depend on the arguments.
+   *
+   * <p>The packages of the closure of the universe are loaded first, which brings their entries in
+   * the index up to date when they are reloaded. Every path from the universe to an argument only
+   * goes through targets which depend on the arguments, so the dependents of the arguments found
+   * through the index are then restricted to those reachable from the universe among them.
+   */
+  private ImmutableList<Target> getRdepsFromIndex(
+      QueryExpression caller, Set<Target> universe, Set<Target> arguments, int depth)
+      throws QueryException, InterruptedException {
+    Set<Label> universeLabels = universe.stream().map(Target::getLabel).collect(toImmutableSet());
+    if (!((SkyframeLabelVisitor) transitivePackageLoader)
+        .sync(eventHandler, universeLabels, keepGoing, loadingPhaseThreads, false)) {
+      reportBuildFileError(caller, "errors were encountered while computing transitive closure");
+    }
+    ensureReverseDependencyIndexIsComplete();
+
+    // The targets which transitively depend on the arguments, and the edges between them, from
+    // each dependency to its reverse dependencies.
+    Map<Label, Target> dependents = new HashMap<>();
+    SetMultimap<Label, Label> reverseEdges = HashMultimap.create();
+    Deque<Label> toVisit = new ArrayDeque<>();
+    for (Target target : arguments) {
+      if (dependents.putIfAbsent(target.getLabel(), target) == null) {
+        toVisit.add(target.getLabel());
+      }
+    }
+    while (!toVisit.isEmpty()) {
+      if (Thread.interrupted()) {
+        throw new InterruptedException();
+      }
+      Label label = toVisit.poll();
+      for (Label rdep : reverseDependencyIndex.getReverseDeps(label)) {
+        ReverseDependencyIndex.PackageEntry entry =
+            reverseDependencyIndex.getEntry(rdep.getPackageIdentifier());
+        // Only packages whose entry is up to date still have the edge.
+        if (entry != null && entry.getDeps(rdep).contains(label)) {
+          visitDependent(rdep, label, dependents, reverseEdges, toVisit);
+        }
+      }
+      for (Label rdep : reverseDependencyIndex.getAspectReverseDepCandidates(label)) {
+        if (dependsThroughAspects(rdep, label, dependents)) {
+          visitDependent(rdep, label, dependents, reverseEdges, toVisit);
+        }
+      }
+    }
+
+    SetMultimap<Label, Label> edges =
+        Multimaps.invertFrom(reverseEdges, HashMultimap.<Label, Label>create());
+    Set<Label> inUniverse = new HashSet<>();
+    for (Label label : universeLabels) {
+      if (dependents.containsKey(label) && inUniverse.add(label)) {
+        toVisit.add(label);
+      }
+    }
+    while (!toVisit.isEmpty()) {
+      for (Label dep : edges.get(toVisit.poll())) {
+        if (inUniverse.add(dep)) {
+          toVisit.add(dep);
+        }
+      }
+    }
+
+    Set<Label> visited = new HashSet<>();
+    List<Label> current = new ArrayList<>();
+    for (Target target : arguments) {
+      if (inUniverse.contains(target.getLabel()) && visited.add(target.getLabel())) {
+        current.add(target.getLabel());
+      }
+    }
+    for (int i = 0; i < depth && !current.isEmpty(); i++) {
+      List<Label> next = new ArrayList<>();
+      for (Label label : current) {
+        for (Label rdep : reverseEdges.get(label)) {
+          if (inUniverse.contains(rdep) && visited.add(rdep)) {
+            next.add(rdep);
+          }
+        }
+      }
+      current = next;
+    }
+
+    // Add the result to the graph, including the edges between the targets of the result, so
+    // that it can be ordered like the results of other functions.
+    ImmutableList.Builder<Target> result = ImmutableList.builder();
+    for (Label label : visited) {
+      result.add(getOrCreate(dependents.get(label)));
+    }
+    for (Map.Entry<Label, Label> edge : edges.entries()) {
+      if (visited.contains(edge.getKey()) && visited.contains(edge.getValue())) {
+        makeEdge(dependents.get(edge.getKey()), dependents.get(edge.getValue()));
+      }
+    }
+    return result.build();
+  }
+
+  /** Records that the target with the given label depends on {@code dep}. */
+  private void visitDependent(
+      Label label,
+      Label dep,
+      Map<Label, Target> dependents,
+      SetMultimap<Label, Label> reverseEdges,
+      Deque<Label> toVisit) {
+    if (!dependents.containsKey(label)) {
+      Target target = getIndexedTarget(label);
+      if (target == null) {
+        return;
+      }
+      dependents.put(label, target);
+      toVisit.add(label);
+    }
+    reverseEdges.put(dep, label);
+  }
+
+  /**
+   * Returns whether the aspects of the given rule add a dependency on {@code dep} to the targets
+   * they apply to.
+   */
+  private boolean dependsThroughAspects(Label rule, Label dep, Map<Label, Target> dependents) {
+    ReverseDependencyIndex.PackageEntry entry =
+        reverseDependencyIndex.getEntry(rule.getPackageIdentifier());
+    if (entry == null) {
+      return false;
+    }
+    Target from = dependents.containsKey(rule) ? dependents.get(rule) : getIndexedTarget(rule);
+    if (from == null) {
+      return false;
+    }
+    for (ReverseDependencyIndex.AspectEdge edge : entry.getAspectEdges(rule)) {
+      Target to = getIndexedTarget(edge.to);
+      if (to != null
+          && AspectDefinition.visitAspectsIfRequired(from, edge.attribute, to, dependencyFilter)
+              .containsValue(dep)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Returns the target with the given label in the package instance the index was computed from,
+   * or null if the package is no longer loaded or doesn't have the target.
+   */
+  @Nullable
+  private Target getIndexedTarget(Label label) {
+    ReverseDependencyIndex.PackageEntry entry =
+        reverseDependencyIndex.getEntry(label.getPackageIdentifier());
+    Package pkg = entry != null ? entry.getPackage() : null;
+    if (pkg == null) {
+      return null;
+    }
+    try {
+      return pkg.getTarget(label.getName());
+    } catch (NoSuchTargetException e) {
+      return null;
+    }
+  }
+
+  private void ensureReverseDependencyIndexIsComplete() throws InterruptedException {
+    if (!reverseDependencyIndex.isComplete()) {
+      reverseDependencyIndex.indexLoadedPackages(loadedPackages.get());
+    }
+  }
+
+  /**
+   * Computes rbuildfiles from the index: the BUILD files of the loaded packages which were loaded
+   * from any of the given files, either as their BUILD file or as a .bzl file they load, directly
+   * or not. The WORKSPACE file is loaded by all the packages.
+   *
+   * <p>Only the packages loaded by this or previous commands are considered. Each candidate is
+   * looked up again, so that packages which changed since they were indexed are reloaded first.
+   */
+  QueryTaskFuture<Void> getRBuildFilesFromIndex(
+      Collection<PathFragment> files, Callback<Target> callback) {
+    return executeAsync(
+        () -> {
+          ensureReverseDependencyIndexIsComplete();
+          Set<PackageIdentifier> candidates = new LinkedHashSet<>();
+          for (PathFragment file : files) {
+            candidates.addAll(
+                file.equals(Label.WORKSPACE_FILE_NAME)
+                    ? reverseDependencyIndex.getPackages()
+                    : reverseDependencyIndex.getPackagesLoadingFile(file));
+          }
+          List<Target> result = new ArrayList<>();
+          for (PackageIdentifier packageId : candidates) {
+            ReverseDependencyIndex.PackageEntry indexed =
+                reverseDependencyIndex.getEntry(packageId);
+            Package indexedPkg = indexed != null ? indexed.getPackage() : null;
+            if (indexedPkg == null) {
+              // The package is no longer loaded.
+              continue;
+            }
+            Package pkg;
+            try {
+              pkg = getTargetOrThrow(indexedPkg.getBuildFileLabel()).getPackage();
+            } catch (NoSuchThingException e) {
+              // The package no longer exists, or its BUILD file was renamed.
+              continue;
+            }
+            ReverseDependencyIndex.PackageEntry entry = reverseDependencyIndex.getEntry(pkg);
+            for (PathFragment file : files) {
+              if (file.equals(Label.WORKSPACE_FILE_NAME) || entry.loadsFile(file)) {
+                result.add(getOrCreate(pkg.getBuildFile()));
+                break;
+              }
+            }
+          }
+          callback.process(result);
+          return null;
+        });
+  }
+
   @Override
   public ThreadSafeMutableSet<Target> getTransitiveClosure(
       ThreadSafeMutableSet<Target> targetNodes) {
@@ -278,8 +691,11 @@ public class BlazeQueryEnvironment extends AbstractBlazeQueryEnvironment<Target>
    * the query operators' implementations.
    */
   private void checkBuilt(Target targetNode) {
+    Label label = targetNode.getLabel();
     Preconditions.checkState(
-        labelVisitor.hasVisited(targetNode.getLabel()),
+        isSettingEnabled(Setting.PARALLEL_EVALUATION)
+            ? builtLabels.contains(label)
+            : labelVisitor.hasVisited(label),
         "getTransitiveClosure(%s) called without prior call to buildTransitiveClosure()",
         targetNode);
   }
@@ -289,8 +705,17 @@ public class BlazeQueryEnvironment extends AbstractBlazeQueryEnvironment<Target>
                                      ThreadSafeMutableSet<Target> targetNodes,
                                      int maxDepth) throws QueryException, InterruptedException {
     preloadTransitiveClosure(targetNodes, maxDepth);
-    labelVisitor.syncWithVisitor(eventHandler, targetNodes, keepGoing,
-        loadingPhaseThreads, maxDepth, errorObserver, new GraphBuildingObserver());
+    if (isSettingEnabled(Setting.PARALLEL_EVALUATION)) {
+      // The shared label visitor only knows about its last visitation, which may be in progress in
+      // another thread, so each call uses its own and records what it visited once it is done.
+      LabelVisitor visitor = new LabelVisitor(targetProvider, dependencyFilter);
+      visitor.syncWithVisitor(eventHandler, targetNodes, keepGoing,
+          loadingPhaseThreads, maxDepth, errorObserver, new GraphBuildingObserver());
+      builtLabels.addAll(visitor.getVisitedLabels());
+    } else {
+      labelVisitor.syncWithVisitor(eventHandler, targetNodes, keepGoing,
+          loadingPhaseThreads, maxDepth, errorObserver, new GraphBuildingObserver());
+    }
 
     if (errorObserver.hasErrors()) {
       reportBuildFileError(caller, "errors were encountered while computing transitive closure");
@@ -306,11 +731,16 @@ public class BlazeQueryEnvironment extends AbstractBlazeQueryEnvironment<Target>
     return builder.build();
   }
 
+  /** Returns the expected number of threads concurrently accessing a set or uniquifier. */
+  private int getConcurrencyLevel() {
+    return isSettingEnabled(Setting.PARALLEL_EVALUATION) ? PARALLELISM : 1;
+  }
+
   @ThreadSafe
   @Override
   public ThreadSafeMutableSet<Target> createThreadSafeMutableSet() {
     return new ThreadSafeMutableKeyExtractorBackedSetImpl<>(
-        TargetKeyExtractor.INSTANCE, Target.class);
+        TargetKeyExtractor.INSTANCE, Target.class, getConcurrencyLevel());
   }
 
   @Override
@@ -320,12 +750,12 @@ public class BlazeQueryEnvironment extends AbstractBlazeQueryEnvironment<Target>
 
   @Override
   public Uniquifier<Target> createUniquifier() {
-    return new UniquifierImpl<>(TargetKeyExtractor.INSTANCE);
+    return new UniquifierImpl<>(TargetKeyExtractor.INSTANCE, getConcurrencyLevel());
   }
 
   @Override
   public MinDepthUniquifier<Target> createMinDepthUniquifier() {
-    return new MinDepthUniquifierImpl<>(TargetKeyExtractor.INSTANCE, /*concurrencyLevel=*/ 1);
+    return new MinDepthUniquifierImpl<>(TargetKeyExtractor.INSTANCE, getConcurrencyLevel());
   }
 
   private void preloadTransitiveClosure(ThreadSafeMutableSet<Target> targets, int maxDepth)
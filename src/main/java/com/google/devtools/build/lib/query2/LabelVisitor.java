@@ -40,6 +40,7 @@ import com.google.devtools.build.lib.pkgcache.TargetEdgeObserver;
 import com.google.devtools.build.lib.pkgcache.TargetProvider;
 import java.util.Collection;
 import java.util.Map.Entry;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.TimeUnit;
@@ -224,6 +225,11 @@ final class LabelVisitor {
     return visitedTargets.containsKey(target);
   }
 
+  /** Returns the labels of the targets visited by the last visitation. */
+  Set<Label> getVisitedLabels() {
+    return visitedTargets.keySet();
+  }
+
   @VisibleForTesting class Visitor extends AbstractQueueVisitor {
 
     private final static String THREAD_NAME = "LabelVisitor";
@@ -236,7 +236,8 @@ public class ParallelSkyQueryUtils {
             keysToVisitNext.add(rdep);
           }
         } else if (!rdep.functionName().equals(SkyFunctions.PACKAGE_LOOKUP)
-            && !rdep.functionName().equals(SkyFunctions.GLOB)) {
+            && !rdep.functionName().equals(SkyFunctions.GLOB)
+            && !rdep.functionName().equals(SkyFunctions.GLOB_EXPANSION)) {
           // Packages may depend on the existence of subpackages, but these edges aren't relevant to
           // rbuildfiles. They may also depend on files transitively through globs, but these cannot
           // be included in load statements and so we don't traverse through these either.
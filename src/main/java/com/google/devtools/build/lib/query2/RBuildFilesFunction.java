@@ -37,7 +37,9 @@ import java.util.stream.Collectors;
  *
  * <pre>expr ::= RBUILDFILES '(' WORD, ... ')'</pre>
  *
- * <p>This expression can only be used with SkyQueryEnvironment.
+ * <p>This expression can only be used with SkyQueryEnvironment, or with BlazeQueryEnvironment when
+ * it uses the {@link ReverseDependencyIndex}, in which case only the loaded packages are
+ * considered.
  */
 public class RBuildFilesFunction implements QueryFunction {
 
@@ -64,15 +66,19 @@ public class RBuildFilesFunction implements QueryFunction {
       QueryExpression expression,
       List<Argument> args,
       Callback<T> callback) {
+    List<PathFragment> files =
+        args.stream()
+            .map(argument -> PathFragment.create(argument.getWord()))
+            .collect(Collectors.toList());
+    if (env instanceof BlazeQueryEnvironment) {
+      return ((BlazeQueryEnvironment) env)
+          .getRBuildFilesFromIndex(files, (Callback<Target>) callback);
+    }
     if (!(env instanceof SkyQueryEnvironment)) {
       return env.immediateFailedFuture(
           new QueryException("rbuildfiles can only be used with SkyQueryEnvironment"));
     }
     SkyQueryEnvironment skyEnv = ((SkyQueryEnvironment) env);
-    return skyEnv.getRBuildFilesParallel(
-        args.stream()
-            .map(argument -> PathFragment.create(argument.getWord()))
-            .collect(Collectors.toList()),
-        (Callback<Target>) callback);
+    return skyEnv.getRBuildFilesParallel(files, (Callback<Target>) callback);
   }
 }
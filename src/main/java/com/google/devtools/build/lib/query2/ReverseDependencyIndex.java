@@ -0,0 +1,409 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.query2;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableSetMultimap;
+import com.google.common.collect.Multimap;
+import com.google.devtools.build.lib.cmdline.Label;
+import com.google.devtools.build.lib.cmdline.PackageIdentifier;
+import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
+import com.google.devtools.build.lib.packages.AggregatingAttributeMapper;
+import com.google.devtools.build.lib.packages.Aspect;
+import com.google.devtools.build.lib.packages.AspectDefinition;
+import com.google.devtools.build.lib.packages.Attribute;
+import com.google.devtools.build.lib.packages.BuildType;
+import com.google.devtools.build.lib.packages.DependencyFilter;
+import com.google.devtools.build.lib.packages.OutputFile;
+import com.google.devtools.build.lib.packages.Package;
+import com.google.devtools.build.lib.packages.PackageGroup;
+import com.google.devtools.build.lib.packages.Rule;
+import com.google.devtools.build.lib.packages.Target;
+import com.google.devtools.build.lib.syntax.SkylarkSemantics;
+import com.google.devtools.build.lib.vfs.PathFragment;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.annotation.Nullable;
+
+/**
+ * An index of the direct dependencies and direct reverse dependencies of the targets of the
+ * packages loaded by the server. It lets {@link BlazeQueryEnvironment} answer {@code rdeps} by only
+ * visiting the targets which depend on its argument, and {@code rbuildfiles} without a universe.
+ *
+ * <p>While enabled, the index is updated whenever {@link
+ * com.google.devtools.build.lib.skyframe.PackageFunction} finishes loading a package, through the
+ * {@link Package.Builder.Helper} returned by {@link #wrap}, so the entries of the packages loaded
+ * in Skyframe are up to date. Packages loaded while the index was disabled are indexed by {@link
+ * #indexLoadedPackages}, which callers must use whenever {@link #isComplete} is false. Disabling
+ * the index drops all its entries.
+ *
+ * <p>Updates are atomic for each package, so packages are indexed concurrently as they are
+ * loaded. Entries only hold their package weakly, and are dropped once Skyframe drops their
+ * package, so that the index doesn't grow beyond the loaded packages.
+ *
+ * <p>Edges are recorded as if no dependency filter was in effect. The dependencies aspects may add
+ * are recorded separately, since whether an aspect applies depends on the rule class of the
+ * dependency, which may live in another package; callers check them against the edges that may
+ * carry aspects.
+ */
+@ThreadSafe
+public final class ReverseDependencyIndex {
+
+  /** The dependencies of the targets of one package, and the files the package was loaded from. */
+  static final class PackageEntry extends WeakReference<Package> {
+    private final PackageIdentifier packageId;
+    private final ImmutableSetMultimap<Label, Label> deps;
+    private final ImmutableSetMultimap<Label, Label> aspectDeps;
+    private final ImmutableSetMultimap<Label, AspectEdge> aspectEdges;
+    private final ImmutableSet<PathFragment> files;
+
+    private PackageEntry(
+        Package pkg,
+        ReferenceQueue<Package> queue,
+        ImmutableSetMultimap<Label, Label> deps,
+        ImmutableSetMultimap<Label, Label> aspectDeps,
+        ImmutableSetMultimap<Label, AspectEdge> aspectEdges,
+        ImmutableSet<PathFragment> files) {
+      super(pkg, queue);
+      this.packageId = pkg.getPackageIdentifier();
+      this.deps = deps;
+      this.aspectDeps = aspectDeps;
+      this.aspectEdges = aspectEdges;
+      this.files = files;
+    }
+
+    /** Returns the package of this entry, or null if it is no longer loaded. */
+    @Nullable
+    Package getPackage() {
+      return get();
+    }
+
+    /** Returns the direct dependencies of the given target, except those added by aspects. */
+    ImmutableSet<Label> getDeps(Label target) {
+      return deps.get(target);
+    }
+
+    /** Returns the edges of the given rule through attributes which have aspects. */
+    ImmutableSet<AspectEdge> getAspectEdges(Label rule) {
+      return aspectEdges.get(rule);
+    }
+
+    /**
+     * Returns whether the package was loaded from the given workspace-relative file, as its BUILD
+     * file or as a .bzl file the BUILD file loads, directly or not.
+     */
+    boolean loadsFile(PathFragment file) {
+      return files.contains(file);
+    }
+  }
+
+  /**
+   * An edge from a rule through an attribute which has aspects. The rule itself is not kept, as
+   * it would keep its package from being garbage collected.
+   */
+  static final class AspectEdge {
+    final Attribute attribute;
+    final Label to;
+
+    private AspectEdge(Attribute attribute, Label to) {
+      this.attribute = attribute;
+      this.to = to;
+    }
+  }
+
+  private final ReferenceQueue<Package> collectedPackages = new ReferenceQueue<>();
+  private final Map<PackageIdentifier, PackageEntry> entries = new ConcurrentHashMap<>();
+  private final Map<Label, Set<Label>> reverseDeps = new ConcurrentHashMap<>();
+  // The rules whose aspects may add a dependency on a target: a superset of those which do.
+  private final Map<Label, Set<Label>> aspectReverseDeps = new ConcurrentHashMap<>();
+  private final Map<PathFragment, Set<PackageIdentifier>> packagesByFile =
+      new ConcurrentHashMap<>();
+  private volatile boolean enabled;
+  // Whether all the packages loaded since the index was enabled were indexed.
+  private volatile boolean complete;
+
+  /**
+   * Enables or disables the index. Until it is enabled, the index stays empty so that builds
+   * which never run such queries don't pay for it; disabling it drops its entries.
+   */
+  public void setEnabled(boolean enabled) {
+    if (this.enabled == enabled) {
+      return;
+    }
+    this.enabled = enabled;
+    if (!enabled) {
+      complete = false;
+      entries.clear();
+      reverseDeps.clear();
+      aspectReverseDeps.clear();
+      packagesByFile.clear();
+    }
+  }
+
+  /**
+   * Returns whether every package loaded since the index was enabled was indexed. If not, {@link
+   * #indexLoadedPackages} must be called before the reverse dependencies can be trusted.
+   */
+  boolean isComplete() {
+    return complete;
+  }
+
+  /** Indexes the given packages, which must be all the packages currently loaded in Skyframe. */
+  void indexLoadedPackages(Iterable<Package> loadedPackages) throws InterruptedException {
+    for (Package pkg : loadedPackages) {
+      getEntry(pkg);
+    }
+    complete = enabled;
+  }
+
+  /**
+   * Returns a {@link Package.Builder.Helper} which delegates to the given one and updates this
+   * index whenever a package is done loading.
+   */
+  public Package.Builder.Helper wrap(Package.Builder.Helper delegate) {
+    return new Package.Builder.Helper() {
+      @Override
+      public Package createFreshPackage(PackageIdentifier packageId, String runfilesPrefix) {
+        return delegate.createFreshPackage(packageId, runfilesPrefix);
+      }
+
+      @Override
+      public void onLoadingComplete(
+          Package pkg, SkylarkSemantics skylarkSemantics, long loadTimeMs) {
+        delegate.onLoadingComplete(pkg, skylarkSemantics, loadTimeMs);
+        if (enabled) {
+          try {
+            update(pkg);
+          } catch (InterruptedException e) {
+            // The package will be indexed with all the loaded packages when a query needs it.
+            complete = false;
+            Thread.currentThread().interrupt();
+          }
+        }
+      }
+    };
+  }
+
+  /** Returns the entry of the given package, indexing the package first if necessary. */
+  PackageEntry getEntry(Package pkg) throws InterruptedException {
+    PackageEntry entry = entries.get(pkg.getPackageIdentifier());
+    if (entry != null && entry.get() == pkg) {
+      return entry;
+    }
+    return update(pkg);
+  }
+
+  /**
+   * Returns the entry of the package with the given identifier, or null if the package isn't
+   * indexed. While the index is complete, the entries of the packages loaded in Skyframe are
+   * computed from the package instances Skyframe holds.
+   */
+  @Nullable
+  PackageEntry getEntry(PackageIdentifier packageId) {
+    return entries.get(packageId);
+  }
+
+  /** Returns whether the index has an entry computed from the given package instance. */
+  @VisibleForTesting
+  public boolean isIndexed(Package pkg) {
+    PackageEntry entry = entries.get(pkg.getPackageIdentifier());
+    return entry != null && entry.get() == pkg;
+  }
+
+  /** Returns the number of packages in the index. */
+  @VisibleForTesting
+  int size() {
+    removeCollectedEntries();
+    return entries.size();
+  }
+
+  /**
+   * Returns the targets which directly depend on the given one according to their entry. Only the
+   * results in packages whose entry is up to date are correct, so callers check each of them
+   * against {@link PackageEntry#getDeps}.
+   */
+  Set<Label> getReverseDeps(Label target) {
+    Set<Label> result = reverseDeps.get(target);
+    return result != null ? result : ImmutableSet.of();
+  }
+
+  /**
+   * Returns the rules whose aspects may add a dependency on the given target, depending on the
+   * targets they apply to.
+   */
+  Set<Label> getAspectReverseDepCandidates(Label target) {
+    Set<Label> result = aspectReverseDeps.get(target);
+    return result != null ? result : ImmutableSet.of();
+  }
+
+  /** Returns the indexed packages which may have been loaded from the given file. */
+  Set<PackageIdentifier> getPackagesLoadingFile(PathFragment file) {
+    Set<PackageIdentifier> result = packagesByFile.get(file);
+    return result != null ? result : ImmutableSet.of();
+  }
+
+  /** Returns all the indexed packages. */
+  Set<PackageIdentifier> getPackages() {
+    return entries.keySet();
+  }
+
+  private PackageEntry update(Package pkg) throws InterruptedException {
+    removeCollectedEntries();
+    PackageEntry newEntry = computeEntry(pkg, collectedPackages);
+    return entries.compute(
+        pkg.getPackageIdentifier(),
+        (packageId, oldEntry) -> {
+          if (oldEntry != null && oldEntry.get() == pkg) {
+            // Another thread indexed the same package meanwhile.
+            return oldEntry;
+          }
+          if (oldEntry != null) {
+            removeEdges(oldEntry);
+          }
+          addEdges(newEntry);
+          return newEntry;
+        });
+  }
+
+  /** Drops the entries of the packages which were garbage collected. */
+  private void removeCollectedEntries() {
+    PackageEntry collected;
+    while ((collected = (PackageEntry) collectedPackages.poll()) != null) {
+      PackageEntry entry = collected;
+      entries.computeIfPresent(
+          entry.packageId,
+          (packageId, currentEntry) -> {
+            if (currentEntry != entry) {
+              return currentEntry;
+            }
+            removeEdges(entry);
+            return null;
+          });
+    }
+  }
+
+  private void addEdges(PackageEntry entry) {
+    addAll(reverseDeps, entry.deps);
+    addAll(aspectReverseDeps, entry.aspectDeps);
+    for (PathFragment file : entry.files) {
+      add(packagesByFile, file, entry.packageId);
+    }
+  }
+
+  private void removeEdges(PackageEntry entry) {
+    removeAll(reverseDeps, entry.deps);
+    removeAll(aspectReverseDeps, entry.aspectDeps);
+    for (PathFragment file : entry.files) {
+      remove(packagesByFile, file, entry.packageId);
+    }
+  }
+
+  private static void addAll(Map<Label, Set<Label>> reverseMap, Multimap<Label, Label> edges) {
+    for (Map.Entry<Label, Label> edge : edges.entries()) {
+      add(reverseMap, edge.getValue(), edge.getKey());
+    }
+  }
+
+  private static void removeAll(Map<Label, Set<Label>> reverseMap, Multimap<Label, Label> edges) {
+    for (Map.Entry<Label, Label> edge : edges.entries()) {
+      remove(reverseMap, edge.getValue(), edge.getKey());
+    }
+  }
+
+  private static <K, V> void add(Map<K, Set<V>> map, K key, V value) {
+    map.compute(
+        key,
+        (k, values) -> {
+          if (values == null) {
+            values = ConcurrentHashMap.newKeySet();
+          }
+          values.add(value);
+          return values;
+        });
+  }
+
+  private static <K, V> void remove(Map<K, Set<V>> map, K key, V value) {
+    map.computeIfPresent(
+        key,
+        (k, values) -> {
+          values.remove(value);
+          return values.isEmpty() ? null : values;
+        });
+  }
+
+  /**
+   * Computes the same edges {@link LabelVisitor} reports, except those added by aspects, from the
+   * compact form of the rules of the package.
+   */
+  private static PackageEntry computeEntry(Package pkg, ReferenceQueue<Package> queue)
+      throws InterruptedException {
+    ImmutableSetMultimap.Builder<Label, Label> deps = ImmutableSetMultimap.builder();
+    ImmutableSetMultimap.Builder<Label, Label> aspectDeps = ImmutableSetMultimap.builder();
+    ImmutableSetMultimap.Builder<Label, AspectEdge> aspectEdges = ImmutableSetMultimap.builder();
+    for (Target target : pkg.iterateTargets()) {
+      Label label = target.getLabel();
+      if (target instanceof OutputFile) {
+        deps.put(label, ((OutputFile) target).getGeneratingRule().getLabel());
+      } else if (target instanceof Rule) {
+        Rule rule = (Rule) target;
+        Set<Attribute> attributesWithAspects = new LinkedHashSet<>();
+        AggregatingAttributeMapper.of(rule)
+            .visitLabels(
+                (dep, attribute) -> {
+                  deps.put(label, dep);
+                  if (!attribute.getAspects(rule).isEmpty()) {
+                    aspectEdges.put(label, new AspectEdge(attribute, dep));
+                    attributesWithAspects.add(attribute);
+                  }
+                });
+        for (Attribute attribute : attributesWithAspects) {
+          for (Aspect aspect : attribute.getAspects(rule)) {
+            Multimap<Attribute, Label> labels = HashMultimap.create();
+            AspectDefinition.addAllAttributesOfAspect(
+                rule, labels, aspect, DependencyFilter.ALL_DEPS);
+            aspectDeps.putAll(label, labels.values());
+          }
+        }
+      } else if (target instanceof PackageGroup) {
+        deps.putAll(label, ((PackageGroup) target).getIncludes());
+        continue;
+      }
+      if (!(target instanceof Rule)
+          || ((Rule) target)
+              .getRuleClassObject()
+              .hasAttr("visibility", BuildType.NODEP_LABEL_LIST)) {
+        deps.putAll(label, target.getVisibility().getDependencyLabels());
+      }
+    }
+
+    ImmutableSet.Builder<PathFragment> files = ImmutableSet.builder();
+    if (pkg.getPackageIdentifier().getRepository().isMain()
+        && !pkg.getPackageIdentifier().equals(Label.EXTERNAL_PACKAGE_IDENTIFIER)) {
+      files.add(pkg.getBuildFileLabel().toPathFragment());
+    }
+    for (Label file : pkg.getSkylarkFileDependencies()) {
+      if (file.getPackageIdentifier().getRepository().isMain()) {
+        files.add(file.toPathFragment());
+      }
+    }
+    return new PackageEntry(
+        pkg, queue, deps.build(), aspectDeps.build(), aspectEdges.build(), files.build());
+  }
+}
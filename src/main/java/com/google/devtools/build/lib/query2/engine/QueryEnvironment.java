@@ -452,7 +452,14 @@ public interface QueryEnvironment<T> {
     /**
      * Do not consider nodep attributes when traversing dependency edges.
      */
-    NO_NODEP_DEPS;
+    NO_NODEP_DEPS,
+
+    /**
+     * Evaluate independent subexpressions and large dependency expansions concurrently. This only
+     * affects performance, not the result of the query; implementations that always evaluate in
+     * parallel ignore it.
+     */
+    PARALLEL_EVALUATION;
   }
 
   /**
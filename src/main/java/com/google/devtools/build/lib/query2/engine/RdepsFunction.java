@@ -68,10 +68,18 @@ public final class RdepsFunction extends AllRdepsFunction {
               argumentExpression, universeExpression, context, callback)
           : streamableEnv.getRdepsBoundedParallel(
               argumentExpression, depth, universeExpression, context, callback);
-    } else {
-      return evalWithBoundedDepth(
-          env, expression, context, argumentExpression, depth, universeExpression, callback);
     }
+    if (env instanceof IndexedRdepsQueryEnvironment) {
+      QueryTaskFuture<Void> result =
+          ((IndexedRdepsQueryEnvironment<T>) env)
+              .getRdepsFromIndex(
+                  expression, argumentExpression, depth, universeExpression, context, callback);
+      if (result != null) {
+        return result;
+      }
+    }
+    return evalWithBoundedDepth(
+        env, expression, context, argumentExpression, depth, universeExpression, callback);
   }
 
   /**
@@ -51,9 +51,9 @@ import com.google.devtools.build.lib.query2.output.OutputFormatter.AbstractUnord
 import com.google.devtools.build.lib.query2.output.QueryOptions.OrderOutput;
 import com.google.devtools.build.lib.query2.proto.proto2api.Build;
 import com.google.devtools.build.lib.query2.proto.proto2api.Build.GeneratedFile;
-import com.google.devtools.build.lib.query2.proto.proto2api.Build.QueryResult.Builder;
 import com.google.devtools.build.lib.query2.proto.proto2api.Build.SourceFile;
 import com.google.devtools.build.lib.syntax.Type;
+import com.google.protobuf.CodedOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.util.ArrayList;
@@ -117,31 +117,38 @@ public class ProtoOutputFormatter extends AbstractUnorderedFormatter {
     }
   }
 
+  /**
+   * {@inheritDoc}
+   *
+   * <p>The targets are written as soon as they are processed, as the encoding of a {@link
+   * Build.QueryResult} is the concatenation of the encodings of its targets. This way the
+   * formatter does not keep a copy of the whole result as protocol buffers.
+   */
   @Override
   public OutputFormatterCallback<Target> createPostFactoStreamCallback(
       final OutputStream out, final QueryOptions options) {
     return new OutputFormatterCallback<Target>() {
 
-      private Builder queryResult;
+      private CodedOutputStream codedOut;
 
       @Override
       public void start() {
-        queryResult = Build.QueryResult.newBuilder();
+        codedOut = CodedOutputStream.newInstance(out);
       }
 
       @Override
       public void processOutput(Iterable<Target> partialResult)
           throws IOException, InterruptedException {
-
         for (Target target : partialResult) {
-          queryResult.addTarget(toTargetProtoBuffer(target));
+          codedOut.writeMessage(Build.QueryResult.TARGET_FIELD_NUMBER, toTargetProtoBuffer(target));
         }
+        codedOut.flush();
       }
 
       @Override
       public void close(boolean failFast) throws IOException {
         if (!failFast) {
-          queryResult.build().writeTo(out);
+          codedOut.flush();
         }
       }
     };
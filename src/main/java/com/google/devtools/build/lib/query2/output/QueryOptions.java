@@ -98,7 +98,9 @@ public class QueryOptions extends CommonQueryOptions {
             + "fully ordered, depending on the output formatter (dependency-ordered for proto, "
             + "minrank, maxrank, and graph, fully ordered for all others). When output is fully "
             + "ordered, nodes that would otherwise be unordered by the output formatter are "
-            + "alphabetized before output."
+            + "alphabetized before output. With 'no', results are written while the query is "
+            + "evaluated for all output formatters except minrank, maxrank and graph, which need "
+            + "the complete result graph."
   )
   public OrderOutput orderOutput;
 
@@ -159,6 +161,34 @@ public class QueryOptions extends CommonQueryOptions {
   )
   public boolean strictTestSuite;
 
+  @Option(
+    name = "experimental_parallel_query_evaluation",
+    defaultValue = "false",
+    documentationCategory = OptionDocumentationCategory.QUERY,
+    effectTags = {OptionEffectTag.EXECUTION},
+    help =
+        "If true, the operands of set operations and the bodies of functions such as deps(), "
+            + "rdeps() and allpaths() are evaluated concurrently. The packages needed by the query "
+            + "are still loaded using --loading_phase_threads."
+  )
+  public boolean parallelEvaluation;
+
+  @Option(
+    name = "experimental_reverse_dependency_index",
+    defaultValue = "false",
+    documentationCategory = OptionDocumentationCategory.QUERY,
+    effectTags = {OptionEffectTag.EXECUTION},
+    help =
+        "If true, rdeps() uses an in-memory index of the dependencies of the loaded packages, "
+            + "which the server keeps up to date as packages are reloaded, instead of building "
+            + "the dependency graph of its whole universe: only the targets depending on its "
+            + "argument are visited, once the packages of the universe are loaded. rbuildfiles() "
+            + "is also available, and considers the packages loaded so far. The index is "
+            + "dropped when a query runs without this option, and lost when the server "
+            + "restarts. Ignored with --noimplicit_deps, --nohost_deps or --universe_scope."
+  )
+  public boolean useReverseDependencyIndex;
+
   @Option(
     name = "query_file",
     defaultValue = "",
@@ -186,6 +216,9 @@ public class QueryOptions extends CommonQueryOptions {
     if (strictTestSuite) {
       settings.add(Setting.TESTS_EXPRESSION_STRICT);
     }
+    if (parallelEvaluation) {
+      settings.add(Setting.PARALLEL_EVALUATION);
+    }
     return settings;
   }
 }
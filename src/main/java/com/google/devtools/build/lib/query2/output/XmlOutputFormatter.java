@@ -37,6 +37,7 @@ import com.google.devtools.build.lib.query2.output.OutputFormatter.AbstractUnord
 import com.google.devtools.build.lib.syntax.Type;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.Collection;
 import java.util.HashSet;
 import java.util.Map;
@@ -59,6 +60,8 @@ import org.w3c.dom.Element;
  */
 class XmlOutputFormatter extends AbstractUnorderedFormatter {
 
+  private static final String LINE_SEPARATOR = System.lineSeparator();
+
   // AbstractUnorderedFormatter also has an options field it's of type CommonQueryOptions, a
   // superclass of QueryOptions. Store this here to ensure correct type is passed to this class.
   private QueryOptions queryOptions;
@@ -83,50 +86,69 @@ class XmlOutputFormatter extends AbstractUnorderedFormatter {
     this.queryOptions = (QueryOptions) options;
   }
 
+  /**
+   * {@inheritDoc}
+   *
+   * <p>Each target element is serialized to the output on its own as soon as it is processed, so
+   * the formatter only keeps the DOM tree of the current target in memory. The {@code <query>}
+   * element around them is written by hand. The output is the same as the serialization of the
+   * DOM document of the whole result, which this formatter used to build.
+   */
   @Override
   public OutputFormatterCallback<Target> createPostFactoStreamCallback(
       final OutputStream out, final QueryOptions options) {
     return new OutputFormatterCallback<Target>() {
 
       private Document doc;
-      private Element queryElem;
+      private Transformer transformer;
+      private boolean queryElementStarted;
 
       @Override
-      public void start() {
+      public void start() throws IOException {
         try {
-          DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-          doc = factory.newDocumentBuilder().newDocument();
-        } catch (ParserConfigurationException e) {
+          doc = DocumentBuilderFactory.newInstance().newDocumentBuilder().newDocument();
+          transformer = TransformerFactory.newInstance().newTransformer();
+        } catch (ParserConfigurationException
+            | TransformerFactoryConfigurationError
+            | TransformerException e) {
           // This shouldn't be possible: all the configuration is hard-coded.
           throw new IllegalStateException("XML output failed", e);
         }
         doc.setXmlVersion("1.1");
-        queryElem = doc.createElement("query");
-        queryElem.setAttribute("version", "2");
-        doc.appendChild(queryElem);
+        transformer.setOutputProperty(OutputKeys.INDENT, "yes");
+        transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
+        // Characters are escaped according to the version of the document.
+        transformer.setOutputProperty(OutputKeys.VERSION, "1.1");
+        write("<?xml version=\"1.1\" encoding=\"UTF-8\" standalone=\"no\"?>" + LINE_SEPARATOR);
       }
 
       @Override
       public void processOutput(Iterable<Target> partialResult)
           throws IOException, InterruptedException {
         for (Target target : partialResult) {
-          queryElem.appendChild(createTargetElement(doc, target));
+          if (!queryElementStarted) {
+            write("<query version=\"2\">" + LINE_SEPARATOR);
+            queryElementStarted = true;
+          }
+          try {
+            transformer.transform(
+                new DOMSource(createTargetElement(doc, target)), new StreamResult(out));
+          } catch (TransformerException e) {
+            throw new IOException("XML output failed", e);
+          }
         }
       }
 
       @Override
       public void close(boolean failFast) throws IOException {
         if (!failFast) {
-          try {
-            Transformer transformer = TransformerFactory.newInstance().newTransformer();
-            transformer.setOutputProperty(OutputKeys.INDENT, "yes");
-            transformer.transform(new DOMSource(doc), new StreamResult(out));
-          } catch (TransformerFactoryConfigurationError | TransformerException e) {
-            // This shouldn't be possible: all the configuration is hard-coded.
-            throw new IllegalStateException("XML output failed", e);
-          }
+          write((queryElementStarted ? "</query>" : "<query version=\"2\"/>") + LINE_SEPARATOR);
         }
       }
+
+      private void write(String xml) throws IOException {
+        out.write(xml.getBytes(StandardCharsets.UTF_8));
+      }
     };
   }
 
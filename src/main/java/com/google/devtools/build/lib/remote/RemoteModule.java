@@ -22,6 +22,7 @@ import com.google.devtools.build.lib.buildeventstream.PathConverter;
 import com.google.devtools.build.lib.buildtool.BuildRequest;
 import com.google.devtools.build.lib.events.Event;
 import com.google.devtools.build.lib.exec.ExecutorBuilder;
+import com.google.devtools.build.lib.remote.blobstore.SimpleBlobStore;
 import com.google.devtools.build.lib.remote.logging.LoggingInterceptor;
 import com.google.devtools.build.lib.remote.util.DigestUtil;
 import com.google.devtools.build.lib.runtime.BlazeModule;
@@ -40,6 +41,7 @@ import com.google.devtools.remoteexecution.v1test.Digest;
 import io.grpc.Channel;
 import io.grpc.ClientInterceptors;
 import java.io.IOException;
+import java.time.Duration;
 import java.util.logging.Logger;
 
 /** RemoteModule provides distributed cache and remote execution for Bazel. */
@@ -89,6 +91,7 @@ public final class RemoteModule extends BlazeModule {
   private final CasPathConverter converter = new CasPathConverter();
 
   private RemoteActionContextProvider actionContextProvider;
+  private SimpleBlobStorePackageCache packageCache;
 
   @Override
   public void serverInit(OptionsProvider startupOptions, ServerBuilder builder)
@@ -120,6 +123,7 @@ public final class RemoteModule extends BlazeModule {
     DigestUtil digestUtil = new DigestUtil(hashFn);
     converter.options = remoteOptions;
     converter.digestUtil = digestUtil;
+    env.getSkyframeExecutor().setSharedPackageCache(null);
 
     // Quit if no remote options specified.
     if (remoteOptions == null) {
@@ -143,13 +147,20 @@ public final class RemoteModule extends BlazeModule {
       // meaning.
       final AbstractRemoteActionCache cache;
       if (remoteOrLocalCache) {
-        cache =
-            new SimpleBlobStoreActionCache(
-                SimpleBlobStoreFactory.create(
-                    remoteOptions,
-                    GoogleAuthUtils.newCredentials(authAndTlsOptions),
-                    env.getWorkingDirectory()),
-                digestUtil);
+        SimpleBlobStore blobStore =
+            SimpleBlobStoreFactory.create(
+                remoteOptions,
+                GoogleAuthUtils.newCredentials(authAndTlsOptions),
+                env.getWorkingDirectory());
+        cache = new SimpleBlobStoreActionCache(blobStore, digestUtil);
+        if (remoteOptions.experimentalRemotePackageCache) {
+          packageCache =
+              new SimpleBlobStorePackageCache(
+                  blobStore,
+                  env.getDirectories().getInstallMD5().toString(),
+                  Duration.ofSeconds(remoteOptions.remoteTimeout));
+          env.getSkyframeExecutor().setSharedPackageCache(packageCache);
+        }
       } else if (grpcCache || remoteOptions.remoteExecutor != null) {
         // If a remote executor but no remote cache is specified, assume both at the same target.
         String target = grpcCache ? remoteOptions.remoteCache : remoteOptions.remoteExecutor;
@@ -194,6 +205,15 @@ public final class RemoteModule extends BlazeModule {
 
   @Override
   public void afterCommand() {
+    if (packageCache != null) {
+      try {
+        packageCache.close();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      } finally {
+        packageCache = null;
+      }
+    }
     if (rpcLogFile != null) {
       try {
         rpcLogFile.close();
@@ -207,6 +207,18 @@ public final class RemoteOptions extends OptionsBase {
   )
   public boolean experimentalGuardAgainstConcurrentChanges;
 
+  @Option(
+    name = "experimental_remote_package_cache",
+    defaultValue = "false",
+    documentationCategory = OptionDocumentationCategory.UNCATEGORIZED,
+    effectTags = {OptionEffectTag.LOADING_AND_ANALYSIS},
+    help =
+        "If true, and a remote HTTP cache or a local disk cache is used, loaded packages are "
+            + "stored in it, and packages found in it are used instead of evaluating their BUILD "
+            + "files."
+  )
+  public boolean experimentalRemotePackageCache;
+
   @Option(
     name = "experimental_remote_grpc_log",
     defaultValue = "",
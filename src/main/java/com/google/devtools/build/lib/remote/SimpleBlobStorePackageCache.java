@@ -0,0 +1,161 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.remote;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.base.Throwables;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.devtools.build.lib.remote.blobstore.SimpleBlobStore;
+import com.google.devtools.build.lib.skyframe.SharedPackageCache;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.Nullable;
+
+/**
+ * A {@link SharedPackageCache} in a {@link SimpleBlobStore}, such as a remote HTTP cache or a local
+ * disk cache.
+ *
+ * <p>The entries are computed from their keys rather than addressed by their contents, so they are
+ * stored as plain blobs under a key derived from the key of the entry, next to the contents of the
+ * CAS. They are never stored as action results. Since an entry is only valid for the binary which
+ * created it, the keys are qualified by a hash of the binary.
+ *
+ * <p>The cache is used from Skyframe threads, so lookups give up after a timeout, and entries are
+ * uploaded in the background. Uploads which can't be queued are dropped.
+ */
+public final class SimpleBlobStorePackageCache implements SharedPackageCache {
+  private static final Logger logger =
+      Logger.getLogger(SimpleBlobStorePackageCache.class.getName());
+
+  private static final int UPLOAD_THREADS = 4;
+  private static final int MAX_PENDING_UPLOADS = 1000;
+
+  private final SimpleBlobStore blobStore;
+  private final String binaryHash;
+  private final Duration timeout;
+  private final ExecutorService downloadExecutor =
+      Executors.newCachedThreadPool(
+          new ThreadFactoryBuilder()
+              .setNameFormat("package-cache-download-%d")
+              .setDaemon(true)
+              .build());
+  private final ExecutorService uploadExecutor =
+      Executors.newFixedThreadPool(
+          UPLOAD_THREADS,
+          new ThreadFactoryBuilder()
+              .setNameFormat("package-cache-upload-%d")
+              .setDaemon(true)
+              .build());
+  private final Semaphore pendingUploads = new Semaphore(MAX_PENDING_UPLOADS);
+
+  /**
+   * @param binaryHash a hash identifying the binary, which the entries it creates are only used
+   *     with
+   * @param timeout the maximum time to wait for a lookup, and for the pending uploads on {@link
+   *     #close}
+   */
+  public SimpleBlobStorePackageCache(
+      SimpleBlobStore blobStore, String binaryHash, Duration timeout) {
+    this.blobStore = blobStore;
+    this.binaryHash = binaryHash;
+    this.timeout = timeout;
+  }
+
+  @Override
+  @Nullable
+  public byte[] get(String key) throws IOException, InterruptedException {
+    Future<byte[]> download;
+    try {
+      download =
+          downloadExecutor.submit(
+              () -> {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                return blobStore.get(qualify(key), out) ? out.toByteArray() : null;
+              });
+    } catch (RejectedExecutionException e) {
+      // The cache was closed.
+      return null;
+    }
+    try {
+      return download.get(timeout.toMillis(), TimeUnit.MILLISECONDS);
+    } catch (TimeoutException e) {
+      download.cancel(true);
+      throw new IOException("Timed out after " + timeout.getSeconds() + " seconds", e);
+    } catch (InterruptedException e) {
+      download.cancel(true);
+      throw e;
+    } catch (ExecutionException e) {
+      Throwables.propagateIfPossible(e.getCause(), IOException.class, InterruptedException.class);
+      throw new IOException(e.getCause());
+    }
+  }
+
+  /** Schedules the upload of the given entry and returns without waiting for it. */
+  @Override
+  public void put(String key, byte[] value) {
+    if (!pendingUploads.tryAcquire()) {
+      logger.fine("Too many pending uploads, not storing " + key + " in the shared package cache");
+      return;
+    }
+    try {
+      uploadExecutor.execute(
+          () -> {
+            try {
+              blobStore.put(qualify(key), value.length, new ByteArrayInputStream(value));
+            } catch (IOException e) {
+              logger.log(
+                  Level.WARNING, "Failed to store " + key + " in the shared package cache", e);
+            } catch (InterruptedException e) {
+              Thread.currentThread().interrupt();
+            } finally {
+              pendingUploads.release();
+            }
+          });
+    } catch (RejectedExecutionException e) {
+      // The cache was closed.
+      pendingUploads.release();
+    }
+  }
+
+  /**
+   * Stops accepting lookups and uploads, and waits for the pending uploads for up to the timeout.
+   * Uploads which didn't finish by then are abandoned.
+   */
+  public void close() throws InterruptedException {
+    downloadExecutor.shutdownNow();
+    uploadExecutor.shutdown();
+    if (!uploadExecutor.awaitTermination(timeout.toMillis(), TimeUnit.MILLISECONDS)) {
+      logger.warning("Abandoning the pending uploads to the shared package cache");
+      uploadExecutor.shutdownNow();
+    }
+  }
+
+  private String qualify(String key) {
+    return Hashing.sha256().hashString(binaryHash + ":" + key, UTF_8).toString();
+  }
+}
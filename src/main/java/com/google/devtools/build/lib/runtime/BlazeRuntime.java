@@ -49,6 +49,7 @@ import com.google.devtools.build.lib.profiler.Profiler.ProfiledTaskKinds;
 import com.google.devtools.build.lib.profiler.ProfilerTask;
 import com.google.devtools.build.lib.query2.AbstractBlazeQueryEnvironment;
 import com.google.devtools.build.lib.query2.QueryEnvironmentFactory;
+import com.google.devtools.build.lib.query2.ReverseDependencyIndex;
 import com.google.devtools.build.lib.query2.engine.QueryEnvironment.QueryFunction;
 import com.google.devtools.build.lib.query2.output.OutputFormatter;
 import com.google.devtools.build.lib.runtime.BlazeCommandDispatcher.LockingMode;
@@ -144,6 +145,7 @@ public final class BlazeRuntime {
   private final QueryEnvironmentFactory queryEnvironmentFactory;
   private final ImmutableList<QueryFunction> queryFunctions;
   private final ImmutableList<OutputFormatter> queryOutputFormatters;
+  private final ReverseDependencyIndex reverseDependencyIndex;
 
   private final AtomicInteger storedExitCode = new AtomicInteger();
 
@@ -166,6 +168,7 @@ public final class BlazeRuntime {
       QueryEnvironmentFactory queryEnvironmentFactory,
       ImmutableList<QueryFunction> queryFunctions,
       ImmutableList<OutputFormatter> queryOutputFormatters,
+      ReverseDependencyIndex reverseDependencyIndex,
       PackageFactory pkgFactory,
       ConfiguredRuleClassProvider ruleClassProvider,
       ImmutableList<ConfigurationFragmentFactory> configurationFragmentFactories,
@@ -200,6 +203,7 @@ public final class BlazeRuntime {
     this.queryEnvironmentFactory = queryEnvironmentFactory;
     this.queryFunctions = queryFunctions;
     this.queryOutputFormatters = queryOutputFormatters;
+    this.reverseDependencyIndex = reverseDependencyIndex;
     this.eventBusExceptionHandler = eventBusExceptionHandler;
 
     this.defaultsPackageContent =
@@ -269,12 +273,16 @@ public final class BlazeRuntime {
     OutputStream out = null;
     boolean recordFullProfilerData = false;
     ProfiledTaskKinds profiledTasks = ProfiledTaskKinds.NONE;
+    Profiler.Format format = Profiler.Format.BINARY_BAZEL_FORMAT;
 
     try {
       if (options.profilePath != null) {
         Path profilePath = env.getWorkspace().getRelative(options.profilePath);
 
         recordFullProfilerData = options.recordFullProfilerData;
+        if (options.enableJsonTraceProfile) {
+          format = Profiler.Format.JSON_TRACE_FILE_FORMAT;
+        }
         out = new BufferedOutputStream(profilePath.getOutputStream(), 1024 * 1024);
         env.getReporter().handle(Event.info("Writing profile data to '" + profilePath + "'"));
         profiledTasks = ProfiledTaskKinds.ALL;
@@ -284,7 +292,7 @@ public final class BlazeRuntime {
         profiledTasks = ProfiledTaskKinds.SLOWEST;
       }
       if (profiledTasks != ProfiledTaskKinds.NONE) {
-        Profiler.instance().start(profiledTasks, out,
+        Profiler.instance().start(profiledTasks, out, format,
             getProductName() + " profile for " + env.getOutputBase() + " at " + new Date()
             + ", build ID: " + buildID,
             recordFullProfilerData, clock, execStartTimeNanos);
@@ -324,6 +332,14 @@ public final class BlazeRuntime {
     return queryEnvironmentFactory;
   }
 
+  /**
+   * Returns the index of the reverse dependencies of the packages loaded by this server, which is
+   * kept up to date by the {@link PackageFactory} once enabled.
+   */
+  public ReverseDependencyIndex getReverseDependencyIndex() {
+    return reverseDependencyIndex;
+  }
+
   public ImmutableList<QueryFunction> getQueryFunctions() {
     return queryFunctions;
   }
@@ -1292,6 +1308,8 @@ public final class BlazeRuntime {
       if (packageBuilderHelper == null) {
         packageBuilderHelper = Package.Builder.DefaultHelper.INSTANCE;
       }
+      ReverseDependencyIndex reverseDependencyIndex = new ReverseDependencyIndex();
+      packageBuilderHelper = reverseDependencyIndex.wrap(packageBuilderHelper);
 
       PackageFactory packageFactory =
           new PackageFactory(
@@ -1316,6 +1334,7 @@ public final class BlazeRuntime {
           serverBuilder.getQueryEnvironmentFactory(),
           serverBuilder.getQueryFunctions(),
           serverBuilder.getQueryOutputFormatters(),
+          reverseDependencyIndex,
           packageFactory,
           ruleClassProvider,
           ruleClassProvider.getConfigurationFragments(),
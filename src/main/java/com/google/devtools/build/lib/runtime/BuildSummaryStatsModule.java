@@ -52,6 +52,7 @@ public class BuildSummaryStatsModule extends BlazeModule {
   private boolean discardActions;
 
   private SpawnStats spawnStats;
+  private SpawnResourceStats spawnResourceStats;
 
   @Override
   public void beforeCommand(CommandEnvironment env) {
@@ -59,6 +60,7 @@ public class BuildSummaryStatsModule extends BlazeModule {
     this.eventBus = env.getEventBus();
     this.actionKeyContext = env.getSkyframeExecutor().getActionKeyContext();
     this.spawnStats = new SpawnStats();
+    this.spawnResourceStats = new SpawnResourceStats();
     eventBus.register(this);
   }
 
@@ -68,6 +70,7 @@ public class BuildSummaryStatsModule extends BlazeModule {
     this.eventBus = null;
     this.reporter = null;
     this.spawnStats = null;
+    this.spawnResourceStats = null;
   }
 
   @Override
@@ -88,6 +91,8 @@ public class BuildSummaryStatsModule extends BlazeModule {
   @Subscribe
   public void actionResultReceived(ActionResultReceivedEvent event) {
     spawnStats.countActionResult(event.getActionResult());
+    spawnResourceStats.countActionResult(
+        event.getAction().getMnemonic(), event.getActionResult());
   }
 
   @Subscribe
@@ -130,6 +135,12 @@ public class BuildSummaryStatsModule extends BlazeModule {
       reporter.handle(Event.info(spawnSummary));
       statistics.add(Pair.of("process stats", ByteString.copyFromUtf8(spawnSummary)));
 
+      String resourceSummary = spawnResourceStats.getSummary();
+      if (!resourceSummary.isEmpty()) {
+        logger.info("Resource usage per mnemonic:\n" + resourceSummary);
+        statistics.add(Pair.of("resource usage", ByteString.copyFromUtf8(resourceSummary)));
+      }
+
       reporter.post(new BuildToolLogs(statistics, ImmutableList.of()));
     } finally {
       criticalPathComputer = null;
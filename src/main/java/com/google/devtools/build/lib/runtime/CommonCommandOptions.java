@@ -218,6 +218,18 @@ public class CommonCommandOptions extends OptionsBase {
   )
   public boolean recordFullProfilerData;
 
+  @Option(
+    name = "experimental_generate_json_trace_profile",
+    defaultValue = "false",
+    documentationCategory = OptionDocumentationCategory.LOGGING,
+    effectTags = {OptionEffectTag.AFFECTS_OUTPUTS, OptionEffectTag.BAZEL_MONITORING},
+    help =
+        "If enabled, the profile written by --profile is in the Chrome trace event JSON format, "
+            + "which can be loaded into chrome://tracing, instead of the binary format read by "
+            + "analyze-profile."
+  )
+  public boolean enableJsonTraceProfile;
+
   @Option(
     name = "memory_profile",
     defaultValue = "null",
@@ -0,0 +1,199 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.runtime;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.eventbus.AllowConcurrentEvents;
+import com.google.common.eventbus.Subscribe;
+import com.google.devtools.build.lib.actions.Action;
+import com.google.devtools.build.lib.actions.ActionCompletionEvent;
+import com.google.devtools.build.lib.actions.ActionMiddlemanEvent;
+import com.google.devtools.build.lib.actions.Artifact;
+import com.google.devtools.build.lib.actions.CachedActionEvent;
+import com.google.devtools.build.lib.actions.CriticalPathHistory;
+import com.google.devtools.build.lib.clock.Clock;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Records the duration and dependencies of the actions completed during a build, based on events
+ * published to the event bus, and computes the {@link CriticalPathHistory} for the next build.
+ *
+ * <p>Unlike the {@link CriticalPathComputer}, which computes the longest chain of actions leading
+ * to each action, this computes the longest chain of actions starting with each action, which is
+ * what matters when deciding which of several ready actions to execute first.
+ *
+ * <p>After instantiation, this object needs to be registered on the event bus to work.
+ */
+@ThreadSafe
+public class CriticalPathHistoryRecorder {
+
+  /** An action completed during the build. */
+  private static final class Node {
+    final String primaryOutputExecPath;
+    final String mnemonic;
+    final long durationMillis;
+    // Whether the action was actually executed, as opposed to being a middleman or a cache hit.
+    final boolean executed;
+    final Node[] dependencies;
+    // Longest remaining critical path of the actions depending on this one. Only used while
+    // computing the history.
+    long longestDependentMillis;
+
+    Node(
+        String primaryOutputExecPath,
+        String mnemonic,
+        long durationMillis,
+        boolean executed,
+        Node[] dependencies) {
+      this.primaryOutputExecPath = primaryOutputExecPath;
+      this.mnemonic = mnemonic;
+      this.durationMillis = durationMillis;
+      this.executed = executed;
+      this.dependencies = dependencies;
+    }
+  }
+
+  private final CriticalPathHistory previousHistory;
+  private final Clock clock;
+  private final int maxEntries;
+  private final ConcurrentMap<Artifact, Node> outputArtifactToNode = Maps.newConcurrentMap();
+  // Nodes in the order in which the actions completed. As an action only starts after all of the
+  // actions it depends on completed, this is a topological order of the action graph.
+  private final Queue<Node> completedNodes = new ConcurrentLinkedQueue<>();
+
+  public CriticalPathHistoryRecorder(CriticalPathHistory previousHistory, Clock clock) {
+    this(previousHistory, clock, CriticalPathHistory.MAX_ENTRIES);
+  }
+
+  @VisibleForTesting
+  CriticalPathHistoryRecorder(CriticalPathHistory previousHistory, Clock clock, int maxEntries) {
+    this.previousHistory = previousHistory;
+    this.clock = clock;
+    this.maxEntries = maxEntries;
+  }
+
+  @Subscribe
+  @AllowConcurrentEvents
+  public void actionComplete(ActionCompletionEvent event) {
+    record(event.getAction(), clock.nanoTime() - event.getRelativeActionStartTime(), true);
+  }
+
+  @Subscribe
+  @AllowConcurrentEvents
+  public void middlemanAction(ActionMiddlemanEvent event) {
+    record(event.getAction(), 0, false);
+  }
+
+  /**
+   * Records an action that was not executed because it was in the action cache. Only its place in
+   * the action graph is used; its entry in the history is not updated.
+   */
+  @Subscribe
+  @AllowConcurrentEvents
+  public void actionCached(CachedActionEvent event) {
+    record(event.getAction(), clock.nanoTime() - event.getNanoTimeStart(), false);
+  }
+
+  private void record(Action action, long durationNanos, boolean executed) {
+    Set<Node> dependencies = Sets.newIdentityHashSet();
+    for (Artifact input : action.getInputs()) {
+      Node dependency = outputArtifactToNode.get(input);
+      if (dependency != null) {
+        dependencies.add(dependency);
+      }
+    }
+    Node node =
+        new Node(
+            action.getPrimaryOutput().getExecPathString(),
+            action.getMnemonic(),
+            TimeUnit.NANOSECONDS.toMillis(durationNanos),
+            executed,
+            dependencies.toArray(new Node[0]));
+    if (outputArtifactToNode.putIfAbsent(action.getPrimaryOutput(), node) != null) {
+      // A shared action that was already recorded.
+      return;
+    }
+    for (Artifact output : action.getOutputs()) {
+      outputArtifactToNode.putIfAbsent(output, node);
+    }
+    completedNodes.add(node);
+  }
+
+  /**
+   * Returns the history of the previous build updated with the actions completed in this build.
+   * Must only be called after all actions completed.
+   *
+   * <p>An incremental build only sees the actions that had to be checked, so the chains computed
+   * from this build alone understate the critical path of most actions. The history is therefore
+   * merged rather than replaced: the duration of an executed action is averaged with its previous
+   * duration, and its remaining critical path is at least its previous one, since actions that
+   * depended on it and were up to date are not seen. Actions that were not executed (middlemen and
+   * action cache hits) only take part in the computation of the chains; they get no new entry and
+   * keep their previous one.
+   *
+   * <p>The entries of this build come first. The remaining entries of the previous history are
+   * kept in their order until the history holds {@code maxEntries} entries; older ones are
+   * dropped.
+   */
+  public CriticalPathHistory computeHistory() {
+    List<Node> nodes = new ArrayList<>(completedNodes);
+    Map<String, CriticalPathHistory.Entry> entries = new LinkedHashMap<>();
+    // Visit the actions depending on an action before the action itself.
+    for (int i = nodes.size() - 1; i >= 0; i--) {
+      Node node = nodes.get(i);
+      CriticalPathHistory.Entry previous = previousHistory.get(node.primaryOutputExecPath);
+      long durationMillis = node.durationMillis;
+      long longestDependentMillis = node.longestDependentMillis;
+      if (previous != null) {
+        durationMillis =
+            node.executed
+                ? (previous.getDurationMillis() + node.durationMillis) / 2
+                : previous.getDurationMillis();
+        longestDependentMillis =
+            Math.max(
+                longestDependentMillis,
+                previous.getRemainingCriticalPathMillis() - previous.getDurationMillis());
+      }
+      long remainingMillis = durationMillis + longestDependentMillis;
+      for (Node dependency : node.dependencies) {
+        dependency.longestDependentMillis =
+            Math.max(dependency.longestDependentMillis, remainingMillis);
+      }
+      if (entries.size() < maxEntries && (node.executed || previous != null)) {
+        entries.put(
+            node.primaryOutputExecPath,
+            new CriticalPathHistory.Entry(node.mnemonic, durationMillis, remainingMillis));
+      }
+    }
+    for (Map.Entry<String, CriticalPathHistory.Entry> previous :
+        previousHistory.getEntries().entrySet()) {
+      if (entries.size() >= maxEntries) {
+        break;
+      }
+      entries.putIfAbsent(previous.getKey(), previous.getValue());
+    }
+    return new CriticalPathHistory(entries);
+  }
+}
@@ -0,0 +1,132 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.lib.runtime;
+
+import com.google.devtools.build.lib.actions.ActionResult;
+import com.google.devtools.build.lib.actions.SpawnResult;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Aggregates the resources used by the processes of executed spawns per action mnemonic, so that
+ * the actions with the highest CPU and memory usage can be identified after the build.
+ *
+ * <p>Only spawns for which the spawn runner measured the resource usage are counted.
+ */
+@ThreadSafe
+class SpawnResourceStats {
+
+  /** Resource usage of all measured spawns of one mnemonic. */
+  private static final class MnemonicStats {
+    private final String mnemonic;
+
+    @GuardedBy("this")
+    private int count;
+
+    @GuardedBy("this")
+    private Duration userTime = Duration.ZERO;
+
+    @GuardedBy("this")
+    private Duration systemTime = Duration.ZERO;
+
+    @GuardedBy("this")
+    private long maxMemoryInKb;
+
+    @GuardedBy("this")
+    private long totalMemoryInKb;
+
+    @GuardedBy("this")
+    private long blockInputOperations;
+
+    @GuardedBy("this")
+    private long blockOutputOperations;
+
+    MnemonicStats(String mnemonic) {
+      this.mnemonic = mnemonic;
+    }
+
+    synchronized void add(SpawnResult spawnResult) {
+      count++;
+      userTime = userTime.plus(spawnResult.getUserTime().orElse(Duration.ZERO));
+      systemTime = systemTime.plus(spawnResult.getSystemTime().orElse(Duration.ZERO));
+      long memoryInKb = spawnResult.getMemoryInKb().orElse(0L);
+      maxMemoryInKb = Math.max(maxMemoryInKb, memoryInKb);
+      totalMemoryInKb += memoryInKb;
+      blockInputOperations += spawnResult.getNumBlockInputOperations().orElse(0L);
+      blockOutputOperations += spawnResult.getNumBlockOutputOperations().orElse(0L);
+    }
+
+    synchronized Duration getCpuTime() {
+      return userTime.plus(systemTime);
+    }
+
+    @Override
+    public synchronized String toString() {
+      return String.format(
+          "%s: %d process%s, user %.3fs, system %.3fs, max RSS %d KB, average RSS %d KB, "
+              + "block input %d, block output %d",
+          mnemonic,
+          count,
+          count == 1 ? "" : "es",
+          userTime.toMillis() / 1000.0,
+          systemTime.toMillis() / 1000.0,
+          maxMemoryInKb,
+          totalMemoryInKb / count,
+          blockInputOperations,
+          blockOutputOperations);
+    }
+  }
+
+  private final Map<String, MnemonicStats> statsByMnemonic = new ConcurrentHashMap<>();
+
+  public void countActionResult(String mnemonic, ActionResult actionResult) {
+    for (SpawnResult spawnResult : actionResult.spawnResults()) {
+      countSpawnResult(mnemonic, spawnResult);
+    }
+  }
+
+  public void countSpawnResult(String mnemonic, SpawnResult spawnResult) {
+    if (spawnResult.isCacheHit() || !spawnResult.getUserTime().isPresent()) {
+      return;
+    }
+    statsByMnemonic.computeIfAbsent(mnemonic, MnemonicStats::new).add(spawnResult);
+  }
+
+  /**
+   * Returns a human-readable summary of the resource usage per mnemonic, one line per mnemonic
+   * ordered by decreasing CPU time, or an empty string if no resource usage was measured.
+   */
+  public String getSummary() {
+    List<MnemonicStats> stats = new ArrayList<>(statsByMnemonic.values());
+    stats.sort(
+        Comparator.comparing(MnemonicStats::getCpuTime)
+            .reversed()
+            .thenComparing(s -> s.mnemonic));
+    StringBuilder result = new StringBuilder();
+    for (MnemonicStats s : stats) {
+      if (result.length() > 0) {
+        result.append('\n');
+      }
+      result.append(s);
+    }
+    return result.toString();
+  }
+}
@@ -17,7 +17,7 @@ package com.google.devtools.build.lib.runtime.commands;
 import static java.util.stream.Collectors.toList;
 
 import com.google.devtools.build.lib.actions.CommandLineExpansionException;
-import com.google.devtools.build.lib.analysis.AnalysisProtos.ActionGraphContainer;
+import com.google.devtools.build.lib.cmdline.TargetParsingException;
 import com.google.devtools.build.lib.events.Event;
 import com.google.devtools.build.lib.events.ExtendedEventHandler;
 import com.google.devtools.build.lib.packages.Attribute;
@@ -34,6 +34,8 @@ import com.google.devtools.build.lib.runtime.Command;
 import com.google.devtools.build.lib.runtime.CommandEnvironment;
 import com.google.devtools.build.lib.skyframe.SkyframeExecutor;
 import com.google.devtools.build.lib.skyframe.SkyframeExecutor.RuleStat;
+import com.google.devtools.build.lib.skyframe.actiongraph.ActionGraphDump;
+import com.google.devtools.build.lib.skyframe.actiongraph.StreamedActionGraphOutput;
 import com.google.devtools.build.lib.util.ExitCode;
 import com.google.devtools.common.options.Converters.CommaSeparatedOptionListConverter;
 import com.google.devtools.common.options.EnumConverter;
@@ -43,8 +45,10 @@ import com.google.devtools.common.options.OptionEffectTag;
 import com.google.devtools.common.options.OptionsBase;
 import com.google.devtools.common.options.OptionsParser;
 import com.google.devtools.common.options.OptionsProvider;
+import java.io.BufferedOutputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.PrintStream;
 import java.util.ArrayList;
 import java.util.Collection;
@@ -98,7 +102,10 @@ public class DumpCommand implements BlazeCommand {
       defaultValue = "null",
       documentationCategory = OptionDocumentationCategory.OUTPUT_SELECTION,
       effectTags = {OptionEffectTag.BAZEL_MONITORING},
-      help = "Dump action graph to the specified path."
+      help =
+          "Dump action graph to the specified path. The targets are dumped in parallel, so the "
+              + "order of the records and their ids differ between two dumps of the same graph; "
+              + "compare dumps by the contents of the records they refer to."
     )
     public String dumpActionGraph;
 
@@ -109,11 +116,24 @@ public class DumpCommand implements BlazeCommand {
       documentationCategory = OptionDocumentationCategory.OUTPUT_SELECTION,
       effectTags = {OptionEffectTag.BAZEL_MONITORING},
       help =
-          "Comma separated list of targets to include in action graph dump. "
-              + "Defaults to all attributes. This option does only apply to --action_graph."
+          "Comma separated list of targets to include in action graph dump. Besides labels, "
+              + "patterns such as //foo:all and //foo/... select all targets in or below a "
+              + "package. Defaults to all targets. This option does only apply to --action_graph."
     )
     public List<String> actionGraphTargets;
 
+    @Option(
+      name = "action_graph:mnemonics",
+      converter = CommaSeparatedOptionListConverter.class,
+      defaultValue = "",
+      documentationCategory = OptionDocumentationCategory.OUTPUT_SELECTION,
+      effectTags = {OptionEffectTag.BAZEL_MONITORING},
+      help =
+          "Comma separated list of mnemonics of the actions to include in action graph dump. "
+              + "Defaults to all actions. This option does only apply to --action_graph."
+    )
+    public List<String> actionGraphMnemonics;
+
     @Option(
       name = "action_graph:include_cmdline",
       defaultValue = "false",
@@ -239,10 +259,17 @@ public class DumpCommand implements BlazeCommand {
                   env.getSkyframeExecutor(),
                   dumpOptions.dumpActionGraph,
                   dumpOptions.actionGraphTargets,
+                  dumpOptions.actionGraphMnemonics,
                   dumpOptions.actionGraphIncludeCmdLine,
                   out);
         } catch (CommandLineExpansionException e) {
           env.getReporter().handle(Event.error(null, "Error expanding command line: " + e));
+        } catch (TargetParsingException e) {
+          env.getReporter().handle(Event.error(null, "Invalid action graph target: " + e));
+          success = false;
+        } catch (InterruptedException e) {
+          env.getReporter().handle(Event.error("Action graph dump interrupted"));
+          return BlazeCommandResult.exitCode(ExitCode.INTERRUPTED);
         } catch (IOException e) {
           env.getReporter()
               .error(
@@ -297,15 +324,21 @@ public class DumpCommand implements BlazeCommand {
       SkyframeExecutor executor,
       String path,
       List<String> actionGraphTargets,
+      List<String> actionGraphMnemonics,
       boolean includeActionCmdLine,
       PrintStream out)
-      throws CommandLineExpansionException, IOException {
+      throws CommandLineExpansionException, IOException, TargetParsingException,
+          InterruptedException {
     out.println("Dumping action graph to '" + path + "'");
-    ActionGraphContainer actionGraphContainer =
-        executor.getActionGraphContainer(actionGraphTargets, includeActionCmdLine);
-    FileOutputStream protoOutputStream = new FileOutputStream(path);
-    actionGraphContainer.writeTo(protoOutputStream);
-    protoOutputStream.close();
+    try (OutputStream protoOutputStream = new BufferedOutputStream(new FileOutputStream(path))) {
+      ActionGraphDump actionGraphDump =
+          new ActionGraphDump(
+              actionGraphTargets,
+              actionGraphMnemonics,
+              includeActionCmdLine,
+              new StreamedActionGraphOutput(protoOutputStream));
+      executor.dumpActionGraph(actionGraphDump, Runtime.getRuntime().availableProcessors());
+    }
     return true;
   }
 
@@ -24,6 +24,8 @@ import com.google.devtools.build.lib.events.Event;
 import com.google.devtools.build.lib.packages.Target;
 import com.google.devtools.build.lib.pkgcache.PackageCacheOptions;
 import com.google.devtools.build.lib.query2.AbstractBlazeQueryEnvironment;
+import com.google.devtools.build.lib.query2.BlazeQueryEnvironment;
+import com.google.devtools.build.lib.query2.ReverseDependencyIndex;
 import com.google.devtools.build.lib.query2.engine.QueryEnvironment.Setting;
 import com.google.devtools.build.lib.query2.engine.QueryEvalResult;
 import com.google.devtools.build.lib.query2.engine.QueryException;
@@ -34,6 +36,7 @@ import com.google.devtools.build.lib.query2.engine.ThreadSafeOutputFormatterCall
 import com.google.devtools.build.lib.query2.output.OutputFormatter;
 import com.google.devtools.build.lib.query2.output.OutputFormatter.StreamedFormatter;
 import com.google.devtools.build.lib.query2.output.QueryOptions;
+import com.google.devtools.build.lib.query2.output.QueryOptions.OrderOutput;
 import com.google.devtools.build.lib.query2.output.QueryOutputUtils;
 import com.google.devtools.build.lib.runtime.BlazeCommand;
 import com.google.devtools.build.lib.runtime.BlazeCommandResult;
@@ -140,6 +143,15 @@ public final class QueryCommand implements BlazeCommand {
 
     Set<Setting> settings = queryOptions.toSettings();
     boolean streamResults = QueryOutputUtils.shouldStreamResults(queryOptions, formatter);
+    if (queryOptions.orderOutput == OrderOutput.NO && !streamResults) {
+      env.getReporter()
+          .handle(
+              Event.warn(
+                  String.format(
+                      "--output=%s needs the complete result graph and cannot be streamed; the "
+                          + "whole result will be kept in memory",
+                      queryOptions.outputFormat)));
+    }
     QueryEvalResult result;
     AbstractBlazeQueryEnvironment<Target> queryEnv =
         newQueryEnvironment(
@@ -149,6 +161,14 @@ public final class QueryCommand implements BlazeCommand {
             queryOptions.universeScope,
             options.getOptions(LoadingPhaseThreadsOption.class).threads,
             settings);
+    // The index is only kept up to date while queries use it.
+    ReverseDependencyIndex reverseDependencyIndex = env.getRuntime().getReverseDependencyIndex();
+    reverseDependencyIndex.setEnabled(queryOptions.useReverseDependencyIndex);
+    if (queryOptions.useReverseDependencyIndex && queryEnv instanceof BlazeQueryEnvironment) {
+      ((BlazeQueryEnvironment) queryEnv)
+          .setReverseDependencyIndex(
+              reverseDependencyIndex, env.getSkyframeExecutor()::getLoadedPackages);
+    }
     QueryExpression expr;
     try {
       expr = QueryExpression.parse(query, queryEnv);
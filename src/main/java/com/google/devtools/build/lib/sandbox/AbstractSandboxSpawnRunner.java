@@ -28,6 +28,8 @@ import com.google.devtools.build.lib.actions.SpawnResult.Status;
 import com.google.devtools.build.lib.actions.UserExecException;
 import com.google.devtools.build.lib.exec.ExecutionOptions;
 import com.google.devtools.build.lib.exec.SpawnRunner;
+import com.google.devtools.build.lib.profiler.Profiler;
+import com.google.devtools.build.lib.profiler.ProfilerTask;
 import com.google.devtools.build.lib.runtime.CommandEnvironment;
 import com.google.devtools.build.lib.shell.AbnormalTerminationException;
 import com.google.devtools.build.lib.shell.Command;
@@ -41,6 +43,7 @@ import com.google.devtools.build.lib.vfs.Path;
 import java.io.IOException;
 import java.time.Duration;
 import java.util.Map;
+import javax.annotation.Nullable;
 
 /** Abstract common ancestor for sandbox spawn runners implementing the common parts. */
 abstract class AbstractSandboxSpawnRunner implements SpawnRunner {
@@ -53,12 +56,27 @@ abstract class AbstractSandboxSpawnRunner implements SpawnRunner {
   private final SandboxOptions sandboxOptions;
   private final boolean verboseFailures;
   private final ImmutableSet<Path> inaccessiblePaths;
+  private final TreeDeleter treeDeleter;
+  private final @Nullable SandboxDirectoryPool directoryPool;
 
-  public AbstractSandboxSpawnRunner(CommandEnvironment cmdEnv) {
+  /**
+   * Creates the runner.
+   *
+   * @param cmdEnv the command environment to use
+   * @param treeDeleter the deleter to delete the sandboxes with
+   * @param directoryPool the pool of pre-created sandbox directories; may be null for none, in
+   *     which case every sandbox creates its own directories
+   */
+  public AbstractSandboxSpawnRunner(
+      CommandEnvironment cmdEnv,
+      TreeDeleter treeDeleter,
+      @Nullable SandboxDirectoryPool directoryPool) {
     this.sandboxOptions = cmdEnv.getOptions().getOptions(SandboxOptions.class);
     this.verboseFailures = cmdEnv.getOptions().getOptions(ExecutionOptions.class).verboseFailures;
     this.inaccessiblePaths =
         sandboxOptions.getInaccessiblePaths(cmdEnv.getRuntime().getFileSystem());
+    this.treeDeleter = treeDeleter;
+    this.directoryPool = directoryPool;
   }
 
   @Override
@@ -89,12 +107,34 @@ abstract class AbstractSandboxSpawnRunner implements SpawnRunner {
       Duration timeout,
       Path statisticsPath)
       throws IOException, InterruptedException {
+    return runSpawn(originalSpawn, sandbox, context, execRoot, timeout, statisticsPath, null);
+  }
+
+  /**
+   * Runs the spawn in the given sandbox.
+   *
+   * @param cgroup the cgroup the spawn runs in, which is removed once the spawn finished; may be
+   *     null if the spawn does not run in a cgroup of its own
+   */
+  protected SpawnResult runSpawn(
+      Spawn originalSpawn,
+      SandboxedSpawn sandbox,
+      SpawnExecutionContext context,
+      Path execRoot,
+      Duration timeout,
+      Path statisticsPath,
+      @Nullable SpawnCgroup cgroup)
+      throws IOException, InterruptedException {
+    Profiler profiler = Profiler.instance();
     try {
+      long setupStartTime = Profiler.nanoTimeMaybe();
       sandbox.createFileSystem();
+      profiler.logSimpleTask(setupStartTime, ProfilerTask.SANDBOX_SETUP, describe(originalSpawn));
       OutErr outErr = context.getFileOutErr();
       context.prefetchInputs();
 
-      SpawnResult result = run(originalSpawn, sandbox, outErr, timeout, execRoot, statisticsPath);
+      SpawnResult result =
+          run(originalSpawn, sandbox, outErr, timeout, execRoot, statisticsPath, cgroup);
 
       context.lockOutputFiles();
       try {
@@ -105,19 +145,30 @@ abstract class AbstractSandboxSpawnRunner implements SpawnRunner {
       }
       return result;
     } finally {
+      if (cgroup != null) {
+        cgroup.destroy();
+      }
       if (!sandboxOptions.sandboxDebug) {
+        long teardownStartTime = Profiler.nanoTimeMaybe();
         sandbox.delete();
+        profiler.logSimpleTask(
+            teardownStartTime, ProfilerTask.SANDBOX_TEARDOWN, describe(originalSpawn));
       }
     }
   }
 
+  private static String describe(Spawn spawn) {
+    return spawn.getResourceOwner().prettyPrint();
+  }
+
   private final SpawnResult run(
       Spawn originalSpawn,
       SandboxedSpawn sandbox,
       OutErr outErr,
       Duration timeout,
       Path execRoot,
-      Path statisticsPath)
+      Path statisticsPath,
+      @Nullable SpawnCgroup cgroup)
       throws IOException, InterruptedException {
     Command cmd = new Command(
         sandbox.getArguments().toArray(new String[0]),
@@ -174,6 +225,9 @@ abstract class AbstractSandboxSpawnRunner implements SpawnRunner {
         wasTimeout
             ? Status.TIMEOUT
             : (exitCode == 0) ? Status.SUCCESS : Status.NON_ZERO_EXIT;
+    if (status == Status.NON_ZERO_EXIT && cgroup != null && cgroup.wasOomKilled()) {
+      status = Status.OUT_OF_MEMORY;
+    }
 
     SpawnResult.Builder spawnResultBuilder =
         new SpawnResult.Builder()
@@ -185,17 +239,11 @@ abstract class AbstractSandboxSpawnRunner implements SpawnRunner {
 
     if (statisticsPath != null) {
       ExecutionStatistics.getResourceUsage(statisticsPath)
-          .ifPresent(
-              resourceUsage -> {
-                spawnResultBuilder.setUserTime(resourceUsage.getUserExecutionTime());
-                spawnResultBuilder.setSystemTime(resourceUsage.getSystemExecutionTime());
-                spawnResultBuilder.setNumBlockOutputOperations(
-                    resourceUsage.getBlockOutputOperations());
-                spawnResultBuilder.setNumBlockInputOperations(
-                    resourceUsage.getBlockInputOperations());
-                spawnResultBuilder.setNumInvoluntaryContextSwitches(
-                    resourceUsage.getInvoluntaryContextSwitches());
-              });
+          .ifPresent(spawnResultBuilder::setResourceUsage);
+    }
+    if (cgroup != null) {
+      // Unlike the statistics of linux-sandbox, these include processes which were not waited for.
+      cgroup.addResourceUsage(spawnResultBuilder);
     }
 
     return spawnResultBuilder.build();
@@ -274,4 +322,22 @@ abstract class AbstractSandboxSpawnRunner implements SpawnRunner {
   protected SandboxOptions getSandboxOptions() {
     return sandboxOptions;
   }
+
+  protected TreeDeleter getTreeDeleter() {
+    return treeDeleter;
+  }
+
+  /**
+   * Creates the directory of a new sandbox and the directory of its exec root, taking them from the
+   * pool of pre-created sandbox directories if there is one available.
+   */
+  protected void createSandboxDirectories(Path sandboxPath, Path sandboxExecRoot)
+      throws IOException {
+    if (directoryPool != null && directoryPool.takeSandboxDirectory(sandboxPath)) {
+      return;
+    }
+    sandboxPath.createDirectory();
+    sandboxExecRoot.getParentDirectory().createDirectory();
+    sandboxExecRoot.createDirectory();
+  }
 }
@@ -0,0 +1,89 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.lib.sandbox;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.devtools.build.lib.concurrent.ExecutorUtil;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.Path;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * A {@link TreeDeleter} that moves the trees into a trash directory and deletes them there in the
+ * background, so that deleting a sandbox only costs a rename on the critical path of its action.
+ */
+final class AsynchronousTreeDeleter implements TreeDeleter {
+
+  private static final Logger log = Logger.getLogger(AsynchronousTreeDeleter.class.getName());
+
+  private final Path trashBase;
+  private final ExecutorService service;
+  private final AtomicInteger nextTrashId = new AtomicInteger();
+
+  /**
+   * Creates a deleter.
+   *
+   * @param trashBase the directory to move the trees into before deleting them, which must not
+   *     exist yet and must be on the same file system as the trees
+   * @param threads the maximum number of trees to delete at the same time
+   */
+  AsynchronousTreeDeleter(Path trashBase, int threads) throws IOException {
+    this.trashBase = trashBase;
+    trashBase.createDirectory();
+    this.service =
+        Executors.newFixedThreadPool(
+            threads,
+            new ThreadFactoryBuilder()
+                .setNameFormat("sandbox-tree-deleter-%d")
+                .setDaemon(true)
+                .build());
+  }
+
+  @Override
+  public void deleteTree(Path path) throws IOException {
+    Path trashPath = trashBase.getRelative(Integer.toString(nextTrashId.getAndIncrement()));
+    try {
+      path.renameTo(trashPath);
+    } catch (IOException e) {
+      // The tree may be on another file system, or gone already. Fall back to deleting it in
+      // place, which also reports the error if there is one.
+      FileSystemUtils.deleteTree(path);
+      return;
+    }
+    service.execute(
+        () -> {
+          try {
+            FileSystemUtils.deleteTree(trashPath);
+          } catch (IOException e) {
+            // The SandboxModule deletes the whole sandbox base after the build anyway.
+            log.warning("Cannot delete " + trashPath + ": " + e);
+          }
+        });
+  }
+
+  /**
+   * Stops deleting trees, abandoning those that are not being deleted yet, and waits for the ones
+   * being deleted. The caller is responsible for deleting the trash directory afterwards.
+   */
+  void shutdown() {
+    if (ExecutorUtil.uninterruptibleShutdownNow(service)) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
@@ -116,14 +116,18 @@ final class DarwinSandboxedSpawnRunner extends AbstractSandboxSpawnRunner {
    * @param timeoutKillDelay additional grace period before killing timing out commands
    * @param sandboxfsProcess instance of the sandboxfs process to use; may be null for none, in
    *     which case the runner uses a symlinked sandbox
+   * @param treeDeleter the deleter to delete the sandboxes with
+   * @param directoryPool the pool of pre-created sandbox directories; may be null for none
    */
   DarwinSandboxedSpawnRunner(
       CommandEnvironment cmdEnv,
       Path sandboxBase,
       Duration timeoutKillDelay,
-      @Nullable SandboxfsProcess sandboxfsProcess)
+      @Nullable SandboxfsProcess sandboxfsProcess,
+      TreeDeleter treeDeleter,
+      @Nullable SandboxDirectoryPool directoryPool)
       throws IOException {
-    super(cmdEnv);
+    super(cmdEnv, treeDeleter, directoryPool);
     this.execRoot = cmdEnv.getExecRoot();
     this.allowNetwork = SandboxHelpers.shouldAllowNetwork(cmdEnv.getOptions());
     this.alwaysWritableDirs = getAlwaysWritableDirs(cmdEnv.getRuntime().getFileSystem());
@@ -197,13 +201,11 @@ final class DarwinSandboxedSpawnRunner extends AbstractSandboxSpawnRunner {
       throws IOException, InterruptedException {
     // Each invocation of "exec" gets its own sandbox.
     Path sandboxPath = sandboxBase.getRelative(Integer.toString(context.getId()));
-    sandboxPath.createDirectory();
 
     // b/64689608: The execroot of the sandboxed process must end with the workspace name, just like
     // the normal execroot does.
     Path sandboxExecRoot = sandboxPath.getRelative("execroot").getRelative(execRoot.getBaseName());
-    sandboxExecRoot.getParentDirectory().createDirectory();
-    sandboxExecRoot.createDirectory();
+    createSandboxDirectories(sandboxPath, sandboxExecRoot);
 
     Map<String, String> environment =
         localEnvProvider.rewriteLocalEnv(spawn.getEnvironment(), execRoot, "/tmp");
@@ -274,7 +276,8 @@ final class DarwinSandboxedSpawnRunner extends AbstractSandboxSpawnRunner {
               environment,
               inputs,
               outputs,
-              writableDirs) {
+              writableDirs,
+              getTreeDeleter()) {
             @Override
             public void createFileSystem() throws IOException {
               super.createFileSystem();
@@ -67,6 +67,7 @@ public final class LinuxSandboxUtil {
     private Set<Path> tmpfsDirectories = ImmutableSet.of();
     private Map<Path, Path> bindMounts = ImmutableMap.of();
     private Path statisticsPath;
+    private Path cgroupPath;
     private boolean useFakeHostname = false;
     private boolean createNetworkNamespace = false;
     private boolean useFakeRoot = false;
@@ -145,6 +146,12 @@ public final class LinuxSandboxUtil {
       return this;
     }
 
+    /** Sets the directory of the cgroup to run the command in. */
+    public CommandLineBuilder setCgroupPath(Path cgroupPath) {
+      this.cgroupPath = cgroupPath;
+      return this;
+    }
+
     /** Sets whether to use a fake 'localhost' hostname inside the sandbox. */
     public CommandLineBuilder setUseFakeHostname(boolean useFakeHostname) {
       this.useFakeHostname = useFakeHostname;
@@ -226,6 +233,9 @@ public final class LinuxSandboxUtil {
       if (statisticsPath != null) {
         commandLineBuilder.add("-S", statisticsPath.getPathString());
       }
+      if (cgroupPath != null) {
+        commandLineBuilder.add("-C", cgroupPath.getPathString());
+      }
       if (useFakeHostname) {
         commandLineBuilder.add("-H");
       }
@@ -83,6 +83,8 @@ final class LinuxSandboxedSpawnRunner extends AbstractSandboxSpawnRunner {
   private final LocalEnvProvider localEnvProvider;
   private final Duration timeoutKillDelay;
   private final @Nullable SandboxfsProcess sandboxfsProcess;
+  private final @Nullable SandboxStash sandboxStash;
+  private final @Nullable Path cgroupBase;
 
   /**
    * Creates a sandboxed spawn runner that uses the {@code linux-sandbox} tool.
@@ -94,6 +96,12 @@ final class LinuxSandboxedSpawnRunner extends AbstractSandboxSpawnRunner {
    * @param timeoutKillDelay an additional grace period before killing timing out commands
    * @param sandboxfsProcess instance of the sandboxfs process to use; may be null for none, in
    *     which case the runner uses a symlinked sandbox
+   * @param sandboxStash the stash to reuse symlinked sandboxes from; may be null to create a new
+   *     sandbox for every spawn
+   * @param treeDeleter the deleter to delete the sandboxes with
+   * @param directoryPool the pool of pre-created sandbox directories; may be null for none
+   * @param cgroupBase the cgroup prepared by {@link SpawnCgroup#prepareParent} to run each spawn
+   *     in a cgroup of its own below; may be null to not use cgroups
    */
   LinuxSandboxedSpawnRunner(
       CommandEnvironment cmdEnv,
@@ -101,8 +109,12 @@ final class LinuxSandboxedSpawnRunner extends AbstractSandboxSpawnRunner {
       Path inaccessibleHelperFile,
       Path inaccessibleHelperDir,
       Duration timeoutKillDelay,
-      @Nullable SandboxfsProcess sandboxfsProcess) {
-    super(cmdEnv);
+      @Nullable SandboxfsProcess sandboxfsProcess,
+      @Nullable SandboxStash sandboxStash,
+      TreeDeleter treeDeleter,
+      @Nullable SandboxDirectoryPool directoryPool,
+      @Nullable Path cgroupBase) {
+    super(cmdEnv, treeDeleter, directoryPool);
     this.fileSystem = cmdEnv.getRuntime().getFileSystem();
     this.blazeDirs = cmdEnv.getDirectories();
     this.execRoot = cmdEnv.getExecRoot();
@@ -113,21 +125,26 @@ final class LinuxSandboxedSpawnRunner extends AbstractSandboxSpawnRunner {
     this.inaccessibleHelperDir = inaccessibleHelperDir;
     this.timeoutKillDelay = timeoutKillDelay;
     this.sandboxfsProcess = sandboxfsProcess;
+    this.sandboxStash = sandboxStash;
+    this.cgroupBase = cgroupBase;
     this.localEnvProvider = new PosixLocalEnvProvider(cmdEnv.getClientEnv());
   }
 
   @Override
   protected SpawnResult actuallyExec(Spawn spawn, SpawnExecutionContext context)
       throws IOException, ExecException, InterruptedException {
-    // Each invocation of "exec" gets its own sandbox base, execroot and temporary directory.
+    // Each invocation of "exec" gets its own sandbox base, execroot and temporary directory. It may
+    // be the one of a previous spawn with the same mnemonic, if there is one to reuse.
     Path sandboxPath = sandboxBase.getRelative(Integer.toString(context.getId()));
-    sandboxPath.createDirectory();
+    boolean reused =
+        sandboxStash != null && sandboxStash.takeStashedSandbox(spawn.getMnemonic(), sandboxPath);
 
     // b/64689608: The execroot of the sandboxed process must end with the workspace name, just like
     // the normal execroot does.
     Path sandboxExecRoot = sandboxPath.getRelative("execroot").getRelative(execRoot.getBaseName());
-    sandboxExecRoot.getParentDirectory().createDirectory();
-    sandboxExecRoot.createDirectory();
+    if (!reused) {
+      createSandboxDirectories(sandboxPath, sandboxExecRoot);
+    }
 
     Map<String, String> environment =
         localEnvProvider.rewriteLocalEnv(spawn.getEnvironment(), execRoot, "/tmp");
@@ -162,6 +179,17 @@ final class LinuxSandboxedSpawnRunner extends AbstractSandboxSpawnRunner {
       commandLineBuilder.setStatisticsPath(statisticsPath);
     }
 
+    SpawnCgroup cgroup = null;
+    if (cgroupBase != null) {
+      cgroup =
+          SpawnCgroup.create(
+              cgroupBase,
+              Integer.toString(context.getId()),
+              spawn.getLocalResources(),
+              getSandboxOptions().cgroupLimitFactor);
+      commandLineBuilder.setCgroupPath(cgroup.getPath());
+    }
+
     SandboxedSpawn sandbox;
     if (sandboxfsProcess != null) {
       sandbox =
@@ -173,6 +201,20 @@ final class LinuxSandboxedSpawnRunner extends AbstractSandboxSpawnRunner {
               SandboxHelpers.getInputFiles(spawn, context, execRoot),
               outputs,
               ImmutableSet.of());
+    } else if (sandboxStash != null) {
+      sandbox =
+          new ReusedSymlinkedSandboxedSpawn(
+              sandboxStash,
+              spawn.getMnemonic(),
+              reused,
+              sandboxPath,
+              sandboxExecRoot,
+              commandLineBuilder.build(),
+              environment,
+              SandboxHelpers.getInputFiles(spawn, context, execRoot),
+              outputs,
+              writableDirs,
+              getTreeDeleter());
     } else {
       sandbox =
           new SymlinkedSandboxedSpawn(
@@ -182,10 +224,11 @@ final class LinuxSandboxedSpawnRunner extends AbstractSandboxSpawnRunner {
               environment,
               SandboxHelpers.getInputFiles(spawn, context, execRoot),
               outputs,
-              writableDirs);
+              writableDirs,
+              getTreeDeleter());
     }
 
-    return runSpawn(spawn, sandbox, context, execRoot, timeout, statisticsPath);
+    return runSpawn(spawn, sandbox, context, execRoot, timeout, statisticsPath, cgroup);
   }
 
   @Override
@@ -19,6 +19,7 @@ import com.google.devtools.build.lib.actions.SpawnActionContext;
 import com.google.devtools.build.lib.exec.AbstractSpawnStrategy;
 import com.google.devtools.build.lib.exec.SpawnRunner;
 import com.google.devtools.build.lib.runtime.CommandEnvironment;
+import com.google.devtools.build.lib.util.Fingerprint;
 import com.google.devtools.build.lib.vfs.FileSystemUtils;
 import com.google.devtools.build.lib.vfs.Path;
 import java.io.IOException;
@@ -49,10 +50,17 @@ public final class LinuxSandboxedStrategy extends AbstractSpawnStrategy {
    * @param timeoutKillDelay additional grace period before killing timing out commands
    * @param sandboxfsProcess instance of the sandboxfs process to use; may be null for none, in
    *     which case the runner uses a symlinked sandbox
+   * @param treeDeleter the deleter to delete the sandboxes with
+   * @param directoryPool the pool of pre-created sandbox directories; may be null for none
    */
   static LinuxSandboxedSpawnRunner create(
-      CommandEnvironment cmdEnv, Path sandboxBase, Duration timeoutKillDelay,
-      @Nullable SandboxfsProcess sandboxfsProcess) throws IOException {
+      CommandEnvironment cmdEnv,
+      Path sandboxBase,
+      Duration timeoutKillDelay,
+      @Nullable SandboxfsProcess sandboxfsProcess,
+      TreeDeleter treeDeleter,
+      @Nullable SandboxDirectoryPool directoryPool)
+      throws IOException {
     Path inaccessibleHelperFile = sandboxBase.getRelative("inaccessibleHelperFile");
     FileSystemUtils.touchFile(inaccessibleHelperFile);
     inaccessibleHelperFile.setReadable(false);
@@ -65,12 +73,36 @@ public final class LinuxSandboxedStrategy extends AbstractSpawnStrategy {
     inaccessibleHelperDir.setWritable(false);
     inaccessibleHelperDir.setExecutable(false);
 
+    SandboxOptions options = cmdEnv.getOptions().getOptions(SandboxOptions.class);
+    SandboxStash sandboxStash = null;
+    if (sandboxfsProcess == null && options.reuseSandboxDirectories) {
+      sandboxStash = new SandboxStash(sandboxBase.getRelative("stash"));
+    }
+
+    Path cgroupBase = null;
+    if (!options.cgroupParent.isEmpty()) {
+      Path cgroupParent = cmdEnv.getRuntime().getFileSystem().getPath(options.cgroupParent);
+      SpawnCgroup.prepareParent(cgroupParent);
+      // Servers of different output bases may share the parent, but not the cgroups of spawns.
+      cgroupBase =
+          cgroupParent.getRelative(
+              String.format(
+                  "%s-%s",
+                  cmdEnv.getRuntime().getProductName(),
+                  Fingerprint.md5Digest(cmdEnv.getOutputBase().toString())));
+      SpawnCgroup.prepareParent(cgroupBase);
+    }
+
     return new LinuxSandboxedSpawnRunner(
         cmdEnv,
         sandboxBase,
         inaccessibleHelperFile,
         inaccessibleHelperDir,
         timeoutKillDelay,
-        sandboxfsProcess);
+        sandboxfsProcess,
+        sandboxStash,
+        treeDeleter,
+        directoryPool,
+        cgroupBase);
   }
 }
@@ -27,6 +27,7 @@ import com.google.devtools.build.lib.vfs.Path;
 import java.io.IOException;
 import java.time.Duration;
 import java.util.Map;
+import javax.annotation.Nullable;
 
 /** Strategy that uses sandboxing to execute a process. */
 final class ProcessWrapperSandboxedSpawnRunner extends AbstractSandboxSpawnRunner {
@@ -48,10 +49,17 @@ final class ProcessWrapperSandboxedSpawnRunner extends AbstractSandboxSpawnRunne
    * @param sandboxBase path to the sandbox base directory
    * @param productName the product name to use
    * @param timeoutKillDelay additional grace period before killing timing out commands
+   * @param treeDeleter the deleter to delete the sandboxes with
+   * @param directoryPool the pool of pre-created sandbox directories; may be null for none
    */
   ProcessWrapperSandboxedSpawnRunner(
-      CommandEnvironment cmdEnv, Path sandboxBase, String productName, Duration timeoutKillDelay) {
-    super(cmdEnv);
+      CommandEnvironment cmdEnv,
+      Path sandboxBase,
+      String productName,
+      Duration timeoutKillDelay,
+      TreeDeleter treeDeleter,
+      @Nullable SandboxDirectoryPool directoryPool) {
+    super(cmdEnv, treeDeleter, directoryPool);
     this.processWrapper = ProcessWrapperUtil.getProcessWrapper(cmdEnv);
     this.execRoot = cmdEnv.getExecRoot();
     this.localEnvProvider =
@@ -67,13 +75,11 @@ final class ProcessWrapperSandboxedSpawnRunner extends AbstractSandboxSpawnRunne
       throws ExecException, IOException, InterruptedException {
     // Each invocation of "exec" gets its own sandbox.
     Path sandboxPath = sandboxBase.getRelative(Integer.toString(context.getId()));
-    sandboxPath.createDirectory();
 
     // b/64689608: The execroot of the sandboxed process must end with the workspace name, just like
     // the normal execroot does.
     Path sandboxExecRoot = sandboxPath.getRelative("execroot").getRelative(execRoot.getBaseName());
-    sandboxExecRoot.getParentDirectory().createDirectory();
-    sandboxExecRoot.createDirectory();
+    createSandboxDirectories(sandboxPath, sandboxExecRoot);
 
     Map<String, String> environment =
         localEnvProvider.rewriteLocalEnv(spawn.getEnvironment(), execRoot, "/tmp");
@@ -99,7 +105,8 @@ final class ProcessWrapperSandboxedSpawnRunner extends AbstractSandboxSpawnRunne
             environment,
             SandboxHelpers.getInputFiles(spawn, context, execRoot),
             SandboxHelpers.getOutputFiles(spawn),
-            getWritableDirs(sandboxExecRoot, environment));
+            getWritableDirs(sandboxExecRoot, environment),
+            getTreeDeleter());
 
     return runSpawn(spawn, sandbox, context, execRoot, timeout, statisticsPath);
   }
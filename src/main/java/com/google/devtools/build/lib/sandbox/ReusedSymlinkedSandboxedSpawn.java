@@ -0,0 +1,173 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.sandbox;
+
+import com.google.common.collect.Iterables;
+import com.google.devtools.build.lib.vfs.Dirent;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.PathFragment;
+import com.google.devtools.build.lib.vfs.Symlinks;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A {@link SymlinkedSandboxedSpawn} whose sandbox directory is taken from and returned to a
+ * {@link SandboxStash}.
+ *
+ * <p>When the sandbox directory of a previous spawn is reused, only the symlinks to inputs which
+ * the previous spawn did not have are created, and only the files which this spawn does not need
+ * are deleted.
+ */
+final class ReusedSymlinkedSandboxedSpawn extends SymlinkedSandboxedSpawn {
+  private final SandboxStash stash;
+  private final String mnemonic;
+  private final boolean reused;
+  private final Path sandboxPath;
+  private final Path sandboxExecRoot;
+  private final Map<PathFragment, Path> inputs;
+  private final Collection<PathFragment> outputs;
+  private final Set<Path> writableDirs;
+
+  /**
+   * Creates the spawn.
+   *
+   * @param reused whether the sandbox directory was taken from the stash, and thus contains the
+   *     files of a previous spawn
+   */
+  ReusedSymlinkedSandboxedSpawn(
+      SandboxStash stash,
+      String mnemonic,
+      boolean reused,
+      Path sandboxPath,
+      Path sandboxExecRoot,
+      List<String> arguments,
+      Map<String, String> environment,
+      Map<PathFragment, Path> inputs,
+      Collection<PathFragment> outputs,
+      Set<Path> writableDirs,
+      TreeDeleter treeDeleter) {
+    super(
+        sandboxPath,
+        sandboxExecRoot,
+        arguments,
+        environment,
+        inputs,
+        outputs,
+        writableDirs,
+        treeDeleter);
+    this.stash = stash;
+    this.mnemonic = mnemonic;
+    this.reused = reused;
+    this.sandboxPath = sandboxPath;
+    this.sandboxExecRoot = sandboxExecRoot;
+    this.inputs = inputs;
+    this.outputs = outputs;
+    this.writableDirs = writableDirs;
+  }
+
+  @Override
+  public void createFileSystem() throws IOException {
+    if (!reused) {
+      super.createFileSystem();
+      return;
+    }
+    // Everything besides the exec root, like the statistics of the previous spawn, goes away.
+    deleteAllBut(sandboxPath, sandboxExecRoot);
+
+    Map<PathFragment, Path> missingInputs = new HashMap<>(inputs);
+    Set<PathFragment> dirsToKeep = new HashSet<>();
+    for (PathFragment path : Iterables.concat(inputs.keySet(), outputs)) {
+      for (int i = 0; i < path.segmentCount(); i++) {
+        dirsToKeep.add(path.subFragment(0, i));
+      }
+    }
+    for (Path dir : writableDirs) {
+      if (dir.startsWith(sandboxExecRoot)) {
+        PathFragment relativeDir = dir.relativeTo(sandboxExecRoot);
+        for (int i = 0; i <= relativeDir.segmentCount(); i++) {
+          dirsToKeep.add(relativeDir.subFragment(0, i));
+        }
+      }
+    }
+    cleanDirectory(sandboxExecRoot, PathFragment.EMPTY_FRAGMENT, missingInputs, dirsToKeep);
+
+    createDirectories();
+    createInputs(missingInputs);
+  }
+
+  /**
+   * Deletes everything in the directory which the spawn does not need, and removes the inputs
+   * which already exist from {@code missingInputs}.
+   */
+  private static void cleanDirectory(
+      Path dir,
+      PathFragment relativeDir,
+      Map<PathFragment, Path> missingInputs,
+      Set<PathFragment> dirsToKeep)
+      throws IOException {
+    for (Dirent dirent : dir.readdir(Symlinks.NOFOLLOW)) {
+      Path child = dir.getRelative(dirent.getName());
+      PathFragment relativeChild = relativeDir.getRelative(dirent.getName());
+      switch (dirent.getType()) {
+        case SYMLINK:
+          Path target = missingInputs.get(relativeChild);
+          if (target != null && child.readSymbolicLink().equals(target.asFragment())) {
+            missingInputs.remove(relativeChild);
+          } else {
+            child.delete();
+          }
+          break;
+        case DIRECTORY:
+          if (dirsToKeep.contains(relativeChild)) {
+            cleanDirectory(child, relativeChild, missingInputs, dirsToKeep);
+          } else {
+            FileSystemUtils.deleteTree(child);
+          }
+          break;
+        default:
+          // Empty file inputs are cheap to create again, and anything else was left behind by the
+          // previous spawn.
+          child.delete();
+      }
+    }
+  }
+
+  /** Deletes everything below {@code dir} except {@code keep} and its parent directories. */
+  private static void deleteAllBut(Path dir, Path keep) throws IOException {
+    for (Dirent dirent : dir.readdir(Symlinks.NOFOLLOW)) {
+      Path child = dir.getRelative(dirent.getName());
+      if (child.equals(keep)) {
+        continue;
+      }
+      if (dirent.getType() == Dirent.Type.DIRECTORY && keep.startsWith(child)) {
+        deleteAllBut(child, keep);
+      } else {
+        FileSystemUtils.deleteTree(child);
+      }
+    }
+  }
+
+  @Override
+  public void delete() {
+    if (!stash.stashSandbox(mnemonic, sandboxPath)) {
+      super.delete();
+    }
+  }
+}
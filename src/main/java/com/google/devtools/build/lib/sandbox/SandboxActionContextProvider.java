@@ -46,8 +46,12 @@ final class SandboxActionContextProvider extends ActionContextProvider {
     this.contexts = contexts;
   }
 
-  public static SandboxActionContextProvider create(CommandEnvironment cmdEnv, Path sandboxBase,
-      @Nullable SandboxfsProcess process)
+  public static SandboxActionContextProvider create(
+      CommandEnvironment cmdEnv,
+      Path sandboxBase,
+      @Nullable SandboxfsProcess process,
+      TreeDeleter treeDeleter,
+      @Nullable SandboxDirectoryPool directoryPool)
       throws IOException {
     ImmutableList.Builder<ActionContext> contexts = ImmutableList.builder();
 
@@ -63,7 +67,12 @@ final class SandboxActionContextProvider extends ActionContextProvider {
           withFallback(
               cmdEnv,
               new ProcessWrapperSandboxedSpawnRunner(
-                  cmdEnv, sandboxBase, cmdEnv.getRuntime().getProductName(), timeoutKillDelay));
+                  cmdEnv,
+                  sandboxBase,
+                  cmdEnv.getRuntime().getProductName(),
+                  timeoutKillDelay,
+                  treeDeleter,
+                  directoryPool));
       contexts.add(new ProcessWrapperSandboxedStrategy(cmdEnv.getExecRoot(), spawnRunner));
     }
 
@@ -72,7 +81,8 @@ final class SandboxActionContextProvider extends ActionContextProvider {
       SpawnRunner spawnRunner =
           withFallback(
               cmdEnv,
-              LinuxSandboxedStrategy.create(cmdEnv, sandboxBase, timeoutKillDelay, process));
+              LinuxSandboxedStrategy.create(
+                  cmdEnv, sandboxBase, timeoutKillDelay, process, treeDeleter, directoryPool));
       contexts.add(new LinuxSandboxedStrategy(cmdEnv.getExecRoot(), spawnRunner));
     }
 
@@ -81,7 +91,8 @@ final class SandboxActionContextProvider extends ActionContextProvider {
       SpawnRunner spawnRunner =
           withFallback(
               cmdEnv,
-              new DarwinSandboxedSpawnRunner(cmdEnv, sandboxBase, timeoutKillDelay, process));
+              new DarwinSandboxedSpawnRunner(
+                  cmdEnv, sandboxBase, timeoutKillDelay, process, treeDeleter, directoryPool));
       contexts.add(new DarwinSandboxedStrategy(cmdEnv.getExecRoot(), spawnRunner));
     }
 
@@ -0,0 +1,123 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.lib.sandbox;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.devtools.build.lib.concurrent.ExecutorUtil;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.PathFragment;
+import java.io.IOException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * Keeps a number of empty sandbox directories, including the directory of their exec root,
+ * created ahead of time in the background, so that a spawn only has to rename one into place.
+ */
+final class SandboxDirectoryPool {
+
+  private static final Logger log = Logger.getLogger(SandboxDirectoryPool.class.getName());
+
+  private final Path poolBase;
+  private final PathFragment sandboxExecRoot;
+  private final int size;
+  private final ExecutorService service;
+
+  private final Queue<Path> directories = new ConcurrentLinkedQueue<>();
+  private final AtomicInteger available = new AtomicInteger();
+  private final AtomicInteger nextDirectoryId = new AtomicInteger();
+  private final AtomicBoolean refillScheduled = new AtomicBoolean();
+
+  /**
+   * Creates a pool and starts filling it.
+   *
+   * @param poolBase the directory to keep the pre-created directories in, which must not exist
+   *     yet and must be on the same file system as the sandboxes
+   * @param sandboxExecRoot the path of the exec root relative to the sandbox directory, which is
+   *     created along with it
+   * @param size the number of directories to keep ready
+   */
+  SandboxDirectoryPool(Path poolBase, PathFragment sandboxExecRoot, int size) throws IOException {
+    this.poolBase = poolBase;
+    this.sandboxExecRoot = sandboxExecRoot;
+    this.size = size;
+    poolBase.createDirectory();
+    this.service =
+        Executors.newSingleThreadExecutor(
+            new ThreadFactoryBuilder()
+                .setNameFormat("sandbox-directory-pool")
+                .setDaemon(true)
+                .build());
+    scheduleRefill();
+  }
+
+  /**
+   * Moves a pre-created sandbox directory to the given path, which must not exist.
+   *
+   * @return whether there was a directory to take. If not, the caller has to create the sandbox
+   *     directory and its exec root.
+   */
+  boolean takeSandboxDirectory(Path sandboxPath) {
+    Path directory = directories.poll();
+    if (directory == null) {
+      scheduleRefill();
+      return false;
+    }
+    available.decrementAndGet();
+    scheduleRefill();
+    try {
+      directory.renameTo(sandboxPath);
+      return true;
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  private void scheduleRefill() {
+    if (refillScheduled.compareAndSet(false, true)) {
+      service.execute(this::refill);
+    }
+  }
+
+  private void refill() {
+    refillScheduled.set(false);
+    while (available.get() < size && !Thread.currentThread().isInterrupted()) {
+      Path directory = poolBase.getRelative(Integer.toString(nextDirectoryId.getAndIncrement()));
+      try {
+        directory.getRelative(sandboxExecRoot).createDirectoryAndParents();
+      } catch (IOException e) {
+        log.warning("Cannot pre-create sandbox directory " + directory + ": " + e);
+        return;
+      }
+      directories.add(directory);
+      available.incrementAndGet();
+    }
+  }
+
+  /**
+   * Stops creating directories. The caller is responsible for deleting the pool directory
+   * afterwards.
+   */
+  void shutdown() {
+    if (ExecutorUtil.uninterruptibleShutdownNow(service)) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
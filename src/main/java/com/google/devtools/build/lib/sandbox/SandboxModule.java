@@ -52,6 +52,12 @@ public final class SandboxModule extends BlazeModule {
   /** Instance of the sandboxfs process in use, if enabled. */
   private @Nullable SandboxfsProcess sandboxfsProcess;
 
+  /** Deleter of the sandboxes in the background, if enabled. */
+  private @Nullable AsynchronousTreeDeleter asyncTreeDeleter;
+
+  /** Pool of pre-created sandbox directories, if enabled. */
+  private @Nullable SandboxDirectoryPool directoryPool;
+
   /**
    * Whether to remove the sandbox worker directories after a build or not. Useful for debugging
    * to inspect the state of files on failures.
@@ -88,6 +94,8 @@ public final class SandboxModule extends BlazeModule {
 
     // Don't attempt cleanup unless the executor is initialized.
     sandboxfsProcess = null;
+    asyncTreeDeleter = null;
+    directoryPool = null;
     shouldCleanupSandboxBase = false;
   }
 
@@ -117,6 +125,24 @@ public final class SandboxModule extends BlazeModule {
       }
 
       sandboxBase.createDirectoryAndParents();
+
+      TreeDeleter treeDeleter;
+      if (options.asyncTreeDeleteThreads > 0) {
+        asyncTreeDeleter =
+            new AsynchronousTreeDeleter(
+                sandboxBase.getRelative("trash"), options.asyncTreeDeleteThreads);
+        treeDeleter = asyncTreeDeleter;
+      } else {
+        treeDeleter = new SynchronousTreeDeleter();
+      }
+      if (options.sandboxDirectoryPoolSize > 0) {
+        directoryPool =
+            new SandboxDirectoryPool(
+                sandboxBase.getRelative("pool"),
+                PathFragment.create("execroot").getRelative(cmdEnv.getExecRoot().getBaseName()),
+                options.sandboxDirectoryPoolSize);
+      }
+
       if (options.useSandboxfs) {
         Path mountPoint = sandboxBase.getRelative("sandboxfs");
         mountPoint.createDirectory();
@@ -125,9 +151,13 @@ public final class SandboxModule extends BlazeModule {
         env.getReporter().handle(Event.info("Mounting sandboxfs instance on " + mountPoint));
         sandboxfsProcess = RealSandboxfsProcess.mount(
             PathFragment.create(options.sandboxfsPath), mountPoint, logFile);
-        provider = SandboxActionContextProvider.create(cmdEnv, sandboxBase, sandboxfsProcess);
+        provider =
+            SandboxActionContextProvider.create(
+                cmdEnv, sandboxBase, sandboxfsProcess, treeDeleter, directoryPool);
       } else {
-        provider = SandboxActionContextProvider.create(cmdEnv, sandboxBase, null);
+        provider =
+            SandboxActionContextProvider.create(
+                cmdEnv, sandboxBase, null, treeDeleter, directoryPool);
       }
     } catch (IOException e) {
       throw new ExecutorInitException("Failed to initialize sandbox", e);
@@ -164,6 +194,17 @@ public final class SandboxModule extends BlazeModule {
   public void afterCommand() {
     checkNotNull(env, "env not initialized; was beforeCommand called?");
 
+    // Stop touching the sandbox base in the background before it is deleted. Whatever is left in
+    // the trash goes away along with it.
+    if (asyncTreeDeleter != null) {
+      asyncTreeDeleter.shutdown();
+      asyncTreeDeleter = null;
+    }
+    if (directoryPool != null) {
+      directoryPool.shutdown();
+      directoryPool = null;
+    }
+
     if (shouldCleanupSandboxBase) {
       try {
         FileSystemUtils.deleteTree(sandboxBase);
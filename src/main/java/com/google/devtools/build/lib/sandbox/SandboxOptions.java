@@ -192,6 +192,70 @@ public class SandboxOptions extends OptionsBase {
   )
   public String sandboxfsPath;
 
+  @Option(
+    name = "experimental_reuse_sandbox_directories",
+    defaultValue = "false",
+    documentationCategory = OptionDocumentationCategory.EXECUTION_STRATEGY,
+    effectTags = {OptionEffectTag.EXECUTION},
+    help =
+        "If true, the directories of finished linux-sandbox spawns are kept and reused by later "
+            + "spawns with the same mnemonic, so that only the symlinks to inputs which differ "
+            + "between them have to be created and deleted. Has no effect with "
+            + "--experimental_use_sandboxfs."
+  )
+  public boolean reuseSandboxDirectories;
+
+  @Option(
+    name = "experimental_sandbox_async_tree_delete_threads",
+    defaultValue = "0",
+    documentationCategory = OptionDocumentationCategory.EXECUTION_STRATEGY,
+    effectTags = {OptionEffectTag.EXECUTION},
+    help =
+        "If 0, delete sandbox trees as soon as an action completes, which delays the completion "
+            + "of the action. If greater than zero, move the trees out of the way and delete "
+            + "them in the background, using at most this many threads."
+  )
+  public int asyncTreeDeleteThreads;
+
+  @Option(
+    name = "experimental_sandbox_directory_pool_size",
+    defaultValue = "0",
+    documentationCategory = OptionDocumentationCategory.EXECUTION_STRATEGY,
+    effectTags = {OptionEffectTag.EXECUTION},
+    help =
+        "The number of empty sandbox directories to create ahead of time in the background, so "
+            + "that setting up a sandbox does not have to create them. If 0, every sandbox "
+            + "creates its own directories."
+  )
+  public int sandboxDirectoryPoolSize;
+
+  @Option(
+    name = "experimental_sandbox_cgroup_parent",
+    defaultValue = "",
+    documentationCategory = OptionDocumentationCategory.EXECUTION_STRATEGY,
+    effectTags = {OptionEffectTag.EXECUTION},
+    help =
+        "If set, the linux-sandbox runs each spawn in its own cgroup below this directory of a "
+            + "cgroup v2 hierarchy, and reports the peak memory and the CPU time the spawn used, "
+            + "and whether it was killed for running out of memory. The directory must be "
+            + "delegated to the current user, contain no processes, and have the memory and cpu "
+            + "controllers available."
+  )
+  public String cgroupParent;
+
+  @Option(
+    name = "experimental_sandbox_cgroup_limit_factor",
+    defaultValue = "0",
+    documentationCategory = OptionDocumentationCategory.EXECUTION_STRATEGY,
+    effectTags = {OptionEffectTag.EXECUTION},
+    help =
+        "If greater than zero, limits the memory and CPU of each spawn run in a cgroup to its "
+            + "estimated resource usage multiplied by this factor. Spawns without an estimate "
+            + "for a resource are not limited in it. If 0, the usage of the spawns is only "
+            + "measured. Requires --experimental_sandbox_cgroup_parent."
+  )
+  public double cgroupLimitFactor;
+
   public ImmutableSet<Path> getInaccessiblePaths(FileSystem fs) {
     List<Path> inaccessiblePaths = new ArrayList<>();
     for (String path : sandboxBlockPath) {
@@ -0,0 +1,98 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.sandbox;
+
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.Path;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Keeps the directories of finished sandboxes around, per mnemonic, so that the next spawn with the
+ * same mnemonic can reuse one of them. Spawns with the same mnemonic tend to have mostly the same
+ * inputs, so the reused sandbox only needs the inputs that differ to be added or removed.
+ *
+ * <p>A sandbox is only stashed when its spawn finished, and every spawn first tries to take one,
+ * so there are never more stashed sandboxes for a mnemonic than spawns of it ran at the same time.
+ */
+final class SandboxStash {
+
+  private final Path stashBase;
+
+  // Guarded by this.
+  private final Map<String, Deque<Path>> stashedSandboxes = new HashMap<>();
+  private int nextStashId;
+
+  /** Creates a stash keeping the sandboxes in the given directory, which must not exist yet. */
+  SandboxStash(Path stashBase) throws IOException {
+    this.stashBase = stashBase;
+    stashBase.createDirectory();
+  }
+
+  /**
+   * Moves a stashed sandbox of a spawn with the given mnemonic to the given path, which must not
+   * exist.
+   *
+   * @return whether there was a sandbox to reuse. If not, the caller has to create a new one.
+   */
+  boolean takeStashedSandbox(String mnemonic, Path sandboxPath) {
+    Path stashedSandbox;
+    synchronized (this) {
+      Deque<Path> stashed = stashedSandboxes.get(mnemonic);
+      stashedSandbox = stashed == null ? null : stashed.pollLast();
+    }
+    if (stashedSandbox == null) {
+      return false;
+    }
+    try {
+      stashedSandbox.renameTo(sandboxPath);
+      return true;
+    } catch (IOException e) {
+      deleteQuietly(stashedSandbox);
+      return false;
+    }
+  }
+
+  /**
+   * Moves the sandbox of a finished spawn with the given mnemonic out of the way into the stash.
+   *
+   * @return whether the sandbox was stashed. If not, the caller has to delete it.
+   */
+  boolean stashSandbox(String mnemonic, Path sandboxPath) {
+    Path stashedSandbox;
+    synchronized (this) {
+      stashedSandbox = stashBase.getRelative(Integer.toString(nextStashId++));
+    }
+    try {
+      sandboxPath.renameTo(stashedSandbox);
+    } catch (IOException e) {
+      return false;
+    }
+    synchronized (this) {
+      stashedSandboxes.computeIfAbsent(mnemonic, k -> new ArrayDeque<>()).addLast(stashedSandbox);
+    }
+    return true;
+  }
+
+  private static void deleteQuietly(Path path) {
+    try {
+      FileSystemUtils.deleteTree(path);
+    } catch (IOException e) {
+      // The SandboxModule deletes the whole sandbox base after the build anyway.
+    }
+  }
+}
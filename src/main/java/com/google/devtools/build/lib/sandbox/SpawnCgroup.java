@@ -0,0 +1,187 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.lib.sandbox;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.devtools.build.lib.actions.ResourceSet;
+import com.google.devtools.build.lib.actions.SpawnResult;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.Path;
+import java.io.IOException;
+import java.time.Duration;
+import java.time.temporal.ChronoUnit;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * The cgroup (v2) in which the processes of a single spawn run, limiting the memory and CPU they
+ * may use and measuring how much they did use.
+ */
+final class SpawnCgroup {
+
+  private static final Logger log = Logger.getLogger(SpawnCgroup.class.getName());
+
+  /** The controllers which the cgroups of spawns need. */
+  private static final ImmutableList<String> CONTROLLERS = ImmutableList.of("memory", "cpu");
+
+  /** The period in which the CPU time of a cgroup is limited, in microseconds. */
+  private static final long CPU_PERIOD_USEC = 100_000;
+
+  /** The lowest CPU quota, in microseconds per period, that the kernel accepts. */
+  private static final long MIN_CPU_QUOTA_USEC = 1_000;
+
+  private static final Splitter WHITESPACE = Splitter.on(' ').omitEmptyStrings().trimResults();
+
+  private final Path path;
+
+  private SpawnCgroup(Path path) {
+    this.path = path;
+  }
+
+  /**
+   * Prepares a cgroup to hold the cgroups of spawns, creating it if necessary.
+   *
+   * @param parent the directory of the cgroup in the cgroup v2 hierarchy. It must be writable by
+   *     the current user, and must not contain processes itself.
+   * @throws IOException if the directory is not a cgroup v2 directory, or the controllers which the
+   *     cgroups of spawns need are not available in it
+   */
+  static void prepareParent(Path parent) throws IOException {
+    parent.createDirectoryAndParents();
+    Path controllersFile = parent.getRelative("cgroup.controllers");
+    if (!controllersFile.exists()) {
+      throw new IOException(parent + " is not a directory in a cgroup v2 hierarchy");
+    }
+    List<String> controllers =
+        WHITESPACE.splitToList(FileSystemUtils.readContent(controllersFile, UTF_8));
+    for (String controller : CONTROLLERS) {
+      if (!controllers.contains(controller)) {
+        throw new IOException(
+            "The " + controller + " controller is not available in the cgroup " + parent);
+      }
+    }
+    StringBuilder subtreeControl = new StringBuilder();
+    for (String controller : CONTROLLERS) {
+      subtreeControl.append('+').append(controller).append(' ');
+    }
+    FileSystemUtils.writeContent(
+        parent.getRelative("cgroup.subtree_control"), UTF_8, subtreeControl.toString().trim());
+  }
+
+  /**
+   * Creates the cgroup of a spawn.
+   *
+   * @param parent the cgroup prepared by {@link #prepareParent} to create the cgroup in
+   * @param name the name of the cgroup, unique among the running spawns
+   * @param resources the resources which the spawn was estimated to use
+   * @param limitFactor the factor to multiply the estimated resources with to get the limits of
+   *     the cgroup; may be 0 to not limit the resources at all
+   */
+  static SpawnCgroup create(Path parent, String name, ResourceSet resources, double limitFactor)
+      throws IOException {
+    Path path = parent.getRelative(name);
+    if (path.exists()) {
+      // Left behind by a previous build, and empty since its processes are gone.
+      path.delete();
+    }
+    path.createDirectory();
+    SpawnCgroup cgroup = new SpawnCgroup(path);
+    try {
+      if (limitFactor > 0 && resources.getMemoryMb() > 0) {
+        long memoryLimit = (long) (resources.getMemoryMb() * limitFactor * 1024 * 1024);
+        cgroup.write("memory.max", Long.toString(memoryLimit));
+      }
+      if (limitFactor > 0 && resources.getCpuUsage() > 0) {
+        long cpuQuota = (long) (resources.getCpuUsage() * limitFactor * CPU_PERIOD_USEC);
+        cpuQuota = Math.max(MIN_CPU_QUOTA_USEC, cpuQuota);
+        cgroup.write("cpu.max", cpuQuota + " " + CPU_PERIOD_USEC);
+      }
+    } catch (IOException e) {
+      cgroup.destroy();
+      throw e;
+    }
+    return cgroup;
+  }
+
+  /** The directory of the cgroup, to move the spawn into. */
+  Path getPath() {
+    return path;
+  }
+
+  /**
+   * Adds the CPU time and the peak memory used by the processes of the cgroup to the given result.
+   */
+  void addResourceUsage(SpawnResult.Builder builder) throws IOException {
+    Map<String, Long> cpuStat = readKeyedValues("cpu.stat");
+    Long userUsec = cpuStat.get("user_usec");
+    if (userUsec != null) {
+      builder.setUserTime(Duration.of(userUsec, ChronoUnit.MICROS));
+    }
+    Long systemUsec = cpuStat.get("system_usec");
+    if (systemUsec != null) {
+      builder.setSystemTime(Duration.of(systemUsec, ChronoUnit.MICROS));
+    }
+    // Only kernels since 5.19 record the peak memory usage of a cgroup.
+    Path peakFile = path.getRelative("memory.peak");
+    if (peakFile.exists()) {
+      long peakBytes = Long.parseLong(FileSystemUtils.readContent(peakFile, UTF_8).trim());
+      builder.setMemoryInKb(peakBytes / 1024);
+    }
+  }
+
+  /** Returns whether the kernel killed a process of the cgroup because it ran out of memory. */
+  boolean wasOomKilled() throws IOException {
+    Long oomKills = readKeyedValues("memory.events").get("oom_kill");
+    return oomKills != null && oomKills > 0;
+  }
+
+  /** Removes the cgroup, which must not contain processes anymore. */
+  void destroy() {
+    try {
+      path.delete();
+    } catch (IOException e) {
+      // The processes of the spawn should all be gone once linux-sandbox exits, so this is
+      // unexpected, but does not affect the build.
+      log.warning("Cannot remove cgroup " + path + ": " + e);
+    }
+  }
+
+  private void write(String file, String value) throws IOException {
+    FileSystemUtils.writeContent(path.getRelative(file), UTF_8, value);
+  }
+
+  /** Reads a file of the cgroup consisting of lines of space-separated keys and values. */
+  private Map<String, Long> readKeyedValues(String file) throws IOException {
+    ImmutableMap.Builder<String, Long> values = ImmutableMap.builder();
+    for (String line :
+        Splitter.on('\n').omitEmptyStrings().split(
+            FileSystemUtils.readContent(path.getRelative(file), UTF_8))) {
+      List<String> fields = WHITESPACE.splitToList(line);
+      if (fields.size() == 2) {
+        try {
+          values.put(fields.get(0), Long.parseLong(fields.get(1)));
+        } catch (NumberFormatException e) {
+          // Not a counter; none of the values we are interested in.
+        }
+      }
+    }
+    return values.build();
+  }
+}
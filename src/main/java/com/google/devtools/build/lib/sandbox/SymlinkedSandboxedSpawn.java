@@ -39,6 +39,7 @@ public class SymlinkedSandboxedSpawn implements SandboxedSpawn {
   private final Map<PathFragment, Path> inputs;
   private final Collection<PathFragment> outputs;
   private final Set<Path> writableDirs;
+  private final TreeDeleter treeDeleter;
 
   public SymlinkedSandboxedSpawn(
       Path sandboxPath,
@@ -47,7 +48,8 @@ public class SymlinkedSandboxedSpawn implements SandboxedSpawn {
       Map<String, String> environment,
       Map<PathFragment, Path> inputs,
       Collection<PathFragment> outputs,
-      Set<Path> writableDirs) {
+      Set<Path> writableDirs,
+      TreeDeleter treeDeleter) {
     this.sandboxPath = sandboxPath;
     this.sandboxExecRoot = sandboxExecRoot;
     this.arguments = arguments;
@@ -55,6 +57,7 @@ public class SymlinkedSandboxedSpawn implements SandboxedSpawn {
     this.inputs = inputs;
     this.outputs = outputs;
     this.writableDirs = writableDirs;
+    this.treeDeleter = treeDeleter;
   }
 
   @Override
@@ -90,7 +93,7 @@ public class SymlinkedSandboxedSpawn implements SandboxedSpawn {
    * directories, too, because we'll get an IOException with EEXIST if inputs happen to be nested
    * once we start creating the symlinks for all inputs.
    */
-  private void createDirectories() throws IOException {
+  protected void createDirectories() throws IOException {
     LinkedHashSet<Path> dirsToCreate = new LinkedHashSet<>();
 
     for (PathFragment path : Iterables.concat(inputs.keySet(), outputs)) {
@@ -133,7 +136,7 @@ public class SymlinkedSandboxedSpawn implements SandboxedSpawn {
   @Override
   public void delete() {
     try {
-      FileSystemUtils.deleteTree(sandboxPath);
+      treeDeleter.deleteTree(sandboxPath);
     } catch (IOException e) {
       // This usually means that the Spawn itself exited, but still has children running that
       // we couldn't wait for, which now block deletion of the sandbox directory. On Linux this
@@ -0,0 +1,31 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.lib.sandbox;
+
+import com.google.devtools.build.lib.vfs.Path;
+import java.io.IOException;
+
+/** Deletes the directory trees of finished sandboxes. */
+public interface TreeDeleter {
+
+  /**
+   * Deletes the given directory tree, or makes sure that it is deleted eventually.
+   *
+   * <p>Once this returns, the path is free to be reused.
+   *
+   * @throws IOException if the tree could not be deleted
+   */
+  void deleteTree(Path path) throws IOException;
+}
@@ -67,7 +67,10 @@ public final class ExecutionStatistics {
           resourceUsageProto.getStimeSec(), resourceUsageProto.getStimeUsec() * 1000);
     }
 
-    /** Returns the maximum resident set size (in bytes) during command execution, if available. */
+    /**
+     * Returns the maximum resident set size during command execution, if available. As reported by
+     * getrusage(), this is in kilobytes on Linux and in bytes on macOS.
+     */
     public long getMaximumResidentSetSize() {
       return resourceUsageProto.getMaxrss();
     }
@@ -0,0 +1,87 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.skyframe;
+
+import com.google.common.collect.ImmutableList;
+import com.google.devtools.build.lib.vfs.PathFragment;
+import com.google.devtools.build.skyframe.SkyFunction;
+import com.google.devtools.build.skyframe.SkyKey;
+import com.google.devtools.build.skyframe.SkyValue;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import javax.annotation.Nullable;
+
+/**
+ * A {@link SkyFunction} for {@link GlobExpansionValue}s.
+ *
+ * <p>Combines the {@link GlobValue}s of the patterns of the call. Errors of the {@link GlobValue}s
+ * are not handled here; they propagate to {@link PackageFunction}, which handles them.
+ */
+public final class GlobExpansionFunction implements SkyFunction {
+
+  @Nullable
+  @Override
+  public SkyValue compute(SkyKey skyKey, Environment env) throws InterruptedException {
+    GlobExpansionValue.Key key = (GlobExpansionValue.Key) skyKey;
+    List<SkyKey> includeKeys = globKeys(key, key.getIncludes());
+    List<SkyKey> excludeKeys = globKeys(key, key.getExcludes());
+    List<SkyKey> allKeys = new ArrayList<>(includeKeys.size() + excludeKeys.size());
+    allKeys.addAll(includeKeys);
+    allKeys.addAll(excludeKeys);
+    Map<SkyKey, SkyValue> globValues = env.getValues(allKeys);
+    if (env.valuesMissing()) {
+      return null;
+    }
+
+    Set<String> matches = new HashSet<>();
+    for (SkyKey includeKey : includeKeys) {
+      for (PathFragment match : ((GlobValue) globValues.get(includeKey)).getMatches()) {
+        matches.add(match.getPathString());
+      }
+    }
+    for (SkyKey excludeKey : excludeKeys) {
+      for (PathFragment match : ((GlobValue) globValues.get(excludeKey)).getMatches()) {
+        matches.remove(match.getPathString());
+      }
+    }
+    List<String> result = new ArrayList<>(matches);
+    // Skyframe glob results are unsorted.
+    Collections.sort(result);
+    return new GlobExpansionValue(ImmutableList.copyOf(result));
+  }
+
+  private static List<SkyKey> globKeys(GlobExpansionValue.Key key, List<String> patterns) {
+    List<SkyKey> globKeys = new ArrayList<>(patterns.size());
+    for (String pattern : patterns) {
+      globKeys.add(
+          GlobValue.internalKey(
+              key.getPackageId(),
+              key.getPackageRoot(),
+              PathFragment.EMPTY_FRAGMENT,
+              pattern,
+              key.excludeDirs()));
+    }
+    return globKeys;
+  }
+
+  @Nullable
+  @Override
+  public String extractTag(SkyKey skyKey) {
+    return null;
+  }
+}
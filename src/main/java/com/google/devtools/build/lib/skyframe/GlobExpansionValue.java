@@ -0,0 +1,194 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.skyframe;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Interner;
+import com.google.devtools.build.lib.cmdline.PackageIdentifier;
+import com.google.devtools.build.lib.concurrent.BlazeInterners;
+import com.google.devtools.build.lib.concurrent.ThreadSafety.Immutable;
+import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
+import com.google.devtools.build.lib.skyframe.GlobValue.InvalidGlobPatternException;
+import com.google.devtools.build.lib.skyframe.serialization.autocodec.AutoCodec;
+import com.google.devtools.build.lib.vfs.PathFragment;
+import com.google.devtools.build.lib.vfs.Root;
+import com.google.devtools.build.skyframe.SkyFunctionName;
+import com.google.devtools.build.skyframe.SkyKey;
+import com.google.devtools.build.skyframe.SkyValue;
+import java.util.List;
+
+/**
+ * The result of a {@code glob(include, exclude, exclude_directories)} call of a BUILD file: the
+ * matches of the {@code include} patterns which are not matches of the {@code exclude} patterns.
+ *
+ * <p>{@link PackageFunction} depends on these values rather than on the {@link GlobValue}s of the
+ * individual patterns, so that a change to the matches of a pattern which doesn't change the
+ * result of the call, such as a file added to a directory that is excluded, is pruned here and
+ * does not cause the BUILD file to be evaluated again.
+ */
+@Immutable
+@ThreadSafe
+public final class GlobExpansionValue implements SkyValue {
+
+  private final ImmutableList<String> matches;
+
+  GlobExpansionValue(ImmutableList<String> matches) {
+    this.matches = Preconditions.checkNotNull(matches);
+  }
+
+  /** Returns the matches of the call, relative to the package directory and sorted. */
+  public ImmutableList<String> getMatches() {
+    return matches;
+  }
+
+  @Override
+  public boolean equals(Object other) {
+    return other == this
+        || (other instanceof GlobExpansionValue
+            && matches.equals(((GlobExpansionValue) other).matches));
+  }
+
+  @Override
+  public int hashCode() {
+    return matches.hashCode();
+  }
+
+  /**
+   * Constructs a {@link SkyKey} for a glob call. {@code packageId} is assumed to be an existing
+   * package.
+   *
+   * @throws InvalidGlobPatternException if any of the patterns is not valid.
+   */
+  @ThreadSafe
+  public static Key key(
+      PackageIdentifier packageId,
+      Root packageRoot,
+      List<String> includes,
+      List<String> excludes,
+      boolean excludeDirs)
+      throws InvalidGlobPatternException {
+    for (String pattern : includes) {
+      GlobValue.key(packageId, packageRoot, pattern, excludeDirs, PathFragment.EMPTY_FRAGMENT);
+    }
+    for (String pattern : excludes) {
+      GlobValue.key(packageId, packageRoot, pattern, excludeDirs, PathFragment.EMPTY_FRAGMENT);
+    }
+    return Key.create(
+        packageId,
+        packageRoot,
+        ImmutableList.copyOf(includes),
+        ImmutableList.copyOf(excludes),
+        excludeDirs);
+  }
+
+  /** The {@link SkyKey} of a {@link GlobExpansionValue}. All its patterns are valid. */
+  @AutoCodec
+  @ThreadSafe
+  public static final class Key implements SkyKey {
+    private static final Interner<Key> interner = BlazeInterners.newWeakInterner();
+
+    private final PackageIdentifier packageId;
+    private final Root packageRoot;
+    private final ImmutableList<String> includes;
+    private final ImmutableList<String> excludes;
+    private final boolean excludeDirs;
+
+    private Key(
+        PackageIdentifier packageId,
+        Root packageRoot,
+        ImmutableList<String> includes,
+        ImmutableList<String> excludes,
+        boolean excludeDirs) {
+      this.packageId = Preconditions.checkNotNull(packageId);
+      this.packageRoot = Preconditions.checkNotNull(packageRoot);
+      this.includes = Preconditions.checkNotNull(includes);
+      this.excludes = Preconditions.checkNotNull(excludes);
+      this.excludeDirs = excludeDirs;
+    }
+
+    @AutoCodec.VisibleForSerialization
+    @AutoCodec.Instantiator
+    static Key create(
+        PackageIdentifier packageId,
+        Root packageRoot,
+        ImmutableList<String> includes,
+        ImmutableList<String> excludes,
+        boolean excludeDirs) {
+      return interner.intern(new Key(packageId, packageRoot, includes, excludes, excludeDirs));
+    }
+
+    public PackageIdentifier getPackageId() {
+      return packageId;
+    }
+
+    public Root getPackageRoot() {
+      return packageRoot;
+    }
+
+    public ImmutableList<String> getIncludes() {
+      return includes;
+    }
+
+    public ImmutableList<String> getExcludes() {
+      return excludes;
+    }
+
+    public boolean excludeDirs() {
+      return excludeDirs;
+    }
+
+    @Override
+    public SkyFunctionName functionName() {
+      return SkyFunctions.GLOB_EXPANSION;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (this == obj) {
+        return true;
+      }
+      if (!(obj instanceof Key)) {
+        return false;
+      }
+      Key other = (Key) obj;
+      return packageId.equals(other.packageId)
+          && packageRoot.equals(other.packageRoot)
+          && includes.equals(other.includes)
+          && excludes.equals(other.excludes)
+          && excludeDirs == other.excludeDirs;
+    }
+
+    @Override
+    public int hashCode() {
+      // Generated instead of Objects.hashCode to avoid intermediate array required for latter.
+      final int prime = 31;
+      int result = 1;
+      result = prime * result + (excludeDirs ? 1231 : 1237);
+      result = prime * result + packageId.hashCode();
+      result = prime * result + packageRoot.hashCode();
+      result = prime * result + includes.hashCode();
+      result = prime * result + excludes.hashCode();
+      return result;
+    }
+
+    @Override
+    public String toString() {
+      return String.format(
+          "<GlobExpansionValue.Key packageName=%s packageRoot=%s includes=%s excludes=%s "
+              + "excludeDirs=%s>",
+          packageId, packageRoot, includes, excludes, excludeDirs);
+    }
+  }
+}
@@ -17,6 +17,7 @@ import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Throwables;
 import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.ImmutableCollection;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
@@ -29,7 +30,6 @@ import com.google.devtools.build.lib.clock.BlazeClock;
 import com.google.devtools.build.lib.cmdline.Label;
 import com.google.devtools.build.lib.cmdline.LabelSyntaxException;
 import com.google.devtools.build.lib.cmdline.PackageIdentifier;
-import com.google.devtools.build.lib.collect.nestedset.NestedSet;
 import com.google.devtools.build.lib.events.Event;
 import com.google.devtools.build.lib.events.ExtendedEventHandler.Postable;
 import com.google.devtools.build.lib.events.Location;
@@ -38,6 +38,7 @@ import com.google.devtools.build.lib.packages.AstParseResult;
 import com.google.devtools.build.lib.packages.BuildFileContainsErrorsException;
 import com.google.devtools.build.lib.packages.BuildFileNotFoundException;
 import com.google.devtools.build.lib.packages.CachingPackageLocator;
+import com.google.devtools.build.lib.packages.GlobResultUsage;
 import com.google.devtools.build.lib.packages.Globber;
 import com.google.devtools.build.lib.packages.InvalidPackageNameException;
 import com.google.devtools.build.lib.packages.NoSuchPackageException;
@@ -71,24 +72,28 @@ import com.google.devtools.build.skyframe.SkyValue;
 import com.google.devtools.build.skyframe.ValueOrException2;
 import com.google.devtools.build.skyframe.ValueOrException3;
 import java.io.IOException;
+import java.lang.ref.WeakReference;
 import java.util.ArrayList;
-import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import javax.annotation.Nullable;
 
 /**
  * A SkyFunction for {@link PackageValue}s.
  */
 public class PackageFunction implements SkyFunction {
+  private static final Logger logger = Logger.getLogger(PackageFunction.class.getName());
 
   private final PackageFactory packageFactory;
   private final CachingPackageLocator packageLocator;
@@ -107,6 +112,28 @@ public class PackageFunction implements SkyFunction {
 
   private final IncrementalityIntent incrementalityIntent;
 
+  /**
+   * The most recently loaded version of each package whose glob results can be patched, together
+   * with the other inputs it was loaded from. Only used with {@link
+   * IncrementalityIntent#INCREMENTAL}.
+   */
+  private final Cache<PackageIdentifier, PatchablePackage> patchablePackages;
+
+  private final AtomicReference<SharedPackageCache> sharedPackageCache;
+
+  /**
+   * Returns the value of a node if it is done in the graph, without depending on it. Only used to
+   * evaluate the patterns of glob calls missing from Skyframe whose other patterns are done.
+   */
+  @Nullable private final Function<SkyKey, SkyValue> doneValueLookup;
+
+  /**
+   * The manifests fetched from the {@link #sharedPackageCache} for packages whose computation had
+   * to be restarted to get the results of their globs, by the key of the manifest.
+   */
+  private final Cache<String, SharedPackageManifest> fetchedManifests =
+      CacheBuilder.newBuilder().softValues().build();
+
   static final PathFragment DEFAULTS_PACKAGE_NAME = PathFragment.create("tools/defaults");
 
   public PackageFunction(
@@ -115,11 +142,14 @@ public class PackageFunction implements SkyFunction {
       AtomicBoolean showLoadingProgress,
       Cache<PackageIdentifier, LoadedPackageCacheEntry> packageFunctionCache,
       Cache<PackageIdentifier, AstParseResult> astCache,
+      Cache<PackageIdentifier, PatchablePackage> patchablePackages,
       AtomicInteger numPackagesLoaded,
       @Nullable SkylarkImportLookupFunction skylarkImportLookupFunctionForInlining,
       @Nullable PackageProgressReceiver packageProgress,
       ActionOnIOExceptionReadingBuildFile actionOnIOExceptionReadingBuildFile,
-      IncrementalityIntent incrementalityIntent) {
+      IncrementalityIntent incrementalityIntent,
+      AtomicReference<SharedPackageCache> sharedPackageCache,
+      @Nullable Function<SkyKey, SkyValue> doneValueLookup) {
     this.skylarkImportLookupFunctionForInlining = skylarkImportLookupFunctionForInlining;
     // Can be null in tests.
     this.preludeLabel = packageFactory == null
@@ -130,10 +160,13 @@ public class PackageFunction implements SkyFunction {
     this.showLoadingProgress = showLoadingProgress;
     this.packageFunctionCache = packageFunctionCache;
     this.astCache = astCache;
+    this.patchablePackages = patchablePackages;
     this.numPackagesLoaded = numPackagesLoaded;
     this.packageProgress = packageProgress;
     this.actionOnIOExceptionReadingBuildFile = actionOnIOExceptionReadingBuildFile;
     this.incrementalityIntent = incrementalityIntent;
+    this.sharedPackageCache = sharedPackageCache;
+    this.doneValueLookup = doneValueLookup;
   }
 
   @VisibleForTesting
@@ -151,11 +184,14 @@ public class PackageFunction implements SkyFunction {
         showLoadingProgress,
         packageFunctionCache,
         astCache,
+        newPatchablePackageCache(),
         numPackagesLoaded,
         skylarkImportLookupFunctionForInlining,
         /*packageProgress=*/ null,
         ActionOnIOExceptionReadingBuildFile.UseOriginalIOException.INSTANCE,
-        IncrementalityIntent.INCREMENTAL);
+        IncrementalityIntent.INCREMENTAL,
+        new AtomicReference<>(),
+        /*doneValueLookup=*/ null);
   }
 
   public void setSkylarkImportLookupFunctionForInliningForTesting(
@@ -209,12 +245,136 @@ public class PackageFunction implements SkyFunction {
     private final Package.Builder builder;
     private final Set<SkyKey> globDepKeys;
     private final long loadTimeNanos;
+    @Nullable private final PackageInputs inputs;
+    // The key of the manifest of the package in the shared package cache, and the imports of the
+    // BUILD file, if the package was evaluated and is to be stored there.
+    @Nullable private final String sharedInputsKey;
+    @Nullable private final Map<String, Extension> imports;
 
     private LoadedPackageCacheEntry(
-        Package.Builder builder, Set<SkyKey> globDepKeys, long loadTimeNanos) {
+        Package.Builder builder,
+        Set<SkyKey> globDepKeys,
+        long loadTimeNanos,
+        @Nullable PackageInputs inputs,
+        @Nullable String sharedInputsKey,
+        @Nullable Map<String, Extension> imports) {
       this.builder = builder;
       this.globDepKeys = globDepKeys;
       this.loadTimeNanos = loadTimeNanos;
+      this.inputs = inputs;
+      this.sharedInputsKey = sharedInputsKey;
+      this.imports = imports;
+    }
+  }
+
+  /** The inputs of a package other than the results of its globs. */
+  private static final class PackageInputs {
+    private final String workspaceName;
+    private final FileValue buildFileValue;
+    private final RuleVisibility defaultVisibility;
+    private final SkylarkSemantics skylarkSemantics;
+    private final List<Statement> preludeStatements;
+    private final Root packageRoot;
+    private final ImmutableList<SkylarkImport> imports;
+    private final SkylarkImportResult importResult;
+
+    private PackageInputs(
+        String workspaceName,
+        FileValue buildFileValue,
+        RuleVisibility defaultVisibility,
+        SkylarkSemantics skylarkSemantics,
+        List<Statement> preludeStatements,
+        Root packageRoot,
+        ImmutableList<SkylarkImport> imports,
+        SkylarkImportResult importResult) {
+      this.workspaceName = workspaceName;
+      this.buildFileValue = buildFileValue;
+      this.defaultVisibility = defaultVisibility;
+      this.skylarkSemantics = skylarkSemantics;
+      this.preludeStatements = preludeStatements;
+      this.packageRoot = packageRoot;
+      this.imports = imports;
+      this.importResult = importResult;
+    }
+
+    /**
+     * Returns whether the given inputs, other than the imports, are the same as these. Values
+     * which are expensive to compare are only considered the same if they are the same objects,
+     * which they are if Skyframe didn't recompute them.
+     */
+    private boolean hasSameInputs(
+        String workspaceName,
+        FileValue buildFileValue,
+        RuleVisibility defaultVisibility,
+        SkylarkSemantics skylarkSemantics,
+        List<Statement> preludeStatements,
+        Root packageRoot) {
+      return this.workspaceName.equals(workspaceName)
+          && this.buildFileValue.equals(buildFileValue)
+          && this.defaultVisibility.equals(defaultVisibility)
+          && this.skylarkSemantics.equals(skylarkSemantics)
+          && this.preludeStatements == preludeStatements
+          && this.packageRoot.equals(packageRoot);
+    }
+
+    /** Returns whether the given inputs are the same as these, including the imports. */
+    private boolean isSameAs(PackageInputs other) {
+      return hasSameInputs(
+              other.workspaceName,
+              other.buildFileValue,
+              other.defaultVisibility,
+              other.skylarkSemantics,
+              other.preludeStatements,
+              other.packageRoot)
+          && hasSameImports(other.importResult);
+    }
+
+    /** Returns whether the given result of loading the imports is the same as the one of these. */
+    private boolean hasSameImports(SkylarkImportResult importResult) {
+      if (!this.importResult.fileDependencies.equals(importResult.fileDependencies)
+          || !this.importResult.importMap.keySet().equals(importResult.importMap.keySet())) {
+        return false;
+      }
+      for (Map.Entry<String, Extension> entry : importResult.importMap.entrySet()) {
+        if (this.importResult.importMap.get(entry.getKey()) != entry.getValue()) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+
+  /**
+   * Returns a cache suitable for the previously loaded packages whose glob results can be patched.
+   * It only keeps them while memory allows, as they can always be loaded again.
+   */
+  public static Cache<PackageIdentifier, PatchablePackage> newPatchablePackageCache() {
+    return CacheBuilder.newBuilder().softValues().build();
+  }
+
+  /**
+   * A previously loaded package whose glob results can be patched, or the inputs of a package
+   * whose glob results could not be patched, which is loaded normally until its inputs change.
+   */
+  public static final class PatchablePackage {
+    // The package is kept alive by its PackageValue while Skyframe may still need it.
+    private final WeakReference<Package> pkg;
+    private final PackageInputs inputs;
+    private final boolean patchable;
+
+    private PatchablePackage(Package pkg, PackageInputs inputs) {
+      this(new WeakReference<>(pkg), inputs, /*patchable=*/ true);
+    }
+
+    private PatchablePackage(
+        WeakReference<Package> pkg, PackageInputs inputs, boolean patchable) {
+      this.pkg = pkg;
+      this.inputs = inputs;
+      this.patchable = patchable;
+    }
+
+    private PatchablePackage unpatchable() {
+      return new PatchablePackage(new WeakReference<>(null), inputs, /*patchable=*/ false);
     }
   }
 
@@ -301,7 +461,7 @@ public class PackageFunction implements SkyFunction {
       boolean packageWasInError)
       throws InternalInconsistentFilesystemException, InterruptedException {
     Preconditions.checkState(
-        Iterables.all(depKeys, SkyFunctions.isSkyFunction(SkyFunctions.GLOB)), depKeys);
+        Iterables.all(depKeys, SkyFunctions.isSkyFunction(SkyFunctions.GLOB_EXPANSION)), depKeys);
      boolean packageShouldBeInErrorFromGlobDeps = false;
     for (Map.Entry<SkyKey, ValueOrException2<IOException, BuildFileNotFoundException>> entry :
         env.getValuesOrThrow(
@@ -536,6 +696,25 @@ public class PackageFunction implements SkyFunction {
 
     // We know this SkyFunction will not be called again, so we can remove the cache entry.
     packageFunctionCache.invalidate(packageId);
+    if (packageCacheEntry.sharedInputsKey != null) {
+      maybePublishSharedPackage(
+          packageCacheEntry.sharedInputsKey,
+          pkg,
+          globKeys,
+          packageCacheEntry.imports,
+          packageLookupValue.getRoot(),
+          env);
+    }
+    if (packageCacheEntry.inputs != null && pkg.getGlobResultUsage() != null) {
+      PatchablePackage previous = patchablePackages.getIfPresent(packageId);
+      if (previous == null
+          || previous.patchable
+          || !previous.inputs.isSameAs(packageCacheEntry.inputs)) {
+        patchablePackages.put(packageId, new PatchablePackage(pkg, packageCacheEntry.inputs));
+      }
+    } else {
+      patchablePackages.invalidate(packageId);
+    }
 
     packageFactory.afterDoneLoadingPackage(pkg, skylarkSemantics, packageCacheEntry.loadTimeNanos);
     return new PackageValue(pkg);
@@ -581,9 +760,28 @@ public class PackageFunction implements SkyFunction {
       Environment env,
       SkylarkImportLookupFunction skylarkImportLookupFunctionForInlining)
       throws NoSuchPackageException, InterruptedException {
+    return fetchImportsFromBuildFile(
+        buildFilePath,
+        packageId,
+        buildFileAST.getImports(),
+        env,
+        skylarkImportLookupFunctionForInlining);
+  }
+
+  /**
+   * Fetch the given skylark loads of a BUILD file. If any of them haven't been computed yet,
+   * returns null.
+   */
+  @Nullable
+  private static SkylarkImportResult fetchImportsFromBuildFile(
+      Path buildFilePath,
+      PackageIdentifier packageId,
+      ImmutableList<SkylarkImport> imports,
+      Environment env,
+      SkylarkImportLookupFunction skylarkImportLookupFunctionForInlining)
+      throws NoSuchPackageException, InterruptedException {
     Preconditions.checkArgument(!packageId.getRepository().isDefault());
 
-    ImmutableList<SkylarkImport> imports = buildFileAST.getImports();
     Map<String, Extension> importMap = Maps.newHashMapWithExpectedSize(imports.size());
     ImmutableList.Builder<SkylarkFileDependency> fileDependencies = ImmutableList.builder();
     ImmutableMap<String, Label> importPathMap;
@@ -870,11 +1068,11 @@ public class PackageFunction implements SkyFunction {
    * skyframe restart after a call to {@link Globber#runAsync} and before/during a call to
    * {@link Globber#fetch}.
    *
-   * <p>There are three advantages to this hybrid approach over the more obvious approach of solely
+   * <p>There are four advantages to this hybrid approach over the more obvious approach of solely
    * using a {@link PackageFactory.LegacyGlobber}:
    * <ul>
-   * <li>We trivially have the proper Skyframe {@link GlobValue} deps, whereas we would need to
-   * request them after-the-fact if we solely used a {@link PackageFactory.LegacyGlobber}.
+   * <li>We trivially have the proper Skyframe {@link GlobExpansionValue} deps, whereas we would
+   * need to request them after-the-fact if we solely used a {@link PackageFactory.LegacyGlobber}.
    * <li>We don't need to re-evaluate globs whose expression hasn't changed (e.g. in the common case
    * of a BUILD file edit that doesn't change a glob expression), whereas legacy package loading
    * with a {@link PackageFactory.LegacyGlobber} would naively re-evaluate globs when re-evaluating
@@ -882,6 +1080,9 @@ public class PackageFunction implements SkyFunction {
    * <li>We don't need to re-evaluate invalidated globs *twice* (the single re-evaluation via our
    * GlobValue deps is sufficient and optimal). See above for why the second evaluation would
    * happen.
+   * <li>We depend on the result of each {@code glob()} call as a whole rather than on its
+   * patterns, so a change to the matches of a pattern that doesn't change the result of the call
+   * (e.g. a new file in an excluded directory) doesn't re-evaluate the BUILD file.
    * </ul>
    */
   private static class SkyframeHybridGlobber implements GlobberWithSkyframeGlobDeps {
@@ -889,17 +1090,20 @@ public class PackageFunction implements SkyFunction {
     private final Root packageRoot;
     private final Environment env;
     private final LegacyGlobber legacyGlobber;
+    @Nullable private final Function<SkyKey, SkyValue> doneValueLookup;
     private final Set<SkyKey> globDepsRequested = Sets.newConcurrentHashSet();
 
     private SkyframeHybridGlobber(
         PackageIdentifier packageId,
         Root packageRoot,
         Environment env,
-        LegacyGlobber legacyGlobber) {
+        LegacyGlobber legacyGlobber,
+        @Nullable Function<SkyKey, SkyValue> doneValueLookup) {
       this.packageId = packageId;
       this.packageRoot = packageRoot;
       this.env = env;
       this.legacyGlobber = legacyGlobber;
+      this.doneValueLookup = doneValueLookup;
     }
 
     @Override
@@ -907,100 +1111,146 @@ public class PackageFunction implements SkyFunction {
       return ImmutableSet.copyOf(globDepsRequested);
     }
 
-    private SkyKey getGlobKey(String pattern, boolean excludeDirs) throws BadGlobException {
+    @Override
+    public Token runAsync(List<String> includes, List<String> excludes, boolean excludeDirs)
+        throws BadGlobException, InterruptedException {
+      SkyKey globKey;
       try {
-        return GlobValue.key(packageId, packageRoot, pattern, excludeDirs,
-              PathFragment.EMPTY_FRAGMENT);
+        globKey = GlobExpansionValue.key(packageId, packageRoot, includes, excludes, excludeDirs);
       } catch (InvalidGlobPatternException e) {
         throw new BadGlobException(e.getMessage());
       }
+      globDepsRequested.add(globKey);
+
+      GlobExpansionValue globValue;
+      try {
+        globValue =
+            (GlobExpansionValue)
+                env.getValueOrThrow(
+                    globKey, IOException.class, BuildFileNotFoundException.class);
+      } catch (IOException | BuildFileNotFoundException e) {
+        return new HybridToken(null, e);
+      }
+      if (globValue != null) {
+        return new HybridToken(globValue.getMatches(), null);
+      }
+      return runMissingPatternsAsync(includes, excludes, excludeDirs);
     }
 
-    @Override
-    public Token runAsync(List<String> includes, List<String> excludes, boolean excludeDirs)
+    /**
+     * Evaluates a glob call whose {@link GlobExpansionValue} is missing. The matches of the
+     * patterns which Skyframe already has are used as they are, and the {@link
+     * PackageFactory.LegacyGlobber} evaluates the others. If none of the patterns is done, the
+     * whole call is delegated at once.
+     *
+     * <p>The {@link GlobValue}s of the patterns are looked up without depending on them, so that
+     * the package only depends on the {@link GlobExpansionValue}. A done node is up to date during
+     * an evaluation, and the {@link GlobExpansionValue} is computed from the same values.
+     */
+    private Token runMissingPatternsAsync(
+        List<String> includes, List<String> excludes, boolean excludeDirs)
         throws BadGlobException, InterruptedException {
-      List<SkyKey> globKeys = new ArrayList<>(includes.size() + excludes.size());
-      LinkedHashSet<SkyKey> includesKeys = Sets.newLinkedHashSetWithExpectedSize(includes.size());
-      LinkedHashSet<SkyKey> excludesKeys = Sets.newLinkedHashSetWithExpectedSize(excludes.size());
-      Map<SkyKey, String> globKeyToIncludeStringMap =
-          Maps.newHashMapWithExpectedSize(includes.size());
-      Map<SkyKey, String> globKeyToExcludeStringMap =
-          Maps.newHashMapWithExpectedSize(excludes.size());
-
-      for (String pattern : includes) {
-        SkyKey globKey = getGlobKey(pattern, excludeDirs);
-        globKeys.add(globKey);
-        includesKeys.add(globKey);
-        globKeyToIncludeStringMap.put(globKey, pattern);
-      }
-      for (String pattern : excludes) {
-        SkyKey globKey = getGlobKey(pattern, excludeDirs);
-        globKeys.add(globKey);
-        excludesKeys.add(globKey);
-        globKeyToExcludeStringMap.put(globKey, pattern);
+      List<SkyKey> includeKeys = getPatternKeys(includes, excludeDirs);
+      List<SkyKey> excludeKeys = getPatternKeys(excludes, excludeDirs);
+      Map<SkyKey, GlobValue> patternValues =
+          getDonePatternValues(Iterables.concat(includeKeys, excludeKeys));
+      if (patternValues.isEmpty()) {
+        // TODO(bazel-team): Consider not delegating missing globs during glob prefetching - a
+        // single skyframe restart after the prefetch step is probably tolerable.
+        return new HybridToken(
+            ImmutableSet.<String>of(),
+            ImmutableSet.<String>of(),
+            legacyGlobber.runAsync(includes, excludes, excludeDirs),
+            null);
       }
-      globDepsRequested.addAll(globKeys);
-
-      Map<SkyKey, ValueOrException3<IOException, BuildFileNotFoundException,
-          FileSymlinkCycleException>> globValueMap =
-          env.getValuesOrThrow(globKeys, IOException.class, BuildFileNotFoundException.class,
-              FileSymlinkCycleException.class);
-
-      // For each missing glob, evaluate it asychronously via the delegate.
-      //
-      // TODO(bazel-team): Consider not delegating missing globs during glob prefetching - a
-      // single skyframe restart after the prefetch step is probably tolerable.
-      Collection<SkyKey> missingKeys = getMissingKeys(globKeys, globValueMap);
-      List<String> includesToDelegate = new ArrayList<>(missingKeys.size());
-      List<String> excludesToDelegate = new ArrayList<>(missingKeys.size());
-      for (SkyKey missingKey : missingKeys) {
-        String missingIncludePattern = globKeyToIncludeStringMap.get(missingKey);
-        if (missingIncludePattern != null) {
-          includesToDelegate.add(missingIncludePattern);
-          includesKeys.remove(missingKey);
-        }
-        String missingExcludePattern = globKeyToExcludeStringMap.get(missingKey);
-        if (missingExcludePattern != null) {
-          excludesToDelegate.add(missingExcludePattern);
-          excludesKeys.remove(missingKey);
+
+      Set<String> includeMatches = new HashSet<>();
+      List<String> includesToDelegate = new ArrayList<>();
+      for (int i = 0; i < includes.size(); i++) {
+        if (!addPatternMatches(patternValues.get(includeKeys.get(i)), includeMatches)) {
+          includesToDelegate.add(includes.get(i));
         }
       }
-      Token legacyIncludesToken =
-          legacyGlobber.runAsync(includesToDelegate, ImmutableList.<String>of(), excludeDirs);
-      // See the HybridToken class-comment for why we pass excludesToDelegate as the includes
-      // parameter here.
-      Token legacyExcludesToken =
-          legacyGlobber.runAsync(excludesToDelegate, ImmutableList.<String>of(), excludeDirs);
-
-      return new HybridToken(globValueMap, includesKeys, excludesKeys,
-          legacyIncludesToken, legacyExcludesToken);
-    }
-
-    private Collection<SkyKey> getMissingKeys(Collection<SkyKey> globKeys,
-        Map<SkyKey, ValueOrException3<IOException, BuildFileNotFoundException,
-            FileSymlinkCycleException>> globValueMap) {
-      List<SkyKey> missingKeys = new ArrayList<>(globKeys.size());
-      for (SkyKey globKey : globKeys) {
-        ValueOrException3<IOException, BuildFileNotFoundException, FileSymlinkCycleException>
-            valueOrException = globValueMap.get(globKey);
-        if (valueOrException == null) {
-          missingKeys.add(globKey);
+      Set<String> excludeMatches = new HashSet<>();
+      List<String> excludesToDelegate = new ArrayList<>();
+      for (int i = 0; i < excludes.size(); i++) {
+        if (!addPatternMatches(patternValues.get(excludeKeys.get(i)), excludeMatches)) {
+          excludesToDelegate.add(excludes.get(i));
         }
-        try {
-          if (valueOrException.get() == null) {
-            missingKeys.add(globKey);
-          }
-        } catch (IOException | BuildFileNotFoundException doesntMatter) {
-          continue;
+      }
+      // The excludes are evaluated like includes, and subtracted from all the include matches.
+      return new HybridToken(
+          includeMatches,
+          excludeMatches,
+          includesToDelegate.isEmpty()
+              ? null
+              : legacyGlobber.runAsync(includesToDelegate, ImmutableList.of(), excludeDirs),
+          excludesToDelegate.isEmpty()
+              ? null
+              : legacyGlobber.runAsync(excludesToDelegate, ImmutableList.of(), excludeDirs));
+    }
+
+    private List<SkyKey> getPatternKeys(List<String> patterns, boolean excludeDirs) {
+      List<SkyKey> keys = new ArrayList<>(patterns.size());
+      for (String pattern : patterns) {
+        // The patterns were validated by GlobExpansionValue#key.
+        keys.add(
+            GlobValue.internalKey(
+                packageId, packageRoot, PathFragment.EMPTY_FRAGMENT, pattern, excludeDirs));
+      }
+      return keys;
+    }
+
+    /** Returns the {@link GlobValue}s of the given keys which are done without errors. */
+    private Map<SkyKey, GlobValue> getDonePatternValues(Iterable<SkyKey> keys) {
+      Map<SkyKey, GlobValue> values = new HashMap<>();
+      if (doneValueLookup == null) {
+        return values;
+      }
+      for (SkyKey key : keys) {
+        GlobValue value = (GlobValue) doneValueLookup.apply(key);
+        if (value != null) {
+          values.put(key, value);
         }
       }
-      return missingKeys;
+      return values;
+    }
+
+    private static boolean addPatternMatches(@Nullable GlobValue value, Set<String> matches) {
+      if (value == null) {
+        return false;
+      }
+      for (PathFragment match : value.getMatches()) {
+        matches.add(match.getPathString());
+      }
+      return true;
     }
 
     @Override
     public List<String> fetch(Token token) throws IOException, InterruptedException {
       HybridToken hybridToken = (HybridToken) token;
-      return hybridToken.resolve(legacyGlobber);
+      if (hybridToken.matches != null) {
+        return hybridToken.matches;
+      }
+      if (hybridToken.exception != null) {
+        Throwables.propagateIfPossible(hybridToken.exception, IOException.class);
+        // Legacy package loading is only able to handle an IOException, so a rethrow here is the
+        // best we can do. But after legacy package loading, PackageFunction will go through all
+        // the skyframe deps and properly handle InconsistentFilesystemExceptions.
+        throw new IOException(hybridToken.exception.getMessage());
+      }
+      Set<String> matches = new HashSet<>(hybridToken.includeMatches);
+      if (hybridToken.legacyIncludesToken != null) {
+        matches.addAll(legacyGlobber.fetch(hybridToken.legacyIncludesToken));
+      }
+      matches.removeAll(hybridToken.excludeMatches);
+      if (hybridToken.legacyExcludesToken != null) {
+        matches.removeAll(legacyGlobber.fetch(hybridToken.legacyExcludesToken));
+      }
+      List<String> result = new ArrayList<>(matches);
+      // We used a LegacyGlobber that doesn't sort, but Skyframe glob results are sorted.
+      Collections.sort(result);
+      return result;
     }
 
     @Override
@@ -1015,105 +1265,38 @@ public class PackageFunction implements SkyFunction {
 
     /**
      * A {@link Globber.Token} that encapsulates the result of a single {@link Globber#runAsync}
-     * call via the fetching of some globs from skyframe, and some other globs via a
-     * {@link PackageFactory.LegacyGlobber}. We take care to properly handle 'includes' vs
-     * 'excludes'.
-     *
-     * <p>That is, we evaluate {@code glob(includes, excludes)} by partitioning {@code includes} and
-     * {@code excludes}.
-     *
-     * <pre>
-     * {@code
-     * includes = includes_sky U includes_leg
-     * excludes = excludes_sky U excludes_leg
-     * }
-     * </pre>
-     *
-     * <p>and then noting
-     *
-     * <pre>
-     * {@code
-     * glob(includes, excludes) =
-     *     (glob(includes_sky, []) U glob(includes_leg, []))
-     *   - (glob(excludes_sky, []) U glob(excludes_leg, []))
-     * }
-     * </pre>
-     *
-     * <p>Importantly, we pass excludes=[] in all cases; otherwise we'd be incorrectly not
-     * subtracting excluded glob matches from the overall list of matches. In other words, we
-     * implement the subtractive nature of excludes ourselves in {@link #resolve}.
+     * call: either the matches fetched from skyframe, the error of the skyframe evaluation, or the
+     * matches of the patterns fetched from skyframe together with tokens of the {@link
+     * PackageFactory.LegacyGlobber} evaluating the other patterns.
      */
     private static class HybridToken extends Globber.Token {
-      // The result of the Skyframe lookup for all the needed glob patterns.
-      private final Map<SkyKey, ValueOrException3<IOException, BuildFileNotFoundException,
-          FileSymlinkCycleException>> globValueMap;
-      // The skyframe keys corresponding to the 'includes' patterns fetched from Skyframe
-      // (this is includes_sky above).
-      private final Iterable<SkyKey> includesGlobKeys;
-      // The skyframe keys corresponding to the 'excludes' patterns fetched from Skyframe
-      // (this is excludes_sky above).
-      private final Iterable<SkyKey> excludesGlobKeys;
-      // A token for computing includes_leg.
-      private final Token legacyIncludesToken;
-      // A token for computing excludes_leg.
-      private final Token legacyExcludesToken;
-
-      private HybridToken(Map<SkyKey, ValueOrException3<IOException, BuildFileNotFoundException,
-          FileSymlinkCycleException>> globValueMap,
-          Iterable<SkyKey> includesGlobKeys, Iterable<SkyKey> excludesGlobKeys,
-          Token delegateIncludesToken, Token delegateExcludesToken) {
-        this.globValueMap = globValueMap;
-        this.includesGlobKeys = includesGlobKeys;
-        this.excludesGlobKeys = excludesGlobKeys;
-        this.legacyIncludesToken = delegateIncludesToken;
-        this.legacyExcludesToken = delegateExcludesToken;
+      @Nullable private final ImmutableList<String> matches;
+      @Nullable private final Exception exception;
+      private final Set<String> includeMatches;
+      private final Set<String> excludeMatches;
+      @Nullable private final Token legacyIncludesToken;
+      @Nullable private final Token legacyExcludesToken;
+
+      private HybridToken(@Nullable ImmutableList<String> matches, @Nullable Exception exception) {
+        this.matches = matches;
+        this.exception = exception;
+        this.includeMatches = ImmutableSet.of();
+        this.excludeMatches = ImmutableSet.of();
+        this.legacyIncludesToken = null;
+        this.legacyExcludesToken = null;
       }
 
-      private List<String> resolve(Globber delegate) throws IOException, InterruptedException {
-        HashSet<String> matches = new HashSet<>();
-        for (SkyKey includeGlobKey : includesGlobKeys) {
-          // TODO(bazel-team): NestedSet expansion here is suboptimal.
-          for (PathFragment match : getGlobMatches(includeGlobKey, globValueMap)) {
-            matches.add(match.getPathString());
-          }
-        }
-        matches.addAll(delegate.fetch(legacyIncludesToken));
-        for (SkyKey excludeGlobKey : excludesGlobKeys) {
-          for (PathFragment match : getGlobMatches(excludeGlobKey, globValueMap)) {
-            matches.remove(match.getPathString());
-          }
-        }
-        for (String delegateExcludeMatch : delegate.fetch(legacyExcludesToken)) {
-          matches.remove(delegateExcludeMatch);
-        }
-        List<String> result = new ArrayList<>(matches);
-        // Skyframe glob results are unsorted. And we used a LegacyGlobber that doesn't sort.
-        // Therefore, we want to unconditionally sort here.
-        Collections.sort(result);
-        return result;
-      }
-
-      private static NestedSet<PathFragment> getGlobMatches(
-          SkyKey globKey,
-          Map<
-                  SkyKey,
-                  ValueOrException3<
-                      IOException, BuildFileNotFoundException, FileSymlinkCycleException>>
-              globValueMap)
-          throws IOException {
-        ValueOrException3<IOException, BuildFileNotFoundException, FileSymlinkCycleException>
-            valueOrException =
-                Preconditions.checkNotNull(globValueMap.get(globKey), "%s should not be missing",
-                    globKey);
-        try {
-          return Preconditions.checkNotNull((GlobValue) valueOrException.get(),
-              "%s should not be missing", globKey).getMatches();
-        } catch (BuildFileNotFoundException e) {
-          // Legacy package loading is only able to handle an IOException, so a rethrow here is the
-          // best we can do. But after legacy package loading, PackageFunction will go through all
-          // the skyframe deps and properly handle InconsistentFilesystemExceptions.
-          throw new IOException(e.getMessage());
-        }
+      private HybridToken(
+          Set<String> includeMatches,
+          Set<String> excludeMatches,
+          @Nullable Token legacyIncludesToken,
+          @Nullable Token legacyExcludesToken) {
+        this.matches = null;
+        this.exception = null;
+        this.includeMatches = includeMatches;
+        this.excludeMatches = excludeMatches;
+        this.legacyIncludesToken = legacyIncludesToken;
+        this.legacyExcludesToken = legacyExcludesToken;
       }
     }
   }
@@ -1127,7 +1310,8 @@ public class PackageFunction implements SkyFunction {
         buildFilePath.getParentDirectory(), packageId, packageLocator);
     switch (incrementalityIntent) {
       case INCREMENTAL:
-        return new SkyframeHybridGlobber(packageId, packageRoot, env, legacyGlobber);
+        return new SkyframeHybridGlobber(
+            packageId, packageRoot, env, legacyGlobber, doneValueLookup);
       case NON_INCREMENTAL:
         // Skyframe globbing is only useful for incremental correctness and performance. The
         // first time Bazel loads a package ever, Skyframe globbing is actually pure overhead
@@ -1162,6 +1346,22 @@ public class PackageFunction implements SkyFunction {
       Environment env)
       throws InterruptedException, PackageFunctionException {
     LoadedPackageCacheEntry packageCacheEntry = packageFunctionCache.getIfPresent(packageId);
+    if (packageCacheEntry == null) {
+      packageCacheEntry =
+          maybePatchPreviousPackage(
+              workspaceName,
+              packageId,
+              buildFilePath,
+              buildFileValue,
+              defaultVisibility,
+              skylarkSemantics,
+              preludeStatements,
+              packageRoot,
+              env);
+      if (packageCacheEntry == null && env.valuesMissing()) {
+        return null;
+      }
+    }
     if (packageCacheEntry == null) {
       profiler.startTask(ProfilerTask.CREATE_PACKAGE, packageId.toString());
       if (packageProgress != null) {
@@ -1227,6 +1427,34 @@ public class PackageFunction implements SkyFunction {
         if (importResult == null) {
           return null;
         }
+        String sharedInputsKey =
+            getSharedInputsKey(
+                workspaceName,
+                packageId,
+                buildFilePath,
+                buildFileValue,
+                defaultVisibility,
+                skylarkSemantics,
+                preludeStatements,
+                importResult);
+        if (sharedInputsKey != null) {
+          packageCacheEntry =
+              maybeLoadSharedPackage(
+                  sharedInputsKey,
+                  workspaceName,
+                  packageId,
+                  buildFilePath,
+                  importResult,
+                  packageRoot,
+                  env);
+          if (packageCacheEntry != null) {
+            astCache.invalidate(packageId);
+            return packageCacheEntry;
+          }
+          if (env.valuesMissing()) {
+            return null;
+          }
+        }
         astCache.invalidate(packageId);
         GlobberWithSkyframeGlobDeps globberWithSkyframeGlobDeps =
             makeGlobber(buildFilePath, packageId, packageRoot, env);
@@ -1242,10 +1470,25 @@ public class PackageFunction implements SkyFunction {
             skylarkSemantics,
             globberWithSkyframeGlobDeps);
         long loadTimeNanos = Math.max(BlazeClock.nanoTime() - startTimeNanos, 0L);
+        PackageInputs inputs =
+            incrementalityIntent == IncrementalityIntent.INCREMENTAL && buildFileValue != null
+                ? new PackageInputs(
+                    workspaceName,
+                    buildFileValue,
+                    defaultVisibility,
+                    skylarkSemantics,
+                    preludeStatements,
+                    packageRoot,
+                    astParseResult.ast.getImports(),
+                    importResult)
+                : null;
         packageCacheEntry = new LoadedPackageCacheEntry(
             pkgBuilder,
             globberWithSkyframeGlobDeps.getGlobDepsRequested(),
-            loadTimeNanos);
+            loadTimeNanos,
+            inputs,
+            sharedInputsKey,
+            importResult.importMap);
         numPackagesLoaded.incrementAndGet();
         if (packageProgress != null) {
           packageProgress.doneReadPackage(packageId);
@@ -1258,6 +1501,303 @@ public class PackageFunction implements SkyFunction {
     return packageCacheEntry;
   }
 
+  /**
+   * If only the results of some globs of the package changed since it was last loaded, and the
+   * package allows it, returns the previous version of the package with the new glob results
+   * patched in, without evaluating the BUILD file.
+   *
+   * <p>Returns null if the package has to be loaded normally, or if the computation has to be
+   * restarted, in which case {@code env.valuesMissing()} is true.
+   */
+  @Nullable
+  private LoadedPackageCacheEntry maybePatchPreviousPackage(
+      String workspaceName,
+      PackageIdentifier packageId,
+      Path buildFilePath,
+      @Nullable FileValue buildFileValue,
+      RuleVisibility defaultVisibility,
+      SkylarkSemantics skylarkSemantics,
+      List<Statement> preludeStatements,
+      Root packageRoot,
+      Environment env)
+      throws InterruptedException, PackageFunctionException {
+    PatchablePackage previous = patchablePackages.getIfPresent(packageId);
+    if (previous == null || !previous.patchable || buildFileValue == null) {
+      return null;
+    }
+    Package previousPkg = previous.pkg.get();
+    if (previousPkg == null
+        || !previous.inputs.hasSameInputs(
+            workspaceName,
+            buildFileValue,
+            defaultVisibility,
+            skylarkSemantics,
+            preludeStatements,
+            packageRoot)) {
+      patchablePackages.invalidate(packageId);
+      return null;
+    }
+
+    // The BUILD file didn't change, so it has the same loads.
+    SkylarkImportResult importResult;
+    try {
+      importResult =
+          fetchImportsFromBuildFile(
+              buildFilePath,
+              packageId,
+              previous.inputs.imports,
+              env,
+              skylarkImportLookupFunctionForInlining);
+    } catch (NoSuchPackageException e) {
+      throw new PackageFunctionException(e, Transience.PERSISTENT);
+    }
+    if (importResult == null) {
+      return null;
+    }
+    if (!previous.inputs.hasSameImports(importResult)) {
+      patchablePackages.invalidate(packageId);
+      return null;
+    }
+
+    List<GlobResultUsage.GlobCall> globCalls = previousPkg.getGlobResultUsage().getGlobCalls();
+    List<SkyKey> globKeys = new ArrayList<>(globCalls.size());
+    for (GlobResultUsage.GlobCall globCall : globCalls) {
+      try {
+        globKeys.add(
+            GlobExpansionValue.key(
+                packageId,
+                packageRoot,
+                globCall.getIncludes(),
+                globCall.getExcludes(),
+                globCall.excludeDirs()));
+      } catch (InvalidGlobPatternException e) {
+        // The patterns were valid when the package was loaded.
+        throw new IllegalStateException(e);
+      }
+    }
+    List<ImmutableList<String>> globMatches = getGlobMatches(globKeys, env);
+    if (globMatches == null) {
+      return null;
+    }
+
+    profiler.startTask(ProfilerTask.CREATE_PACKAGE, packageId.toString());
+    try {
+      long startTimeNanos = BlazeClock.nanoTime();
+      Package.Builder pkgBuilder = packageFactory.patchGlobResults(previousPkg, globMatches);
+      if (pkgBuilder == null) {
+        // Don't try again until the package is loaded from other inputs than these.
+        patchablePackages.put(packageId, previous.unpatchable());
+        return null;
+      }
+      long loadTimeNanos = Math.max(BlazeClock.nanoTime() - startTimeNanos, 0L);
+      LoadedPackageCacheEntry packageCacheEntry =
+          new LoadedPackageCacheEntry(
+              pkgBuilder,
+              ImmutableSet.copyOf(globKeys),
+              loadTimeNanos,
+              new PackageInputs(
+                  workspaceName,
+                  buildFileValue,
+                  defaultVisibility,
+                  skylarkSemantics,
+                  preludeStatements,
+                  packageRoot,
+                  previous.inputs.imports,
+                  importResult),
+              /*sharedInputsKey=*/ null,
+              /*imports=*/ null);
+      numPackagesLoaded.incrementAndGet();
+      packageFunctionCache.put(packageId, packageCacheEntry);
+      return packageCacheEntry;
+    } finally {
+      profiler.completeTask(ProfilerTask.CREATE_PACKAGE);
+    }
+  }
+
+  /**
+   * Returns the matches of the given globs, or null if the computation has to be restarted, in
+   * which case {@code env.valuesMissing()} is true, or if some glob is in error, which loading the
+   * package reports.
+   */
+  @Nullable
+  private static List<ImmutableList<String>> getGlobMatches(
+      List<? extends SkyKey> globKeys, Environment env) throws InterruptedException {
+    Map<SkyKey, ValueOrException2<IOException, BuildFileNotFoundException>> globValues =
+        env.getValuesOrThrow(globKeys, IOException.class, BuildFileNotFoundException.class);
+    if (env.valuesMissing()) {
+      return null;
+    }
+    List<ImmutableList<String>> globMatches = new ArrayList<>(globKeys.size());
+    for (SkyKey globKey : globKeys) {
+      try {
+        globMatches.add(((GlobExpansionValue) globValues.get(globKey).get()).getMatches());
+      } catch (IOException | BuildFileNotFoundException e) {
+        return null;
+      }
+    }
+    return globMatches;
+  }
+
+  /**
+   * Returns the key of the manifest of the package in the shared package cache, or null if there
+   * is no shared package cache or the package isn't shared.
+   */
+  @Nullable
+  private String getSharedInputsKey(
+      String workspaceName,
+      PackageIdentifier packageId,
+      Path buildFilePath,
+      @Nullable FileValue buildFileValue,
+      RuleVisibility defaultVisibility,
+      SkylarkSemantics skylarkSemantics,
+      List<Statement> preludeStatements,
+      SkylarkImportResult importResult) {
+    // Without Skyframe globbing, the globs of a package aren't known after loading it.
+    if (sharedPackageCache.get() == null
+        || buildFileValue == null
+        || incrementalityIntent != IncrementalityIntent.INCREMENTAL) {
+      return null;
+    }
+    byte[] buildFileDigest = buildFileValue.getDigest();
+    if (buildFileDigest == null) {
+      try {
+        buildFileDigest = buildFilePath.getDigest();
+      } catch (IOException e) {
+        // Reading the BUILD file reports the error.
+        return null;
+      }
+    }
+    return SharedPackageManifest.inputsKey(
+        packageId,
+        buildFilePath.getBaseName(),
+        buildFileDigest,
+        workspaceName,
+        defaultVisibility,
+        skylarkSemantics,
+        preludeStatements,
+        importResult.importMap);
+  }
+
+  /**
+   * Returns the package stored in the shared package cache for the given inputs and the current
+   * results of its globs, without evaluating the BUILD file.
+   *
+   * <p>Returns null if the package has to be evaluated, or if the computation has to be
+   * restarted, in which case {@code env.valuesMissing()} is true.
+   */
+  @Nullable
+  private LoadedPackageCacheEntry maybeLoadSharedPackage(
+      String inputsKey,
+      String workspaceName,
+      PackageIdentifier packageId,
+      Path buildFilePath,
+      SkylarkImportResult importResult,
+      Root packageRoot,
+      Environment env)
+      throws InterruptedException {
+    SharedPackageCache cache = sharedPackageCache.get();
+    if (cache == null) {
+      return null;
+    }
+    SharedPackageManifest manifest = fetchedManifests.getIfPresent(inputsKey);
+    if (manifest == null) {
+      byte[] data = getSharedEntry(cache, inputsKey);
+      manifest =
+          data != null ? SharedPackageManifest.deserialize(data, packageId, packageRoot) : null;
+      if (manifest == null) {
+        return null;
+      }
+    }
+    List<ImmutableList<String>> globMatches = getGlobMatches(manifest.getGlobKeys(), env);
+    if (globMatches == null) {
+      if (env.valuesMissing()) {
+        fetchedManifests.put(inputsKey, manifest);
+      }
+      return null;
+    }
+    fetchedManifests.invalidate(inputsKey);
+    byte[] snapshot = getSharedEntry(cache, manifest.packageKey(inputsKey, globMatches));
+    if (snapshot == null) {
+      return null;
+    }
+
+    long startTimeNanos = BlazeClock.nanoTime();
+    Package.Builder pkgBuilder =
+        packageFactory.restorePackage(
+            snapshot,
+            workspaceName,
+            packageId,
+            buildFilePath,
+            importResult.importMap,
+            importResult.fileDependencies,
+            packageRoot);
+    if (pkgBuilder == null) {
+      return null;
+    }
+    long loadTimeNanos = Math.max(BlazeClock.nanoTime() - startTimeNanos, 0L);
+    LoadedPackageCacheEntry packageCacheEntry =
+        new LoadedPackageCacheEntry(
+            pkgBuilder,
+            ImmutableSet.copyOf(manifest.getGlobKeys()),
+            loadTimeNanos,
+            /*inputs=*/ null,
+            /*sharedInputsKey=*/ null,
+            /*imports=*/ null);
+    numPackagesLoaded.incrementAndGet();
+    if (packageProgress != null) {
+      packageProgress.doneReadPackage(packageId);
+    }
+    packageFunctionCache.put(packageId, packageCacheEntry);
+    return packageCacheEntry;
+  }
+
+  /**
+   * Stores the given package, which was loaded by evaluating its BUILD file, in the shared package
+   * cache, unless it can't be shared.
+   */
+  private void maybePublishSharedPackage(
+      String inputsKey,
+      Package pkg,
+      Set<SkyKey> globKeys,
+      Map<String, Extension> imports,
+      Root packageRoot,
+      Environment env)
+      throws InterruptedException {
+    SharedPackageCache cache = sharedPackageCache.get();
+    if (cache == null || pkg.containsErrors()) {
+      return;
+    }
+    SharedPackageManifest manifest = SharedPackageManifest.create(globKeys);
+    List<ImmutableList<String>> globMatches = getGlobMatches(manifest.getGlobKeys(), env);
+    if (globMatches == null) {
+      return;
+    }
+    byte[] snapshot = packageFactory.snapshotPackage(pkg, imports, packageRoot);
+    if (snapshot == null) {
+      return;
+    }
+    try {
+      cache.put(manifest.packageKey(inputsKey, globMatches), snapshot);
+      cache.put(inputsKey, manifest.serialize());
+    } catch (IOException e) {
+      logger.log(
+          Level.WARNING,
+          "Failed to store " + pkg.getPackageIdentifier() + " in the shared package cache",
+          e);
+    }
+  }
+
+  @Nullable
+  private static byte[] getSharedEntry(SharedPackageCache cache, String key)
+      throws InterruptedException {
+    try {
+      return cache.get(key);
+    } catch (IOException e) {
+      logger.log(Level.WARNING, "Failed to read " + key + " from the shared package cache", e);
+      return null;
+    }
+  }
+
   private static class InternalInconsistentFilesystemException extends Exception {
     private boolean isTransient;
 
@@ -16,6 +16,7 @@ package com.google.devtools.build.lib.skyframe;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
 import com.google.common.cache.LoadingCache;
+import com.google.common.collect.Iterables;
 import com.google.devtools.build.lib.util.Pair;
 import com.google.devtools.build.lib.vfs.Dirent;
 import com.google.devtools.build.lib.vfs.FileStatus;
@@ -23,10 +24,16 @@ import com.google.devtools.build.lib.vfs.Path;
 import com.google.devtools.build.lib.vfs.Symlinks;
 import com.google.devtools.build.lib.vfs.UnixGlob;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * A per-build cache of filesystem operations for Skyframe invocations of legacy package loading.
+ *
+ * <p>This cache is local to legacy globbing: Skyframe globbing lists directories through its own
+ * {@link DirectoryListingStateValue}s, so that discrepancies between the two can be detected.
  */
 public class PerBuildSyscallCache implements UnixGlob.FilesystemCalls {
 
@@ -88,8 +95,13 @@ public class PerBuildSyscallCache implements UnixGlob.FilesystemCalls {
         statCacheBuilder = statCacheBuilder.concurrencyLevel(concurrencyLevel);
         readdirCacheBuilder = readdirCacheBuilder.concurrencyLevel(concurrencyLevel);
       }
-      return new PerBuildSyscallCache(statCacheBuilder.build(newStatLoader()),
-          readdirCacheBuilder.build(newReaddirLoader()));
+      LoadingCache<Pair<Path, Symlinks>, Pair<FileStatus, IOException>> statCache =
+          statCacheBuilder.build(newStatLoader());
+      // The loader needs the cache itself to derive listings following symlinks from the others.
+      AtomicReference<LoadingCache<Pair<Path, Symlinks>, Pair<Collection<Dirent>, IOException>>>
+          readdirCacheRef = new AtomicReference<>();
+      readdirCacheRef.set(readdirCacheBuilder.build(newReaddirLoader(statCache, readdirCacheRef)));
+      return new PerBuildSyscallCache(statCache, readdirCacheRef.get());
     }
   }
 
@@ -184,12 +196,26 @@ public class PerBuildSyscallCache implements UnixGlob.FilesystemCalls {
    * A {@link CacheLoader} for a cache of readdir calls.
    * Input: (path, following_symlinks)
    * Output: A union of (Dirents, IOException).
+   *
+   * <p>Listings following symlinks are derived from the listing of the same directory not
+   * following them, by stat'ing only the entries which are symlinks.
    */
   private static
-  CacheLoader<Pair<Path, Symlinks>, Pair<Collection<Dirent>, IOException>> newReaddirLoader() {
+  CacheLoader<Pair<Path, Symlinks>, Pair<Collection<Dirent>, IOException>> newReaddirLoader(
+      LoadingCache<Pair<Path, Symlinks>, Pair<FileStatus, IOException>> statCache,
+      AtomicReference<LoadingCache<Pair<Path, Symlinks>, Pair<Collection<Dirent>, IOException>>>
+          readdirCache) {
     return new CacheLoader<Pair<Path, Symlinks>, Pair<Collection<Dirent>, IOException>>() {
         @Override
         public Pair<Collection<Dirent>, IOException> load(Pair<Path, Symlinks> p) {
+          if (p.second == Symlinks.FOLLOW) {
+            Pair<Collection<Dirent>, IOException> noFollow =
+                readdirCache.get().getUnchecked(Pair.of(p.first, Symlinks.NOFOLLOW));
+            if (noFollow.getFirst() == null) {
+              return noFollow;
+            }
+            return Pair.of(followSymlinks(p.first, noFollow.getFirst(), statCache), null);
+          }
           try {
             // TODO(bazel-team): Consider storing the Collection of Dirent values more compactly
             // by reusing DirectoryEntryListingStateValue#CompactSortedDirents.
@@ -200,4 +226,43 @@ public class PerBuildSyscallCache implements UnixGlob.FilesystemCalls {
         }
       };
   }
+
+  private static Collection<Dirent> followSymlinks(
+      Path directory,
+      Collection<Dirent> dirents,
+      LoadingCache<Pair<Path, Symlinks>, Pair<FileStatus, IOException>> statCache) {
+    List<Dirent> result = null;
+    int i = 0;
+    for (Dirent dirent : dirents) {
+      if (dirent.getType() == Dirent.Type.SYMLINK) {
+        if (result == null) {
+          result = new ArrayList<>(dirents.size());
+          Iterables.addAll(result, Iterables.limit(dirents, i));
+        }
+        FileStatus status =
+            statCache
+                .getUnchecked(Pair.of(directory.getChild(dirent.getName()), Symlinks.FOLLOW))
+                .getFirst();
+        result.add(new Dirent(dirent.getName(), direntTypeFromStat(status)));
+      } else if (result != null) {
+        result.add(dirent);
+      }
+      i++;
+    }
+    return result != null ? result : dirents;
+  }
+
+  /** Same as {@link com.google.devtools.build.lib.vfs.FileSystem#direntFromStat}. */
+  private static Dirent.Type direntTypeFromStat(FileStatus status) {
+    if (status == null || status == NO_STATUS || status.isSpecialFile()) {
+      // Dangling symlinks, and symlinks which could not be followed.
+      return Dirent.Type.UNKNOWN;
+    } else if (status.isFile()) {
+      return Dirent.Type.FILE;
+    } else if (status.isDirectory()) {
+      return Dirent.Type.DIRECTORY;
+    } else {
+      return Dirent.Type.UNKNOWN;
+    }
+  }
 }
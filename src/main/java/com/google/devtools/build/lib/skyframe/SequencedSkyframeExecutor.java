@@ -17,6 +17,7 @@ import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Joiner;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Predicate;
+import com.google.common.base.Throwables;
 import com.google.common.collect.Collections2;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
@@ -26,10 +27,10 @@ import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Range;
 import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.devtools.build.lib.actions.ActionKeyContext;
 import com.google.devtools.build.lib.actions.ArtifactRoot;
 import com.google.devtools.build.lib.actions.CommandLineExpansionException;
-import com.google.devtools.build.lib.analysis.AnalysisProtos.ActionGraphContainer;
 import com.google.devtools.build.lib.analysis.BlazeDirectories;
 import com.google.devtools.build.lib.analysis.BuildView;
 import com.google.devtools.build.lib.analysis.ConfiguredTarget;
@@ -39,6 +40,8 @@ import com.google.devtools.build.lib.analysis.config.BuildOptions;
 import com.google.devtools.build.lib.analysis.configuredtargets.RuleConfiguredTarget;
 import com.google.devtools.build.lib.buildtool.BuildRequestOptions;
 import com.google.devtools.build.lib.cmdline.PackageIdentifier;
+import com.google.devtools.build.lib.concurrent.ExecutorUtil;
+import com.google.devtools.build.lib.concurrent.ThrowableRecordingRunnableWrapper;
 import com.google.devtools.build.lib.concurrent.Uninterruptibles;
 import com.google.devtools.build.lib.events.Event;
 import com.google.devtools.build.lib.events.EventHandler;
@@ -91,6 +94,7 @@ import com.google.devtools.build.skyframe.SkyKey;
 import com.google.devtools.build.skyframe.SkyValue;
 import com.google.devtools.common.options.OptionsClassProvider;
 import com.google.devtools.common.options.OptionsProvider;
+import java.io.IOException;
 import java.io.PrintStream;
 import java.util.ArrayList;
 import java.util.Collection;
@@ -103,6 +107,10 @@ import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Logger;
 import javax.annotation.Nullable;
 
@@ -637,7 +645,8 @@ public final class SequencedSkyframeExecutor extends SkyframeExecutor {
           SkyFunctions.PACKAGE,
           SkyFunctions.SKYLARK_IMPORTS_LOOKUP,
           SkyFunctions.AST_FILE_LOOKUP,
-          SkyFunctions.GLOB);
+          SkyFunctions.GLOB,
+          SkyFunctions.GLOB_EXPANSION);
 
   /**
    * Save memory by removing references to configured targets and aspects in Skyframe.
@@ -772,36 +781,81 @@ public final class SequencedSkyframeExecutor extends SkyframeExecutor {
   }
 
   @Override
-  public ActionGraphContainer getActionGraphContainer(
-      List<String> actionGraphTargets, boolean includeActionCmdLine)
-      throws CommandLineExpansionException {
-    ActionGraphDump actionGraphDump = new ActionGraphDump(actionGraphTargets, includeActionCmdLine);
-    for (Map.Entry<SkyKey, ? extends NodeEntry> skyKeyAndNodeEntry :
-        memoizingEvaluator.getGraphMap().entrySet()) {
-      NodeEntry entry = skyKeyAndNodeEntry.getValue();
-      SkyKey key = skyKeyAndNodeEntry.getKey();
-      SkyFunctionName functionName = key.functionName();
-      try {
-        SkyValue skyValue = entry.getValue();
-        // The skyValue may be null in case analysis of the previous build failed.
-        if (skyValue != null) {
-          if (functionName.equals(SkyFunctions.CONFIGURED_TARGET)) {
-            actionGraphDump.dumpConfiguredTarget((ConfiguredTargetValue) skyValue);
-          } else if (functionName.equals(SkyFunctions.ASPECT)) {
-            AspectValue aspectValue = (AspectValue) skyValue;
-            AspectKey aspectKey = aspectValue.getKey();
-            ConfiguredTargetValue configuredTargetValue =
-                (ConfiguredTargetValue)
-                memoizingEvaluator.getExistingValue(aspectKey.getBaseConfiguredTargetKey());
-            actionGraphDump.dumpAspect(aspectValue, configuredTargetValue);
+  public void dumpActionGraph(ActionGraphDump actionGraphDump, int numThreads)
+      throws CommandLineExpansionException, IOException, InterruptedException {
+    ExecutorService executor =
+        Executors.newFixedThreadPool(
+            numThreads, new ThreadFactoryBuilder().setNameFormat("Action graph dump %d").build());
+    ThrowableRecordingRunnableWrapper wrapper =
+        new ThrowableRecordingRunnableWrapper("SequencedSkyframeExecutor#dumpActionGraph");
+    // The first checked exception thrown by any of the jobs, after which the others stop.
+    AtomicReference<Exception> firstException = new AtomicReference<>();
+    try {
+      for (Map.Entry<SkyKey, ? extends NodeEntry> skyKeyAndNodeEntry :
+          memoizingEvaluator.getGraphMap().entrySet()) {
+        if (firstException.get() != null) {
+          break;
+        }
+        NodeEntry entry = skyKeyAndNodeEntry.getValue();
+        SkyKey key = skyKeyAndNodeEntry.getKey();
+        SkyFunctionName functionName = key.functionName();
+        Callable<Void> job;
+        if (functionName.equals(SkyFunctions.CONFIGURED_TARGET)) {
+          ConfiguredTargetValue configuredTargetValue = (ConfiguredTargetValue) entry.getValue();
+          // The skyValue may be null in case analysis of the previous build failed.
+          if (configuredTargetValue == null) {
+            continue;
+          }
+          job =
+              () -> {
+                actionGraphDump.dumpConfiguredTarget(configuredTargetValue);
+                return null;
+              };
+        } else if (functionName.equals(SkyFunctions.ASPECT)) {
+          AspectValue aspectValue = (AspectValue) entry.getValue();
+          if (aspectValue == null) {
+            continue;
           }
+          AspectKey aspectKey = aspectValue.getKey();
+          ConfiguredTargetValue configuredTargetValue =
+              (ConfiguredTargetValue)
+                  memoizingEvaluator.getExistingValue(aspectKey.getBaseConfiguredTargetKey());
+          job =
+              () -> {
+                actionGraphDump.dumpAspect(aspectValue, configuredTargetValue);
+                return null;
+              };
+        } else {
+          continue;
         }
-      } catch (InterruptedException e) {
+        Future<?> unused =
+            executor.submit(
+                wrapper.wrap(
+                    () -> {
+                      if (firstException.get() != null) {
+                        return;
+                      }
+                      try {
+                        job.call();
+                      } catch (CommandLineExpansionException | IOException e) {
+                        firstException.compareAndSet(null, e);
+                      } catch (Exception e) {
+                        throw new IllegalStateException(e);
+                      }
+                    }));
+      }
+    } finally {
+      if (ExecutorUtil.interruptibleShutdown(executor)) {
         Thread.currentThread().interrupt();
-        throw new IllegalStateException("No interruption in sequenced evaluation", e);
       }
     }
-    return actionGraphDump.build();
+    Throwables.propagateIfPossible(wrapper.getFirstThrownError());
+    if (Thread.interrupted()) {
+      throw new InterruptedException();
+    }
+    Exception e = firstException.get();
+    Throwables.propagateIfPossible(e, CommandLineExpansionException.class, IOException.class);
+    actionGraphDump.flush();
   }
 
 
@@ -0,0 +1,47 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.skyframe;
+
+import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
+import java.io.IOException;
+import javax.annotation.Nullable;
+
+/**
+ * A store of loaded packages keyed by their inputs, which may be shared between workspaces and
+ * machines. {@link PackageFunction} looks packages up in it before evaluating their BUILD files,
+ * and stores the packages it had to evaluate.
+ *
+ * <p>The keys are hex-encoded hashes of everything the entry was computed from, so an entry never
+ * has to be invalidated and an implementation may drop entries at any time.
+ *
+ * <p>{@link PackageFunction} calls the methods of this interface on Skyframe threads, so
+ * implementations which reach the network should bound the time they block.
+ */
+@ThreadSafe
+public interface SharedPackageCache {
+
+  /**
+   * Returns the entry stored under the given key, or null if there is none.
+   *
+   * @throws IOException if the lookup failed, or didn't finish in time
+   */
+  @Nullable
+  byte[] get(String key) throws IOException, InterruptedException;
+
+  /**
+   * Stores the given entry under the given key. The entry may be stored asynchronously, or not at
+   * all.
+   */
+  void put(String key, byte[] value) throws IOException, InterruptedException;
+}
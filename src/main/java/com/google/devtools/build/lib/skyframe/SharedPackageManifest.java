@@ -0,0 +1,202 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.skyframe;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.devtools.build.lib.cmdline.Label;
+import com.google.devtools.build.lib.cmdline.PackageIdentifier;
+import com.google.devtools.build.lib.concurrent.ThreadSafety.Immutable;
+import com.google.devtools.build.lib.packages.RuleVisibility;
+import com.google.devtools.build.lib.skyframe.GlobValue.InvalidGlobPatternException;
+import com.google.devtools.build.lib.syntax.Environment.Extension;
+import com.google.devtools.build.lib.syntax.SkylarkSemantics;
+import com.google.devtools.build.lib.syntax.Statement;
+import com.google.devtools.build.lib.vfs.Root;
+import com.google.devtools.build.skyframe.SkyKey;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import javax.annotation.Nullable;
+
+/**
+ * The globs of a package in a {@link SharedPackageCache}.
+ *
+ * <p>A package is shared in two entries. The manifest is stored under the hash of the inputs of
+ * the package which are known before its BUILD file is evaluated: the contents of the BUILD file,
+ * the transitive contents of the files it loads, and the settings it is evaluated with. It lists
+ * the globs the BUILD file evaluated. The package itself is stored under the hash of the inputs
+ * together with the results of these globs, since only evaluating the BUILD file tells which
+ * globs it evaluates.
+ */
+@Immutable
+final class SharedPackageManifest {
+
+  /** Changed whenever the format of the entries or what their keys cover changes. */
+  private static final int FORMAT_VERSION = 1;
+
+  private static final Comparator<GlobExpansionValue.Key> GLOB_ORDER =
+      Comparator.comparing((GlobExpansionValue.Key key) -> key.getIncludes().toString())
+          .thenComparing(key -> key.getExcludes().toString())
+          .thenComparing(GlobExpansionValue.Key::excludeDirs);
+
+  private final ImmutableList<GlobExpansionValue.Key> globKeys;
+
+  private SharedPackageManifest(ImmutableList<GlobExpansionValue.Key> globKeys) {
+    this.globKeys = globKeys;
+  }
+
+  /** Returns the manifest of a package which requested the given glob keys. */
+  static SharedPackageManifest create(Collection<SkyKey> globKeys) {
+    List<GlobExpansionValue.Key> sortedKeys = new ArrayList<>(globKeys.size());
+    for (SkyKey globKey : globKeys) {
+      sortedKeys.add((GlobExpansionValue.Key) globKey);
+    }
+    sortedKeys.sort(GLOB_ORDER);
+    return new SharedPackageManifest(ImmutableList.copyOf(sortedKeys));
+  }
+
+  /** Returns the keys of the globs of the package, in a deterministic order. */
+  ImmutableList<GlobExpansionValue.Key> getGlobKeys() {
+    return globKeys;
+  }
+
+  byte[] serialize() throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    CodedOutputStream out = CodedOutputStream.newInstance(bytes);
+    out.writeInt32NoTag(FORMAT_VERSION);
+    out.writeInt32NoTag(globKeys.size());
+    for (GlobExpansionValue.Key globKey : globKeys) {
+      writeStrings(globKey.getIncludes(), out);
+      writeStrings(globKey.getExcludes(), out);
+      out.writeBoolNoTag(globKey.excludeDirs());
+    }
+    out.flush();
+    return bytes.toByteArray();
+  }
+
+  private static void writeStrings(List<String> strings, CodedOutputStream out)
+      throws IOException {
+    out.writeInt32NoTag(strings.size());
+    for (String string : strings) {
+      out.writeStringNoTag(string);
+    }
+  }
+
+  /**
+   * Returns the manifest of the given package read from the given entry, or null if the entry
+   * isn't a valid manifest.
+   */
+  @Nullable
+  static SharedPackageManifest deserialize(
+      byte[] data, PackageIdentifier packageId, Root packageRoot) {
+    CodedInputStream in = CodedInputStream.newInstance(data);
+    try {
+      if (in.readInt32() != FORMAT_VERSION) {
+        return null;
+      }
+      ImmutableList.Builder<GlobExpansionValue.Key> globKeys = ImmutableList.builder();
+      for (int i = in.readInt32(); i > 0; i--) {
+        List<String> includes = readStrings(in);
+        List<String> excludes = readStrings(in);
+        globKeys.add(
+            GlobExpansionValue.key(packageId, packageRoot, includes, excludes, in.readBool()));
+      }
+      return new SharedPackageManifest(globKeys.build());
+    } catch (IOException | InvalidGlobPatternException e) {
+      return null;
+    }
+  }
+
+  private static List<String> readStrings(CodedInputStream in) throws IOException {
+    List<String> strings = new ArrayList<>();
+    for (int i = in.readInt32(); i > 0; i--) {
+      strings.add(in.readString());
+    }
+    return strings;
+  }
+
+  /** Returns the key of the manifest of the package loaded from the given inputs. */
+  static String inputsKey(
+      PackageIdentifier packageId,
+      String buildFileName,
+      byte[] buildFileDigest,
+      String workspaceName,
+      RuleVisibility defaultVisibility,
+      SkylarkSemantics skylarkSemantics,
+      List<Statement> preludeStatements,
+      Map<String, Extension> imports) {
+    Hasher hasher = Hashing.sha256().newHasher();
+    hasher.putInt(FORMAT_VERSION);
+    putString(hasher, packageId.toString());
+    putString(hasher, buildFileName);
+    hasher.putInt(buildFileDigest.length).putBytes(buildFileDigest);
+    putString(hasher, workspaceName);
+    hasher.putInt(defaultVisibility.getDeclaredLabels().size());
+    for (Label label : defaultVisibility.getDeclaredLabels()) {
+      putString(hasher, label.toString());
+    }
+    putString(hasher, skylarkSemantics.toString());
+    hasher.putInt(preludeStatements.size());
+    for (Statement statement : preludeStatements) {
+      putString(hasher, statement.prettyPrint());
+    }
+    Map<String, Extension> sortedImports = new TreeMap<>(imports);
+    hasher.putInt(sortedImports.size());
+    for (Map.Entry<String, Extension> entry : sortedImports.entrySet()) {
+      putString(hasher, entry.getKey());
+      putString(hasher, entry.getValue().getTransitiveContentHashCode());
+    }
+    return hasher.hash().toString();
+  }
+
+  /**
+   * Returns the key of the package whose manifest is stored under the given key, if its globs have
+   * the given matches.
+   *
+   * @param globMatches the matches of each of the {@link #getGlobKeys}
+   */
+  String packageKey(String inputsKey, List<? extends List<String>> globMatches) {
+    Preconditions.checkArgument(globMatches.size() == globKeys.size());
+    Hasher hasher = Hashing.sha256().newHasher();
+    putString(hasher, inputsKey);
+    hasher.putInt(globKeys.size());
+    for (int i = 0; i < globKeys.size(); i++) {
+      GlobExpansionValue.Key globKey = globKeys.get(i);
+      putString(hasher, globKey.getIncludes().toString());
+      putString(hasher, globKey.getExcludes().toString());
+      hasher.putBoolean(globKey.excludeDirs());
+      hasher.putInt(globMatches.get(i).size());
+      for (String match : globMatches.get(i)) {
+        putString(hasher, match);
+      }
+    }
+    return hasher.hash().toString();
+  }
+
+  private static void putString(Hasher hasher, String string) {
+    hasher.putInt(string.length()).putString(string, UTF_8);
+  }
+}
@@ -107,6 +107,10 @@ public final class SkyframeBuildView {
   private Set<SkyKey> dirtiedConfiguredTargetKeys = Sets.newConcurrentHashSet();
   private volatile boolean anyConfiguredTargetDeleted = false;
 
+  // Whether the graph may hold configured targets of configurations other than the current ones,
+  // which happens when trimmed analysis is kept across a change of fragment options.
+  private boolean configuredTargetsOfOtherConfigurationsKept = false;
+
   private final ConfiguredRuleClassProvider ruleClassProvider;
 
   // The host configuration containing all fragments used by this build's transitive closure.
@@ -154,16 +158,54 @@ public final class SkyframeBuildView {
     // Clear all cached ConfiguredTargets on configuration change of if --discard_analysis_cache
     // was set on the previous build. In the former case, it's not required for correctness, but
     // prevents unbounded memory usage.
-    if ((this.configurations != null && !configurations.equals(this.configurations))
+    if ((this.configurations != null
+            && !configurations.equals(this.configurations)
+            && !canReuseTrimmedAnalysis(this.configurations, configurations))
         || skyframeAnalysisWasDiscarded) {
       logger.info("Discarding analysis cache: configurations have changed.");
       skyframeExecutor.handleConfiguredTargetChange();
+      configuredTargetsOfOtherConfigurationsKept = false;
+    } else if (this.configurations != null && !configurations.equals(this.configurations)) {
+      configuredTargetsOfOtherConfigurationsKept = true;
     }
     skyframeAnalysisWasDiscarded = false;
     this.configurations = configurations;
     setTopLevelHostConfiguration(configurations.getHostConfiguration());
   }
 
+  /**
+   * Returns whether the analysis of a build with the old configurations is worth keeping for a
+   * build with the new ones.
+   *
+   * <p>With trimmed configurations, each configured target is keyed by the options of only the
+   * fragments its transitive closure needs, so targets which don't need any of the fragments whose
+   * options changed are not analyzed again. The options of {@link BuildConfiguration.Options} are
+   * part of every configuration though: if they changed, no configured target can be reused and
+   * keeping them would only take up memory.
+   */
+  private static boolean canReuseTrimmedAnalysis(
+      BuildConfigurationCollection oldConfigurations,
+      BuildConfigurationCollection newConfigurations) {
+    List<BuildConfiguration> oldTargetConfigurations = oldConfigurations.getTargetConfigurations();
+    List<BuildConfiguration> newTargetConfigurations = newConfigurations.getTargetConfigurations();
+    if (oldTargetConfigurations.size() != newTargetConfigurations.size()) {
+      return false;
+    }
+    for (int i = 0; i < oldTargetConfigurations.size(); i++) {
+      BuildConfiguration oldConfiguration = oldTargetConfigurations.get(i);
+      BuildConfiguration newConfiguration = newTargetConfigurations.get(i);
+      if (!oldConfiguration.trimConfigurations()
+          || !newConfiguration.trimConfigurations()
+          || !oldConfiguration
+              .getOptions()
+              .get(BuildConfiguration.Options.class)
+              .equals(newConfiguration.getOptions().get(BuildConfiguration.Options.class))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
   /**
    * Sets the host configuration consisting of all fragments that will be used by the top level
    * targets' transitive closures.
@@ -215,7 +257,11 @@ public final class SkyframeBuildView {
       enableAnalysis(false);
     }
     ImmutableMap<ActionAnalysisMetadata, ConflictException> badActions =
-        skyframeExecutor.findArtifactConflicts();
+        skyframeExecutor.findArtifactConflicts(
+            configuredTargetsOfOtherConfigurationsKept
+                ? Iterables.concat(values, aspectKeys)
+                : null,
+            result.getWalkableGraph());
 
     Collection<AspectValue> goodAspects = Lists.newArrayListWithCapacity(values.size());
     Root singleSourceRoot = skyframeExecutor.getForcedSingleSourceRootIfNoExecrootSymlinkCreation();
@@ -54,8 +54,8 @@ import com.google.devtools.build.lib.actions.CommandLineExpansionException;
 import com.google.devtools.build.lib.actions.EnvironmentalExecException;
 import com.google.devtools.build.lib.actions.Executor;
 import com.google.devtools.build.lib.actions.FileStateType;
+import com.google.devtools.build.lib.actions.OutputBaseSupplier;
 import com.google.devtools.build.lib.actions.ResourceManager;
-import com.google.devtools.build.lib.analysis.AnalysisProtos.ActionGraphContainer;
 import com.google.devtools.build.lib.analysis.AspectCollection;
 import com.google.devtools.build.lib.analysis.BlazeDirectories;
 import com.google.devtools.build.lib.analysis.ConfiguredAspect;
@@ -86,6 +86,7 @@ import com.google.devtools.build.lib.cmdline.LabelSyntaxException;
 import com.google.devtools.build.lib.cmdline.PackageIdentifier;
 import com.google.devtools.build.lib.cmdline.RepositoryName;
 import com.google.devtools.build.lib.cmdline.TargetParsingException;
+import com.google.devtools.build.lib.collect.nestedset.NestedSetSpiller;
 import com.google.devtools.build.lib.concurrent.ThreadSafety;
 import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadCompatible;
 import com.google.devtools.build.lib.events.ErrorSensingEventHandler;
@@ -130,6 +131,8 @@ import com.google.devtools.build.lib.skyframe.SkyframeActionExecutor.ActionCompl
 import com.google.devtools.build.lib.skyframe.SkyframeActionExecutor.ProgressSupplier;
 import com.google.devtools.build.lib.skyframe.TargetPatternValue.TargetPatternKey;
 import com.google.devtools.build.lib.skyframe.ToolchainUtil.ToolchainContextException;
+import com.google.devtools.build.lib.skyframe.actiongraph.ActionGraphDump;
+import com.google.devtools.build.lib.skyframe.serialization.AutoRegistry;
 import com.google.devtools.build.lib.util.AbruptExitException;
 import com.google.devtools.build.lib.util.ResourceUsage;
 import com.google.devtools.build.lib.util.io.TimestampGranularityMonitor;
@@ -157,9 +160,11 @@ import com.google.devtools.build.skyframe.SkyFunction;
 import com.google.devtools.build.skyframe.SkyFunctionName;
 import com.google.devtools.build.skyframe.SkyKey;
 import com.google.devtools.build.skyframe.SkyValue;
+import com.google.devtools.build.skyframe.WalkableGraph;
 import com.google.devtools.build.skyframe.WalkableGraph.WalkableGraphFactory;
 import com.google.devtools.common.options.OptionsClassProvider;
 import com.google.devtools.common.options.OptionsProvider;
+import java.io.IOException;
 import java.io.PrintStream;
 import java.util.ArrayList;
 import java.util.Collection;
@@ -178,6 +183,7 @@ import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
@@ -223,6 +229,9 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
   private final Cache<PackageIdentifier, LoadedPackageCacheEntry>
       packageFunctionCache = newPkgFunctionCache();
   private final Cache<PackageIdentifier, AstParseResult> astCache = newAstCache();
+  // Previously loaded packages whose glob results can be patched, kept across builds.
+  private final Cache<PackageIdentifier, PackageFunction.PatchablePackage> patchablePackages =
+      PackageFunction.newPatchablePackageCache();
 
   private final AtomicInteger numPackagesLoaded = new AtomicInteger(0);
   @Nullable private final PackageProgressReceiver packageProgress;
@@ -234,6 +243,8 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
 
   // AtomicReferences are used here as mutable boxes shared with value builders.
   private final AtomicBoolean showLoadingProgress = new AtomicBoolean();
+  private final AtomicReference<SharedPackageCache> sharedPackageCache = new AtomicReference<>();
+  @Nullable private NestedSetSpiller nestedSetSpiller;
   protected final AtomicReference<UnixGlob.FilesystemCalls> syscalls =
       new AtomicReference<>(UnixGlob.DEFAULT_SYSCALLS);
   protected final AtomicReference<PathPackageLocator> pkgLocator =
@@ -307,6 +318,8 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
 
   private static final Logger logger = Logger.getLogger(SkyframeExecutor.class.getName());
 
+  private static final String NESTED_SET_SPILL_FILE = "nested_sets";
+
   protected SkyframeExecutor(
       EvaluatorSupplier evaluatorSupplier,
       PackageFactory pkgFactory,
@@ -400,6 +413,7 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
         SkyFunctions.SKYLARK_IMPORTS_LOOKUP,
         newSkylarkImportLookupFunction(ruleClassProvider, pkgFactory));
     map.put(SkyFunctions.GLOB, newGlobFunction());
+    map.put(SkyFunctions.GLOB_EXPANSION, new GlobExpansionFunction());
     map.put(SkyFunctions.TARGET_PATTERN, new TargetPatternFunction(pkgLocator));
     map.put(SkyFunctions.PREPARE_DEPS_OF_PATTERNS, new PrepareDepsOfPatternsFunction());
     map.put(SkyFunctions.PREPARE_DEPS_OF_PATTERN, new PrepareDepsOfPatternFunction(pkgLocator));
@@ -425,11 +439,14 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
             showLoadingProgress,
             packageFunctionCache,
             astCache,
+            patchablePackages,
             numPackagesLoaded,
             skylarkImportLookupFunctionForInlining,
             packageProgress,
             actionOnIOExceptionReadingBuildFile,
-            IncrementalityIntent.INCREMENTAL));
+            IncrementalityIntent.INCREMENTAL,
+            sharedPackageCache,
+            key -> memoizingEvaluator.getDoneValues().get(key)));
     map.put(SkyFunctions.PACKAGE_ERROR, new PackageErrorFunction());
     map.put(SkyFunctions.PACKAGE_ERROR_MESSAGE, new PackageErrorMessageFunction());
     map.put(SkyFunctions.TARGET_MARKER, new TargetMarkerFunction());
@@ -607,9 +624,13 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
     }
   }
 
-  public abstract ActionGraphContainer getActionGraphContainer(
-      List<String> actionGraphTargets, boolean includeActionCmdLine)
-      throws CommandLineExpansionException;
+  /**
+   * Dumps the actions of all configured targets and aspects in the graph, using the given number
+   * of threads. With more than one thread, the order of the records and their ids depend on the
+   * scheduling of the threads.
+   */
+  public abstract void dumpActionGraph(ActionGraphDump actionGraphDump, int numThreads)
+      throws CommandLineExpansionException, IOException, InterruptedException;
 
   class BuildViewProvider {
     /**
@@ -644,6 +665,8 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
   /** Reinitializes the Skyframe evaluator, dropping all previously computed values. */
   public void resetEvaluator() {
     init();
+    discardNestedSetSpiller();
+    patchablePackages.invalidateAll();
     emittedEventState.clear();
     skyframeBuildView.clearLegacyData();
   }
@@ -833,6 +856,88 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
     showLoadingProgress.set(showLoadingProgressValue);
   }
 
+  /**
+   * Sets the store of loaded packages shared with other workspaces which packages are looked up in
+   * before their BUILD files are evaluated, or null for none. Remains in effect until it is set
+   * again.
+   */
+  public void setSharedPackageCache(@Nullable SharedPackageCache sharedPackageCache) {
+    this.sharedPackageCache.set(sharedPackageCache);
+  }
+
+  /**
+   * Makes the nested sets with at least the given number of direct members or subsets created from
+   * now on candidates for {@link #spillNestedSets}, or stops tracking candidates if it is not
+   * positive.
+   */
+  public void setNestedSetSpillThreshold(int threshold) {
+    if (threshold > 0) {
+      NestedSetSpiller.startTracking(Math.max(threshold, 2));
+    } else {
+      NestedSetSpiller.stopTracking();
+    }
+  }
+
+  /**
+   * Moves the contents of the nested sets of artifacts tracked since {@link
+   * #setNestedSetSpillThreshold} which have not been expanded out of the heap, into a file in the
+   * output base.
+   */
+  public void spillNestedSets() {
+    try {
+      if (nestedSetSpiller == null) {
+        Path outputBase = directories.getOutputBase();
+        nestedSetSpiller =
+            createNestedSetSpiller(
+                outputBase.getRelative(NESTED_SET_SPILL_FILE).getPathFile().toPath(), outputBase);
+      }
+    } catch (IOException e) {
+      logger.log(Level.WARNING, "Could not create the nested set spill file", e);
+      NestedSetSpiller.stopTracking();
+      return;
+    }
+    try (AutoProfiler p = AutoProfiler.logged("spilling nested sets", logger)) {
+      int spilled = nestedSetSpiller.spillTracked();
+      logger.info("Spilled " + spilled + " nested sets");
+    }
+  }
+
+  /**
+   * Creates a spiller for nested sets of artifacts, with the dependencies the codecs of artifacts
+   * and their roots need.
+   */
+  @VisibleForTesting
+  static NestedSetSpiller createNestedSetSpiller(java.nio.file.Path file, Path outputBase)
+      throws IOException {
+    FileSystem fileSystem = outputBase.getFileSystem();
+    return NestedSetSpiller.create(
+        file,
+        AutoRegistry.get().getBuilder().addReferenceConstant(fileSystem).build(),
+        ImmutableMap.of(
+            FileSystem.class,
+            fileSystem,
+            OutputBaseSupplier.class,
+            (OutputBaseSupplier) () -> outputBase),
+        Artifact.class::isInstance);
+  }
+
+  /**
+   * Stops spilling to the current spill file, so that the space taken by the nested sets spilled
+   * so far is reclaimed once they are gone. The next call to {@link #spillNestedSets} starts a new
+   * file.
+   */
+  private void discardNestedSetSpiller() {
+    if (nestedSetSpiller == null) {
+      return;
+    }
+    try {
+      nestedSetSpiller.close();
+    } catch (IOException e) {
+      logger.log(Level.WARNING, "Could not close the nested set spill file", e);
+    }
+    nestedSetSpiller = null;
+  }
+
   @VisibleForTesting
   public void setCommandId(UUID commandId) {
     PrecomputedValue.BUILD_ID.set(injectable(), commandId);
@@ -1088,6 +1193,8 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
     this.pkgFactory.setGlobbingThreads(packageCacheOptions.globbingThreads);
     this.pkgFactory.setMaxDirectoriesToEagerlyVisitInGlobbing(
         packageCacheOptions.maxDirectoriesToEagerlyVisitInGlobbing);
+    this.pkgFactory.setLazyTargetMaterializationThreshold(
+        packageCacheOptions.lazyTargetMaterializationThreshold);
     emittedEventState.clear();
 
     // If the PackageFunction was interrupted, there may be stale entries here.
@@ -1234,19 +1341,63 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
         Predicates.instanceOf(ActionLookupValue.class));
   }
 
+  /**
+   * Returns the action lookup values in the transitive closure of the given keys, following only
+   * the dependencies on other action lookup values.
+   */
+  private static Iterable<ActionLookupValue> getTransitiveActionLookupValues(
+      Iterable<? extends SkyKey> topLevelKeys, WalkableGraph graph) throws InterruptedException {
+    List<ActionLookupValue> values = new ArrayList<>();
+    Set<SkyKey> visited = new HashSet<>();
+    List<SkyKey> frontier = new ArrayList<>();
+    for (SkyKey key : topLevelKeys) {
+      if (visited.add(key)) {
+        frontier.add(key);
+      }
+    }
+    while (!frontier.isEmpty()) {
+      // Only the successfully evaluated nodes are done, so only their dependencies are followed.
+      Map<SkyKey, SkyValue> successfulValues = graph.getSuccessfulValues(frontier);
+      for (SkyValue value : successfulValues.values()) {
+        if (value instanceof ActionLookupValue) {
+          values.add((ActionLookupValue) value);
+        }
+      }
+      frontier = new ArrayList<>();
+      for (Iterable<SkyKey> deps : graph.getDirectDeps(successfulValues.keySet()).values()) {
+        for (SkyKey dep : deps) {
+          if (dep instanceof ActionLookupValue.ActionLookupKey && visited.add(dep)) {
+            frontier.add(dep);
+          }
+        }
+      }
+    }
+    return values;
+  }
+
   /**
    * Checks the actions in Skyframe for conflicts between their output artifacts. Delegates to
    * {@link SkyframeActionExecutor#findAndStoreArtifactConflicts} to do the work, since any
    * conflicts found will only be reported during execution.
+   *
+   * <p>If {@code topLevelKeys} is not null, only the actions in their transitive closure in
+   * {@code graph} are checked. This is for when the graph may also hold configured targets of
+   * previous configurations, whose actions are expected to generate the same artifacts as the
+   * actions of the current ones.
    */
   protected ImmutableMap<ActionAnalysisMetadata, SkyframeActionExecutor.ConflictException>
-      findArtifactConflicts() throws InterruptedException {
+      findArtifactConflicts(
+          @Nullable Iterable<? extends SkyKey> topLevelKeys, @Nullable WalkableGraph graph)
+          throws InterruptedException {
     if (skyframeBuildView.isSomeConfiguredTargetEvaluated()
         || skyframeBuildView.isSomeConfiguredTargetInvalidated()) {
       // This operation is somewhat expensive, so we only do it if the graph might have changed in
       // some way -- either we analyzed a new target or we invalidated an old one.
       try (AutoProfiler p = AutoProfiler.logged("discovering artifact conflicts", logger)) {
-        skyframeActionExecutor.findAndStoreArtifactConflicts(getActionLookupValues());
+        skyframeActionExecutor.findAndStoreArtifactConflicts(
+            topLevelKeys != null && graph != null
+                ? getTransitiveActionLookupValues(topLevelKeys, graph)
+                : getActionLookupValues());
         skyframeBuildView.resetEvaluatedConfiguredTargetFlag();
         // The invalidated configured targets flag will be reset later in the evaluate() call.
       }
@@ -1318,7 +1469,10 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
       ExtendedEventHandler eventHandler)
       throws InterruptedException {
     checkActive();
-    return buildDriver.evaluate(patternSkyKeys, keepGoing, numThreads, eventHandler);
+    // Queries evaluating in parallel may look up target patterns and packages concurrently.
+    synchronized (valueLookupLock) {
+      return buildDriver.evaluate(patternSkyKeys, keepGoing, numThreads, eventHandler);
+    }
   }
 
   @VisibleForTesting
@@ -1891,7 +2045,10 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
       for (Label label : labelsToVisit) {
         valueNames.add(TransitiveTargetKey.of(label));
       }
-      return buildDriver.evaluate(valueNames, keepGoing, parallelThreads, eventHandler);
+      // Queries evaluating in parallel may load transitive targets and packages concurrently.
+      synchronized (valueLookupLock) {
+        return buildDriver.evaluate(valueNames, keepGoing, parallelThreads, eventHandler);
+      }
     }
   }
 
@@ -1985,6 +2142,21 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
     return packageManager;
   }
 
+  /**
+   * Returns the packages which are currently loaded in the graph. This visits every node of the
+   * graph, so it should only be called rarely.
+   */
+  public Iterable<Package> getLoadedPackages() {
+    ImmutableList.Builder<Package> packages = ImmutableList.builder();
+    for (Map.Entry<SkyKey, SkyValue> entry : memoizingEvaluator.getDoneValues().entrySet()) {
+      if (entry.getKey().functionName().equals(SkyFunctions.PACKAGE)
+          && entry.getValue() instanceof PackageValue) {
+        packages.add(((PackageValue) entry.getValue()).getPackage());
+      }
+    }
+    return packages.build();
+  }
+
   public ActionKeyContext getActionKeyContext() {
     return actionKeyContext;
   }
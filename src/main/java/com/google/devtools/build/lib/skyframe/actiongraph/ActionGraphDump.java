@@ -14,9 +14,9 @@
 package com.google.devtools.build.lib.skyframe.actiongraph;
 
 import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
-import com.google.common.collect.Iterables;
 import com.google.devtools.build.lib.actions.Action;
 import com.google.devtools.build.lib.actions.ActionAnalysisMetadata;
 import com.google.devtools.build.lib.actions.ActionExecutionMetadata;
@@ -25,11 +25,14 @@ import com.google.devtools.build.lib.actions.ActionOwner;
 import com.google.devtools.build.lib.actions.Artifact;
 import com.google.devtools.build.lib.actions.CommandLineExpansionException;
 import com.google.devtools.build.lib.analysis.AnalysisProtos;
-import com.google.devtools.build.lib.analysis.AnalysisProtos.ActionGraphContainer;
 import com.google.devtools.build.lib.analysis.ConfiguredTarget;
 import com.google.devtools.build.lib.analysis.actions.SpawnAction;
 import com.google.devtools.build.lib.analysis.configuredtargets.RuleConfiguredTarget;
 import com.google.devtools.build.lib.buildeventstream.BuildEvent;
+import com.google.devtools.build.lib.cmdline.Label;
+import com.google.devtools.build.lib.cmdline.PackageIdentifier;
+import com.google.devtools.build.lib.cmdline.TargetParsingException;
+import com.google.devtools.build.lib.cmdline.TargetPattern;
 import com.google.devtools.build.lib.collect.nestedset.NestedSet;
 import com.google.devtools.build.lib.collect.nestedset.NestedSetBuilder;
 import com.google.devtools.build.lib.collect.nestedset.NestedSetView;
@@ -37,6 +40,7 @@ import com.google.devtools.build.lib.collect.nestedset.Order;
 import com.google.devtools.build.lib.packages.AspectDescriptor;
 import com.google.devtools.build.lib.skyframe.AspectValue;
 import com.google.devtools.build.lib.skyframe.ConfiguredTargetValue;
+import java.io.IOException;
 import java.util.List;
 import java.util.Map.Entry;
 import java.util.Set;
@@ -44,54 +48,108 @@ import java.util.Set;
 /**
  * Encapsulates necessary functionality to dump the current skyframe state of the action graph to
  * proto format.
+ *
+ * <p>The records are written to a {@link StreamedActionGraphOutput} as they are discovered, so
+ * only their ids are kept in memory. Configured targets and aspects may be dumped from several
+ * threads at once: the expensive parts of each action are computed in parallel, and only the
+ * lookup of ids and the output are serialized.
  */
 public class ActionGraphDump {
 
-  private final ActionGraphContainer.Builder actionGraphBuilder = ActionGraphContainer.newBuilder();
   private final ActionKeyContext actionKeyContext = new ActionKeyContext();
+  private final boolean includeAllTargets;
+  /** The labels of the targets to include. */
   private final Set<String> actionGraphTargets;
+  /** The patterns matching whole packages of targets to include. */
+  private final ImmutableList<TargetPattern> actionGraphPackagePatterns;
+  /** The mnemonics of the actions to include, or empty to include all actions. */
+  private final Set<String> actionGraphMnemonics;
+  private final boolean includeActionCmdLine;
+  private final StreamedActionGraphOutput output;
 
+  // Guarded by this.
   private final KnownRuleClassStrings knownRuleClassStrings;
   private final KnownArtifacts knownArtifacts;
   private final KnownConfigurations knownConfigurations;
   private final KnownNestedSets knownNestedSets;
   private final KnownAspectDescriptors knownAspectDescriptors;
   private final KnownRuleConfiguredTargets knownRuleConfiguredTargets;
-  private final boolean includeActionCmdLine;
 
-  public ActionGraphDump(List<String> actionGraphTargets, boolean includeActionCmdLine) {
-    this.actionGraphTargets = ImmutableSet.copyOf(actionGraphTargets);
+  /**
+   * Creates a dump writing to the given output.
+   *
+   * @param actionGraphTargets the targets whose actions to include, as labels or as patterns
+   *     matching all targets in or below a package, or {@code ...} for all targets
+   * @param actionGraphMnemonics the mnemonics of the actions to include, or empty for all
+   * @throws TargetParsingException if one of the targets is not a valid target pattern
+   */
+  public ActionGraphDump(
+      List<String> actionGraphTargets,
+      List<String> actionGraphMnemonics,
+      boolean includeActionCmdLine,
+      StreamedActionGraphOutput output)
+      throws TargetParsingException {
+    ImmutableSet.Builder<String> targets = ImmutableSet.builder();
+    ImmutableList.Builder<TargetPattern> packagePatterns = ImmutableList.builder();
+    boolean includeAllTargets = false;
+    for (String target : actionGraphTargets) {
+      if (target.equals("...")) {
+        includeAllTargets = true;
+        continue;
+      }
+      TargetPattern pattern = TargetPattern.defaultParser().parse(target);
+      switch (pattern.getType()) {
+        case TARGETS_BELOW_DIRECTORY:
+        case TARGETS_IN_PACKAGE:
+          packagePatterns.add(pattern);
+          break;
+        default:
+          targets.add(target);
+      }
+    }
+    this.includeAllTargets = includeAllTargets;
+    this.actionGraphTargets = targets.build();
+    this.actionGraphPackagePatterns = packagePatterns.build();
+    this.actionGraphMnemonics = ImmutableSet.copyOf(actionGraphMnemonics);
     this.includeActionCmdLine = includeActionCmdLine;
-
-    knownRuleClassStrings = new KnownRuleClassStrings(actionGraphBuilder);
-    knownArtifacts = new KnownArtifacts(actionGraphBuilder);
-    knownConfigurations = new KnownConfigurations(actionGraphBuilder);
-    knownNestedSets = new KnownNestedSets(actionGraphBuilder, knownArtifacts);
-    knownAspectDescriptors = new KnownAspectDescriptors(actionGraphBuilder);
-    knownRuleConfiguredTargets = new KnownRuleConfiguredTargets(actionGraphBuilder,
-        knownRuleClassStrings);
+    this.output = output;
+
+    knownRuleClassStrings = new KnownRuleClassStrings(output);
+    knownArtifacts = new KnownArtifacts(output);
+    knownConfigurations = new KnownConfigurations(output);
+    knownNestedSets = new KnownNestedSets(output, knownArtifacts);
+    knownAspectDescriptors = new KnownAspectDescriptors(output);
+    knownRuleConfiguredTargets = new KnownRuleConfiguredTargets(output, knownRuleClassStrings);
   }
 
   public ActionKeyContext getActionKeyContext() {
     return actionKeyContext;
   }
 
-  private boolean includeInActionGraph(String labelString) {
-    if (actionGraphTargets.size() == 1
-        && Iterables.getOnlyElement(actionGraphTargets).equals("...")) {
+  private boolean includeInActionGraph(Label label) {
+    if (includeAllTargets || actionGraphTargets.contains(label.toString())) {
       return true;
     }
-    return actionGraphTargets.contains(labelString);
+    PackageIdentifier packageIdentifier = label.getPackageIdentifier();
+    for (TargetPattern pattern : actionGraphPackagePatterns) {
+      if (pattern.getType() == TargetPattern.Type.TARGETS_BELOW_DIRECTORY
+          ? pattern.containsAllTransitiveSubdirectoriesForTBD(packageIdentifier)
+          : pattern.getDirectoryForTargetOrTargetsInPackage().equals(packageIdentifier)) {
+        return true;
+      }
+    }
+    return false;
   }
 
   private void dumpSingleAction(ConfiguredTarget configuredTarget, ActionAnalysisMetadata action)
-      throws CommandLineExpansionException {
+      throws CommandLineExpansionException, IOException {
+    if (!actionGraphMnemonics.isEmpty() && !actionGraphMnemonics.contains(action.getMnemonic())) {
+      return;
+    }
     Preconditions.checkState(configuredTarget instanceof RuleConfiguredTarget);
     RuleConfiguredTarget ruleConfiguredTarget = (RuleConfiguredTarget) configuredTarget;
     AnalysisProtos.Action.Builder actionBuilder =
-        AnalysisProtos.Action.newBuilder()
-            .setMnemonic(action.getMnemonic())
-            .setTargetId(knownRuleConfiguredTargets.dataToId(ruleConfiguredTarget));
+        AnalysisProtos.Action.newBuilder().setMnemonic(action.getMnemonic());
 
     if (action instanceof ActionExecutionMetadata) {
       ActionExecutionMetadata actionExecutionMetadata = (ActionExecutionMetadata) action;
@@ -120,6 +178,20 @@ public class ActionGraphDump {
       }
     }
 
+    synchronized (this) {
+      addIds(ruleConfiguredTarget, action, actionBuilder);
+      output.addAction(actionBuilder.build());
+    }
+  }
+
+  /** Adds the ids of the records the action refers to, writing out those not seen before. */
+  private void addIds(
+      RuleConfiguredTarget ruleConfiguredTarget,
+      ActionAnalysisMetadata action,
+      AnalysisProtos.Action.Builder actionBuilder)
+      throws IOException {
+    actionBuilder.setTargetId(knownRuleConfiguredTargets.dataToId(ruleConfiguredTarget));
+
     ActionOwner actionOwner = action.getOwner();
     if (actionOwner != null) {
       BuildEvent event = actionOwner.getConfiguration();
@@ -145,14 +217,12 @@ public class ActionGraphDump {
     for (Artifact artifact : action.getOutputs()) {
       actionBuilder.addOutputIds(knownArtifacts.dataToId(artifact));
     }
-
-    actionGraphBuilder.addActions(actionBuilder.build());
   }
 
   public void dumpAspect(AspectValue aspectValue, ConfiguredTargetValue configuredTargetValue)
-      throws CommandLineExpansionException {
+      throws CommandLineExpansionException, IOException {
     ConfiguredTarget configuredTarget = configuredTargetValue.getConfiguredTarget();
-    if (!includeInActionGraph(configuredTarget.getLabel().toString())) {
+    if (!includeInActionGraph(configuredTarget.getLabel())) {
       return;
     }
     for (int i = 0; i < aspectValue.getNumActions(); i++) {
@@ -162,9 +232,9 @@ public class ActionGraphDump {
   }
 
   public void dumpConfiguredTarget(ConfiguredTargetValue configuredTargetValue)
-      throws CommandLineExpansionException {
+      throws CommandLineExpansionException, IOException {
     ConfiguredTarget configuredTarget = configuredTargetValue.getConfiguredTarget();
-    if (!includeInActionGraph(configuredTarget.getLabel().toString())) {
+    if (!includeInActionGraph(configuredTarget.getLabel())) {
       return;
     }
     List<ActionAnalysisMetadata> actions = configuredTargetValue.getActions();
@@ -173,7 +243,8 @@ public class ActionGraphDump {
     }
   }
 
-  public ActionGraphContainer build() {
-    return actionGraphBuilder.build();
+  /** Writes out the records buffered by the output. */
+  public synchronized void flush() throws IOException {
+    output.flush();
   }
 }
@@ -13,23 +13,24 @@
 // limitations under the License.
 package com.google.devtools.build.lib.skyframe.actiongraph;
 
-import com.google.devtools.build.lib.analysis.AnalysisProtos.ActionGraphContainer;
+import java.io.IOException;
 import java.util.HashMap;
 import java.util.Map;
 
 /**
  * Basic class to abstract action graph cache functionality.
+ *
+ * <p>Only the ids are kept, as small integers, so the cache stays small compared to the graph it
+ * refers to. The protos are written to the output as soon as their data is first seen.
+ *
+ * <p>Not thread-safe.
  */
 abstract class BaseCache<K, P> {
-  private final Map<K, String> cache = new HashMap<>();
-  protected final ActionGraphContainer.Builder actionGraphBuilder;
+  private final Map<K, Integer> cache = new HashMap<>();
+  protected final StreamedActionGraphOutput output;
 
-  BaseCache(ActionGraphContainer.Builder actionGraphBuilder) {
-    this.actionGraphBuilder = actionGraphBuilder;
-  }
-
-  private String generateNextId() {
-    return String.valueOf(cache.size());
+  BaseCache(StreamedActionGraphOutput output) {
+    this.output = output;
   }
 
   protected K transformToKey(K data) {
@@ -37,22 +38,22 @@ abstract class BaseCache<K, P> {
     return data;
   }
 
-  String dataToId(K data) {
+  String dataToId(K data) throws IOException {
     K key = transformToKey(data);
-    String id = cache.get(key);
+    Integer id = cache.get(key);
     if (id == null) {
       // Note that this cannot be replaced by computeIfAbsent since createProto is a recursive
       // operation for the case of nested sets which will call dataToId on the same object and thus
       // computeIfAbsent again.
-      id = generateNextId();
+      id = cache.size();
       cache.put(key, id);
-      P proto = createProto(data, id);
-      addToActionGraphBuilder(proto);
+      P proto = createProto(data, String.valueOf(id));
+      addToOutput(proto);
     }
-    return id;
+    return String.valueOf(id);
   }
 
-  abstract P createProto(K key, String id);
+  abstract P createProto(K key, String id) throws IOException;
 
-  abstract void addToActionGraphBuilder(P proto);
+  abstract void addToOutput(P proto) throws IOException;
 }
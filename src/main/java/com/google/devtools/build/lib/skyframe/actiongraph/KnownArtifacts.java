@@ -15,15 +15,15 @@ package com.google.devtools.build.lib.skyframe.actiongraph;
 
 import com.google.devtools.build.lib.actions.Artifact;
 import com.google.devtools.build.lib.analysis.AnalysisProtos;
-import com.google.devtools.build.lib.analysis.AnalysisProtos.ActionGraphContainer.Builder;
+import java.io.IOException;
 
 /**
  * Cache for Artifacts in the action graph.
  */
 public class KnownArtifacts extends BaseCache<Artifact, AnalysisProtos.Artifact> {
 
-  KnownArtifacts(Builder actionGraphBuilder) {
-    super(actionGraphBuilder);
+  KnownArtifacts(StreamedActionGraphOutput output) {
+    super(output);
   }
 
   @Override
@@ -36,7 +36,7 @@ public class KnownArtifacts extends BaseCache<Artifact, AnalysisProtos.Artifact>
   }
 
   @Override
-  void addToActionGraphBuilder(AnalysisProtos.Artifact artifactProto) {
-    actionGraphBuilder.addArtifacts(artifactProto);
+  void addToOutput(AnalysisProtos.Artifact artifactProto) throws IOException {
+    output.addArtifact(artifactProto);
   }
 }
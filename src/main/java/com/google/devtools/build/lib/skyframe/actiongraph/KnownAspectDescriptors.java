@@ -13,10 +13,10 @@
 // limitations under the License.
 package com.google.devtools.build.lib.skyframe.actiongraph;
 
-import com.google.devtools.build.lib.analysis.AnalysisProtos;
-import com.google.devtools.build.lib.analysis.AnalysisProtos.ActionGraphContainer.Builder;
 import com.google.devtools.build.lib.analysis.AnalysisProtos.KeyValuePair;
+import com.google.devtools.build.lib.analysis.AnalysisProtos;
 import com.google.devtools.build.lib.packages.AspectDescriptor;
+import java.io.IOException;
 import java.util.Map.Entry;
 
 /**
@@ -25,8 +25,8 @@ import java.util.Map.Entry;
 public class KnownAspectDescriptors
     extends BaseCache<AspectDescriptor, AnalysisProtos.AspectDescriptor> {
 
-  KnownAspectDescriptors(Builder actionGraphBuilder) {
-    super(actionGraphBuilder);
+  KnownAspectDescriptors(StreamedActionGraphOutput output) {
+    super(output);
   }
 
   @Override
@@ -45,7 +45,7 @@ public class KnownAspectDescriptors
   }
 
   @Override
-  void addToActionGraphBuilder(AnalysisProtos.AspectDescriptor aspectDescriptorProto) {
-    actionGraphBuilder.addAspectDescriptors(aspectDescriptorProto);
+  void addToOutput(AnalysisProtos.AspectDescriptor aspectDescriptorProto) throws IOException {
+    output.addAspectDescriptor(aspectDescriptorProto);
   }
 }
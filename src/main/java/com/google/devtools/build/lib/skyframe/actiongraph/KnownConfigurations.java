@@ -14,15 +14,15 @@
 package com.google.devtools.build.lib.skyframe.actiongraph;
 
 import com.google.devtools.build.lib.analysis.AnalysisProtos;
-import com.google.devtools.build.lib.analysis.AnalysisProtos.ActionGraphContainer.Builder;
 import com.google.devtools.build.lib.buildeventstream.BuildEvent;
 import com.google.devtools.build.lib.buildeventstream.BuildEventStreamProtos;
+import java.io.IOException;
 
 /** Cache for BuildConfigurations in the action graph. */
 public class KnownConfigurations extends BaseCache<BuildEvent, AnalysisProtos.Configuration> {
 
-  KnownConfigurations(Builder actionGraphBuilder) {
-    super(actionGraphBuilder);
+  KnownConfigurations(StreamedActionGraphOutput output) {
+    super(output);
   }
 
   @Override
@@ -37,7 +37,7 @@ public class KnownConfigurations extends BaseCache<BuildEvent, AnalysisProtos.Co
   }
 
   @Override
-  void addToActionGraphBuilder(AnalysisProtos.Configuration configurationProto) {
-    actionGraphBuilder.addConfiguration(configurationProto);
+  void addToOutput(AnalysisProtos.Configuration configurationProto) throws IOException {
+    output.addConfiguration(configurationProto);
   }
 }
@@ -15,8 +15,8 @@ package com.google.devtools.build.lib.skyframe.actiongraph;
 
 import com.google.devtools.build.lib.actions.Artifact;
 import com.google.devtools.build.lib.analysis.AnalysisProtos;
-import com.google.devtools.build.lib.analysis.AnalysisProtos.ActionGraphContainer.Builder;
 import com.google.devtools.build.lib.collect.nestedset.NestedSetView;
+import java.io.IOException;
 
 /**
  * Cache for NestedSets in the action graph.
@@ -24,8 +24,8 @@ import com.google.devtools.build.lib.collect.nestedset.NestedSetView;
 public class KnownNestedSets extends BaseCache<Object, AnalysisProtos.DepSetOfFiles> {
   private final KnownArtifacts knownArtifacts;
 
-  KnownNestedSets(Builder actionGraphBuilder, KnownArtifacts knownArtifacts) {
-    super(actionGraphBuilder);
+  KnownNestedSets(StreamedActionGraphOutput output, KnownArtifacts knownArtifacts) {
+    super(output);
     this.knownArtifacts = knownArtifacts;
   }
 
@@ -38,7 +38,8 @@ public class KnownNestedSets extends BaseCache<Object, AnalysisProtos.DepSetOfFi
   }
 
   @Override
-  AnalysisProtos.DepSetOfFiles createProto(Object nestedSetViewObject, String id) {
+  AnalysisProtos.DepSetOfFiles createProto(Object nestedSetViewObject, String id)
+      throws IOException {
     NestedSetView<Artifact> nestedSetView = (NestedSetView<Artifact>) nestedSetViewObject;
     AnalysisProtos.DepSetOfFiles.Builder depSetBuilder = AnalysisProtos.DepSetOfFiles
         .newBuilder()
@@ -53,7 +54,7 @@ public class KnownNestedSets extends BaseCache<Object, AnalysisProtos.DepSetOfFi
   }
 
   @Override
-  void addToActionGraphBuilder(AnalysisProtos.DepSetOfFiles depSetOfFilesProto) {
-    actionGraphBuilder.addDepSetOfFiles(depSetOfFilesProto);
+  void addToOutput(AnalysisProtos.DepSetOfFiles depSetOfFilesProto) throws IOException {
+    output.addDepSetOfFiles(depSetOfFilesProto);
   }
 }
@@ -14,15 +14,15 @@
 package com.google.devtools.build.lib.skyframe.actiongraph;
 
 import com.google.devtools.build.lib.analysis.AnalysisProtos;
-import com.google.devtools.build.lib.analysis.AnalysisProtos.ActionGraphContainer.Builder;
+import java.io.IOException;
 
 /**
  * Cache for RuleClassStrings in the action graph.
  */
 public class KnownRuleClassStrings extends BaseCache<String, AnalysisProtos.RuleClass> {
 
-  KnownRuleClassStrings(Builder actionGraphBuilder) {
-    super(actionGraphBuilder);
+  KnownRuleClassStrings(StreamedActionGraphOutput output) {
+    super(output);
   }
 
   @Override
@@ -34,7 +34,7 @@ public class KnownRuleClassStrings extends BaseCache<String, AnalysisProtos.Rule
   }
 
   @Override
-  void addToActionGraphBuilder(AnalysisProtos.RuleClass ruleClassProto) {
-    actionGraphBuilder.addRuleClasses(ruleClassProto);
+  void addToOutput(AnalysisProtos.RuleClass ruleClassProto) throws IOException {
+    output.addRuleClass(ruleClassProto);
   }
 }
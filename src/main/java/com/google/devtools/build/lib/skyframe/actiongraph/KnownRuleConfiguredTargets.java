@@ -14,9 +14,9 @@
 package com.google.devtools.build.lib.skyframe.actiongraph;
 
 import com.google.devtools.build.lib.analysis.AnalysisProtos;
-import com.google.devtools.build.lib.analysis.AnalysisProtos.ActionGraphContainer.Builder;
 import com.google.devtools.build.lib.analysis.configuredtargets.RuleConfiguredTarget;
 import com.google.devtools.build.lib.cmdline.Label;
+import java.io.IOException;
 
 /**
  * Cache for RuleConfiguredTargets in the action graph.
@@ -26,14 +26,15 @@ public class KnownRuleConfiguredTargets
 
   private final KnownRuleClassStrings knownRuleClassStrings;
 
-  KnownRuleConfiguredTargets(Builder actionGraphBuilder,
+  KnownRuleConfiguredTargets(StreamedActionGraphOutput output,
       KnownRuleClassStrings knownRuleClassStrings) {
-    super(actionGraphBuilder);
+    super(output);
     this.knownRuleClassStrings = knownRuleClassStrings;
   }
 
   @Override
-  AnalysisProtos.Target createProto(RuleConfiguredTarget ruleConfiguredTarget, String id) {
+  AnalysisProtos.Target createProto(RuleConfiguredTarget ruleConfiguredTarget, String id)
+      throws IOException {
     Label label = ruleConfiguredTarget.getLabel();
     String ruleClassString = ruleConfiguredTarget.getRuleClassString();
     AnalysisProtos.Target.Builder targetBuilder = AnalysisProtos.Target.newBuilder()
@@ -46,7 +47,7 @@ public class KnownRuleConfiguredTargets
   }
 
   @Override
-  void addToActionGraphBuilder(AnalysisProtos.Target targetProto) {
-    actionGraphBuilder.addTargets(targetProto);
+  void addToOutput(AnalysisProtos.Target targetProto) throws IOException {
+    output.addTarget(targetProto);
   }
 }
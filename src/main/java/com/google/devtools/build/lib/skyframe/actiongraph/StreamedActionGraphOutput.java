@@ -0,0 +1,72 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.skyframe.actiongraph;
+
+import com.google.devtools.build.lib.analysis.AnalysisProtos;
+import com.google.devtools.build.lib.analysis.AnalysisProtos.ActionGraphContainer;
+import com.google.protobuf.CodedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes the records of the action graph to a stream as soon as they are discovered, rather than
+ * collecting them in an {@link ActionGraphContainer} first.
+ *
+ * <p>Each record is written as a length-delimited field of {@link ActionGraphContainer}, so the
+ * stream can be read record by record, and also parses as a whole into the same container as the
+ * one built in memory. Records are written before the first record referring to their id.
+ *
+ * <p>Not thread-safe.
+ */
+public final class StreamedActionGraphOutput {
+
+  private final CodedOutputStream out;
+
+  public StreamedActionGraphOutput(OutputStream out) {
+    this.out = CodedOutputStream.newInstance(out);
+  }
+
+  void addArtifact(AnalysisProtos.Artifact artifact) throws IOException {
+    out.writeMessage(ActionGraphContainer.ARTIFACTS_FIELD_NUMBER, artifact);
+  }
+
+  void addAction(AnalysisProtos.Action action) throws IOException {
+    out.writeMessage(ActionGraphContainer.ACTIONS_FIELD_NUMBER, action);
+  }
+
+  void addTarget(AnalysisProtos.Target target) throws IOException {
+    out.writeMessage(ActionGraphContainer.TARGETS_FIELD_NUMBER, target);
+  }
+
+  void addDepSetOfFiles(AnalysisProtos.DepSetOfFiles depSetOfFiles) throws IOException {
+    out.writeMessage(ActionGraphContainer.DEP_SET_OF_FILES_FIELD_NUMBER, depSetOfFiles);
+  }
+
+  void addConfiguration(AnalysisProtos.Configuration configuration) throws IOException {
+    out.writeMessage(ActionGraphContainer.CONFIGURATION_FIELD_NUMBER, configuration);
+  }
+
+  void addAspectDescriptor(AnalysisProtos.AspectDescriptor aspectDescriptor) throws IOException {
+    out.writeMessage(ActionGraphContainer.ASPECT_DESCRIPTORS_FIELD_NUMBER, aspectDescriptor);
+  }
+
+  void addRuleClass(AnalysisProtos.RuleClass ruleClass) throws IOException {
+    out.writeMessage(ActionGraphContainer.RULE_CLASSES_FIELD_NUMBER, ruleClass);
+  }
+
+  /** Writes out the buffered records. Does not close the underlying stream. */
+  public void flush() throws IOException {
+    out.flush();
+  }
+}
@@ -418,12 +418,15 @@ public abstract class AbstractPackageLoader implements PackageLoader {
                 /*showLoadingProgress=*/ new AtomicBoolean(false),
                 packageFunctionCache,
                 astCache,
+                PackageFunction.newPatchablePackageCache(),
                 /*numPackagesLoaded=*/ new AtomicInteger(0),
                 /*skylarkImportLookupFunctionForInlining=*/ null,
                 /*packageProgress=*/ null,
                 getActionOnIOExceptionReadingBuildFile(),
                 // Tell PackageFunction to optimize for our use-case of no incrementality.
-                IncrementalityIntent.NON_INCREMENTAL))
+                IncrementalityIntent.NON_INCREMENTAL,
+                /*sharedPackageCache=*/ new AtomicReference<>(),
+                /*doneValueLookup=*/ null))
         .putAll(extraSkyFunctions);
     return builder.build();
   }
@@ -14,8 +14,8 @@
 
 package com.google.devtools.build.lib.syntax;
 
+import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableMap;
-import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 import com.google.devtools.build.lib.concurrent.ThreadSafety.Immutable;
 import com.google.devtools.build.lib.events.Event;
@@ -26,7 +26,7 @@ import com.google.devtools.build.lib.profiler.ProfilerTask;
 import com.google.devtools.build.lib.skyframe.serialization.autocodec.AutoCodec;
 import com.google.devtools.build.lib.util.Pair;
 import com.google.devtools.build.lib.vfs.PathFragment;
-import java.util.HashMap;
+import java.util.ArrayDeque;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
@@ -38,8 +38,12 @@ import java.util.Stack;
  * See: <a href="https://docs.python.org/2/reference/lexical_analysis.html"/>
  * for some details.
  * <p>
- * Since BUILD files are small, we just tokenize the entire file a-priori
- * instead of interleaving scanning with parsing.
+ * A lexer either tokenizes the entire file a-priori (see {@link #getTokens}),
+ * or, when created by {@link #createStreaming}, scans the input on demand so
+ * that the {@link Parser} can interleave scanning with parsing and large (e.g.
+ * generated) BUILD files never have their whole token list materialized.
+ * Punctuation and whitespace never allocate strings, and repeated identifiers
+ * share a single String instance.
  */
 public final class Lexer {
 
@@ -85,7 +89,27 @@ public final class Lexer {
   // bottom.
   private final Stack<Integer> indentStack = new Stack<>();
 
-  private final List<Token> tokens;
+  // Tokens produced by the most recent scanning step that have not been handed out yet. A single
+  // step may produce several tokens (e.g. NEWLINE followed by OUTDENTs).
+  private final ArrayDeque<Token> pendingTokens = new ArrayDeque<>();
+
+  // The kind of the most recently produced token, or null if none was produced yet.
+  private TokenKind lastTokenKind;
+
+  // The EOF token, once the end of the buffer was reached.
+  private Token eofToken;
+
+  // The list of all tokens, only populated for non-streaming lexers.
+  private List<Token> tokens;
+
+  // Whether tokens are scanned on demand through nextToken() rather than all at once.
+  private final boolean streaming;
+
+  // Open-addressing hash table of the identifiers seen so far, keyed by their characters. This
+  // lets repeated identifiers ("name", "srcs", "deps", ...) share a single String instance without
+  // allocating a new String per occurrence. The table size is always a power of two.
+  private String[] identifiers = new String[64];
+  private int identifierCount;
 
   // The number of unclosed open-parens ("(", '{', '[') at the current point in
   // the stream. Whitespace is handled differently when this is nonzero.
@@ -93,30 +117,52 @@ public final class Lexer {
 
   private boolean containsErrors;
 
-  /**
-   * Constructs a lexer which tokenizes the contents of the specified InputBuffer. Any errors during
-   * lexing are reported on "handler".
-   */
-  public Lexer(
-      ParserInputSource input, EventHandler eventHandler, LineNumberTable lineNumberTable) {
+  private Lexer(
+      ParserInputSource input,
+      EventHandler eventHandler,
+      LineNumberTable lineNumberTable,
+      boolean streaming) {
     this.buffer = input.getContent();
-    // Empirical measurements show roughly 1 token per 8 characters in buffer.
-    this.tokens = Lists.newArrayListWithExpectedSize(buffer.length / 8);
     this.pos = 0;
     this.eventHandler = eventHandler;
     this.locationInfo = new LocationInfo(input.getPath(), lineNumberTable);
+    this.streaming = streaming;
 
     indentStack.push(0);
-    long startTime = Profiler.nanoTimeMaybe();
-    tokenize();
-    Profiler.instance()
-        .logSimpleTask(startTime, ProfilerTask.SKYLARK_LEXER, getFilename().getPathString());
+    if (!streaming) {
+      long startTime = Profiler.nanoTimeMaybe();
+      tokenizeAll();
+      Profiler.instance()
+          .logSimpleTask(startTime, ProfilerTask.SKYLARK_LEXER, getFilename().getPathString());
+    }
+  }
+
+  /**
+   * Constructs a lexer which tokenizes the contents of the specified InputBuffer. Any errors during
+   * lexing are reported on "handler".
+   */
+  public Lexer(
+      ParserInputSource input, EventHandler eventHandler, LineNumberTable lineNumberTable) {
+    this(input, eventHandler, lineNumberTable, /*streaming=*/ false);
   }
 
   public Lexer(ParserInputSource input, EventHandler eventHandler) {
     this(input, eventHandler, LineNumberTable.create(input.getContent(), input.getPath()));
   }
 
+  /**
+   * Constructs a lexer which tokenizes the contents of the specified InputBuffer on demand, as
+   * tokens are requested through {@link #nextToken}. Any errors during lexing are reported on
+   * "handler" as the corresponding part of the input is scanned.
+   */
+  static Lexer createStreaming(ParserInputSource input, EventHandler eventHandler) {
+    return new Lexer(
+        input,
+        eventHandler,
+        LineNumberTable.create(input.getContent(), input.getPath()),
+        /*streaming=*/ true);
+  }
+
   /**
    * Returns the filename from which the lexer's input came. Returns an empty value if the input
    * came from a string.
@@ -129,6 +175,10 @@ public final class Lexer {
    * Returns true if there were errors during scanning of this input file or
    * string. The Lexer may attempt to recover from errors, but clients should
    * not rely on the results of scanning if this flag is set.
+   *
+   * <p>For a streaming lexer, only the part of the input scanned so far is
+   * taken into account, i.e. the result is final once {@link #nextToken} has
+   * returned the EOF token.
    */
   public boolean containsErrors() {
     return containsErrors;
@@ -138,9 +188,42 @@ public final class Lexer {
    * Returns the (mutable) list of tokens generated by the Lexer.
    */
   public List<Token> getTokens() {
+    Preconditions.checkState(!streaming, "getTokens() called on a streaming lexer");
     return tokens;
   }
 
+  /**
+   * Scans and returns the next token of the input. Once the end of the input
+   * is reached, the EOF token is returned on every call.
+   *
+   * <p>Tokens returned by this method are not retained by the Lexer. Only
+   * available for lexers created by {@link #createStreaming}.
+   */
+  Token nextToken() {
+    Preconditions.checkState(streaming, "nextToken() called on a non-streaming lexer");
+    return scanToken();
+  }
+
+  private void tokenizeAll() {
+    // Empirical measurements show roughly 1 token per 8 characters in buffer.
+    tokens = Lists.newArrayListWithExpectedSize(buffer.length / 8);
+    Token token;
+    do {
+      token = scanToken();
+      tokens.add(token);
+    } while (token.kind != TokenKind.EOF);
+  }
+
+  private Token scanToken() {
+    while (pendingTokens.isEmpty()) {
+      if (eofToken != null) {
+        return eofToken;
+      }
+      tokenize();
+    }
+    return pendingTokens.poll();
+  }
+
   private void popParen() {
     if (openParenStackDepth == 0) {
       error("indentation error");
@@ -211,7 +294,8 @@ public final class Lexer {
 
   /** invariant: symbol positions are half-open intervals. */
   private void addToken(Token s) {
-    tokens.add(s);
+    pendingTokens.add(s);
+    lastTokenKind = s.kind;
   }
 
   /**
@@ -524,40 +608,129 @@ public final class Lexer {
     return new Token(TokenKind.STRING, literalStartPos, pos, bufferSlice(contentStartPos, pos));
   }
 
-  private static final Map<String, TokenKind> keywordMap = new HashMap<>();
+  private static final ImmutableMap<String, TokenKind> keywordMap =
+      ImmutableMap.<String, TokenKind>builder()
+          .put("and", TokenKind.AND)
+          .put("as", TokenKind.AS)
+          .put("assert", TokenKind.ASSERT)
+          .put("break", TokenKind.BREAK)
+          .put("class", TokenKind.CLASS)
+          .put("continue", TokenKind.CONTINUE)
+          .put("def", TokenKind.DEF)
+          .put("del", TokenKind.DEL)
+          .put("elif", TokenKind.ELIF)
+          .put("else", TokenKind.ELSE)
+          .put("except", TokenKind.EXCEPT)
+          .put("finally", TokenKind.FINALLY)
+          .put("for", TokenKind.FOR)
+          .put("from", TokenKind.FROM)
+          .put("global", TokenKind.GLOBAL)
+          .put("if", TokenKind.IF)
+          .put("import", TokenKind.IMPORT)
+          .put("in", TokenKind.IN)
+          .put("is", TokenKind.IS)
+          .put("lambda", TokenKind.LAMBDA)
+          .put("load", TokenKind.LOAD)
+          .put("nonlocal", TokenKind.NONLOCAL)
+          .put("not", TokenKind.NOT)
+          .put("or", TokenKind.OR)
+          .put("pass", TokenKind.PASS)
+          .put("raise", TokenKind.RAISE)
+          .put("return", TokenKind.RETURN)
+          .put("try", TokenKind.TRY)
+          .put("while", TokenKind.WHILE)
+          .put("with", TokenKind.WITH)
+          .put("yield", TokenKind.YIELD)
+          .build();
+
+  // Perfect hash table of the keywords above, indexed by keywordHash(). This allows recognizing
+  // keywords directly in the buffer, without creating a String for the candidate identifier.
+  private static final int KEYWORD_TABLE_SIZE = 64;
+  private static final char[][] keywordChars = new char[KEYWORD_TABLE_SIZE][];
+  private static final TokenKind[] keywordKinds = new TokenKind[KEYWORD_TABLE_SIZE];
 
   static {
-    keywordMap.put("and", TokenKind.AND);
-    keywordMap.put("as", TokenKind.AS);
-    keywordMap.put("assert", TokenKind.ASSERT);
-    keywordMap.put("break", TokenKind.BREAK);
-    keywordMap.put("class", TokenKind.CLASS);
-    keywordMap.put("continue", TokenKind.CONTINUE);
-    keywordMap.put("def", TokenKind.DEF);
-    keywordMap.put("del", TokenKind.DEL);
-    keywordMap.put("elif", TokenKind.ELIF);
-    keywordMap.put("else", TokenKind.ELSE);
-    keywordMap.put("except", TokenKind.EXCEPT);
-    keywordMap.put("finally", TokenKind.FINALLY);
-    keywordMap.put("for", TokenKind.FOR);
-    keywordMap.put("from", TokenKind.FROM);
-    keywordMap.put("global", TokenKind.GLOBAL);
-    keywordMap.put("if", TokenKind.IF);
-    keywordMap.put("import", TokenKind.IMPORT);
-    keywordMap.put("in", TokenKind.IN);
-    keywordMap.put("is", TokenKind.IS);
-    keywordMap.put("lambda", TokenKind.LAMBDA);
-    keywordMap.put("load", TokenKind.LOAD);
-    keywordMap.put("nonlocal", TokenKind.NONLOCAL);
-    keywordMap.put("not", TokenKind.NOT);
-    keywordMap.put("or", TokenKind.OR);
-    keywordMap.put("pass", TokenKind.PASS);
-    keywordMap.put("raise", TokenKind.RAISE);
-    keywordMap.put("return", TokenKind.RETURN);
-    keywordMap.put("try", TokenKind.TRY);
-    keywordMap.put("while", TokenKind.WHILE);
-    keywordMap.put("with", TokenKind.WITH);
-    keywordMap.put("yield", TokenKind.YIELD);
+    for (Map.Entry<String, TokenKind> entry : keywordMap.entrySet()) {
+      String keyword = entry.getKey();
+      int slot =
+          keywordHash(keyword.charAt(0), keyword.charAt(keyword.length() - 1), keyword.length());
+      Preconditions.checkState(
+          keywordKinds[slot] == null, "keyword hash collision for '%s'", keyword);
+      keywordChars[slot] = keyword.toCharArray();
+      keywordKinds[slot] = entry.getValue();
+    }
+  }
+
+  private static int keywordHash(char first, char last, int length) {
+    return (first * 53 + last * 27 + length) & (KEYWORD_TABLE_SIZE - 1);
+  }
+
+  /**
+   * Returns the keyword spelled by buffer[start, end), or null if that range is not a keyword.
+   */
+  private TokenKind lookupKeyword(int start, int end) {
+    int length = end - start;
+    int slot = keywordHash(buffer[start], buffer[end - 1], length);
+    char[] keyword = keywordChars[slot];
+    if (keyword == null || keyword.length != length) {
+      return null;
+    }
+    for (int i = 0; i < length; i++) {
+      if (keyword[i] != buffer[start + i]) {
+        return null;
+      }
+    }
+    return keywordKinds[slot];
+  }
+
+  /**
+   * Returns the String for the identifier buffer[start, end), reusing the instance created for a
+   * previous occurrence of the same identifier in this file.
+   */
+  private String internIdentifier(int start, int end, int hash) {
+    int mask = identifiers.length - 1;
+    for (int slot = (hash ^ (hash >>> 16)) & mask; ; slot = (slot + 1) & mask) {
+      String candidate = identifiers[slot];
+      if (candidate == null) {
+        String id = bufferSlice(start, end);
+        identifiers[slot] = id;
+        if (++identifierCount * 2 > identifiers.length) {
+          growIdentifiers();
+        }
+        return id;
+      }
+      if (candidate.hashCode() == hash && bufferRegionEquals(candidate, start, end)) {
+        return candidate;
+      }
+    }
+  }
+
+  private void growIdentifiers() {
+    String[] old = identifiers;
+    identifiers = new String[old.length * 2];
+    int mask = identifiers.length - 1;
+    for (String id : old) {
+      if (id != null) {
+        int hash = id.hashCode();
+        int slot = (hash ^ (hash >>> 16)) & mask;
+        while (identifiers[slot] != null) {
+          slot = (slot + 1) & mask;
+        }
+        identifiers[slot] = id;
+      }
+    }
+  }
+
+  private boolean bufferRegionEquals(String s, int start, int end) {
+    if (s.length() != end - start) {
+      return false;
+    }
+    for (int i = start; i < end; i++) {
+      if (s.charAt(i - start) != buffer[i]) {
+        return false;
+      }
+    }
+    return true;
   }
 
   /**
@@ -570,37 +743,21 @@ public final class Lexer {
    */
   private Token identifierOrKeyword() {
     int oldPos = pos - 1;
-    String id = scanIdentifier();
-    TokenKind kind = keywordMap.get(id);
-    return (kind == null)
-        ? new Token(TokenKind.IDENTIFIER, oldPos, pos, id)
-        : new Token(kind, oldPos, pos, null);
-  }
-
-  private String scanIdentifier() {
-    int oldPos = pos - 1;
+    // Computes String#hashCode() of the identifier while scanning, for internIdentifier().
+    int hash = buffer[oldPos];
     while (pos < buffer.length) {
-      switch (buffer[pos]) {
-        case '_':
-        case 'a': case 'b': case 'c': case 'd': case 'e': case 'f':
-        case 'g': case 'h': case 'i': case 'j': case 'k': case 'l':
-        case 'm': case 'n': case 'o': case 'p': case 'q': case 'r':
-        case 's': case 't': case 'u': case 'v': case 'w': case 'x':
-        case 'y': case 'z':
-        case 'A': case 'B': case 'C': case 'D': case 'E': case 'F':
-        case 'G': case 'H': case 'I': case 'J': case 'K': case 'L':
-        case 'M': case 'N': case 'O': case 'P': case 'Q': case 'R':
-        case 'S': case 'T': case 'U': case 'V': case 'W': case 'X':
-        case 'Y': case 'Z':
-        case '0': case '1': case '2': case '3': case '4': case '5':
-        case '6': case '7': case '8': case '9':
-          pos++;
-          break;
-       default:
-          return bufferSlice(oldPos, pos);
+      char c = buffer[pos];
+      if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '_') {
+        hash = 31 * hash + c;
+        pos++;
+      } else {
+        break;
       }
     }
-    return bufferSlice(oldPos, pos);
+    TokenKind kind = lookupKeyword(oldPos, pos);
+    return (kind == null)
+        ? new Token(TokenKind.IDENTIFIER, oldPos, pos, internIdentifier(oldPos, pos, hash))
+        : new Token(kind, oldPos, pos, null);
   }
 
   private String scanInteger() {
@@ -703,10 +860,11 @@ public final class Lexer {
 
   /**
    * Performs tokenization of the character buffer of file contents provided to
-   * the constructor.
+   * the constructor, until at least one token was added to pendingTokens. At
+   * the end of the buffer, adds the final tokens and sets eofToken.
    */
   private void tokenize() {
-    while (pos < buffer.length) {
+    while (pos < buffer.length && pendingTokens.isEmpty()) {
       if (tokenizeTwoChars()) {
         pos += 2;
         continue;
@@ -866,6 +1024,12 @@ public final class Lexer {
       } // switch
     } // while
 
+    if (pendingTokens.isEmpty()) {
+      finish();
+    }
+  }
+
+  private void finish() {
     if (indentStack.size() > 1) { // top of stack is always zero
       addToken(new Token(TokenKind.NEWLINE, pos - 1, pos));
       while (indentStack.size() > 1) {
@@ -875,11 +1039,12 @@ public final class Lexer {
     }
 
     // Like Python, always end with a NEWLINE token, even if no '\n' in input:
-    if (tokens.isEmpty() || Iterables.getLast(tokens).kind != TokenKind.NEWLINE) {
+    if (lastTokenKind != TokenKind.NEWLINE) {
       addToken(new Token(TokenKind.NEWLINE, pos - 1, pos));
     }
 
-    addToken(new Token(TokenKind.EOF, pos, pos));
+    eofToken = new Token(TokenKind.EOF, pos, pos);
+    addToken(eofToken);
   }
 
   /**
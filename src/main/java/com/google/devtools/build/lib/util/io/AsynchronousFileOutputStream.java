@@ -32,43 +32,80 @@ import java.nio.channels.CompletionHandler;
 import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * An output stream supporting anynchronous writes, backed by a file.
  *
- * <p>We use an {@link AsynchronousFileChannel} to perform non-blocking writes to a file. It gets
- * tricky when it comes to {@link #closeAsync()}, as we may only complete the returned future when
- * all writes have completed (succeeded or failed). Thus, we use a field {@link #outstandingWrites}
- * to keep track of the number of writes that have not completed yet. It's incremented before a new
- * write and decremented after a write has completed. When it's {@code 0} it's safe to complete the
- * close future.
+ * <p>We use an {@link AsynchronousFileChannel} to perform non-blocking writes to a file. Callers
+ * append to an in-memory buffer, and at most one write of that buffer to the channel is in flight
+ * at any time: while it is, further data accumulates in the buffer and is written in one go once
+ * the write completes. This keeps the number of system calls low when many small messages are
+ * written, and keeps them in order. If more than {@code maxBufferedBytes} are waiting to be
+ * written, callers block until the file catches up, so that a slow disk doesn't make the buffered
+ * data grow without bounds.
+ *
+ * <p>It gets tricky when it comes to {@link #closeAsync()}, as we may only complete the returned
+ * future when all writes have completed (succeeded or failed). Thus, we only complete it once
+ * nothing is buffered nor in flight anymore.
  */
 @ThreadSafety.ThreadSafe
 public class AsynchronousFileOutputStream extends OutputStream implements MessageOutputStream {
+  /** How many bytes may wait to be written before writers block. */
+  public static final int DEFAULT_MAX_BUFFERED_BYTES = 16 << 20;
+
+  private static final int INITIAL_BUFFER_SIZE = 64 << 10;
+
   private final AsynchronousFileChannel ch;
+  private final int maxBufferedBytes;
   private final WriteCompletionHandler completionHandler = new WriteCompletionHandler();
   // The offset in the file to begin the next write at.
   private long writeOffset;
-  // Number of writes that haven't completed yet.
-  private long outstandingWrites;
+  // The data waiting for the write in flight to complete.
+  private Buffer pending = new Buffer(INITIAL_BUFFER_SIZE);
+  // The buffer of the write in flight, or null if there's none.
+  private Buffer inFlight;
+  // A buffer to reuse for the next write, so that we don't allocate one per write.
+  private Buffer spare = new Buffer(INITIAL_BUFFER_SIZE);
   // The future returned by closeAsync().
   private SettableFuture<Void> closeFuture;
   // To store any exception raised from the writes.
   private final AtomicReference<Throwable> exception = new AtomicReference<>();
 
+  // Statistics, reported by getStats().
+  private long writes;
+  private long bytesWritten;
+  private long writeStartNanos;
+  private long totalWriteNanos;
+  private long maxWriteNanos;
+  private long blockedNanos;
+  private int maxPendingBytes;
+
   public AsynchronousFileOutputStream(String filename) throws IOException {
+    this(filename, DEFAULT_MAX_BUFFERED_BYTES);
+  }
+
+  public AsynchronousFileOutputStream(String filename, int maxBufferedBytes) throws IOException {
     this(
         AsynchronousFileChannel.open(
             Paths.get(filename),
             StandardOpenOption.WRITE,
             StandardOpenOption.CREATE,
-            StandardOpenOption.TRUNCATE_EXISTING));
+            StandardOpenOption.TRUNCATE_EXISTING),
+        maxBufferedBytes);
   }
 
   @VisibleForTesting
   public AsynchronousFileOutputStream(AsynchronousFileChannel ch) throws IOException {
+    this(ch, DEFAULT_MAX_BUFFERED_BYTES);
+  }
+
+  @VisibleForTesting
+  AsynchronousFileOutputStream(AsynchronousFileChannel ch, int maxBufferedBytes) {
+    Preconditions.checkArgument(maxBufferedBytes > 0, maxBufferedBytes);
     this.ch = ch;
+    this.maxBufferedBytes = maxBufferedBytes;
   }
 
   public void write(String message) {
@@ -79,24 +116,22 @@ public class AsynchronousFileOutputStream extends OutputStream implements Messag
    * Writes a delimited protocol buffer message in the same format as {@link
    * MessageLite#writeDelimitedTo(java.io.OutputStream)}.
    *
-   * <p>Unfortunately, {@link MessageLite#writeDelimitedTo(java.io.OutputStream)} may result in
-   * multiple calls to write on the underlying stream, so we have to provide this method here
-   * instead of the caller using it directly.
+   * <p>The message is serialized straight into the buffer of pending writes, so that consecutive
+   * messages end up in a single write to the file.
    */
   @Override
-  public void write(Message m) {
+  public synchronized void write(Message m) {
     Preconditions.checkNotNull(m);
     final int size = m.getSerializedSize();
-    ByteArrayOutputStream bos =
-        new ByteArrayOutputStream(CodedOutputStream.computeRawVarint32Size(size) + size);
+    prepareWrite(CodedOutputStream.computeRawVarint32Size(size) + size);
     try {
-      m.writeDelimitedTo(bos);
+      m.writeDelimitedTo(pending);
     } catch (IOException e) {
       // This should never happen with an in-memory stream.
       exception.compareAndSet(null, new IllegalStateException(e.toString()));
       return;
     }
-    write(bos.toByteArray());
+    maybeStartWrite();
   }
 
   @Override
@@ -111,19 +146,78 @@ public class AsynchronousFileOutputStream extends OutputStream implements Messag
    * called; However, some writes may fail, leaving the file partially corrupted. In case a write
    * fails, an exception will be propagated in close, but remaining writes will be allowed to
    * continue.
+   *
+   * <p>Blocks while more than {@code maxBufferedBytes} are waiting to be written.
    */
   @Override
   public synchronized void write(byte[] data) {
     Preconditions.checkNotNull(data);
-    Preconditions.checkState(ch.isOpen());
+    prepareWrite(data.length);
+    pending.write(data, 0, data.length);
+    maybeStartWrite();
+  }
 
+  /**
+   * Checks that the stream is still open, and waits until the given number of bytes fit into the
+   * buffer of pending writes. A single write larger than the limit is let through once nothing else
+   * is pending. Should only be called in a synchronized context.
+   */
+  private void prepareWrite(int size) {
+    Preconditions.checkState(ch.isOpen());
+    if (closeFuture != null) {
+      throw new IllegalStateException("Attempting to write to stream after close");
+    }
+    if (pending.size() == 0 || pending.size() + size <= maxBufferedBytes) {
+      return;
+    }
+    long startNanos = System.nanoTime();
+    boolean interrupted = false;
+    while (pending.size() > 0 && pending.size() + size > maxBufferedBytes) {
+      try {
+        wait();
+      } catch (InterruptedException e) {
+        // The data must still be written in order, so keep waiting and only restore the flag.
+        interrupted = true;
+      }
+    }
+    blockedNanos += System.nanoTime() - startNanos;
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
     if (closeFuture != null) {
       throw new IllegalStateException("Attempting to write to stream after close");
     }
+  }
 
-    outstandingWrites++;
-    ch.write(ByteBuffer.wrap(data), writeOffset, null, completionHandler);
-    writeOffset += data.length;
+  /**
+   * Starts writing the pending data to the file, unless a write is in flight already. Should only
+   * be called in a synchronized context.
+   */
+  private void maybeStartWrite() {
+    maxPendingBytes = Math.max(maxPendingBytes, pending.size());
+    if (inFlight != null || pending.size() == 0) {
+      return;
+    }
+    inFlight = pending;
+    pending = spare != null ? spare : new Buffer(INITIAL_BUFFER_SIZE);
+    spare = null;
+    long offset = writeOffset;
+    writeOffset += inFlight.size();
+    writeStartNanos = System.nanoTime();
+    ch.write(inFlight.asByteBuffer(), offset, null, completionHandler);
+  }
+
+  /** Returns statistics about the writes so far, for logging. */
+  public synchronized String getStats() {
+    return String.format(
+        "%d bytes in %d writes (%d ms writing, %d ms max per write), at most %d bytes buffered, "
+            + "writers blocked for %d ms",
+        bytesWritten,
+        writes,
+        TimeUnit.NANOSECONDS.toMillis(totalWriteNanos),
+        TimeUnit.NANOSECONDS.toMillis(maxWriteNanos),
+        maxPendingBytes,
+        TimeUnit.NANOSECONDS.toMillis(blockedNanos));
   }
 
   /* Returns whether the stream is open for writing. */
@@ -178,7 +272,7 @@ public class AsynchronousFileOutputStream extends OutputStream implements Messag
    * called in a synchronized context.
    */
   private void closeIfNeeded() {
-    if (closeFuture == null || outstandingWrites > 0) {
+    if (closeFuture == null || inFlight != null || pending.size() > 0) {
       return;
     }
     try {
@@ -206,6 +300,8 @@ public class AsynchronousFileOutputStream extends OutputStream implements Messag
       return closeFuture;
     }
     closeFuture = SettableFuture.create();
+    // Wakes up writers waiting for capacity, which must fail now.
+    notifyAll();
     closeIfNeeded();
     return closeFuture;
   }
@@ -217,21 +313,48 @@ public class AsynchronousFileOutputStream extends OutputStream implements Messag
 
     @Override
     public void completed(Integer result, Void attachment) {
-      countWritesAndTryClose();
+      finishWriteAndTryClose();
     }
 
     @Override
     public void failed(Throwable e, Void attachment) {
       exception.compareAndSet(null, e);
-      countWritesAndTryClose();
+      finishWriteAndTryClose();
     }
 
-    private void countWritesAndTryClose() {
+    private void finishWriteAndTryClose() {
       synchronized (AsynchronousFileOutputStream.this) {
-        Preconditions.checkState(outstandingWrites > 0);
-        outstandingWrites--;
+        Preconditions.checkState(inFlight != null);
+        long writeNanos = System.nanoTime() - writeStartNanos;
+        writes++;
+        bytesWritten += inFlight.size();
+        totalWriteNanos += writeNanos;
+        maxWriteNanos = Math.max(maxWriteNanos, writeNanos);
+        // Don't hold on to the occasional huge buffer.
+        if (inFlight.capacity() <= maxBufferedBytes) {
+          inFlight.reset();
+          spare = inFlight;
+        }
+        inFlight = null;
+        maybeStartWrite();
+        AsynchronousFileOutputStream.this.notifyAll();
         closeIfNeeded();
       }
     }
   }
+
+  /** A {@link ByteArrayOutputStream} whose contents can be written without copying them. */
+  private static final class Buffer extends ByteArrayOutputStream {
+    Buffer(int size) {
+      super(size);
+    }
+
+    ByteBuffer asByteBuffer() {
+      return ByteBuffer.wrap(buf, 0, count);
+    }
+
+    int capacity() {
+      return buf.length;
+    }
+  }
 }
@@ -15,7 +15,9 @@ package com.google.devtools.build.lib.vfs;
 
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Interner;
 import com.google.devtools.build.lib.actions.CommandLineItem;
+import com.google.devtools.build.lib.concurrent.BlazeInterners;
 import com.google.devtools.build.lib.skyframe.serialization.autocodec.AutoCodec;
 import com.google.devtools.build.lib.skylarkinterface.SkylarkPrintable;
 import com.google.devtools.build.lib.skylarkinterface.SkylarkPrinter;
@@ -52,6 +54,7 @@ public final class PathFragment
         SkylarkPrintable,
         CommandLineItem {
   private static final OsPathPolicy OS = OsPathPolicy.getFilePathOs();
+  private static final Interner<PathFragment> INTERNER = BlazeInterners.newWeakInterner();
 
   @AutoCodec public static final PathFragment EMPTY_FRAGMENT = create("");
   public static final char SEPARATOR_CHAR = OS.getSeparator();
@@ -357,6 +360,20 @@ public final class PathFragment
     return OS.hash(this.normalizedPath);
   }
 
+  /**
+   * Returns a canonical instance of this path fragment, so that long-lived objects holding equal
+   * path fragments, such as artifacts and rooted paths, share a single copy of the path string.
+   *
+   * <p>The returned instance has the same path string as this one, even on case-insensitive
+   * systems where path fragments differing only in case are equal.
+   */
+  public PathFragment intern() {
+    PathFragment interned = INTERNER.intern(this);
+    return OS.isCaseSensitive() || interned.normalizedPath.equals(normalizedPath)
+        ? interned
+        : this;
+  }
+
   @Override
   public int compareTo(PathFragment o) {
     return OS.compare(this.normalizedPath, o.normalizedPath);
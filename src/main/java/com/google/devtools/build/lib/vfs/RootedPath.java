@@ -43,7 +43,7 @@ public class RootedPath implements Serializable {
         rootRelativePath,
         root);
     this.root = root;
-    this.rootRelativePath = rootRelativePath;
+    this.rootRelativePath = rootRelativePath.intern();
   }
 
   /** Returns a rooted path representing {@code rootRelativePath} relative to {@code root}. */
@@ -36,9 +36,13 @@ import com.google.common.util.concurrent.Uninterruptibles;
 import com.google.devtools.build.lib.profiler.Profiler;
 import com.google.devtools.build.lib.profiler.ProfilerTask;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
 import java.util.concurrent.ExecutionException;
@@ -46,7 +50,9 @@ import java.util.concurrent.Future;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
 import java.util.regex.Pattern;
+import javax.annotation.Nullable;
 
 /**
  * Implementation of a subset of UNIX-style file globbing, expanding "*" and "?" as wildcards, but
@@ -121,6 +127,14 @@ public final class UnixGlob {
     return list;
   }
 
+  private static boolean isRecursivePattern(String pattern) {
+    return "**".equals(pattern);
+  }
+
+  private static boolean isLiteral(String pattern) {
+    return !pattern.contains("*") && !pattern.contains("?");
+  }
+
   /**
    * @return whether or not {@code pattern} contains illegal characters
    */
@@ -424,28 +438,45 @@ public final class UnixGlob {
           checkForInterrupt,
           threadPool);
     }
+
+    /**
+     * Executes the glob asynchronously like {@link #globAsync}, except that the matches of every
+     * pattern are returned separately, in the order in which the patterns were added. All the
+     * patterns are evaluated in a single traversal of the file system, which lists every
+     * directory at most once. {@link #setThreadPool} must have been called already with a non-null
+     * argument.
+     *
+     * @param checkForInterrupt if the returned future may throw InterruptedException.
+     */
+    public ListenableFuture<List<List<Path>>> globByPatternAsync(boolean checkForInterrupt) {
+      Preconditions.checkNotNull(threadPool, "%s %s", base, patterns);
+      return new SinglePassGlobVisitor(
+              patterns, excludeDirectories, pathFilter, syscalls.get(), threadPool,
+              checkForInterrupt)
+          .globAsync(base);
+    }
   }
 
   /**
    * Adapts the result of the glob visitation as a Future.
    */
-  private static class GlobFuture extends ForwardingListenableFuture<List<Path>> {
-    private final GlobVisitor visitor;
+  private static class GlobFuture<T> extends ForwardingListenableFuture<T> {
+    private final AbstractGlobVisitor<T> visitor;
     private final boolean checkForInterrupt;
-    private final SettableFuture<List<Path>> delegate = SettableFuture.create();
+    private final SettableFuture<T> delegate = SettableFuture.create();
 
-    public GlobFuture(GlobVisitor visitor, boolean interruptible) {
+    public GlobFuture(AbstractGlobVisitor<T> visitor, boolean interruptible) {
       this.visitor = visitor;
       this.checkForInterrupt = interruptible;
     }
 
     @Override
-    public List<Path> get() throws InterruptedException, ExecutionException {
+    public T get() throws InterruptedException, ExecutionException {
       return checkForInterrupt ? super.get() : Uninterruptibles.getUninterruptibly(delegate());
     }
 
     @Override
-    protected ListenableFuture<List<Path>> delegate() {
+    protected ListenableFuture<T> delegate() {
       return delegate;
     }
 
@@ -453,7 +484,7 @@ public final class UnixGlob {
       delegate.setException(throwable);
     }
 
-    public void set(List<Path> paths) {
+    public void set(T paths) {
       delegate.set(paths);
     }
 
@@ -469,14 +500,18 @@ public final class UnixGlob {
     }
   }
 
+  /** A unit of work of a glob visitation. */
+  private interface GlobTask {
+    void run() throws IOException;
+  }
+
   /**
-   * GlobVisitor executes a glob using parallelism, which is useful when
-   * the glob() requires many readdir() calls on high latency filesystems.
+   * Runs the tasks of a glob visitation, possibly in parallel, and completes the future of the
+   * visitation once all of them are done.
    */
-  private static final class GlobVisitor {
-    // These collections are used across workers and must therefore be thread-safe.
-    private final Collection<Path> results = Sets.newConcurrentHashSet();
-    private final Cache<String, Pattern> cache = CacheBuilder.newBuilder().build(
+  private abstract static class AbstractGlobVisitor<T> {
+    // These are used across workers and must therefore be thread-safe.
+    final Cache<String, Pattern> cache = CacheBuilder.newBuilder().build(
         new CacheLoader<String, Pattern>() {
             @Override
             public Pattern load(String wildcard) {
@@ -484,20 +519,128 @@ public final class UnixGlob {
             }
           });
 
-    private final GlobFuture result;
+    final GlobFuture<T> result;
     private final ThreadPoolExecutor executor;
     private final AtomicLong totalOps = new AtomicLong(0);
-    private final AtomicLong pendingOps = new AtomicLong(0);
+    final AtomicLong pendingOps = new AtomicLong(0);
     private final AtomicReference<IOException> ioException = new AtomicReference<>();
     private final AtomicReference<RuntimeException> runtimeException = new AtomicReference<>();
     private final AtomicReference<Error> error = new AtomicReference<>();
     private volatile boolean canceled = false;
 
+    AbstractGlobVisitor(ThreadPoolExecutor executor, boolean failFastOnInterrupt) {
+      this.executor = executor;
+      this.result = new GlobFuture<>(this, failFastOnInterrupt);
+    }
+
+    /** Returns the result of the visitation. Called once all tasks are done. */
+    protected abstract T getResult();
+
+    private Throwable getMostSeriousThrowableSoFar() {
+      if (error.get() != null) {
+        return error.get();
+      }
+      if (runtimeException.get() != null) {
+        return runtimeException.get();
+      }
+      if (ioException.get() != null) {
+        return ioException.get();
+      }
+      return null;
+    }
+
+    /**
+     * Runs the given task, recording the exceptions it throws so that they fail the visitation.
+     *
+     * @param description describes the task in the string representation of the runnable given to
+     *     the executor
+     */
+    void enqueueGlobTask(Path base, GlobTask task, Supplier<String> description) {
+      enqueue(
+          new Runnable() {
+            @Override
+            public void run() {
+              Profiler.instance().startTask(ProfilerTask.VFS_GLOB, base.getPathString());
+              try {
+                task.run();
+              } catch (IOException e) {
+                ioException.set(e);
+              } catch (RuntimeException e) {
+                runtimeException.set(e);
+              } catch (Error e) {
+                error.set(e);
+              } finally {
+                Profiler.instance().completeTask(ProfilerTask.VFS_GLOB);
+              }
+            }
+
+            @Override
+            public String toString() {
+              return description.get();
+            }
+          });
+    }
+
+    protected void enqueue(final Runnable r) {
+      totalOps.incrementAndGet();
+      pendingOps.incrementAndGet();
+
+      Runnable wrapped =
+          () -> {
+            try {
+              if (!canceled && getMostSeriousThrowableSoFar() == null) {
+                r.run();
+              }
+            } finally {
+              decrementAndCheckDone();
+            }
+          };
+
+      if (executor == null) {
+        wrapped.run();
+      } else {
+        executor.execute(wrapped);
+      }
+    }
+
+    long getNumGlobTasksForTesting() {
+      return totalOps.get();
+    }
+
+    protected void cancel() {
+      this.canceled = true;
+    }
+
+    void decrementAndCheckDone() {
+      if (pendingOps.decrementAndGet() == 0) {
+        // We get to 0 iff we are done all the relevant work. This is because we always increment
+        // the pending ops count as we're enqueuing, and don't decrement until the task is complete
+        // (which includes accounting for any additional tasks that one enqueues).
+
+        Throwable mostSeriousThrowable = getMostSeriousThrowableSoFar();
+        if (canceled) {
+          result.markCanceled();
+        } else if (mostSeriousThrowable != null) {
+          result.setException(mostSeriousThrowable);
+        } else {
+          result.set(getResult());
+        }
+      }
+    }
+  }
+
+  /**
+   * GlobVisitor executes a glob using parallelism, which is useful when
+   * the glob() requires many readdir() calls on high latency filesystems.
+   */
+  private static final class GlobVisitor extends AbstractGlobVisitor<List<Path>> {
+    // These collections are used across workers and must therefore be thread-safe.
+    private final Collection<Path> results = Sets.newConcurrentHashSet();
+
     GlobVisitor(
         ThreadPoolExecutor executor,
         boolean failFastOnInterrupt) {
-      this.executor = executor;
-      this.result = new GlobFuture(this, failFastOnInterrupt);
+      super(executor, failFastOnInterrupt);
     }
 
     GlobVisitor(boolean failFastOnInterrupt) {
@@ -533,10 +676,6 @@ public final class UnixGlob {
       }
     }
 
-    private static boolean isRecursivePattern(String pattern) {
-      return "**".equals(pattern);
-    }
-
     /**
      * Same as {@link #glob}, except does so asynchronously and returns a {@link Future} for the
      * result.
@@ -563,7 +702,8 @@ public final class UnixGlob {
       // We do a dumb loop, even though it will likely duplicate logical work (note that the
       // physical filesystem operations are cached). In order to optimize, we would need to keep
       // track of which patterns shared sub-patterns and which did not (for example consider the
-      // glob [*/*.java, sub/*.java, */*.txt]).
+      // glob [*/*.java, sub/*.java, */*.txt]). See SinglePassGlobVisitor for a visitor which
+      // does this.
       pendingOps.incrementAndGet();
       try {
         for (String[] splitPattern : splitPatterns) {
@@ -586,96 +726,23 @@ public final class UnixGlob {
       return result;
     }
 
-    private Throwable getMostSeriousThrowableSoFar() {
-      if (error.get() != null) {
-        return error.get();
-      }
-      if (runtimeException.get() != null) {
-        return runtimeException.get();
-      }
-      if (ioException.get() != null) {
-        return ioException.get();
-      }
-      return null;
+    @Override
+    protected List<Path> getResult() {
+      return ImmutableList.copyOf(results);
     }
 
     /** Should only be called by link {@GlobTaskContext}. */
     private void queueGlob(final Path base, final boolean baseIsDir, final int idx,
         final GlobTaskContext context) {
-      enqueue(
-          new Runnable() {
-            @Override
-            public void run() {
-              Profiler.instance().startTask(ProfilerTask.VFS_GLOB, base.getPathString());
-              try {
-                reallyGlob(base, baseIsDir, idx, context);
-              } catch (IOException e) {
-                ioException.set(e);
-              } catch (RuntimeException e) {
-                runtimeException.set(e);
-              } catch (Error e) {
-                error.set(e);
-              } finally {
-                Profiler.instance().completeTask(ProfilerTask.VFS_GLOB);
-              }
-            }
-
-            @Override
-            public String toString() {
-              return String.format(
+      enqueueGlobTask(
+          base,
+          () -> reallyGlob(base, baseIsDir, idx, context),
+          () ->
+              String.format(
                   "%s glob(include=[%s], exclude_directories=%s)",
                   base.getPathString(),
                   "\"" + Joiner.on("\", \"").join(context.patternParts) + "\"",
-                  context.excludeDirectories);
-            }
-          });
-    }
-
-    protected void enqueue(final Runnable r) {
-      totalOps.incrementAndGet();
-      pendingOps.incrementAndGet();
-
-      Runnable wrapped =
-          () -> {
-            try {
-              if (!canceled && getMostSeriousThrowableSoFar() == null) {
-                r.run();
-              }
-            } finally {
-              decrementAndCheckDone();
-            }
-          };
-
-      if (executor == null) {
-        wrapped.run();
-      } else {
-        executor.execute(wrapped);
-      }
-    }
-
-    private long getNumGlobTasksForTesting() {
-      return totalOps.get();
-    }
-
-    protected void cancel() {
-      this.canceled = true;
-    }
-
-    private void decrementAndCheckDone() {
-      if (pendingOps.decrementAndGet() == 0) {
-        // We get to 0 iff we are done all the relevant work. This is because we always increment
-        // the pending ops count as we're enqueuing, and don't decrement until the task is complete
-        // (which includes accounting for any additional tasks that one enqueues).
-
-        Throwable mostSeriousThrowable = getMostSeriousThrowableSoFar();
-        if (canceled) {
-          result.markCanceled();
-        } else if (mostSeriousThrowable != null) {
-          result.setException(mostSeriousThrowable);
-        } else {
-          result.set(ImmutableList.copyOf(results));
-        }
-      }
+                  context.excludeDirectories));
     }
 
     /** A context for evaluating all the subtasks of a single top-level glob task. */
@@ -796,7 +863,7 @@ public final class UnixGlob {
         context.queueGlob(base, baseIsDir, idx + 1);
       }
 
-      if (!pattern.contains("*") && !pattern.contains("?")) {
+      if (isLiteral(pattern)) {
         // We do not need to do a readdir in this case, just a stat.
         Path child = base.getChild(pattern);
         FileStatus status = context.syscalls.statIfFound(child, Symlinks.FOLLOW);
@@ -848,4 +915,249 @@ public final class UnixGlob {
       }
     }
   }
+
+  /**
+   * Evaluates several patterns in a single traversal of the file system, and reports the matches
+   * of every pattern separately.
+   *
+   * <p>The patterns are compiled into a nondeterministic automaton whose states are positions in
+   * the patterns, and which consumes one path segment per transition. Every directory is visited
+   * at most once, with all the states that reach it. A directory which several patterns go
+   * through, such as the package directory of {@code glob(["*.cc"], exclude = ["*_test.cc"])},
+   * is thus listed once, and recursive patterns need no bookkeeping to avoid visiting the same
+   * directory twice. The types of the entries come from {@code readdir}, so a stat call is only
+   * needed for a literal segment when its directory is not listed anyway.
+   *
+   * <p>Every pattern matches the same paths as with {@link GlobVisitor}.
+   */
+  private static final class SinglePassGlobVisitor extends AbstractGlobVisitor<List<List<Path>>> {
+    private final Collection<String> patterns;
+    private final List<String[]> splitPatterns;
+    // Used across workers and must therefore be thread-safe.
+    private final List<Set<Path>> results;
+    private final boolean excludeDirectories;
+    private final Predicate<Path> dirPred;
+    private final FilesystemCalls syscalls;
+
+    SinglePassGlobVisitor(
+        Collection<String> patterns,
+        boolean excludeDirectories,
+        Predicate<Path> dirPred,
+        FilesystemCalls syscalls,
+        ThreadPoolExecutor executor,
+        boolean failFastOnInterrupt) {
+      super(executor, failFastOnInterrupt);
+      this.patterns = patterns;
+      this.splitPatterns = checkAndSplitPatterns(patterns);
+      this.excludeDirectories = excludeDirectories;
+      this.dirPred = dirPred;
+      this.syscalls = syscalls;
+      this.results = new ArrayList<>(patterns.size());
+      for (int i = 0; i < patterns.size(); i++) {
+        results.add(Sets.newConcurrentHashSet());
+      }
+    }
+
+    ListenableFuture<List<List<Path>>> globAsync(Path base) {
+      FileStatus baseStat;
+      try {
+        baseStat = syscalls.statIfFound(base, Symlinks.FOLLOW);
+      } catch (IOException e) {
+        return Futures.immediateFailedFuture(e);
+      }
+      if (baseStat == null || patterns.isEmpty()) {
+        return Futures.immediateFuture(getResult());
+      }
+
+      StateSet initialStates = new StateSet();
+      for (int i = 0; i < splitPatterns.size(); i++) {
+        initialStates.add(state(i, 0));
+      }
+      pendingOps.incrementAndGet();
+      try {
+        queueVisit(base, baseStat.isDirectory(), initialStates.toArray());
+      } finally {
+        decrementAndCheckDone();
+      }
+      return result;
+    }
+
+    @Override
+    protected List<List<Path>> getResult() {
+      ImmutableList.Builder<List<Path>> matches = ImmutableList.builder();
+      for (Set<Path> patternMatches : results) {
+        matches.add(ImmutableList.copyOf(patternMatches));
+      }
+      return matches.build();
+    }
+
+    // A state is the index of a pattern in the upper half and the index of the next segment of
+    // the pattern to match in the lower half.
+    private static long state(int pattern, int segment) {
+      return ((long) pattern << 32) | segment;
+    }
+
+    private static int patternOf(long state) {
+      return (int) (state >>> 32);
+    }
+
+    private static int segmentOf(long state) {
+      return (int) state;
+    }
+
+    private void queueVisit(Path base, boolean baseIsDir, long[] states) {
+      enqueueGlobTask(
+          base,
+          () -> visit(base, baseIsDir, states),
+          () ->
+              String.format(
+                  "%s glob(include=[%s], exclude_directories=%s)",
+                  base.getPathString(),
+                  "\"" + Joiner.on("\", \"").join(patterns) + "\"",
+                  excludeDirectories));
+    }
+
+    private void visit(Path base, boolean baseIsDir, long[] states) throws IOException {
+      if (!baseIsDir) {
+        addCompletedMatches(base, states);
+        return;
+      }
+      if (!dirPred.apply(base)) {
+        return;
+      }
+
+      // ** is special: it can match nothing at all.
+      // For example, x/** matches x, **/y matches y, and x/**/y matches x/y.
+      StateSet closure = new StateSet();
+      for (long state : states) {
+        closure.add(state);
+      }
+      for (int i = 0; i < closure.size; i++) {
+        long state = closure.states[i];
+        String[] parts = splitPatterns.get(patternOf(state));
+        int segment = segmentOf(state);
+        if (segment < parts.length && isRecursivePattern(parts[segment])) {
+          closure.add(state(patternOf(state), segment + 1));
+        }
+      }
+
+      List<Long> pendingStates = new ArrayList<>();
+      Map<String, StateSet> literalChildren = new LinkedHashMap<>();
+      boolean needsReaddir = false;
+      for (long state : closure.toArray()) {
+        String[] parts = splitPatterns.get(patternOf(state));
+        int segment = segmentOf(state);
+        if (segment == parts.length) {
+          if (!excludeDirectories) {
+            results.get(patternOf(state)).add(base);
+          }
+          continue;
+        }
+        String part = parts[segment];
+        if (isLiteral(part)) {
+          literalChildren
+              .computeIfAbsent(part, k -> new StateSet())
+              .add(state(patternOf(state), segment + 1));
+        } else {
+          needsReaddir = true;
+        }
+        pendingStates.add(state);
+      }
+
+      if (needsReaddir) {
+        for (Dirent dent : syscalls.readdir(base, Symlinks.FOLLOW)) {
+          Dirent.Type type = dent.getType();
+          if (type == Dirent.Type.UNKNOWN) {
+            // The file is a dangling symlink, fifo, etc.
+            continue;
+          }
+          boolean childIsDir = (type == Dirent.Type.DIRECTORY);
+          String text = dent.getName();
+          // The literal segments naming this entry are handled here, without a stat.
+          literalChildren.remove(text);
+          StateSet nextStates = null;
+          for (long state : pendingStates) {
+            String[] parts = splitPatterns.get(patternOf(state));
+            int segment = segmentOf(state);
+            String part = parts[segment];
+            boolean isRecursivePattern = isRecursivePattern(part);
+            if (isRecursivePattern && childIsDir) {
+              // Recurse without shifting the pattern.
+              nextStates = StateSet.addTo(nextStates, state);
+            }
+            if (isLiteral(part) ? part.equals(text) : matches(part, text, cache)) {
+              // Files only match patterns which they complete.
+              if (childIsDir || segment + 1 == parts.length) {
+                nextStates = StateSet.addTo(nextStates, state(patternOf(state), segment + 1));
+              }
+            }
+          }
+          if (nextStates != null) {
+            visitChild(base.getChild(text), childIsDir, nextStates.toArray());
+          }
+        }
+      }
+
+      // Literal segments which were not listed. On case-insensitive file systems, they may still
+      // name an entry listed under a different case.
+      for (Map.Entry<String, StateSet> literalChild : literalChildren.entrySet()) {
+        Path child = base.getChild(literalChild.getKey());
+        FileStatus status = syscalls.statIfFound(child, Symlinks.FOLLOW);
+        if (status == null || (!status.isDirectory() && !status.isFile())) {
+          // The file is a dangling symlink, fifo, does not exist, etc.
+          continue;
+        }
+        visitChild(child, status.isDirectory(), literalChild.getValue().toArray());
+      }
+    }
+
+    private void visitChild(Path child, boolean childIsDir, long[] states) {
+      if (childIsDir) {
+        queueVisit(child, childIsDir, states);
+      } else {
+        // Instead of using an async call, just repeat the base case above.
+        addCompletedMatches(child, states);
+      }
+    }
+
+    private void addCompletedMatches(Path file, long[] states) {
+      for (long state : states) {
+        if (segmentOf(state) == splitPatterns.get(patternOf(state)).length) {
+          results.get(patternOf(state)).add(file);
+        }
+      }
+    }
+
+    /** A set of states, kept in an array since a directory is usually reached by few of them. */
+    private static final class StateSet {
+      private long[] states = new long[4];
+      private int size;
+
+      private static StateSet addTo(@Nullable StateSet set, long state) {
+        StateSet result = set != null ? set : new StateSet();
+        result.add(state);
+        return result;
+      }
+
+      private void add(long state) {
+        if (size == states.length) {
+          states = Arrays.copyOf(states, 2 * size);
+        }
+        states[size++] = state;
+      }
+
+      /** Returns the distinct states of this set. */
+      private long[] toArray() {
+        long[] result = Arrays.copyOf(states, size);
+        Arrays.sort(result);
+        int distinct = 0;
+        for (int i = 0; i < result.length; i++) {
+          if (distinct == 0 || result[i] != result[distinct - 1]) {
+            result[distinct++] = result[i];
+          }
+        }
+        return distinct == result.length ? result : Arrays.copyOf(result, distinct);
+      }
+    }
+  }
 }
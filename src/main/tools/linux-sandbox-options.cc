@@ -66,6 +66,8 @@ static void Usage(char *program_name, const char *fmt, ...) {
           "    The -M option specifies which directory to mount, the -m option "
           "specifies where to\n"
           "  -S <file>  if set, write stats in protobuf format to a file\n"
+          "  -C <dir>  if set, run the command in the cgroup with this "
+          "directory\n"
           "  -H  if set, make hostname in the sandbox equal to 'localhost'\n"
           "  -N  if set, a new network namespace will be created\n"
           "  -R  if set, make the uid/gid be root\n"
@@ -92,7 +94,7 @@ static void ParseCommandLine(unique_ptr<vector<char *>> args) {
   bool source_specified = false;
 
   while ((c = getopt(args->size(), args->data(),
-                     ":W:T:t:l:L:w:e:M:m:S:HNRUD")) != -1) {
+                     ":W:T:t:l:L:w:e:M:m:S:C:HNRUD")) != -1) {
     if (c != 'M' && c != 'm') source_specified = false;
     switch (c) {
       case 'W':
@@ -165,6 +167,15 @@ static void ParseCommandLine(unique_ptr<vector<char *>> args) {
                 "Cannot write stats to more than one destination.");
         }
         break;
+      case 'C':
+        if (opt.cgroup_path.empty()) {
+          ValidateIsAbsolutePath(optarg, args->front(), static_cast<char>(c));
+          opt.cgroup_path.assign(optarg);
+        } else {
+          Usage(args->front(),
+                "Multiple cgroups (-C) specified, expected one.");
+        }
+        break;
       case 'H':
         opt.fake_hostname = true;
         break;
@@ -42,6 +42,8 @@ struct Options {
   std::vector<std::string> bind_mount_targets;
   // Where to write stats, in protobuf format (-S)
   std::string stats_path;
+  // Directory of the cgroup to run the command in (-C)
+  std::string cgroup_path;
   // Set the hostname inside the sandbox to 'localhost' (-H)
   bool fake_hostname;
   // Create a new network namespace (-N)
@@ -124,6 +124,23 @@ static void OnTimeout(int sig) {
   }
 }
 
+// Moves this process into the cgroup with the given directory, so that the
+// sandboxed processes, which inherit the cgroup, are subject to its limits.
+static void MoveToCgroup(const std::string &cgroup_path) {
+  std::string procs_path = cgroup_path + "/cgroup.procs";
+  int fd = open(procs_path.c_str(), O_WRONLY);
+  if (fd < 0) {
+    DIE("open(%s)", procs_path.c_str());
+  }
+  std::string pid = std::to_string(getpid());
+  if (write(fd, pid.c_str(), pid.size()) < 0) {
+    DIE("write(%s)", procs_path.c_str());
+  }
+  if (close(fd) < 0) {
+    DIE("close");
+  }
+}
+
 static void SpawnPid1() {
   const int kStackSize = 1024 * 1024;
   std::vector<char> child_stack(kStackSize);
@@ -228,6 +245,10 @@ int main(int argc, char *argv[]) {
     SetTimeout(opt.timeout_secs);
   }
 
+  if (!opt.cgroup_path.empty()) {
+    MoveToCgroup(opt.cgroup_path);
+  }
+
   SpawnPid1();
   return WaitForPid1();
 }
@@ -20,6 +20,7 @@ import com.google.devtools.build.lib.actions.Artifact.ArtifactExpander;
 import com.google.devtools.build.lib.actions.CommandLines.CommandLineLimits;
 import com.google.devtools.build.lib.actions.CommandLines.ExpandedCommandLines;
 import com.google.devtools.build.lib.actions.ParameterFile.ParameterFileType;
+import com.google.devtools.build.lib.util.Fingerprint;
 import com.google.devtools.build.lib.vfs.FileSystemUtils;
 import com.google.devtools.build.lib.vfs.Path;
 import com.google.devtools.build.lib.vfs.PathFragment;
@@ -187,4 +188,40 @@ public class CommandLinesTest {
                 execRoot.getRelative("my/param/file/out-1.params"), StandardCharsets.ISO_8859_1))
         .containsExactly("--baz");
   }
+
+  @Test
+  public void testFingerprintOfConcatenatedCommandLinesDoesNotExpandThem() throws Exception {
+    CommandLine commandLine =
+        new CommandLine() {
+          @Override
+          public Iterable<String> arguments() {
+            throw new AssertionError("Command line was expanded");
+          }
+
+          @Override
+          public void addToFingerprint(
+              ActionKeyContext actionKeyContext, Fingerprint fingerprint) {
+            fingerprint.addString("--foo");
+          }
+        };
+    CommandLines commandLines =
+        CommandLines.builder()
+            .addCommandLine(CommandLine.concat(ImmutableList.of("--before"), commandLine))
+            .addCommandLine(
+                CommandLine.concat(commandLine, ImmutableList.of("--after")),
+                ParamFileInfo.builder(ParameterFileType.UNQUOTED).build())
+            .build();
+    Fingerprint fingerprint = new Fingerprint();
+    commandLines.addToFingerprint(new ActionKeyContext(), fingerprint);
+
+    Fingerprint expected = new Fingerprint();
+    CommandLines.builder()
+        .addCommandLine(CommandLine.of(ImmutableList.of("--before", "--foo")))
+        .addCommandLine(
+            CommandLine.of(ImmutableList.of("--foo", "--after")),
+            ParamFileInfo.builder(ParameterFileType.UNQUOTED).build())
+        .build()
+        .addToFingerprint(new ActionKeyContext(), expected);
+    assertThat(fingerprint.hexDigestAndReset()).isEqualTo(expected.hexDigestAndReset());
+  }
 }
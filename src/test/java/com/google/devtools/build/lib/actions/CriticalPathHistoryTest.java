@@ -0,0 +1,70 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.actions;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.devtools.build.lib.actions.util.ActionsTestUtil.NullAction;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.inmemoryfs.InMemoryFileSystem;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link CriticalPathHistory}. */
+@RunWith(JUnit4.class)
+public class CriticalPathHistoryTest {
+  private final Path historyFile = new InMemoryFileSystem().getPath("/output_base/history");
+
+  @Test
+  public void testUnknownActionsUseMnemonicAverage() {
+    CriticalPathHistory history =
+        new CriticalPathHistory(
+            ImmutableMap.of(
+                "out/a", new CriticalPathHistory.Entry("Null", 10, 100),
+                "out/b", new CriticalPathHistory.Entry("Null", 10, 200),
+                "out/c", new CriticalPathHistory.Entry("Other", 10, 1000)));
+    assertThat(history.getRemainingCriticalPathMillis(new NullAction())).isEqualTo(150);
+    assertThat(CriticalPathHistory.EMPTY.getRemainingCriticalPathMillis(new NullAction()))
+        .isEqualTo(0);
+  }
+
+  @Test
+  public void testSaveAndLoad() throws Exception {
+    CriticalPathHistory history =
+        new CriticalPathHistory(
+            ImmutableMap.of(
+                "out/with space", new CriticalPathHistory.Entry("Null", 10, 100),
+                "out/b", new CriticalPathHistory.Entry("Skylark action", 10, 200)));
+    historyFile.getParentDirectory().createDirectoryAndParents();
+    history.save(historyFile);
+    assertThat(FileSystemUtils.readContent(historyFile, UTF_8))
+        .isEqualTo("critical_path_history 1\n10 100 Null out/with space\n");
+
+    CriticalPathHistory loaded = CriticalPathHistory.load(historyFile);
+    assertThat(loaded.getEntries().keySet()).containsExactly("out/with space");
+    assertThat(loaded.get("out/with space").getRemainingCriticalPathMillis()).isEqualTo(100);
+  }
+
+  @Test
+  public void testLoadIgnoresCorruptFiles() throws Exception {
+    assertThat(CriticalPathHistory.load(historyFile).getEntries()).isEmpty();
+    historyFile.getParentDirectory().createDirectoryAndParents();
+    FileSystemUtils.writeContent(historyFile, UTF_8, "critical_path_history 1\nx y\n");
+    assertThat(CriticalPathHistory.load(historyFile).getEntries()).isEmpty();
+  }
+}
@@ -17,8 +17,10 @@ import static com.google.common.truth.Truth.assertThat;
 import static org.junit.Assert.fail;
 
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.devtools.build.lib.actions.ResourceManager.ResourceHandle;
+import com.google.devtools.build.lib.actions.util.ActionsTestUtil.NullAction;
 import com.google.devtools.build.lib.analysis.platform.PlatformInfo;
 import com.google.devtools.build.lib.testutil.TestThread;
 import com.google.devtools.build.lib.testutil.TestUtils;
@@ -73,6 +75,101 @@ public class ResourceManagerTest {
     assertThat(counter.incrementAndGet()).isEqualTo(count);
   }
 
+  @Test
+  public void testAdaptiveModeUsesPredictedResources() throws Exception {
+    NullAction action = new NullAction();
+    ResourceUsageModel model = new ResourceUsageModel();
+    for (int i = 0; i < ResourceUsageModel.MIN_OBSERVATIONS; i++) {
+      model.record(action.getMnemonic(), 0, 0.5, 100.0);
+    }
+    rm.setResourceUsageModel(model);
+    try {
+      ResourceHandle handle =
+          rm.acquireResources(action, ResourceSet.create(800.0, 1.0, 0.0, 0));
+      assertThat(handle.resourceSet.getMemoryMb()).isWithin(0.001).of(120.0);
+      assertThat(handle.resourceSet.getCpuUsage()).isWithin(0.001).of(0.5);
+      handle.close();
+      assertThat(rm.inUse()).isFalse();
+    } finally {
+      rm.setResourceUsageModel(null);
+    }
+  }
+
+  @Test
+  public void testAdaptiveModeChecksFreeMemory() throws Exception {
+    rm.setResourceUsageModel(new ResourceUsageModel());
+    rm.setFreeMemoryMbSupplierForTesting(() -> 500.0);
+    try {
+      ResourceHandle handle =
+          rm.acquireResources(new NullAction(), ResourceSet.create(100.0, 0.0, 0.0, 0));
+      // Both requests fit into the statically available RAM, but only one fits into free memory.
+      assertThat(rm.isAvailable(450, 0, 0, 0)).isTrue();
+      assertThat(rm.isAvailable(600, 0, 0, 0)).isFalse();
+      handle.close();
+    } finally {
+      rm.setResourceUsageModel(null);
+    }
+    assertThat(rm.inUse()).isFalse();
+  }
+
+  private static NullAction actionWithMnemonic(String mnemonic) {
+    return new NullAction() {
+      @Override
+      public String getMnemonic() {
+        return mnemonic;
+      }
+    };
+  }
+
+  @Test
+  public void testLongestRemainingCriticalPathIsGrantedFirst() throws Exception {
+    rm.setCriticalPathHistory(
+        new CriticalPathHistory(
+            ImmutableMap.of(
+                "short", new CriticalPathHistory.Entry("Short", 10, 10),
+                "long", new CriticalPathHistory.Entry("Long", 10, 100))));
+    try {
+      ResourceHandle blocker =
+          rm.acquireResources(new NullAction(), ResourceSet.create(1000, 0, 0, 0));
+      TestThread shortThread =
+          new TestThread() {
+            @Override
+            public void runTest() throws Exception {
+              ResourceHandle handle =
+                  rm.acquireResources(
+                      actionWithMnemonic("Short"), ResourceSet.create(600, 0, 0, 0));
+              validate(2);
+              handle.close();
+            }
+          };
+      TestThread longThread =
+          new TestThread() {
+            @Override
+            public void runTest() throws Exception {
+              ResourceHandle handle =
+                  rm.acquireResources(actionWithMnemonic("Long"), ResourceSet.create(600, 0, 0, 0));
+              validate(1);
+              handle.close();
+            }
+          };
+      // The action with the shorter remaining critical path is blocked first.
+      shortThread.start();
+      while (rm.getWaitCount() < 1) {
+        Thread.yield();
+      }
+      longThread.start();
+      while (rm.getWaitCount() < 2) {
+        Thread.yield();
+      }
+      blocker.close();
+      shortThread.joinAndAssertState(10000);
+      longThread.joinAndAssertState(10000);
+      assertThat(rm.inUse()).isFalse();
+    } finally {
+      rm.setCriticalPathHistory(null);
+    }
+  }
+
   @Test
   public void testOverBudgetRequests() throws Exception {
     assertThat(rm.inUse()).isFalse();
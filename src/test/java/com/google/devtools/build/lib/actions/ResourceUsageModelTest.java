@@ -0,0 +1,158 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.actions;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.devtools.build.lib.actions.util.ActionsTestUtil.NullAction;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.inmemoryfs.InMemoryFileSystem;
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link ResourceUsageModel}. */
+@RunWith(JUnit4.class)
+public class ResourceUsageModelTest {
+  private static final ResourceSet DECLARED = ResourceSet.create(250, 1, 0, 0);
+
+  private final NullAction action = new NullAction();
+  private final Path modelFile = new InMemoryFileSystem().getPath("/output_base/model");
+
+  private static SpawnResult spawnResult(long wallMillis, long cpuMillis, long memoryInKb) {
+    return new SpawnResult.Builder()
+        .setStatus(SpawnResult.Status.SUCCESS)
+        .setRunnerName("local")
+        .setWallTime(Duration.ofMillis(wallMillis))
+        .setUserTime(Duration.ofMillis(cpuMillis))
+        .setSystemTime(Duration.ZERO)
+        .setMemoryInKb(memoryInKb)
+        .build();
+  }
+
+  @Test
+  public void testInputSizeBucket() {
+    assertThat(ResourceUsageModel.getInputSizeBucket(0)).isEqualTo(0);
+    assertThat(ResourceUsageModel.getInputSizeBucket(1)).isEqualTo(1);
+    assertThat(ResourceUsageModel.getInputSizeBucket(3)).isEqualTo(2);
+    assertThat(ResourceUsageModel.getInputSizeBucket(4)).isEqualTo(3);
+    assertThat(ResourceUsageModel.getInputSizeBucket(1000)).isEqualTo(10);
+  }
+
+  @Test
+  public void testDeclaredResourcesUntilEnoughObservations() {
+    ResourceUsageModel model = new ResourceUsageModel();
+    for (int i = 1; i < ResourceUsageModel.MIN_OBSERVATIONS; i++) {
+      model.record(action, spawnResult(1000, 500, 100 * 1024));
+    }
+    assertThat(model.predict(action, DECLARED)).isSameAs(DECLARED);
+
+    model.record(action, spawnResult(1000, 500, 100 * 1024));
+    ResourceSet predicted = model.predict(action, DECLARED);
+    assertThat(predicted.getCpuUsage()).isWithin(0.001).of(0.5);
+    assertThat(predicted.getMemoryMb()).isWithin(0.001).of(120);
+  }
+
+  @Test
+  public void testInputsAreCountedOncePerAction() {
+    AtomicInteger inputsCalls = new AtomicInteger();
+    NullAction countingAction =
+        new NullAction() {
+          @Override
+          public synchronized Iterable<Artifact> getInputs() {
+            inputsCalls.incrementAndGet();
+            return super.getInputs();
+          }
+        };
+    ResourceUsageModel model = new ResourceUsageModel();
+    for (int i = 0; i < ResourceUsageModel.MIN_OBSERVATIONS; i++) {
+      model.predict(countingAction, DECLARED);
+      model.record(countingAction, spawnResult(1000, 500, 100 * 1024));
+    }
+    assertThat(model.predict(countingAction, DECLARED).getCpuUsage()).isWithin(0.001).of(0.5);
+    assertThat(inputsCalls.get()).isEqualTo(1);
+  }
+
+  @Test
+  public void testUnmeasuredSpawnsAreIgnored() {
+    ResourceUsageModel model = new ResourceUsageModel();
+    SpawnResult remote =
+        new SpawnResult.Builder()
+            .setStatus(SpawnResult.Status.SUCCESS)
+            .setRunnerName("remote")
+            .setWallTime(Duration.ofSeconds(1))
+            .build();
+    for (int i = 0; i < ResourceUsageModel.MIN_OBSERVATIONS; i++) {
+      model.record(action, remote);
+    }
+    assertThat(model.predict(action, DECLARED)).isSameAs(DECLARED);
+  }
+
+  @Test
+  public void testMemoryPeaksAreNotSmoothed() {
+    ResourceUsageModel model = new ResourceUsageModel();
+    model.record("Null", 0, 1.0, 100);
+    model.record("Null", 0, 1.0, 100);
+    model.record("Null", 0, 1.0, 1000);
+    assertThat(model.predict(action, DECLARED).getMemoryMb()).isWithin(0.001).of(1200);
+
+    model.record("Null", 0, 1.0, 200);
+    assertThat(model.predict(action, DECLARED).getMemoryMb()).isWithin(0.001).of(960);
+  }
+
+  @Test
+  public void testTestsAndZeroResourcesAreNotPredicted() {
+    ResourceUsageModel model = new ResourceUsageModel();
+    for (int i = 0; i < ResourceUsageModel.MIN_OBSERVATIONS; i++) {
+      model.record("Null", 0, 1.0, 100);
+    }
+    ResourceSet test = ResourceSet.create(250, 1, 0, 1);
+    assertThat(model.predict(action, test)).isSameAs(test);
+    assertThat(model.predict(action, ResourceSet.ZERO)).isSameAs(ResourceSet.ZERO);
+  }
+
+  @Test
+  public void testSaveAndLoad() throws Exception {
+    ResourceUsageModel model = new ResourceUsageModel();
+    for (int i = 0; i < ResourceUsageModel.MIN_OBSERVATIONS; i++) {
+      model.record("Null", 0, 2.0, 300);
+      model.record("Null", 5, 1.0, 100);
+      model.record("Skylark action", 0, 1.0, 100);
+    }
+    modelFile.getParentDirectory().createDirectoryAndParents();
+    model.save(modelFile);
+    assertThat(FileSystemUtils.readContent(modelFile, UTF_8))
+        .isEqualTo("resource_usage_model 1\nNull 0 3 2.000 300.0\nNull 5 3 1.000 100.0\n");
+
+    ResourceSet predicted = ResourceUsageModel.load(modelFile).predict(action, DECLARED);
+    assertThat(predicted.getCpuUsage()).isWithin(0.001).of(2.0);
+    assertThat(predicted.getMemoryMb()).isWithin(0.001).of(360);
+  }
+
+  @Test
+  public void testLoadIgnoresMissingAndCorruptFiles() throws Exception {
+    assertThat(ResourceUsageModel.load(modelFile).predict(action, DECLARED)).isSameAs(DECLARED);
+
+    modelFile.getParentDirectory().createDirectoryAndParents();
+    FileSystemUtils.writeContent(modelFile, UTF_8, "resource_usage_model 1\nNull 0 x\n");
+    assertThat(ResourceUsageModel.load(modelFile).predict(action, DECLARED)).isSameAs(DECLARED);
+
+    FileSystemUtils.writeContent(modelFile, UTF_8, "something else\n");
+    assertThat(ResourceUsageModel.load(modelFile).predict(action, DECLARED)).isSameAs(DECLARED);
+  }
+}
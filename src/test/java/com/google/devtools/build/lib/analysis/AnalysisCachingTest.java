@@ -394,6 +394,61 @@ public class AnalysisCachingTest extends AnalysisCachingTestBase {
     assertThat(countObjectsPartiallyMatchingRegex(newAnalyzedTargets, "//java/a:y")).isEqualTo(0);
   }
 
+  @Test
+  public void testTrimmedConfigurationKeepsTargetsNotNeedingChangedOptions() throws Exception {
+    scratch.file("a/BUILD", "filegroup(name = 'a', srcs = ['a.txt'])");
+    useConfiguration("--experimental_dynamic_configs=on", "--copt=-DFOO");
+    update("//a:a");
+    useConfiguration("--experimental_dynamic_configs=on", "--copt=-DBAR");
+    update("//a:a");
+    assertNoTargetsVisited();
+  }
+
+  @Test
+  public void testTrimmedConfigurationReanalyzesAfterCoreOptionsChange() throws Exception {
+    scratch.file("a/BUILD", "filegroup(name = 'a', srcs = ['a.txt'])");
+    useConfiguration("--experimental_dynamic_configs=on", "--compilation_mode=fastbuild");
+    update("//a:a");
+    useConfiguration("--experimental_dynamic_configs=on", "--compilation_mode=dbg");
+    update("//a:a");
+    // The trailing space keeps "//a:a" from also matching the key of //a:a.txt.
+    assertThat(countObjectsPartiallyMatchingRegex(getSkyframeEvaluatedTargetKeys(), "//a:a "))
+        .isEqualTo(1);
+  }
+
+  @Test
+  public void testTrimmedConfigurationDoesNotReportConflictsWithPreviousConfiguration()
+      throws Exception {
+    scratch.file("a/BUILD", "cc_library(name = 'a', srcs = ['a.cc'])");
+    useConfiguration("--experimental_dynamic_configs=on", "--cpu=k8", "--copt=-DFOO");
+    update("//a:a");
+    // The configured target of the previous configuration is kept and generates the same
+    // artifacts, but it is not part of this build.
+    useConfiguration("--experimental_dynamic_configs=on", "--cpu=k8", "--copt=-DBAR");
+    update("//a:a");
+    assertDoesNotContainEvent(CONFLICT_MSG);
+    assertThat(countObjectsPartiallyMatchingRegex(getSkyframeEvaluatedTargetKeys(), "//a:a "))
+        .isEqualTo(1);
+  }
+
+  @Test
+  public void testTrimmedConfigurationStillReportsConflictsInBuild() throws Exception {
+    if (getInternalTestExecutionMode() != InternalTestExecutionMode.NORMAL) {
+      // TODO(b/67529176): conflicts not detected.
+      return;
+    }
+    scratch.file("conflict/BUILD",
+        "cc_library(name='x', srcs=['foo.cc'])",
+        "cc_binary(name='_objs/x/conflict/foo.pic.o', srcs=['bar.cc'])");
+    useConfiguration("--experimental_dynamic_configs=on", "--cpu=k8", "--copt=-DFOO");
+    update("//conflict:x");
+    useConfiguration("--experimental_dynamic_configs=on", "--cpu=k8", "--copt=-DBAR");
+    reporter.removeHandler(failFastHandler); // expect errors
+    update(defaultFlags().with(Flag.KEEP_GOING),
+        "//conflict:x", "//conflict:_objs/x/conflict/foo.pic.o");
+    assertContainsEvent("file 'conflict/_objs/x/conflict/foo.pic.o' " + CONFLICT_MSG);
+  }
+
   @Test
   public void testExtraActions() throws Exception {
     scratch.file("java/com/google/a/BUILD", "java_library(name='a', srcs=['A.java'])");
@@ -0,0 +1,103 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.analysis.actions;
+
+import com.google.caliper.BeforeExperiment;
+import com.google.caliper.Benchmark;
+import com.google.caliper.Param;
+import com.google.devtools.build.lib.actions.ActionKeyContext;
+import com.google.devtools.build.lib.actions.Artifact;
+import com.google.devtools.build.lib.actions.ArtifactRoot;
+import com.google.devtools.build.lib.actions.CommandLine;
+import com.google.devtools.build.lib.actions.CommandLineExpansionException;
+import com.google.devtools.build.lib.analysis.actions.CustomCommandLine.VectorArg;
+import com.google.devtools.build.lib.collect.nestedset.NestedSet;
+import com.google.devtools.build.lib.collect.nestedset.NestedSetBuilder;
+import com.google.devtools.build.lib.collect.nestedset.Order;
+import com.google.devtools.build.lib.util.Fingerprint;
+import com.google.devtools.build.lib.vfs.FileSystem;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.Root;
+import com.google.devtools.build.lib.vfs.inmemoryfs.InMemoryFileSystem;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Microbenchmarks for computing the keys of a chain of Java compile actions, whose classpaths are
+ * nested sets sharing most of their contents, with and without expanding their command lines.
+ */
+public class CommandLineFingerprintBenchmark {
+
+  @Param({"100", "1000"})
+  int libraries;
+
+  @Param({"10"})
+  int sourcesPerLibrary;
+
+  private final List<CommandLine> commandLines = new ArrayList<>();
+
+  @BeforeExperiment
+  void createCommandLines() {
+    FileSystem fileSystem = new InMemoryFileSystem();
+    Path execRoot = fileSystem.getPath("/exec");
+    ArtifactRoot root = ArtifactRoot.asDerivedRoot(execRoot, execRoot.getRelative("bin"));
+    NestedSet<Artifact> classpath = NestedSetBuilder.emptySet(Order.STABLE_ORDER);
+    for (int i = 0; i < libraries; i++) {
+      NestedSetBuilder<Artifact> sources = NestedSetBuilder.stableOrder();
+      for (int j = 0; j < sourcesPerLibrary; j++) {
+        sources.add(
+            new Artifact(
+                fileSystem.getPath("/exec/pkg" + i + "/Source" + j + ".java"),
+                ArtifactRoot.asSourceRoot(Root.fromPath(execRoot))));
+      }
+      Artifact jar = new Artifact(execRoot.getRelative("bin/pkg" + i + "/lib.jar"), root);
+      CustomCommandLine javacCommandLine =
+          CustomCommandLine.builder()
+              .addExecPath("--output", jar)
+              .addExecPaths("--sources", sources.build())
+              .addExecPaths("--classpath", VectorArg.join(":").each(classpath))
+              .build();
+      Artifact paramFile = new Artifact(execRoot.getRelative("bin/pkg" + i + "/lib.params"), root);
+      commandLines.add(
+          new SpawnAction.SpawnActionCommandLine(
+              new Object[] {"javabuilder", paramFile, "@%s", javacCommandLine}));
+      classpath =
+          NestedSetBuilder.<Artifact>stableOrder().add(jar).addTransitive(classpath).build();
+    }
+  }
+
+  @Benchmark
+  void fingerprintWithoutExpansion(int reps) throws CommandLineExpansionException {
+    for (int i = 0; i < reps; i++) {
+      // A new context per repetition, as each build starts out without cached digests.
+      ActionKeyContext actionKeyContext = new ActionKeyContext();
+      for (CommandLine commandLine : commandLines) {
+        Fingerprint fingerprint = new Fingerprint();
+        commandLine.addToFingerprint(actionKeyContext, fingerprint);
+        fingerprint.digestAndReset();
+      }
+    }
+  }
+
+  @Benchmark
+  void fingerprintExpandedArguments(int reps) throws CommandLineExpansionException {
+    for (int i = 0; i < reps; i++) {
+      for (CommandLine commandLine : commandLines) {
+        Fingerprint fingerprint = new Fingerprint();
+        fingerprint.addStrings(commandLine.arguments());
+        fingerprint.digestAndReset();
+      }
+    }
+  }
+}
@@ -26,6 +26,7 @@ import com.google.common.collect.ImmutableSet;
 import com.google.common.eventbus.EventBus;
 import com.google.devtools.build.lib.actions.AbstractAction;
 import com.google.devtools.build.lib.actions.Action;
+import com.google.devtools.build.lib.actions.ActionKeyContext;
 import com.google.devtools.build.lib.actions.Artifact;
 import com.google.devtools.build.lib.actions.CommandLine;
 import com.google.devtools.build.lib.actions.ParamFileInfo;
@@ -42,6 +43,7 @@ import com.google.devtools.build.lib.analysis.util.ActionTester.ActionCombinatio
 import com.google.devtools.build.lib.analysis.util.AnalysisTestUtil;
 import com.google.devtools.build.lib.analysis.util.BuildViewTestCase;
 import com.google.devtools.build.lib.testutil.MoreAsserts;
+import com.google.devtools.build.lib.util.Fingerprint;
 import com.google.devtools.build.lib.vfs.PathFragment;
 import java.util.Collection;
 import java.util.HashMap;
@@ -412,6 +414,48 @@ public class SpawnActionTest extends BuildViewTestCase {
             "/bin/xxx", "@" + paramFile1.getExecPathString(), "@" + paramFile2.getExecPathString());
   }
 
+  /** A command line which may be added to an action key but not expanded. */
+  private static final class UnexpandableCommandLine extends CommandLine {
+    private final String digest;
+
+    UnexpandableCommandLine(String digest) {
+      this.digest = digest;
+    }
+
+    @Override
+    public Iterable<String> arguments() {
+      throw new AssertionError("Command line was expanded");
+    }
+
+    @Override
+    public void addToFingerprint(ActionKeyContext actionKeyContext, Fingerprint fingerprint) {
+      fingerprint.addString(digest);
+    }
+  }
+
+  private Action[] buildWithUnexpandableCommandLines(String digest) throws Exception {
+    return builder()
+        .addOutput(getBinArtifactWithNoOwner("output"))
+        .setExecutable(scratch.overwriteFile("/bin/xxx").asFragment())
+        .addCommandLine(new UnexpandableCommandLine(digest))
+        .addCommandLine(
+            CommandLine.concat(ImmutableList.of("--flag"), new UnexpandableCommandLine(digest)),
+            ParamFileInfo.builder(ParameterFileType.UNQUOTED).setUseAlways(true).build())
+        .build(ActionsTestUtil.NULL_ACTION_OWNER, collectingAnalysisEnvironment, targetConfig);
+  }
+
+  @Test
+  public void testComputeKeyDoesNotExpandCommandLines() throws Exception {
+    Action[] actions = buildWithUnexpandableCommandLines("a");
+    Action[] otherActions = buildWithUnexpandableCommandLines("b");
+    assertThat(actions).hasLength(2);
+
+    assertThat(actions[0].getKey(actionKeyContext))
+        .isNotEqualTo(otherActions[0].getKey(actionKeyContext));
+    assertThat(actions[1].getKey(actionKeyContext))
+        .isNotEqualTo(otherActions[1].getKey(actionKeyContext));
+  }
+
   @Test
   public void testExtraActionInfo() throws Exception {
     SpawnAction action = createCopyFromWelcomeToDestination(ImmutableMap.<String, String>of());
@@ -0,0 +1,330 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.buildeventservice;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.devtools.build.lib.buildeventservice.client.BuildEventServiceGrpcClient;
+import com.google.devtools.build.lib.buildeventstream.ArtifactGroupNamer;
+import com.google.devtools.build.lib.buildeventstream.BuildEvent;
+import com.google.devtools.build.lib.buildeventstream.BuildEventConverters;
+import com.google.devtools.build.lib.buildeventstream.BuildEventStreamProtos;
+import com.google.devtools.build.lib.buildeventstream.BuildEventStreamProtos.Progress;
+import com.google.devtools.build.lib.buildeventstream.PathConverter;
+import com.google.devtools.build.lib.events.EventHandler;
+import com.google.devtools.build.lib.runtime.BlazeModule.ModuleEnvironment;
+import com.google.devtools.build.lib.testutil.ManualClock;
+import com.google.devtools.build.lib.testutil.ManualSleeper;
+import com.google.devtools.build.lib.vfs.JavaIoFileSystem;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.v1.PublishBuildEventGrpc.PublishBuildEventImplBase;
+import com.google.devtools.build.v1.PublishBuildToolEventStreamRequest;
+import com.google.devtools.build.v1.PublishBuildToolEventStreamResponse;
+import com.google.devtools.build.v1.PublishLifecycleEventRequest;
+import com.google.protobuf.Empty;
+import io.grpc.Server;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.stub.StreamObserver;
+import io.grpc.util.MutableHandlerRegistry;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.mockito.Matchers;
+
+/** Tests {@link BuildEventServiceTransport} against an in-process BES. */
+@RunWith(JUnit4.class)
+public class BuildEventServiceTransportTest {
+
+  @Rule public TemporaryFolder tmp = new TemporaryFolder();
+
+  private final MutableHandlerRegistry serviceRegistry = new MutableHandlerRegistry();
+  private final String fakeServerName = "fake server for " + getClass();
+  private final FakeBuildEventService fakeBes = new FakeBuildEventService();
+  private final ManualClock clock = new ManualClock();
+  private final ModuleEnvironment moduleEnvironment = mock(ModuleEnvironment.class);
+  private final PathConverter pathConverter = mock(PathConverter.class);
+  private final ArtifactGroupNamer artifactGroupNamer = mock(ArtifactGroupNamer.class);
+  private final EventHandler reporter = mock(EventHandler.class);
+  private Server fakeServer;
+  private Path spoolDirectory;
+
+  @Before
+  public final void setUp() throws Exception {
+    serviceRegistry.addService(fakeBes);
+    // The server runs on its own threads, so that releasing held acks from the test thread cannot
+    // deadlock with the upload sending more events.
+    fakeServer =
+        InProcessServerBuilder.forName(fakeServerName)
+            .fallbackHandlerRegistry(serviceRegistry)
+            .build()
+            .start();
+    spoolDirectory = new JavaIoFileSystem().getPath(tmp.getRoot().getPath()).getRelative("spool");
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    fakeServer.shutdownNow();
+    fakeServer.awaitTermination();
+  }
+
+  private BuildEventServiceGrpcClient newClient() {
+    return new BuildEventServiceGrpcClient(
+        InProcessChannelBuilder.forName(fakeServerName).directExecutor().build(),
+        /*callCredentials=*/ null);
+  }
+
+  private BuildEventServiceTransport newTransport(
+      boolean bestEffortUpload, int maxBufferedEvents, Path spoolDirectory) {
+    return new BuildEventServiceTransport(
+        newClient(),
+        /*uploadTimeout=*/ Duration.ZERO,
+        bestEffortUpload,
+        /*publishLifecycleEvents=*/ true,
+        /*buildRequestId=*/ "build",
+        /*invocationId=*/ "invocation",
+        /*command=*/ "build",
+        moduleEnvironment,
+        clock,
+        pathConverter,
+        reporter,
+        /*projectId=*/ null,
+        ImmutableSet.of(),
+        maxBufferedEvents,
+        spoolDirectory,
+        new ManualSleeper(clock));
+  }
+
+  private static BuildEvent buildEvent(int i) {
+    BuildEvent event = mock(BuildEvent.class);
+    when(event.asStreamProto(Matchers.<BuildEventConverters>any()))
+        .thenReturn(
+            BuildEventStreamProtos.BuildEvent.newBuilder()
+                .setProgress(Progress.newBuilder().setStdout("event " + i))
+                .build());
+    return event;
+  }
+
+  private static ImmutableList<Long> sequenceNumbers(long first, long last) {
+    ImmutableList.Builder<Long> sequenceNumbers = ImmutableList.builder();
+    for (long i = first; i <= last; i++) {
+      sequenceNumbers.add(i);
+    }
+    return sequenceNumbers.build();
+  }
+
+  @Test
+  public void testEventsAreUploadedInOrder() throws Exception {
+    BuildEventServiceTransport transport =
+        newTransport(/*bestEffortUpload=*/ false, /*maxBufferedEvents=*/ 3, null);
+    for (int i = 0; i < 20; i++) {
+      transport.sendBuildEvent(buildEvent(i), artifactGroupNamer);
+    }
+    transport.close().get();
+
+    assertThat(fakeBes.getReceived()).containsExactlyElementsIn(sequenceNumbers(1, 21)).inOrder();
+    assertThat(fakeBes.getLifecycleEvents()).hasSize(4);
+  }
+
+  @Test
+  public void testFullWindowBlocksBuild() throws Exception {
+    BuildEventServiceTransport transport =
+        newTransport(/*bestEffortUpload=*/ false, /*maxBufferedEvents=*/ 5, null);
+    fakeBes.holdAcks();
+    Thread build =
+        new Thread(
+            () -> {
+              for (int i = 0; i < 10; i++) {
+                transport.sendBuildEvent(buildEvent(i), artifactGroupNamer);
+              }
+            });
+    build.start();
+    while (fakeBes.getReceived().size() < 5 || build.getState() != Thread.State.TIMED_WAITING) {
+      Thread.sleep(10);
+    }
+    assertThat(fakeBes.getReceived()).hasSize(5);
+
+    fakeBes.releaseAcks(Integer.MAX_VALUE);
+    build.join();
+    transport.close().get();
+    assertThat(fakeBes.getReceived()).containsExactlyElementsIn(sequenceNumbers(1, 11)).inOrder();
+  }
+
+  @Test
+  public void testEventsBeyondWindowAreSpooled() throws Exception {
+    BuildEventServiceTransport transport =
+        newTransport(/*bestEffortUpload=*/ false, /*maxBufferedEvents=*/ 5, spoolDirectory);
+    fakeBes.holdAcks();
+    for (int i = 0; i < 20; i++) {
+      transport.sendBuildEvent(buildEvent(i), artifactGroupNamer);
+    }
+    assertThat(fakeBes.getReceived().size()).isAtMost(5);
+    assertThat(BuildEventServiceSpool.findSpools(spoolDirectory)).hasSize(1);
+
+    fakeBes.releaseAcks(Integer.MAX_VALUE);
+    transport.close().get();
+    assertThat(fakeBes.getReceived()).containsExactlyElementsIn(sequenceNumbers(1, 21)).inOrder();
+    assertThat(BuildEventServiceSpool.findSpools(spoolDirectory)).isEmpty();
+  }
+
+  @Test
+  public void testInterruptedUploadIsResumedFromSpool() throws Exception {
+    BuildEventServiceTransport transport =
+        newTransport(/*bestEffortUpload=*/ true, /*maxBufferedEvents=*/ 0, spoolDirectory);
+    fakeBes.holdAcks();
+    for (int i = 0; i < 10; i++) {
+      transport.sendBuildEvent(buildEvent(i), artifactGroupNamer);
+    }
+    while (fakeBes.getReceived().size() < 10) {
+      Thread.sleep(10);
+    }
+    fakeBes.releaseAcks(3);
+    // The server shuts down before the upload and the build finish.
+    transport.closeNow();
+    ImmutableList<Path> spools = BuildEventServiceSpool.findSpools(spoolDirectory);
+    assertThat(spools).hasSize(1);
+
+    fakeBes.reset();
+    BuildEventServiceTransport resumed =
+        BuildEventServiceTransport.resumeFromSpool(
+            spools.get(0),
+            newClient(),
+            /*publishLifecycleEvents=*/ true,
+            /*projectId=*/ null,
+            /*maxBufferedEvents=*/ 5,
+            moduleEnvironment,
+            clock,
+            pathConverter,
+            reporter);
+    resumed.close().get();
+    while (!BuildEventServiceSpool.findSpools(spoolDirectory).isEmpty()) {
+      Thread.sleep(10);
+    }
+    // Picks up after the acked events, and finishes the stream.
+    assertThat(fakeBes.getReceived()).containsExactlyElementsIn(sequenceNumbers(4, 11)).inOrder();
+    // Only the lifecycle events finishing the invocation and the build are left.
+    assertThat(fakeBes.getLifecycleEvents()).hasSize(2);
+  }
+
+  @Test
+  public void testAckedEventsAreRecordedDuringUpload() throws Exception {
+    BuildEventServiceTransport transport =
+        newTransport(/*bestEffortUpload=*/ true, /*maxBufferedEvents=*/ 0, spoolDirectory);
+    fakeBes.holdAcks();
+    for (int i = 0; i < 150; i++) {
+      transport.sendBuildEvent(buildEvent(i), artifactGroupNamer);
+    }
+    while (fakeBes.getReceived().size() < 150) {
+      Thread.sleep(10);
+    }
+    ImmutableList<Path> spools = BuildEventServiceSpool.findSpools(spoolDirectory);
+    assertThat(spools).hasSize(1);
+    assertThat(BuildEventServiceSpool.readAcked(spools.get(0))).isEqualTo(0);
+
+    // Without a graceful shutdown, the acks are still recorded in batches.
+    fakeBes.releaseAcks(120);
+    while (BuildEventServiceSpool.readAcked(spools.get(0)) == 0) {
+      Thread.sleep(10);
+    }
+    assertThat(BuildEventServiceSpool.readAcked(spools.get(0))).isEqualTo(100);
+
+    fakeBes.releaseAcks(Integer.MAX_VALUE);
+    transport.close().get();
+  }
+
+  /** A BES recording the events it receives, which can hold back its acks. */
+  private static final class FakeBuildEventService extends PublishBuildEventImplBase {
+    private final List<PublishLifecycleEventRequest> lifecycleEvents = new ArrayList<>();
+    private final List<Long> received = new ArrayList<>();
+    private final List<Runnable> heldAcks = new ArrayList<>();
+    private boolean holdAcks;
+
+    synchronized void holdAcks() {
+      holdAcks = true;
+    }
+
+    /** Sends up to the given number of held acks, and stops holding acks if none are left. */
+    synchronized void releaseAcks(int count) {
+      while (count-- > 0 && !heldAcks.isEmpty()) {
+        heldAcks.remove(0).run();
+      }
+      holdAcks = !heldAcks.isEmpty();
+    }
+
+    synchronized void reset() {
+      lifecycleEvents.clear();
+      received.clear();
+      heldAcks.clear();
+      holdAcks = false;
+    }
+
+    synchronized ImmutableList<PublishLifecycleEventRequest> getLifecycleEvents() {
+      return ImmutableList.copyOf(lifecycleEvents);
+    }
+
+    synchronized ImmutableList<Long> getReceived() {
+      return ImmutableList.copyOf(received);
+    }
+
+    @Override
+    public synchronized void publishLifecycleEvent(
+        PublishLifecycleEventRequest request, StreamObserver<Empty> responseObserver) {
+      lifecycleEvents.add(request);
+      responseObserver.onNext(Empty.getDefaultInstance());
+      responseObserver.onCompleted();
+    }
+
+    @Override
+    public StreamObserver<PublishBuildToolEventStreamRequest> publishBuildToolEventStream(
+        StreamObserver<PublishBuildToolEventStreamResponse> responseObserver) {
+      return new StreamObserver<PublishBuildToolEventStreamRequest>() {
+        @Override
+        public void onNext(PublishBuildToolEventStreamRequest request) {
+          PublishBuildToolEventStreamResponse response =
+              PublishBuildToolEventStreamResponse.newBuilder()
+                  .setStreamId(request.getOrderedBuildEvent().getStreamId())
+                  .setSequenceNumber(request.getOrderedBuildEvent().getSequenceNumber())
+                  .build();
+          synchronized (FakeBuildEventService.this) {
+            received.add(response.getSequenceNumber());
+            if (holdAcks) {
+              heldAcks.add(() -> responseObserver.onNext(response));
+              return;
+            }
+          }
+          responseObserver.onNext(response);
+        }
+
+        @Override
+        public void onError(Throwable t) {}
+
+        @Override
+        public void onCompleted() {
+          responseObserver.onCompleted();
+        }
+      };
+    }
+  }
+}
@@ -0,0 +1,109 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.buildeventstream.transports;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.devtools.build.lib.buildeventstream.BuildEventStreamProtos;
+import com.google.devtools.build.lib.buildeventstream.BuildEventStreamProtos.BuildEvent;
+import com.google.devtools.build.lib.buildeventstream.BuildEventStreamProtos.BuildEventId;
+import com.google.devtools.build.lib.buildeventstream.BuildEventStreamProtos.File;
+import com.google.devtools.build.lib.buildeventstream.BuildEventStreamProtos.TestResult;
+import com.google.devtools.build.lib.buildeventstream.BuildEventStreamProtos.TestStatus;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.MessageOrBuilder;
+import com.google.protobuf.Struct;
+import com.google.protobuf.Value;
+import com.google.protobuf.util.JsonFormat;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests {@link ProtoJsonPrinter}. */
+@RunWith(JUnit4.class)
+public class ProtoJsonPrinterTest {
+
+  private static void assertPrintsLikeJsonFormat(MessageOrBuilder message) throws Exception {
+    assertThat(ProtoJsonPrinter.print(message))
+        .isEqualTo(JsonFormat.printer().omittingInsignificantWhitespace().print(message));
+  }
+
+  @Test
+  public void testEmptyMessage() throws Exception {
+    assertThat(ProtoJsonPrinter.print(BuildEvent.getDefaultInstance())).isEqualTo("{}");
+  }
+
+  @Test
+  public void testBuildEvent() throws Exception {
+    BuildEvent event =
+        BuildEvent.newBuilder()
+            .setId(
+                BuildEventId.newBuilder()
+                    .setTestResult(
+                        BuildEventId.TestResultId.newBuilder()
+                            .setLabel("//foo:bar_test")
+                            .setRun(1)
+                            .setShard(-2)))
+            .addChildren(
+                BuildEventId.newBuilder()
+                    .setProgress(BuildEventId.ProgressId.newBuilder().setOpaqueCount(3)))
+            .setTestResult(
+                TestResult.newBuilder()
+                    .setStatus(TestStatus.FLAKY)
+                    .setCachedLocally(true)
+                    .setTestAttemptStartMillisEpoch(Long.MAX_VALUE)
+                    .setTestAttemptDurationMillis(-1)
+                    .addTestActionOutput(
+                        File.newBuilder().setName("test.log").setUri("file:///tmp/test.log"))
+                    .addTestActionOutput(
+                        File.newBuilder()
+                            .setName("test.xml")
+                            .setContents(ByteString.copyFrom(new byte[] {0, 1, -1, 42})))
+                    .addWarning("first")
+                    .addWarning(""))
+            .build();
+    assertPrintsLikeJsonFormat(event);
+  }
+
+  @Test
+  public void testEscapedStrings() throws Exception {
+    StringBuilder allChars = new StringBuilder();
+    for (char c = 0; c < 0x100; c++) {
+      allChars.append(c);
+    }
+    allChars.append("\u2028\u2029é中😀<a href='x'>&amp;</a>");
+    assertPrintsLikeJsonFormat(
+        TestResult.newBuilder().addWarning(allChars.toString()).addWarning("\"\\\"").build());
+  }
+
+  @Test
+  public void testUnknownEnumValue() throws Exception {
+    assertPrintsLikeJsonFormat(TestResult.newBuilder().setStatusValue(42).build());
+  }
+
+  @Test
+  public void testProto2MessageWithDefaultValues() throws Exception {
+    // Exercises proto2 fields which are set to their defaults, nested enums and repeated messages.
+    assertPrintsLikeJsonFormat(BuildEventStreamProtos.getDescriptor().toProto());
+  }
+
+  @Test
+  public void testWellKnownTypes() throws Exception {
+    assertPrintsLikeJsonFormat(
+        Struct.newBuilder()
+            .putFields("number", Value.newBuilder().setNumberValue(1.5).build())
+            .putFields("string", Value.newBuilder().setStringValue("x").build())
+            .build());
+  }
+}
@@ -0,0 +1,175 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.collect.nestedset;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.devtools.build.lib.testutil.MoreAsserts.assertThrows;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.devtools.build.lib.skyframe.serialization.AutoRegistry;
+import com.google.protobuf.ByteString;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link NestedSetSpiller}. */
+@RunWith(JUnit4.class)
+public class NestedSetSpillerTest {
+
+  private Path spillFile;
+  private NestedSetSpiller spiller;
+
+  @Before
+  public void setUp() throws Exception {
+    spillFile = Files.createTempFile("nested_sets", null);
+    spiller =
+        NestedSetSpiller.create(
+            spillFile, AutoRegistry.get(), ImmutableMap.of(), String.class::isInstance);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    NestedSetSpiller.stopTracking();
+    spiller.close();
+    Files.deleteIfExists(spillFile);
+  }
+
+  private static NestedSet<String> createSets() {
+    NestedSet<String> shared = NestedSetBuilder.create(Order.STABLE_ORDER, "a", "b");
+    NestedSet<String> first =
+        NestedSetBuilder.<String>stableOrder().add("c").addTransitive(shared).build();
+    NestedSet<String> second =
+        NestedSetBuilder.<String>stableOrder().add("d").addTransitive(shared).build();
+    return NestedSetBuilder.<String>linkOrder()
+        .add("e")
+        .addTransitive(first)
+        .addTransitive(second)
+        .build();
+  }
+
+  @Test
+  public void testSpilledSetsAreReadBack() {
+    NestedSet<String> expected = createSets();
+    NestedSetSpiller.startTracking(2);
+    NestedSet<String> set = createSets();
+
+    assertThat(spiller.spillTracked()).isEqualTo(4);
+
+    assertThat(set.childrenIfNotSpilled()).isNull();
+    assertThat(set.isSingleton()).isFalse();
+    assertThat(set.isEmpty()).isFalse();
+    assertThat(set.toList()).containsExactlyElementsIn(expected.toList()).inOrder();
+    // The memo computed for the contents read back remains valid when they are read back again.
+    assertThat(set.toList()).containsExactlyElementsIn(expected.toList()).inOrder();
+    assertThat(set.toString()).isEqualTo(expected.toString());
+  }
+
+  @Test
+  public void testSetsContainingSpilledSets() {
+    NestedSetSpiller.startTracking(2);
+    NestedSet<String> inner = NestedSetBuilder.create(Order.STABLE_ORDER, "a", "b");
+    assertThat(spiller.spillTracked()).isEqualTo(1);
+
+    NestedSet<String> outer =
+        NestedSetBuilder.<String>stableOrder().add("c").addTransitive(inner).build();
+    assertThat(spiller.spillTracked()).isEqualTo(1);
+    assertThat(outer.childrenIfNotSpilled()).isNull();
+    assertThat(outer.toList()).containsExactly("a", "b", "c").inOrder();
+    assertThat(inner.toList()).containsExactly("a", "b").inOrder();
+  }
+
+  @Test
+  public void testExpandedSetsAreNotSpilled() {
+    NestedSetSpiller.startTracking(2);
+    NestedSet<String> inner = NestedSetBuilder.create(Order.STABLE_ORDER, "a", "b");
+    NestedSet<String> outer =
+        NestedSetBuilder.<String>stableOrder().add("c").addTransitive(inner).build();
+    assertThat(outer.toList()).containsExactly("c", "a", "b");
+
+    assertThat(spiller.spillTracked()).isEqualTo(1);
+    assertThat(outer.childrenIfNotSpilled()).isNotNull();
+    assertThat(inner.childrenIfNotSpilled()).isNull();
+  }
+
+  @Test
+  public void testOnlyTrackedSetsWithSpillableElementsAreSpilled() {
+    NestedSet<String> untracked = NestedSetBuilder.create(Order.STABLE_ORDER, "a", "b");
+    NestedSetSpiller.startTracking(3);
+    NestedSet<String> small = NestedSetBuilder.create(Order.STABLE_ORDER, "a", "b");
+    NestedSet<Object> unspillable = NestedSetBuilder.create(Order.STABLE_ORDER, "a", "b", 1);
+    NestedSet<String> large = NestedSetBuilder.create(Order.STABLE_ORDER, "a", "b", "c");
+
+    assertThat(spiller.spillTracked()).isEqualTo(1);
+    assertThat(untracked.childrenIfNotSpilled()).isNotNull();
+    assertThat(small.childrenIfNotSpilled()).isNotNull();
+    assertThat(unspillable.childrenIfNotSpilled()).isNotNull();
+    assertThat(large.childrenIfNotSpilled()).isNull();
+    assertThat(large.toList()).containsExactly("a", "b", "c").inOrder();
+  }
+
+  @Test
+  public void testSetsAreForgottenWhenTrackingStops() {
+    NestedSetSpiller.startTracking(2);
+    NestedSet<String> set = NestedSetBuilder.create(Order.STABLE_ORDER, "a", "b");
+    NestedSetSpiller.stopTracking();
+
+    assertThat(spiller.spillTracked()).isEqualTo(0);
+    assertThat(set.childrenIfNotSpilled()).isNotNull();
+  }
+
+  @Test
+  public void testMappedStorageEndpointSpansSegments() throws Exception {
+    MappedNestedSetStorageEndpoint endpoint =
+        MappedNestedSetStorageEndpoint.create(spillFile, /*segmentSize=*/ 16);
+    ByteString small = ByteString.copyFromUtf8("small");
+    ByteString other = ByteString.copyFromUtf8("other");
+    ByteString large = ByteString.copyFromUtf8("large");
+    endpoint.put(small, "12345678".getBytes(UTF_8));
+    endpoint.put(other, "87654321".getBytes(UTF_8));
+    endpoint.put(large, "larger than a segment".getBytes(UTF_8));
+
+    assertThat(endpoint.get(small)).isEqualTo("12345678".getBytes(UTF_8));
+    assertThat(endpoint.get(other)).isEqualTo("87654321".getBytes(UTF_8));
+    assertThat(endpoint.get(large)).isEqualTo("larger than a segment".getBytes(UTF_8));
+    assertThat(endpoint.get(ByteString.copyFromUtf8("missing"))).isNull();
+  }
+
+  @Test
+  public void testMappedStorageEndpointReplacesFile() throws Exception {
+    MappedNestedSetStorageEndpoint previous =
+        MappedNestedSetStorageEndpoint.create(spillFile, /*segmentSize=*/ 16);
+    ByteString first = ByteString.copyFromUtf8("first");
+    previous.put(first, "12345678".getBytes(UTF_8));
+    previous.close();
+
+    MappedNestedSetStorageEndpoint endpoint =
+        MappedNestedSetStorageEndpoint.create(spillFile, /*segmentSize=*/ 16);
+    ByteString second = ByteString.copyFromUtf8("second");
+    endpoint.put(second, "87654321".getBytes(UTF_8));
+
+    // The entries of the closed endpoint remain readable, but it does not store new ones.
+    assertThat(previous.get(first)).isEqualTo("12345678".getBytes(UTF_8));
+    assertThat(endpoint.get(first)).isNull();
+    assertThat(endpoint.get(second)).isEqualTo("87654321".getBytes(UTF_8));
+    assertThrows(
+        UncheckedIOException.class, () -> previous.put(second, "87654321".getBytes(UTF_8)));
+    endpoint.close();
+  }
+}
@@ -15,12 +15,23 @@
 package com.google.devtools.build.lib.exec;
 
 import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+import static org.junit.Assert.fail;
 
+import com.google.common.collect.ImmutableList;
+import com.google.devtools.build.lib.actions.CommandLine;
 import com.google.devtools.build.lib.actions.ParameterFile;
+import com.google.devtools.build.lib.actions.ParameterFile.ParameterFileType;
+import com.google.devtools.build.lib.analysis.actions.CustomCommandLine;
+import com.google.devtools.build.lib.analysis.actions.CustomCommandLine.VectorArg;
 import com.google.devtools.build.lib.testutil.FoundationTestCase;
 import com.google.devtools.build.lib.testutil.Suite;
 import com.google.devtools.build.lib.testutil.TestSpec;
 import com.google.devtools.build.lib.vfs.PathFragment;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collections;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
@@ -39,4 +50,60 @@ public class ParameterFileTest extends FoundationTestCase {
     assertThat(ParameterFile.derivePath(PathFragment.create("b")))
         .isEqualTo(PathFragment.create("b-2.params"));
   }
+
+  @Test
+  public void testWriteCommandLine() throws Exception {
+    CommandLine commandLine =
+        CommandLine.concat(
+            ImmutableList.of("tool"),
+            CustomCommandLine.builder()
+                .add("--flag")
+                .addAll(VectorArg.addBefore("--value").each(ImmutableList.of("a", "b c")))
+                .addAll("--joined", VectorArg.join(":").each(ImmutableList.of("d", "e")))
+                .addAll(VectorArg.format("-I%s").each(ImmutableList.of("f")))
+                .build());
+
+    for (ParameterFileType type : ParameterFileType.values()) {
+      ByteArrayOutputStream expected = new ByteArrayOutputStream();
+      ParameterFile.writeParameterFile(expected, commandLine.arguments(), type, ISO_8859_1);
+      ByteArrayOutputStream streamed = new ByteArrayOutputStream();
+      ParameterFile.writeParameterFile(streamed, commandLine, null, type, ISO_8859_1);
+      assertThat(streamed.toString("ISO-8859-1")).isEqualTo(expected.toString("ISO-8859-1"));
+    }
+  }
+
+  @Test
+  public void testWriteCommandLineShellQuoted() throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ParameterFile.writeParameterFile(
+        out,
+        CommandLine.of(ImmutableList.of("--flag", "a b", "")),
+        null,
+        ParameterFileType.SHELL_QUOTED,
+        ISO_8859_1);
+    assertThat(out.toString("ISO-8859-1")).isEqualTo("--flag\n'a b'\n''\n");
+  }
+
+  @Test
+  public void testWriteCommandLinePropagatesIOException() throws Exception {
+    IOException error = new IOException("disk full");
+    OutputStream failing =
+        new OutputStream() {
+          @Override
+          public void write(int b) throws IOException {
+            throw error;
+          }
+        };
+    CustomCommandLine commandLine =
+        CustomCommandLine.builder()
+            .addAll(VectorArg.addBefore("--x").each(Collections.nCopies(10_000, "value")))
+            .build();
+    try {
+      ParameterFile.writeParameterFile(
+          failing, commandLine, null, ParameterFileType.UNQUOTED, ISO_8859_1);
+      fail();
+    } catch (IOException e) {
+      assertThat(e).isSameAs(error);
+    }
+  }
 }
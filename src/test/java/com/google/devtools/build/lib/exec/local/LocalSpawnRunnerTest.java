@@ -816,6 +816,7 @@ public class LocalSpawnRunnerTest {
     assertThat(spawnResult.getNumBlockOutputOperations().get()).isAtLeast(0L);
     assertThat(spawnResult.getNumBlockInputOperations().get()).isAtLeast(0L);
     assertThat(spawnResult.getNumInvoluntaryContextSwitches().get()).isAtLeast(0L);
+    assertThat(spawnResult.getMemoryInKb().get()).isGreaterThan(0L);
   }
 
   @Test
@@ -873,5 +874,6 @@ public class LocalSpawnRunnerTest {
     assertThat(spawnResult.getNumBlockOutputOperations()).isEmpty();
     assertThat(spawnResult.getNumBlockInputOperations()).isEmpty();
     assertThat(spawnResult.getNumInvoluntaryContextSwitches()).isEmpty();
+    assertThat(spawnResult.getMemoryInKb()).isEmpty();
   }
 }
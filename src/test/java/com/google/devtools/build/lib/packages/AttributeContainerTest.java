@@ -15,9 +15,12 @@ package com.google.devtools.build.lib.packages;
 
 import static com.google.common.truth.Truth.assertThat;
 
+import com.google.common.collect.ImmutableList;
 import com.google.devtools.build.lib.events.Location;
 import com.google.devtools.build.lib.events.Location.LineAndColumn;
+import com.google.devtools.build.lib.syntax.GlobList;
 import com.google.devtools.build.lib.testutil.TestRuleClassProvider;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Random;
@@ -139,4 +142,57 @@ public class AttributeContainerTest {
       }
     }
   }
+
+  @Test
+  public void testInternValuesSharesEqualValues() throws Exception {
+    AttributeContainer other = new AttributeContainer(ruleClass);
+    container.setAttributeValue(attribute1, new ArrayList<>(Arrays.asList("a", "b")), true);
+    other.setAttributeValue(attribute1, new ArrayList<>(Arrays.asList("a", "b")), true);
+    Object opaqueValue = new Object();
+    container.setAttributeValue(attribute2, opaqueValue, false);
+
+    AttributeValueInterner interner = new AttributeValueInterner();
+    container.internValues(interner);
+    other.internValues(interner);
+
+    assertThat(container.getAttr(attribute1.getName())).isEqualTo(ImmutableList.of("a", "b"));
+    assertThat(container.getAttr(attribute1.getName())).isInstanceOf(ImmutableList.class);
+    assertThat(other.getAttr(attribute1.getName()))
+        .isSameAs(container.getAttr(attribute1.getName()));
+    assertThat(container.getAttr(attribute2.getName())).isSameAs(opaqueValue);
+  }
+
+  @Test
+  public void testInternValuesKeepsGlobLists() throws Exception {
+    GlobList<String> globList =
+        GlobList.captureResults(ImmutableList.of("*.cc"), ImmutableList.of(), ImmutableList.of("a"));
+    container.setAttributeValue(attribute1, globList, true);
+    container.internValues(new AttributeValueInterner());
+    assertThat(container.getAttr(attribute1.getName())).isSameAs(globList);
+  }
+
+  @Test
+  public void testInternedStateIsNotModifiedInPlace() throws Exception {
+    AttributeContainer other = new AttributeContainer(ruleClass);
+    Location location = newLocation();
+    for (AttributeContainer c : ImmutableList.of(container, other)) {
+      c.setAttributeValue(attribute1, "value", true);
+      c.setAttributeLocation(attribute1, location);
+    }
+    AttributeValueInterner interner = new AttributeValueInterner();
+    container.internValues(interner);
+    other.internValues(interner);
+
+    container.setAttributeValue(attribute2, "value", true);
+    container.setAttributeLocation(attribute2, location);
+
+    assertThat(container.isAttributeValueExplicitlySpecified(attribute1)).isTrue();
+    assertThat(container.isAttributeValueExplicitlySpecified(attribute2)).isTrue();
+    assertThat(container.getAttributeLocation(attribute1.getName())).isSameAs(location);
+    assertThat(container.getAttributeLocation(attribute2.getName())).isSameAs(location);
+    assertThat(other.isAttributeValueExplicitlySpecified(attribute1)).isTrue();
+    assertThat(other.isAttributeValueExplicitlySpecified(attribute2)).isFalse();
+    assertThat(other.getAttributeLocation(attribute1.getName())).isSameAs(location);
+    assertThat(other.getAttributeLocation(attribute2.getName())).isNull();
+  }
 }
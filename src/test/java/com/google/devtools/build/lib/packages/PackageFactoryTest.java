@@ -18,11 +18,13 @@ import static com.google.common.truth.Truth.assertThat;
 import static org.junit.Assert.fail;
 
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
 import com.google.common.eventbus.EventBus;
 import com.google.devtools.build.lib.cmdline.Label;
 import com.google.devtools.build.lib.cmdline.PackageIdentifier;
+import com.google.devtools.build.lib.collect.ImmutableSortedKeyMap;
 import com.google.devtools.build.lib.events.Reporter;
 import com.google.devtools.build.lib.packages.util.PackageFactoryApparatus;
 import com.google.devtools.build.lib.packages.util.PackageFactoryTestBase;
@@ -30,6 +32,7 @@ import com.google.devtools.build.lib.syntax.Type;
 import com.google.devtools.build.lib.testutil.TestUtils;
 import com.google.devtools.build.lib.vfs.Path;
 import com.google.devtools.build.lib.vfs.PathFragment;
+import com.google.devtools.build.lib.vfs.Root;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
@@ -614,6 +617,213 @@ public class PackageFactoryTest extends PackageFactoryTestBase {
         Label.parseAbsolute("@//fruit:data/berry"));
   }
 
+  @Test
+  public void testPatchGlobResults() throws Exception {
+    emptyFile("/fruit/data/apple");
+    emptyFile("/fruit/data/pear");
+    Path file =
+        scratch.file(
+            "/fruit/BUILD",
+            "cc_library(name = 'lib', srcs = ['main.cc'] + glob(['data/*'], exclude = ['x']))",
+            "exports_files(['data/pear'], visibility = ['//visibility:private'])");
+    Package pkg = packages.eval("fruit", file);
+    events.assertNoWarningsOrErrors();
+    GlobResultUsage usage = pkg.getGlobResultUsage();
+    assertThat(usage).isNotNull();
+    assertThat(usage.getGlobCalls()).hasSize(1);
+    GlobResultUsage.GlobCall globCall = usage.getGlobCalls().get(0);
+    assertThat(globCall.getRuleName()).isEqualTo("lib");
+    assertThat(globCall.getAttributeName()).isEqualTo("srcs");
+    assertThat(globCall.getIncludes()).containsExactly("data/*");
+    assertThat(globCall.getExcludes()).containsExactly("x");
+
+    Package patched =
+        packages
+            .factory()
+            .patchGlobResults(pkg, ImmutableList.of(ImmutableList.of("data/banana", "data/pear")))
+            .build();
+    assertThat(attributes(patched.getRule("lib")).get("srcs", BuildType.LABEL_LIST))
+        .containsExactly(
+            Label.parseAbsolute("@//fruit:main.cc"),
+            Label.parseAbsolute("@//fruit:data/banana"),
+            Label.parseAbsolute("@//fruit:data/pear"))
+        .inOrder();
+    assertThat(patched.getTarget("data/banana")).isInstanceOf(InputFile.class);
+    assertThat(patched.getTarget("data/pear").getVisibility())
+        .isEqualTo(ConstantRuleVisibility.PRIVATE);
+    assertThat(patched.getGlobResultUsage().getGlobCalls().get(0).getNumMatches()).isEqualTo(2);
+    try {
+      patched.getTarget("data/apple");
+      fail();
+    } catch (NoSuchTargetException expected) {
+    }
+  }
+
+  @Test
+  public void testGlobResultUsageNotRecordedForGlobInVariable() throws Exception {
+    emptyFile("/fruit/data/apple");
+    Path file =
+        scratch.file(
+            "/fruit/BUILD",
+            "srcs = glob(['data/*'])",
+            "cc_library(name = 'lib', srcs = srcs)");
+    Package pkg = packages.eval("fruit", file);
+    events.assertNoWarningsOrErrors();
+    assertThat(pkg.getGlobResultUsage()).isNull();
+  }
+
+  @Test
+  public void testIterateTargetsOfLazyPackage() throws Exception {
+    Path file =
+        scratch.file(
+            "/lazy/BUILD",
+            "exports_files(['in.txt'])",
+            "genrule(name = 'gen', srcs = ['in.txt'], outs = ['out.txt'], cmd = 'cp $< $@')",
+            "cc_library(name = 'lib', srcs = ['lib.cc'], deps = [':gen'])");
+    packages.factory().setLazyTargetMaterializationThreshold(0);
+    Package lazy = packages.eval("lazy", file);
+    events.assertNoWarningsOrErrors();
+
+    List<String> names = new ArrayList<>();
+    for (Target target : lazy.iterateTargets()) {
+      names.add(target.getName());
+      if (target instanceof OutputFile) {
+        // Output files follow the rule which generates them.
+        assertThat(names.get(names.size() - 2))
+            .isEqualTo(((OutputFile) target).getGeneratingRule().getName());
+      }
+    }
+    assertThat(names).containsExactlyElementsIn(lazy.getTargets().keySet());
+    // Once all the targets are kept, they are the ones visited.
+    assertThat(lazy.iterateTargets()).containsExactlyElementsIn(lazy.getTargets().values());
+  }
+
+  @Test
+  public void testLazyTargetMaterialization() throws Exception {
+    Path file =
+        scratch.file(
+            "/lazy/BUILD",
+            "genrule(name = 'gen', srcs = ['in.txt'], outs = ['out.txt'], cmd = 'cp $< $@',",
+            "        visibility = ['//visibility:public'])",
+            "cc_library(name = 'lib', srcs = ['lib.cc'], deps = [':gen'])");
+    Package eager = packages.eval("lazy", file);
+    packages.factory().setLazyTargetMaterializationThreshold(0);
+    Package lazy = packages.eval("lazy", file);
+    events.assertNoWarningsOrErrors();
+
+    Rule gen = lazy.getRule("gen");
+    assertThat(gen.getPackage()).isSameAs(lazy);
+    assertThat(lazy.getRule("gen")).isSameAs(gen);
+    assertThat(((OutputFile) lazy.getTarget("out.txt")).getGeneratingRule()).isSameAs(gen);
+    assertThat(gen.getVisibility()).isEqualTo(ConstantRuleVisibility.PUBLIC);
+    assertThat(lazy.getTargets().keySet())
+        .containsExactlyElementsIn(eager.getTargets().keySet())
+        .inOrder();
+    assertThat(lazy.getTargets().get("gen")).isSameAs(gen);
+    // Once requested, all the targets are kept softly, so lookups return the same objects.
+    ImmutableSortedKeyMap<String, Target> allTargets = lazy.getTargets();
+    assertThat(lazy.getTargets()).isSameAs(allTargets);
+    assertThat(lazy.getRule("lib")).isSameAs(allTargets.get("lib"));
+    assertThat(lazy.getTarget("out.txt")).isSameAs(allTargets.get("out.txt"));
+
+    for (Rule eagerRule : eager.getTargets(Rule.class)) {
+      Rule lazyRule = lazy.getRule(eagerRule.getName());
+      for (Attribute attribute : eagerRule.getAttributes()) {
+        String name = attribute.getName();
+        assertThat(lazyRule.getAttributeContainer().getAttr(name))
+            .isEqualTo(eagerRule.getAttributeContainer().getAttr(name));
+        assertThat(lazyRule.isAttributeValueExplicitlySpecified(name))
+            .isEqualTo(eagerRule.isAttributeValueExplicitlySpecified(name));
+        assertThat(lazyRule.getAttributeLocation(name))
+            .isEqualTo(eagerRule.getAttributeLocation(name));
+      }
+      List<Label> eagerOutputs = new ArrayList<>();
+      for (OutputFile outputFile : eagerRule.getOutputFiles()) {
+        eagerOutputs.add(outputFile.getLabel());
+      }
+      List<Label> lazyOutputs = new ArrayList<>();
+      for (OutputFile outputFile : lazyRule.getOutputFiles()) {
+        lazyOutputs.add(outputFile.getLabel());
+      }
+      assertThat(lazyOutputs).containsExactlyElementsIn(eagerOutputs).inOrder();
+      assertThat(lazyRule.getOutputFileMap().keySet())
+          .containsExactlyElementsIn(eagerRule.getOutputFileMap().keySet());
+    }
+  }
+
+  @Test
+  public void testSnapshotAndRestorePackage() throws Exception {
+    emptyFile("/snap/data/apple");
+    Path file =
+        scratch.file(
+            "/snap/BUILD",
+            "package(default_visibility = ['//visibility:public'], default_testonly = 1,",
+            "        features = ['f'])",
+            "licenses(['notice'])",
+            "genrule(name = 'gen', srcs = glob(['data/*']), outs = ['out.txt'], cmd = 'cp $< $@')",
+            "cc_library(name = 'lib', srcs = ['lib.cc'], deps = [':gen'], copts = ['-O2'])",
+            "exports_files(['data/apple'], visibility = ['//visibility:private'])");
+    Package pkg = packages.eval("snap", file);
+    events.assertNoWarningsOrErrors();
+    Root root = Root.fromPath(file.getFileSystem().getPath("/"));
+    byte[] snapshot = packages.factory().snapshotPackage(pkg, ImmutableMap.of(), root);
+    assertThat(snapshot).isNotNull();
+
+    Path otherFile = file.getFileSystem().getPath("/elsewhere/snap/BUILD");
+    Package restored =
+        packages
+            .factory()
+            .restorePackage(
+                snapshot,
+                pkg.getWorkspaceName(),
+                pkg.getPackageIdentifier(),
+                otherFile,
+                ImmutableMap.of(),
+                ImmutableList.of(),
+                Root.fromPath(file.getFileSystem().getPath("/elsewhere")))
+            .build();
+    assertThat(restored.containsErrors()).isFalse();
+    assertThat(restored.getFilename()).isEqualTo(otherFile);
+    assertThat(restored.getDefaultVisibility()).isEqualTo(ConstantRuleVisibility.PUBLIC);
+    assertThat(restored.getDefaultTestOnly()).isTrue();
+    assertThat(restored.getFeatures()).containsExactly("f");
+    assertThat(restored.getDefaultLicense()).isEqualTo(pkg.getDefaultLicense());
+    assertThat(restored.getTargets().keySet())
+        .containsExactlyElementsIn(pkg.getTargets().keySet())
+        .inOrder();
+    assertThat(restored.getTarget("data/apple").getVisibility())
+        .isEqualTo(ConstantRuleVisibility.PRIVATE);
+    for (Rule rule : pkg.getTargets(Rule.class)) {
+      Rule restoredRule = restored.getRule(rule.getName());
+      assertThat(restoredRule.getRuleClassObject()).isSameAs(rule.getRuleClassObject());
+      for (Attribute attribute : rule.getAttributes()) {
+        String name = attribute.getName();
+        assertThat(restoredRule.getAttributeContainer().getAttr(name))
+            .isEqualTo(rule.getAttributeContainer().getAttr(name));
+        assertThat(restoredRule.isAttributeValueExplicitlySpecified(name))
+            .isEqualTo(rule.isAttributeValueExplicitlySpecified(name));
+      }
+      assertThat(restoredRule.getLocation().getPath())
+          .isEqualTo(otherFile.asFragment());
+      assertThat(restoredRule.getLocation().getStartLineAndColumn())
+          .isEqualTo(rule.getLocation().getStartLineAndColumn());
+    }
+  }
+
+  @Test
+  public void testPackageWithErrorsIsNotSnapshot() throws Exception {
+    events.setFailFast(false);
+    Path file = scratch.file("/bad/BUILD", "cc_library(name = 'lib', srcs = 1)");
+    Package pkg = packages.eval("bad", file);
+    assertThat(pkg.containsErrors()).isTrue();
+    assertThat(
+            packages
+                .factory()
+                .snapshotPackage(
+                    pkg, ImmutableMap.of(), Root.fromPath(file.getFileSystem().getPath("/"))))
+        .isNull();
+  }
+
   // TODO(bazel-team): This is really a test for GlobCache.
   @Test
   public void testRecursiveGlob() throws Exception {
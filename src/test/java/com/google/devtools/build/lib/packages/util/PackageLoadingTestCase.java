@@ -28,6 +28,7 @@ import com.google.devtools.build.lib.cmdline.Label;
 import com.google.devtools.build.lib.cmdline.LabelSyntaxException;
 import com.google.devtools.build.lib.packages.NoSuchPackageException;
 import com.google.devtools.build.lib.packages.NoSuchTargetException;
+import com.google.devtools.build.lib.packages.Package;
 import com.google.devtools.build.lib.packages.PackageFactory;
 import com.google.devtools.build.lib.packages.PackageFactory.EnvironmentExtension;
 import com.google.devtools.build.lib.packages.Rule;
@@ -100,6 +101,7 @@ public abstract class PackageLoadingTestCase extends FoundationTestCase {
         loadingMock
             .getPackageFactoryBuilderForTesting(directories)
             .setEnvironmentExtensions(getEnvironmentExtensions())
+            .wrapPackageBuilderHelper(this::wrapPackageBuilderHelper)
             .build(ruleClassProvider);
     skyframeExecutor = createSkyframeExecutor();
     setUpSkyframe();
@@ -132,6 +134,11 @@ public abstract class PackageLoadingTestCase extends FoundationTestCase {
     return skyframeExecutor;
   }
 
+  /** Allows subclasses to observe the packages loaded in this test. */
+  protected Package.Builder.Helper wrapPackageBuilderHelper(Package.Builder.Helper helper) {
+    return helper;
+  }
+
   protected Iterable<EnvironmentExtension> getEnvironmentExtensions() {
     return ImmutableList.<EnvironmentExtension>of();
   }
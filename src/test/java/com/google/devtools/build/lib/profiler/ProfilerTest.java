@@ -15,6 +15,7 @@ package com.google.devtools.build.lib.profiler;
 
 import static com.google.common.truth.Truth.assertThat;
 import static java.nio.charset.StandardCharsets.ISO_8859_1;
+import static java.nio.charset.StandardCharsets.UTF_8;
 import static org.junit.Assert.fail;
 
 import com.google.devtools.build.lib.clock.BlazeClock;
@@ -27,9 +28,11 @@ import com.google.devtools.build.lib.testutil.Suite;
 import com.google.devtools.build.lib.testutil.TestSpec;
 import com.google.devtools.build.lib.vfs.FileSystemUtils;
 import com.google.devtools.build.lib.vfs.Path;
+import java.io.ByteArrayOutputStream;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.zip.Deflater;
 import java.util.zip.DeflaterOutputStream;
@@ -218,6 +221,94 @@ public class ProfilerTest extends FoundationTestCase {
     assertThat(info.allTasksById).isEmpty();
   }
 
+  @Test
+  public void testJsonTraceFileFormat() throws Exception {
+    Path traceFile = cacheDir.getRelative("profile.json");
+    long start = BlazeClock.instance().nanoTime();
+    profiler.start(ProfiledTaskKinds.ALL, traceFile.getOutputStream(),
+        Profiler.Format.JSON_TRACE_FILE_FORMAT, "json \"test\"", false,
+        BlazeClock.instance(), start);
+    profiler.startTask(ProfilerTask.ACTION, "action task");
+    // Next task takes less than 10 ms and should only be aggregated.
+    profiler.logSimpleTask(BlazeClock.instance().nanoTime(), ProfilerTask.VFS_STAT, "stat1");
+    long startTime = BlazeClock.instance().nanoTime();
+    clock.advanceMillis(20);
+    profiler.logSimpleTask(startTime, ProfilerTask.VFS_STAT, "stat2");
+    profiler.completeTask(ProfilerTask.ACTION);
+    profiler.stop();
+
+    String content = new String(FileSystemUtils.readContent(traceFile), UTF_8);
+    assertThat(content).startsWith("{\"otherData\":{\"comment\":\"json \\\"test\\\"\"}");
+    assertThat(content).contains("\"name\":\"thread_name\",\"ph\":\"M\"");
+    assertThat(content)
+        .contains("{\"cat\":\"action processing\",\"name\":\"action task\",\"ph\":\"X\","
+            + "\"ts\":0,\"dur\":20000,");
+    assertThat(content)
+        .contains("{\"cat\":\"VFS stat\",\"name\":\"stat2\",\"ph\":\"X\","
+            + "\"ts\":0,\"dur\":20000,");
+    assertThat(content).doesNotContain("stat1");
+    assertThat(content).endsWith("]}\n");
+  }
+
+  @Test
+  public void testJsonTraceFileFormatConcurrent() throws Exception {
+    Path traceFile = cacheDir.getRelative("profile.json");
+    profiler.start(ProfiledTaskKinds.ALL, traceFile.getOutputStream(),
+        Profiler.Format.JSON_TRACE_FILE_FORMAT, "concurrent test", true,
+        BlazeClock.instance(), BlazeClock.instance().nanoTime());
+    // Records more tasks per thread than fit into a ring buffer.
+    final int tasksPerThread = 10000;
+    Thread[] threads = new Thread[4];
+    for (int i = 0; i < threads.length; i++) {
+      threads[i] = new Thread(() -> {
+        for (int j = 0; j < tasksPerThread; j++) {
+          profiler.logSimpleTask(BlazeClock.instance().nanoTime(), ProfilerTask.TEST, "task");
+        }
+      });
+      threads[i].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    profiler.stop();
+
+    String content = new String(FileSystemUtils.readContent(traceFile), UTF_8);
+    int events = 0;
+    for (int index = content.indexOf("\"ph\":\"X\""); index >= 0;
+        index = content.indexOf("\"ph\":\"X\"", index + 1)) {
+      events++;
+    }
+    // All tasks, plus the final event logged by Profiler#stop.
+    assertThat(events).isEqualTo(threads.length * tasksPerThread + 1);
+  }
+
+  @Test
+  public void testJsonTraceFileWriterReleasesRingBuffersOfEndedThreads() throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    JsonTraceFileWriter writer = new JsonTraceFileWriter(out, "threads test", 0);
+    writer.start();
+    final int numThreads = 20;
+    for (int i = 0; i < numThreads; i++) {
+      Thread thread =
+          new Thread(() -> writer.enqueue(1000, 1000, ProfilerTask.TEST, "task"), "thread " + i);
+      thread.start();
+      thread.join();
+    }
+    // The writer drains the ring buffers periodically.
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+    while (writer.getRingBufferCount() > 0 && System.nanoTime() < deadline) {
+      Thread.sleep(50);
+    }
+    assertThat(writer.getRingBufferCount()).isEqualTo(0);
+    writer.close();
+
+    String content = new String(out.toByteArray(), UTF_8);
+    for (int i = 0; i < numThreads; i++) {
+      assertThat(content).contains("\"args\":{\"name\":\"thread " + i + "\"}");
+    }
+    assertThat(content.split("\"name\":\"task\"", -1)).hasLength(numThreads + 1);
+  }
+
   @Test
   public void testInconsistentCompleteTask() throws Exception {
     Path cacheFile = cacheDir.getRelative("profile2.dat");
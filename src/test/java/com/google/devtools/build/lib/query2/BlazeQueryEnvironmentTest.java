@@ -0,0 +1,225 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.query2;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.fail;
+
+import com.google.common.base.Joiner;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.devtools.build.lib.cmdline.Label;
+import com.google.devtools.build.lib.packages.Package;
+import com.google.devtools.build.lib.packages.Rule;
+import com.google.devtools.build.lib.packages.Target;
+import com.google.devtools.build.lib.packages.util.PackageLoadingTestCase;
+import com.google.devtools.build.lib.query2.engine.QueryEnvironment.Setting;
+import com.google.devtools.build.lib.query2.engine.QueryEnvironment.ThreadSafeMutableSet;
+import com.google.devtools.build.lib.query2.engine.QueryEvalResult;
+import com.google.devtools.build.lib.query2.engine.QueryUtil;
+import com.google.devtools.build.lib.query2.engine.QueryUtil.AggregateAllOutputFormatterCallback;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import javax.annotation.Nullable;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Tests for {@link BlazeQueryEnvironment}, comparing parallel evaluation and the reverse dependency
+ * index with the plain evaluation of the same queries.
+ */
+@RunWith(JUnit4.class)
+public class BlazeQueryEnvironmentTest extends PackageLoadingTestCase {
+
+  private static final int PACKAGES = 40;
+  private static final int TARGETS_PER_PACKAGE = 30;
+
+  private static final ImmutableList<String> QUERIES =
+      ImmutableList.of(
+          "deps(//p0:t0)",
+          "deps(//p10:t5, 3)",
+          "deps(//...:all, 1)",
+          "rdeps(//..., //p39:t29)",
+          "rdeps(//p20:all, //p35:t3, 4)",
+          "allpaths(//p0:t0, //p39:t29)",
+          "allpaths(//p0:all, //p30:all)",
+          "deps(//p0:t0) - deps(//p20:t0)",
+          "deps(//p5:t3) ^ rdeps(//..., //p25:t10)",
+          "deps(//p1:t1) + deps(//p2:t2) + rdeps(//p3:all, //p4:t4)",
+          "let x = deps(//p3:t0, 5) in $x + rdeps($x, //p9:t9)",
+          "kind(filegroup, deps(//p2:t0)) intersect //p3:all");
+
+  private final ReverseDependencyIndex index = new ReverseDependencyIndex();
+
+  /**
+   * Writes a graph of {@code PACKAGES * TARGETS_PER_PACKAGE} filegroups. Each target depends on
+   * the next target of its package, on the same target of the next package, and on a target a few
+   * packages further away, so the graph has many paths between its targets but no cycles.
+   */
+  @Before
+  public final void writeGraph() throws Exception {
+    for (int i = 0; i < PACKAGES; i++) {
+      scratch.file("p" + i + "/BUILD", buildFileLines(i).toArray(new String[0]));
+    }
+  }
+
+  private static List<String> buildFileLines(int i) {
+    List<String> lines = new ArrayList<>();
+    for (int j = 0; j < TARGETS_PER_PACKAGE; j++) {
+      List<String> srcs = new ArrayList<>();
+      if (j + 1 < TARGETS_PER_PACKAGE) {
+        srcs.add("':t" + (j + 1) + "'");
+      }
+      if (i + 1 < PACKAGES) {
+        srcs.add("'//p" + (i + 1) + ":t" + j + "'");
+      }
+      int far = i + 2 + j % 5;
+      if (far < PACKAGES) {
+        srcs.add("'//p" + far + ":t" + (j * 7) % TARGETS_PER_PACKAGE + "'");
+      }
+      lines.add("filegroup(name = 't" + j + "', srcs = [" + Joiner.on(", ").join(srcs) + "])");
+    }
+    return lines;
+  }
+
+  @Override
+  protected Package.Builder.Helper wrapPackageBuilderHelper(Package.Builder.Helper helper) {
+    return index.wrap(helper);
+  }
+
+  private BlazeQueryEnvironment newEnvironment(Set<Setting> settings) {
+    return new BlazeQueryEnvironment(
+        getPackageManager().newTransitiveLoader(),
+        getPackageManager(),
+        getPackageManager(),
+        getPackageManager().newTargetPatternEvaluator(),
+        /*keepGoing=*/ false,
+        /*strictScope=*/ true,
+        /*loadingPhaseThreads=*/ 4,
+        Rule.ALL_LABELS,
+        reporter,
+        settings,
+        ImmutableList.of());
+  }
+
+  private Set<Label> evaluate(String query, Setting... settings) throws Exception {
+    return evaluate(query, /*index=*/ null, settings);
+  }
+
+  private Set<Label> evaluate(
+      String query, @Nullable ReverseDependencyIndex index, Setting... settings)
+      throws Exception {
+    BlazeQueryEnvironment env = newEnvironment(ImmutableSet.copyOf(settings));
+    if (index != null) {
+      env.setReverseDependencyIndex(index, getSkyframeExecutor()::getLoadedPackages);
+    }
+    AggregateAllOutputFormatterCallback<Target, Set<Target>> callback =
+        QueryUtil.newOrderedAggregateAllOutputFormatterCallback(env);
+    QueryEvalResult result = env.evaluateQuery(query, callback);
+    assertThat(result.getSuccess()).isTrue();
+    ImmutableSet.Builder<Label> labels = ImmutableSet.builder();
+    for (Target target : callback.getResult()) {
+      labels.add(target.getLabel());
+    }
+    return labels.build();
+  }
+
+  @Test
+  public void testParallelEvaluationMatchesSequentialEvaluation() throws Exception {
+    for (String query : QUERIES) {
+      Set<Label> expected = evaluate(query);
+      assertThat(expected).isNotEmpty();
+      assertThat(evaluate(query, Setting.PARALLEL_EVALUATION))
+          .named(query)
+          .containsExactlyElementsIn(expected);
+    }
+  }
+
+  @Test
+  public void testParallelEvaluationOfConcurrentTransitiveClosures() throws Exception {
+    // All the operands build their transitive closures concurrently in the same environment.
+    String query = Joiner.on(" + ").join(QUERIES);
+    Set<Label> expected = evaluate(query);
+    for (int i = 0; i < 5; i++) {
+      assertThat(evaluate(query, Setting.PARALLEL_EVALUATION)).containsExactlyElementsIn(expected);
+    }
+  }
+
+  @Test
+  public void testParallelEvaluationChecksThatTransitiveClosureIsBuilt() throws Exception {
+    BlazeQueryEnvironment env = newEnvironment(ImmutableSet.of(Setting.PARALLEL_EVALUATION));
+    ThreadSafeMutableSet<Target> targets = env.createThreadSafeMutableSet();
+    targets.add(getTarget("//p1:t1"));
+    try {
+      env.getTransitiveClosure(targets);
+      fail();
+    } catch (IllegalStateException expected) {
+      assertThat(expected).hasMessageThat().contains("without prior call");
+    }
+    env.buildTransitiveClosure(null, targets, Integer.MAX_VALUE);
+    assertThat(env.getTransitiveClosure(targets)).contains(getTarget("//p39:t29"));
+  }
+
+  @Test
+  public void testRdepsFromIndexMatchesLabelVisitor() throws Exception {
+    ImmutableList<String> queries =
+        ImmutableList.of(
+            "rdeps(//..., //p39:t29)",
+            "rdeps(//..., //p39:t29, 1)",
+            "rdeps(//p20:all, //p35:t3, 4)",
+            "rdeps(//p0:t0, //p5:all)",
+            "deps(//p8:t0) ^ rdeps(//..., //p10:t10, 2)");
+    // Some packages are loaded before the index is enabled.
+    evaluate("deps(//p30:t0)");
+    index.setEnabled(true);
+    for (String query : queries) {
+      assertThat(evaluate(query, index)).named(query).containsExactlyElementsIn(evaluate(query));
+    }
+
+    // A reverse dependency added to a package that was already indexed is found.
+    List<String> lines = buildFileLines(5);
+    lines.add("filegroup(name = 'new', srcs = ['//p39:t29'])");
+    scratch.overwriteFile("p5/BUILD", lines.toArray(new String[0]));
+    invalidatePackages();
+    assertThat(evaluate("rdeps(//..., //p39:t29, 1)", index))
+        .contains(Label.parseAbsolute("//p5:new"));
+    for (String query : queries) {
+      assertThat(evaluate(query, index)).named(query).containsExactlyElementsIn(evaluate(query));
+    }
+  }
+
+  @Test
+  public void testRBuildFilesFromIndex() throws Exception {
+    scratch.file("defs/BUILD");
+    scratch.file("defs/inner.bzl", "X = 1");
+    scratch.file("defs/outer.bzl", "load('//defs:inner.bzl', 'X')", "Y = X");
+    scratch.file("user/BUILD", "load('//defs:outer.bzl', 'Y')", "filegroup(name = 'user')");
+    scratch.file("other/BUILD", "filegroup(name = 'other')");
+    index.setEnabled(true);
+    evaluate("//user:all + //other:all + //defs:all");
+
+    assertThat(evaluate("rbuildfiles(defs/inner.bzl)", index))
+        .containsExactly(Label.parseAbsolute("//user:BUILD"));
+    assertThat(evaluate("rbuildfiles(other/BUILD, defs/outer.bzl)", index))
+        .containsExactly(Label.parseAbsolute("//user:BUILD"), Label.parseAbsolute("//other:BUILD"));
+
+    // The package no longer loads the file once it changed.
+    scratch.overwriteFile("user/BUILD", "filegroup(name = 'user')");
+    invalidatePackages();
+    assertThat(evaluate("rbuildfiles(defs/inner.bzl)", index)).isEmpty();
+  }
+}
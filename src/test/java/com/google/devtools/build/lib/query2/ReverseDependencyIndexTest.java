@@ -0,0 +1,206 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.query2;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.testing.GcFinalization;
+import com.google.devtools.build.lib.cmdline.Label;
+import com.google.devtools.build.lib.cmdline.PackageIdentifier;
+import com.google.devtools.build.lib.packages.Package;
+import com.google.devtools.build.lib.packages.util.PackageLoadingTestCase;
+import com.google.devtools.build.lib.syntax.SkylarkSemantics;
+import com.google.devtools.build.lib.vfs.PathFragment;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link ReverseDependencyIndex}. */
+@RunWith(JUnit4.class)
+public class ReverseDependencyIndexTest extends PackageLoadingTestCase {
+
+  private final ReverseDependencyIndex index = new ReverseDependencyIndex();
+
+  @Before
+  public final void writePackages() throws Exception {
+    scratch.file("a/BUILD", "filegroup(name = 'a', srcs = ['a.txt', '//b:b'])");
+    scratch.file("b/BUILD", "filegroup(name = 'b', srcs = ['b.txt'])");
+    scratch.file("c/BUILD", "filegroup(name = 'c')");
+  }
+
+  private Package getPackage(String name) throws Exception {
+    return getTarget("//" + name + ":BUILD").getPackage();
+  }
+
+  private static Label label(String label) throws Exception {
+    return Label.parseAbsolute(label);
+  }
+
+  /** A helper which records the packages whose loading completed. */
+  private static class RecordingHelper implements Package.Builder.Helper {
+    private final List<Package> loaded = new ArrayList<>();
+
+    @Override
+    public Package createFreshPackage(PackageIdentifier packageId, String runfilesPrefix) {
+      return Package.Builder.DefaultHelper.INSTANCE.createFreshPackage(packageId, runfilesPrefix);
+    }
+
+    @Override
+    public void onLoadingComplete(
+        Package pkg, SkylarkSemantics skylarkSemantics, long loadTimeNanos) {
+      loaded.add(pkg);
+    }
+  }
+
+  @Test
+  public void testDependenciesAndReverseDependencies() throws Exception {
+    Package a = getPackage("a");
+    assertThat(index.getEntry(a).getDeps(label("//a:a")))
+        .containsExactly(label("//a:a.txt"), label("//b:b"));
+    assertThat(index.getReverseDeps(label("//b:b"))).containsExactly(label("//a:a"));
+    assertThat(index.getReverseDeps(label("//a:a"))).isEmpty();
+    assertThat(index.isIndexed(a)).isTrue();
+    assertThat(index.isIndexed(getPackage("b"))).isFalse();
+  }
+
+  @Test
+  public void testWrappedHelperIndexesLoadedPackagesOnceEnabled() throws Exception {
+    RecordingHelper delegate = new RecordingHelper();
+    Package.Builder.Helper helper = index.wrap(delegate);
+    Package a = getPackage("a");
+
+    helper.onLoadingComplete(a, SkylarkSemantics.DEFAULT_SEMANTICS, 0);
+    assertThat(delegate.loaded).containsExactly(a);
+    assertThat(index.isIndexed(a)).isFalse();
+    assertThat(index.getReverseDeps(label("//b:b"))).isEmpty();
+
+    index.setEnabled(true);
+    helper.onLoadingComplete(a, SkylarkSemantics.DEFAULT_SEMANTICS, 0);
+    assertThat(delegate.loaded).containsExactly(a, a);
+    assertThat(index.isIndexed(a)).isTrue();
+    assertThat(index.getReverseDeps(label("//b:b"))).containsExactly(label("//a:a"));
+  }
+
+  @Test
+  public void testChangedPackageIsReindexed() throws Exception {
+    Package a = getPackage("a");
+    index.getEntry(a);
+    scratch.overwriteFile("a/BUILD", "filegroup(name = 'a', srcs = ['//c:c'])");
+    invalidatePackages();
+
+    Package newA = getPackage("a");
+    assertThat(newA).isNotSameAs(a);
+    assertThat(index.isIndexed(newA)).isFalse();
+    assertThat(index.getEntry(newA).getDeps(label("//a:a"))).containsExactly(label("//c:c"));
+    assertThat(index.isIndexed(newA)).isTrue();
+    assertThat(index.getReverseDeps(label("//b:b"))).isEmpty();
+    assertThat(index.getReverseDeps(label("//c:c"))).containsExactly(label("//a:a"));
+  }
+
+  @Test
+  public void testEntriesDoNotKeepPackagesAlive() throws Exception {
+    Package pkg =
+        Package.newExternalPackageBuilder(
+                Package.Builder.DefaultHelper.INSTANCE,
+                rootDirectory.getRelative("WORKSPACE"),
+                "TESTING")
+            .build();
+    index.getEntry(pkg);
+    assertThat(index.isIndexed(pkg)).isTrue();
+    WeakReference<Package> ref = new WeakReference<>(pkg);
+    pkg = null;
+    GcFinalization.awaitClear(ref);
+
+    // The entry is no longer valid for any instance of the package.
+    Package newPkg =
+        Package.newExternalPackageBuilder(
+                Package.Builder.DefaultHelper.INSTANCE,
+                rootDirectory.getRelative("WORKSPACE"),
+                "TESTING")
+            .build();
+    assertThat(index.isIndexed(newPkg)).isFalse();
+    index.getEntry(newPkg);
+    assertThat(index.isIndexed(newPkg)).isTrue();
+  }
+
+  @Test
+  public void testDisablingDropsEntries() throws Exception {
+    RecordingHelper delegate = new RecordingHelper();
+    Package.Builder.Helper helper = index.wrap(delegate);
+    Package a = getPackage("a");
+    index.setEnabled(true);
+    helper.onLoadingComplete(a, SkylarkSemantics.DEFAULT_SEMANTICS, 0);
+    assertThat(index.isIndexed(a)).isTrue();
+
+    index.setEnabled(false);
+    assertThat(index.isIndexed(a)).isFalse();
+    assertThat(index.getReverseDeps(label("//b:b"))).isEmpty();
+    helper.onLoadingComplete(a, SkylarkSemantics.DEFAULT_SEMANTICS, 0);
+    assertThat(index.isIndexed(a)).isFalse();
+  }
+
+  @Test
+  public void testIndexLoadedPackagesCompletesIndex() throws Exception {
+    Package a = getPackage("a");
+    Package b = getPackage("b");
+    index.setEnabled(true);
+    assertThat(index.isComplete()).isFalse();
+
+    index.indexLoadedPackages(getSkyframeExecutor().getLoadedPackages());
+    assertThat(index.isComplete()).isTrue();
+    assertThat(index.isIndexed(a)).isTrue();
+    assertThat(index.isIndexed(b)).isTrue();
+    assertThat(index.getEntry(a.getPackageIdentifier())).isSameAs(index.getEntry(a));
+
+    index.setEnabled(false);
+    assertThat(index.isComplete()).isFalse();
+  }
+
+  @Test
+  public void testEntriesOfCollectedPackagesAreDropped() throws Exception {
+    Package pkg =
+        Package.newExternalPackageBuilder(
+                Package.Builder.DefaultHelper.INSTANCE,
+                rootDirectory.getRelative("WORKSPACE"),
+                "TESTING")
+            .build();
+    index.getEntry(pkg);
+    assertThat(index.size()).isEqualTo(1);
+    WeakReference<Package> ref = new WeakReference<>(pkg);
+    pkg = null;
+    GcFinalization.awaitClear(ref);
+    GcFinalization.awaitDone(() -> index.size() == 0);
+  }
+
+  @Test
+  public void testEntryRecordsLoadedFiles() throws Exception {
+    scratch.file("defs/BUILD");
+    scratch.file("defs/inner.bzl", "X = 1");
+    scratch.file("defs/outer.bzl", "load('//defs:inner.bzl', 'X')", "Y = X");
+    scratch.file("user/BUILD", "load('//defs:outer.bzl', 'Y')", "filegroup(name = 'user')");
+    Package user = getPackage("user");
+
+    ReverseDependencyIndex.PackageEntry entry = index.getEntry(user);
+    assertThat(entry.loadsFile(PathFragment.create("user/BUILD"))).isTrue();
+    assertThat(entry.loadsFile(PathFragment.create("defs/outer.bzl"))).isTrue();
+    assertThat(entry.loadsFile(PathFragment.create("defs/inner.bzl"))).isTrue();
+    assertThat(entry.loadsFile(PathFragment.create("defs/BUILD"))).isFalse();
+    assertThat(index.getPackagesLoadingFile(PathFragment.create("defs/inner.bzl")))
+        .containsExactly(user.getPackageIdentifier());
+  }
+}
@@ -0,0 +1,107 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.query2.output;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableList;
+import com.google.devtools.build.lib.packages.Target;
+import com.google.devtools.build.lib.packages.util.PackageLoadingTestCase;
+import com.google.devtools.build.lib.query2.engine.OutputFormatterCallback;
+import com.google.devtools.build.lib.query2.proto.proto2api.Build;
+import com.google.devtools.common.options.Options;
+import java.io.ByteArrayOutputStream;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for the streamed output of {@link ProtoOutputFormatter}. */
+@RunWith(JUnit4.class)
+public class ProtoOutputFormatterTest extends PackageLoadingTestCase {
+
+  private QueryOptions options;
+  private ProtoOutputFormatter formatter;
+
+  @Before
+  public final void createFormatter() throws Exception {
+    options = Options.getDefaults(QueryOptions.class);
+    options.relativeLocations = true;
+    formatter = new ProtoOutputFormatter();
+    formatter.setOptions(options, new ConservativeAspectResolver());
+  }
+
+  private byte[] format(List<List<Target>> batches) throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    OutputFormatterCallback<Target> callback =
+        formatter.createPostFactoStreamCallback(out, options);
+    callback.start();
+    for (List<Target> batch : batches) {
+      callback.processOutput(batch);
+    }
+    callback.close(/*failFast=*/ false);
+    return out.toByteArray();
+  }
+
+  /** Returns the encoding of the whole result as a single message. */
+  private byte[] queryResult(List<Target> targets) throws Exception {
+    Build.QueryResult.Builder queryResult = Build.QueryResult.newBuilder();
+    for (Target target : targets) {
+      queryResult.addTarget(formatter.toTargetProtoBuffer(target));
+    }
+    return queryResult.build().toByteArray();
+  }
+
+  private List<Target> writeExample() throws Exception {
+    scratch.file(
+        "foo/BUILD",
+        "exports_files(['a.txt'])",
+        "genrule(name = 'gen', srcs = ['a.txt'], outs = ['gen.out'], cmd = 'cp $< $@')",
+        "filegroup(name = 'group', srcs = [':gen'])");
+    return ImmutableList.of(
+        getTarget("//foo:a.txt"),
+        getTarget("//foo:gen"),
+        getTarget("//foo:gen.out"),
+        getTarget("//foo:group"));
+  }
+
+  @Test
+  public void testOutputIsTheEncodingOfTheQueryResult() throws Exception {
+    List<Target> targets = writeExample();
+    byte[] output = format(ImmutableList.of(targets));
+    assertThat(output).isEqualTo(queryResult(targets));
+    Build.QueryResult parsed = Build.QueryResult.parseFrom(output);
+    assertThat(parsed.getTargetCount()).isEqualTo(4);
+    assertThat(parsed.getTarget(1).getRule().getName()).isEqualTo("//foo:gen");
+  }
+
+  @Test
+  public void testOutputDoesNotDependOnBatches() throws Exception {
+    List<Target> targets = writeExample();
+    assertThat(
+            format(
+                ImmutableList.of(
+                    targets.subList(0, 1),
+                    ImmutableList.<Target>of(),
+                    targets.subList(1, 3),
+                    targets.subList(3, 4))))
+        .isEqualTo(queryResult(targets));
+  }
+
+  @Test
+  public void testEmptyResult() throws Exception {
+    assertThat(format(ImmutableList.<List<Target>>of())).isEmpty();
+  }
+}
@@ -0,0 +1,136 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.query2.output;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableList;
+import com.google.devtools.build.lib.packages.Target;
+import com.google.devtools.build.lib.packages.util.PackageLoadingTestCase;
+import com.google.devtools.build.lib.query2.engine.OutputFormatterCallback;
+import com.google.devtools.common.options.Options;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for the streamed output of {@link XmlOutputFormatter}. */
+@RunWith(JUnit4.class)
+public class XmlOutputFormatterTest extends PackageLoadingTestCase {
+
+  private QueryOptions options;
+  private XmlOutputFormatter formatter;
+
+  @Before
+  public final void createFormatter() throws Exception {
+    options = Options.getDefaults(QueryOptions.class);
+    options.relativeLocations = true;
+    formatter = new XmlOutputFormatter();
+    formatter.setOptions(options, new ConservativeAspectResolver());
+  }
+
+  private String format(List<List<Target>> batches) throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    OutputFormatterCallback<Target> callback =
+        formatter.createPostFactoStreamCallback(out, options);
+    callback.start();
+    for (List<Target> batch : batches) {
+      callback.processOutput(batch);
+    }
+    callback.close(/*failFast=*/ false);
+    return new String(out.toByteArray(), StandardCharsets.UTF_8);
+  }
+
+  private List<Target> writeExample() throws Exception {
+    scratch.file(
+        "foo/BUILD",
+        "exports_files(['a.txt', 'b.txt'])",
+        "filegroup(name = 'group', srcs = ['a.txt', 'b.txt'])");
+    return ImmutableList.of(
+        getTarget("//foo:a.txt"), getTarget("//foo:b.txt"), getTarget("//foo:group"));
+  }
+
+  private static String lines(String... lines) {
+    StringBuilder result = new StringBuilder();
+    for (String line : lines) {
+      result.append(line).append(System.lineSeparator());
+    }
+    return result.toString();
+  }
+
+  private static final String GOLDEN_OUTPUT =
+      lines(
+          "<?xml version=\"1.1\" encoding=\"UTF-8\" standalone=\"no\"?>",
+          "<query version=\"2\">",
+          "<source-file location=\"foo/BUILD:1:1\" name=\"//foo:a.txt\">",
+          "<visibility-label name=\"//visibility:public\"/>",
+          "</source-file>",
+          "<source-file location=\"foo/BUILD:1:1\" name=\"//foo:b.txt\">",
+          "<visibility-label name=\"//visibility:public\"/>",
+          "</source-file>",
+          "<rule class=\"filegroup\" location=\"foo/BUILD:2:1\" name=\"//foo:group\">",
+          "<string name=\"name\" value=\"group\"/>",
+          "<list name=\"srcs\">",
+          "<label value=\"//foo:a.txt\"/>",
+          "<label value=\"//foo:b.txt\"/>",
+          "</list>",
+          "<rule-input name=\"//foo:a.txt\"/>",
+          "<rule-input name=\"//foo:b.txt\"/>",
+          "</rule>",
+          "</query>");
+
+  @Test
+  public void testGoldenOutput() throws Exception {
+    List<Target> targets = writeExample();
+    assertThat(format(ImmutableList.of(targets))).isEqualTo(GOLDEN_OUTPUT);
+  }
+
+  @Test
+  public void testOutputDoesNotDependOnBatches() throws Exception {
+    List<Target> targets = writeExample();
+    assertThat(
+            format(
+                ImmutableList.of(
+                    targets.subList(0, 1), ImmutableList.<Target>of(), targets.subList(1, 3))))
+        .isEqualTo(GOLDEN_OUTPUT);
+    assertThat(
+            format(
+                ImmutableList.of(
+                    targets.subList(0, 1), targets.subList(1, 2), targets.subList(2, 3))))
+        .isEqualTo(GOLDEN_OUTPUT);
+  }
+
+  @Test
+  public void testEmptyResult() throws Exception {
+    assertThat(format(ImmutableList.<List<Target>>of()))
+        .isEqualTo(
+            lines(
+                "<?xml version=\"1.1\" encoding=\"UTF-8\" standalone=\"no\"?>",
+                "<query version=\"2\"/>"));
+  }
+
+  @Test
+  public void testAttributeValuesAreEscaped() throws Exception {
+    scratch.file(
+        "foo/BUILD",
+        "genrule(name = 'gen', outs = ['out.txt'], cmd = 'echo \"<a>\" & \\n\\tb > $@')");
+    String output = format(ImmutableList.of(ImmutableList.of(getTarget("//foo:gen"))));
+    assertThat(output)
+        .contains(
+            "<string name=\"cmd\" value=\"echo &quot;&lt;a&gt;&quot; &amp; &#10;&#9;b &gt; $@\"/>");
+  }
+}
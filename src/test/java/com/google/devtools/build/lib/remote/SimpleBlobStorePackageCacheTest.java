@@ -0,0 +1,132 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.remote;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.fail;
+
+import com.google.devtools.build.lib.remote.blobstore.ConcurrentMapBlobStore;
+import com.google.devtools.build.lib.remote.blobstore.SimpleBlobStore;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.time.Duration;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link SimpleBlobStorePackageCache}. */
+@RunWith(JUnit4.class)
+public class SimpleBlobStorePackageCacheTest {
+  private static final Duration TIMEOUT = Duration.ofSeconds(60);
+
+  /** A blob store which only allows access to the CAS. */
+  private static class CasOnlyBlobStore implements SimpleBlobStore {
+    private final SimpleBlobStore delegate;
+
+    CasOnlyBlobStore(SimpleBlobStore delegate) {
+      this.delegate = delegate;
+    }
+
+    @Override
+    public boolean containsKey(String key) throws IOException, InterruptedException {
+      return delegate.containsKey(key);
+    }
+
+    @Override
+    public boolean get(String key, OutputStream out) throws IOException, InterruptedException {
+      return delegate.get(key, out);
+    }
+
+    @Override
+    public boolean getActionResult(String actionKey, OutputStream out) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void put(String key, long length, InputStream in)
+        throws IOException, InterruptedException {
+      delegate.put(key, length, in);
+    }
+
+    @Override
+    public void putActionResult(String actionKey, byte[] in) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void close() {}
+  }
+
+  @Test
+  public void testPutAndGet() throws Exception {
+    ConcurrentMap<String, byte[]> map = new ConcurrentHashMap<>();
+    SimpleBlobStore blobStore = new CasOnlyBlobStore(new ConcurrentMapBlobStore(map));
+    SimpleBlobStorePackageCache cache =
+        new SimpleBlobStorePackageCache(blobStore, "binary", TIMEOUT);
+    assertThat(cache.get("key")).isNull();
+
+    cache.put("key", "value".getBytes(UTF_8));
+    // Waits for the upload.
+    cache.close();
+
+    cache = new SimpleBlobStorePackageCache(blobStore, "binary", TIMEOUT);
+    assertThat(cache.get("key")).isEqualTo("value".getBytes(UTF_8));
+    assertThat(cache.get("other")).isNull();
+    assertThat(map).hasSize(1);
+    assertThat(map).doesNotContainKey("key");
+  }
+
+  @Test
+  public void testEntriesOfOtherBinariesAreNotVisible() throws Exception {
+    ConcurrentMapBlobStore blobStore = new ConcurrentMapBlobStore(new ConcurrentHashMap<>());
+    SimpleBlobStorePackageCache cache =
+        new SimpleBlobStorePackageCache(blobStore, "binary", TIMEOUT);
+    cache.put("key", "value".getBytes(UTF_8));
+    cache.close();
+
+    assertThat(new SimpleBlobStorePackageCache(blobStore, "other binary", TIMEOUT).get("key"))
+        .isNull();
+    assertThat(new SimpleBlobStorePackageCache(blobStore, "binary", TIMEOUT).get("key"))
+        .isNotNull();
+  }
+
+  @Test
+  public void testGetTimesOut() throws Exception {
+    CountDownLatch released = new CountDownLatch(1);
+    SimpleBlobStore blobStore =
+        new CasOnlyBlobStore(new ConcurrentMapBlobStore(new ConcurrentHashMap<>())) {
+          @Override
+          public boolean get(String key, OutputStream out) throws InterruptedException {
+            released.await();
+            return false;
+          }
+        };
+    SimpleBlobStorePackageCache cache =
+        new SimpleBlobStorePackageCache(blobStore, "binary", Duration.ofMillis(10));
+    try {
+      cache.get("key");
+      fail();
+    } catch (IOException e) {
+      assertThat(e).hasMessageThat().contains("Timed out");
+    } finally {
+      released.countDown();
+      cache.close();
+    }
+  }
+}
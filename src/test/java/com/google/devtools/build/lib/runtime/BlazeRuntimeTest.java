@@ -16,13 +16,23 @@ package com.google.devtools.build.lib.runtime;
 import static com.google.common.truth.Truth.assertThat;
 
 import com.google.common.collect.ImmutableList;
+import com.google.devtools.build.lib.analysis.ServerDirectories;
+import com.google.devtools.build.lib.bazel.rules.BazelRulesModule;
+import com.google.devtools.build.lib.cmdline.PackageIdentifier;
+import com.google.devtools.build.lib.packages.Package;
+import com.google.devtools.build.lib.packages.RuleClassProvider;
+import com.google.devtools.build.lib.syntax.SkylarkSemantics;
+import com.google.devtools.build.lib.testutil.Scratch;
+import com.google.devtools.build.lib.testutil.TestConstants;
+import com.google.devtools.common.options.OptionsParser;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 
-/** Tests for {@link BlazeRuntime} static methods. */
+/** Tests for {@link BlazeRuntime}. */
 @RunWith(JUnit4.class)
 public class BlazeRuntimeTest {
   @Test
@@ -78,4 +88,62 @@ public class BlazeRuntimeTest {
     assertThat(options.getStartupArgs()).isEqualTo(Arrays.asList("--nobatch"));
     assertThat(options.getOtherArgs()).isEqualTo(Arrays.asList("build"));
   }
+
+  /** A module helper which records the packages whose loading completed. */
+  private static class RecordingHelper implements Package.Builder.Helper {
+    private final List<Package> loaded = new ArrayList<>();
+
+    @Override
+    public Package createFreshPackage(PackageIdentifier packageId, String runfilesPrefix) {
+      return Package.Builder.DefaultHelper.INSTANCE.createFreshPackage(packageId, runfilesPrefix);
+    }
+
+    @Override
+    public void onLoadingComplete(
+        Package pkg, SkylarkSemantics skylarkSemantics, long loadTimeNanos) {
+      loaded.add(pkg);
+    }
+  }
+
+  @Test
+  public void reverseDependencyIndexWrapsModulePackageBuilderHelper() throws Exception {
+    Scratch scratch = new Scratch();
+    RecordingHelper moduleHelper = new RecordingHelper();
+    BlazeRuntime runtime =
+        new BlazeRuntime.Builder()
+            .setFileSystem(scratch.getFileSystem())
+            .setServerDirectories(
+                new ServerDirectories(
+                    scratch.dir("install_base"),
+                    scratch.dir("output_base"),
+                    scratch.dir("user_root")))
+            .setProductName(TestConstants.PRODUCT_NAME)
+            .setStartupOptionsProvider(
+                OptionsParser.newOptionsParser(BlazeServerStartupOptions.class))
+            .addBlazeModule(new BazelRulesModule())
+            .addBlazeModule(
+                new BlazeModule() {
+                  @Override
+                  public Package.Builder.Helper getPackageBuilderHelper(
+                      RuleClassProvider ruleClassProvider) {
+                    return moduleHelper;
+                  }
+                })
+            .build();
+    Package.Builder.Helper helper =
+        runtime.getPackageFactory().getPackageBuilderHelperForTesting();
+    Package pkg =
+        Package.newExternalPackageBuilder(helper, scratch.file("workspace/WORKSPACE"), "TESTING")
+            .build();
+
+    // Packages are passed on to the module's helper, and only indexed once the index is enabled.
+    helper.onLoadingComplete(pkg, SkylarkSemantics.DEFAULT_SEMANTICS, 0);
+    assertThat(moduleHelper.loaded).containsExactly(pkg);
+    assertThat(runtime.getReverseDependencyIndex().isIndexed(pkg)).isFalse();
+
+    runtime.getReverseDependencyIndex().setEnabled(true);
+    helper.onLoadingComplete(pkg, SkylarkSemantics.DEFAULT_SEMANTICS, 0);
+    assertThat(moduleHelper.loaded).containsExactly(pkg, pkg);
+    assertThat(runtime.getReverseDependencyIndex().isIndexed(pkg)).isTrue();
+  }
 }
@@ -0,0 +1,166 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.runtime;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.devtools.build.lib.actions.Action;
+import com.google.devtools.build.lib.actions.ActionCompletionEvent;
+import com.google.devtools.build.lib.actions.ActionAnalysisMetadata.MiddlemanType;
+import com.google.devtools.build.lib.actions.ActionMiddlemanEvent;
+import com.google.devtools.build.lib.actions.Artifact;
+import com.google.devtools.build.lib.actions.ArtifactRoot;
+import com.google.devtools.build.lib.actions.CachedActionEvent;
+import com.google.devtools.build.lib.actions.CriticalPathHistory;
+import com.google.devtools.build.lib.actions.util.ActionsTestUtil.NullAction;
+import com.google.devtools.build.lib.testutil.ManualClock;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.inmemoryfs.InMemoryFileSystem;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link CriticalPathHistoryRecorder}. */
+@RunWith(JUnit4.class)
+public class CriticalPathHistoryRecorderTest {
+  private final ManualClock clock = new ManualClock();
+  private ArtifactRoot root;
+
+  @Before
+  public void createRoot() throws Exception {
+    Path execRoot = new InMemoryFileSystem().getPath("/exec");
+    root = ArtifactRoot.asDerivedRoot(execRoot, execRoot.getRelative("out"));
+  }
+
+  private Artifact artifact(String name) {
+    return new Artifact(root.getRoot().getRelative(name), root);
+  }
+
+  private void execute(CriticalPathHistoryRecorder recorder, Action action, long durationMillis) {
+    long start = clock.nanoTime();
+    clock.advanceMillis(durationMillis);
+    recorder.actionComplete(new ActionCompletionEvent(start, action, null));
+  }
+
+  private static long remaining(CriticalPathHistory history, String name) {
+    return history.get("out/" + name).getRemainingCriticalPathMillis();
+  }
+
+  @Test
+  public void testRemainingCriticalPath() {
+    Artifact a = artifact("a");
+    Artifact b = artifact("b");
+    Artifact c = artifact("c");
+    Artifact d = artifact("d");
+    CriticalPathHistoryRecorder recorder =
+        new CriticalPathHistoryRecorder(CriticalPathHistory.EMPTY, clock);
+    execute(recorder, new NullAction(a), 10);
+    execute(recorder, new NullAction(ImmutableList.of(a), b), 20);
+    execute(recorder, new NullAction(ImmutableList.of(a), c), 100);
+    execute(recorder, new NullAction(ImmutableList.of(b, c), d), 5);
+
+    CriticalPathHistory history = recorder.computeHistory();
+    assertThat(remaining(history, "d")).isEqualTo(5);
+    assertThat(remaining(history, "c")).isEqualTo(105);
+    assertThat(remaining(history, "b")).isEqualTo(25);
+    assertThat(remaining(history, "a")).isEqualTo(115);
+    assertThat(history.get("out/c").getDurationMillis()).isEqualTo(100);
+  }
+
+  @Test
+  public void testCachedActionsKeepPreviousDuration() {
+    Artifact a = artifact("a");
+    Artifact b = artifact("b");
+    CriticalPathHistory previous =
+        new CriticalPathHistory(
+            ImmutableMap.of(
+                "out/a", new CriticalPathHistory.Entry("Null", 50, 60),
+                "out/other", new CriticalPathHistory.Entry("Null", 1, 1)));
+    CriticalPathHistoryRecorder recorder = new CriticalPathHistoryRecorder(previous, clock);
+    recorder.actionCached(new CachedActionEvent(new NullAction(a), clock.nanoTime()));
+    execute(recorder, new NullAction(ImmutableList.of(a), b), 20);
+
+    CriticalPathHistory history = recorder.computeHistory();
+    assertThat(remaining(history, "a")).isEqualTo(70);
+    assertThat(remaining(history, "b")).isEqualTo(20);
+    // Actions that were not visited in this build are kept.
+    assertThat(remaining(history, "other")).isEqualTo(1);
+  }
+
+  @Test
+  public void testIncrementalBuildDoesNotShortenHistory() {
+    Artifact a = artifact("a");
+    CriticalPathHistory previous =
+        new CriticalPathHistory(
+            ImmutableMap.of(
+                "out/a", new CriticalPathHistory.Entry("Null", 10, 115),
+                "out/d", new CriticalPathHistory.Entry("Null", 5, 5)));
+    CriticalPathHistoryRecorder recorder = new CriticalPathHistoryRecorder(previous, clock);
+    // Only the action at the start of the chain is executed, its dependents are up to date.
+    execute(recorder, new NullAction(a), 20);
+
+    CriticalPathHistory history = recorder.computeHistory();
+    assertThat(history.get("out/a").getDurationMillis()).isEqualTo(15);
+    assertThat(remaining(history, "a")).isEqualTo(120);
+    assertThat(remaining(history, "d")).isEqualTo(5);
+  }
+
+  @Test
+  public void testActionsThatDidNotRunAreNotRecorded() {
+    Artifact a = artifact("a");
+    Artifact b = artifact("b");
+    Artifact c = artifact("c");
+    CriticalPathHistoryRecorder recorder =
+        new CriticalPathHistoryRecorder(CriticalPathHistory.EMPTY, clock);
+    long start = clock.nanoTime();
+    clock.advanceMillis(3);
+    recorder.actionCached(new CachedActionEvent(new NullAction(a), start));
+    recorder.middlemanAction(
+        new ActionMiddlemanEvent(
+            new NullAction(ImmutableList.of(a), b) {
+              @Override
+              public MiddlemanType getActionType() {
+                return MiddlemanType.AGGREGATING_MIDDLEMAN;
+              }
+            },
+            clock.nanoTime()));
+    execute(recorder, new NullAction(ImmutableList.of(b), c), 20);
+
+    CriticalPathHistory history = recorder.computeHistory();
+    assertThat(history.getEntries().keySet()).containsExactly("out/c");
+  }
+
+  @Test
+  public void testHistoryIsBounded() {
+    Artifact a = artifact("a");
+    Artifact b = artifact("b");
+    CriticalPathHistory previous =
+        new CriticalPathHistory(
+            ImmutableMap.of(
+                "out/recent", new CriticalPathHistory.Entry("Null", 1, 1),
+                "out/old", new CriticalPathHistory.Entry("Null", 2, 2)));
+    CriticalPathHistoryRecorder recorder = new CriticalPathHistoryRecorder(previous, clock, 3);
+    execute(recorder, new NullAction(a), 10);
+    execute(recorder, new NullAction(ImmutableList.of(a), b), 20);
+
+    CriticalPathHistory history = recorder.computeHistory();
+    // The least recently recorded entries are dropped first.
+    assertThat(history.getEntries().keySet())
+        .containsExactly("out/b", "out/a", "out/recent")
+        .inOrder();
+  }
+}
@@ -0,0 +1,89 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.runtime;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableList;
+import com.google.devtools.build.lib.actions.ActionResult;
+import com.google.devtools.build.lib.actions.SpawnResult;
+import java.time.Duration;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link SpawnResourceStats}. */
+@RunWith(JUnit4.class)
+public final class SpawnResourceStatsTest {
+
+  private SpawnResourceStats stats;
+
+  @Before
+  public void setUp() {
+    stats = new SpawnResourceStats();
+  }
+
+  private static SpawnResult measured(long userMillis, long systemMillis, long memoryInKb) {
+    return new SpawnResult.Builder()
+        .setStatus(SpawnResult.Status.SUCCESS)
+        .setRunnerName("local")
+        .setUserTime(Duration.ofMillis(userMillis))
+        .setSystemTime(Duration.ofMillis(systemMillis))
+        .setMemoryInKb(memoryInKb)
+        .setNumBlockInputOperations(1)
+        .setNumBlockOutputOperations(2)
+        .build();
+  }
+
+  @Test
+  public void emptySummary() {
+    assertThat(stats.getSummary()).isEmpty();
+  }
+
+  @Test
+  public void unmeasuredSpawnsAreIgnored() {
+    stats.countSpawnResult(
+        "Javac",
+        new SpawnResult.Builder()
+            .setStatus(SpawnResult.Status.SUCCESS)
+            .setRunnerName("remote")
+            .build());
+    stats.countSpawnResult(
+        "Javac",
+        new SpawnResult.Builder()
+            .setStatus(SpawnResult.Status.SUCCESS)
+            .setRunnerName("remote cache hit")
+            .setUserTime(Duration.ofSeconds(1))
+            .setCacheHit(true)
+            .build());
+    assertThat(stats.getSummary()).isEmpty();
+  }
+
+  @Test
+  public void aggregatesPerMnemonic() {
+    stats.countActionResult(
+        "Javac", ActionResult.create(ImmutableList.of(measured(1000, 500, 2000))));
+    stats.countActionResult(
+        "Javac", ActionResult.create(ImmutableList.of(measured(2000, 0, 4000))));
+    stats.countActionResult(
+        "CppCompile", ActionResult.create(ImmutableList.of(measured(100, 100, 1000))));
+    assertThat(stats.getSummary())
+        .isEqualTo(
+            "Javac: 2 processes, user 3.000s, system 0.500s, max RSS 4000 KB, "
+                + "average RSS 3000 KB, block input 2, block output 4\n"
+                + "CppCompile: 1 process, user 0.100s, system 0.100s, max RSS 1000 KB, "
+                + "average RSS 1000 KB, block input 1, block output 2");
+  }
+}
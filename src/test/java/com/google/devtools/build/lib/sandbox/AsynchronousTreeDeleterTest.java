@@ -0,0 +1,71 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.lib.sandbox;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.Path;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link AsynchronousTreeDeleter}. */
+@RunWith(JUnit4.class)
+public class AsynchronousTreeDeleterTest extends SandboxTestCase {
+  private Path trashBase;
+  private AsynchronousTreeDeleter deleter;
+
+  @Before
+  public final void createDeleter() throws Exception {
+    trashBase = testRoot.getRelative("trash");
+    deleter = new AsynchronousTreeDeleter(trashBase, 2);
+  }
+
+  private Path createTree(String name) throws Exception {
+    Path tree = testRoot.getRelative(name);
+    tree.getRelative("execroot/main/dir").createDirectoryAndParents();
+    FileSystemUtils.createEmptyFile(tree.getRelative("execroot/main/dir/file"));
+    tree.getRelative("execroot/main/link").createSymbolicLink(testRoot.getRelative("missing"));
+    return tree;
+  }
+
+  @Test
+  public void testTreesAreMovedAwayAndDeleted() throws Exception {
+    Path first = createTree("1");
+    Path second = createTree("2");
+
+    deleter.deleteTree(first);
+    deleter.deleteTree(second);
+    assertThat(first.exists()).isFalse();
+    assertThat(second.exists()).isFalse();
+    // The paths can be reused right away.
+    createTree("1");
+
+    while (!trashBase.getDirectoryEntries().isEmpty()) {
+      Thread.sleep(10);
+    }
+    deleter.shutdown();
+    assertThat(testRoot.getRelative("1/execroot/main/dir/file").exists()).isTrue();
+  }
+
+  @Test
+  public void testMissingTreeIsIgnored() throws Exception {
+    deleter.deleteTree(testRoot.getRelative("missing"));
+    deleter.shutdown();
+    assertThat(trashBase.getDirectoryEntries()).isEmpty();
+  }
+}
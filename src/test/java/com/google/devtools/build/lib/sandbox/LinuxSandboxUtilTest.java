@@ -84,6 +84,7 @@ public final class LinuxSandboxUtilTest {
     Duration timeout = Duration.ofSeconds(10);
     Duration killDelay = Duration.ofSeconds(2);
     Path statisticsPath = testFS.getPath("/stats.out");
+    Path cgroupPath = testFS.getPath("/sys/fs/cgroup/bazel/1");
 
     Path workingDirectory = testFS.getPath("/all-work-and-no-play");
     Path stdoutPath = testFS.getPath("/stdout.txt");
@@ -144,6 +145,7 @@ public final class LinuxSandboxUtilTest {
             .add("-M", bindMountSource2.getPathString())
             .add("-m", bindMountTarget2.getPathString())
             .add("-S", statisticsPath.getPathString())
+            .add("-C", cgroupPath.getPathString())
             .add("-H")
             .add("-N")
             .add("-U")
@@ -166,6 +168,7 @@ public final class LinuxSandboxUtilTest {
             .setCreateNetworkNamespace(createNetworkNamespace)
             .setUseFakeRoot(useFakeRoot)
             .setStatisticsPath(statisticsPath)
+            .setCgroupPath(cgroupPath)
             .setUseFakeUsername(useFakeUsername)
             .setUseDebugMode(useDebugMode)
             .build();
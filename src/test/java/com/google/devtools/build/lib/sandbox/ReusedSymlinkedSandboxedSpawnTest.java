@@ -0,0 +1,129 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.sandbox;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.PathFragment;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link ReusedSymlinkedSandboxedSpawn} and {@link SandboxStash}. */
+@RunWith(JUnit4.class)
+public class ReusedSymlinkedSandboxedSpawnTest extends SandboxTestCase {
+  private Path workspaceDir;
+  private Path sandboxBase;
+  private SandboxStash stash;
+
+  @Before
+  public final void setupTestDirs() throws IOException {
+    workspaceDir = testRoot.getRelative("workspace");
+    workspaceDir.createDirectory();
+    for (String name : ImmutableList.of("a.h", "b.h", "c.h")) {
+      FileSystemUtils.createEmptyFile(workspaceDir.getRelative(name));
+    }
+    sandboxBase = testRoot.getRelative("sandbox");
+    sandboxBase.createDirectory();
+    stash = new SandboxStash(sandboxBase.getRelative("stash"));
+  }
+
+  private ReusedSymlinkedSandboxedSpawn createSpawn(
+      String mnemonic, int id, Map<PathFragment, Path> inputs) throws IOException {
+    Path sandboxPath = sandboxBase.getRelative(Integer.toString(id));
+    boolean reused = stash.takeStashedSandbox(mnemonic, sandboxPath);
+    sandboxPath.createDirectory();
+    Path execRoot = sandboxPath.getRelative("execroot");
+    execRoot.createDirectory();
+    return new ReusedSymlinkedSandboxedSpawn(
+        stash,
+        mnemonic,
+        reused,
+        sandboxPath,
+        execRoot,
+        ImmutableList.of("/bin/true"),
+        ImmutableMap.of(),
+        inputs,
+        ImmutableSet.of(PathFragment.create("out/lib.o")),
+        ImmutableSet.of(),
+        new SynchronousTreeDeleter());
+  }
+
+  @Test
+  public void testSandboxIsReusedForSameMnemonic() throws Exception {
+    ReusedSymlinkedSandboxedSpawn first =
+        createSpawn(
+            "CppCompile",
+            1,
+            ImmutableMap.of(
+                PathFragment.create("include/a.h"), workspaceDir.getRelative("a.h"),
+                PathFragment.create("include/b.h"), workspaceDir.getRelative("b.h"),
+                PathFragment.create("old/c.h"), workspaceDir.getRelative("c.h")));
+    first.createFileSystem();
+    Path firstExecRoot = first.getSandboxExecRoot();
+    FileSystemUtils.createEmptyFile(firstExecRoot.getRelative("out/leftover.d"));
+    FileSystemUtils.createEmptyFile(firstExecRoot.getParentDirectory().getRelative("stats.out"));
+    first.delete();
+    assertThat(firstExecRoot.exists()).isFalse();
+
+    // Empty files are inputs without a source, which ImmutableMap does not allow.
+    Map<PathFragment, Path> inputs = new HashMap<>();
+    inputs.put(PathFragment.create("include/a.h"), workspaceDir.getRelative("a.h"));
+    inputs.put(PathFragment.create("include/b.h"), workspaceDir.getRelative("c.h"));
+    inputs.put(PathFragment.create("empty"), null);
+    ReusedSymlinkedSandboxedSpawn second = createSpawn("CppCompile", 2, inputs);
+    second.createFileSystem();
+
+    Path execRoot = second.getSandboxExecRoot();
+    assertThat(execRoot.getRelative("include/a.h").resolveSymbolicLinks())
+        .isEqualTo(workspaceDir.getRelative("a.h"));
+    assertThat(execRoot.getRelative("include/b.h").resolveSymbolicLinks())
+        .isEqualTo(workspaceDir.getRelative("c.h"));
+    assertThat(execRoot.getRelative("empty").isFile()).isTrue();
+    assertThat(execRoot.getRelative("old").exists()).isFalse();
+    assertThat(execRoot.getRelative("out").isDirectory()).isTrue();
+    assertThat(execRoot.getRelative("out/leftover.d").exists()).isFalse();
+    assertThat(execRoot.getParentDirectory().getRelative("stats.out").exists()).isFalse();
+  }
+
+  @Test
+  public void testSandboxIsNotReusedForOtherMnemonic() throws Exception {
+    ReusedSymlinkedSandboxedSpawn first =
+        createSpawn(
+            "CppCompile",
+            1,
+            ImmutableMap.of(PathFragment.create("a.h"), workspaceDir.getRelative("a.h")));
+    first.createFileSystem();
+    first.delete();
+
+    ReusedSymlinkedSandboxedSpawn second = createSpawn("Javac", 2, ImmutableMap.of());
+    second.createFileSystem();
+    assertThat(second.getSandboxExecRoot().getRelative("a.h").exists()).isFalse();
+
+    // The stashed sandbox is still there for the next spawn of the first mnemonic.
+    ReusedSymlinkedSandboxedSpawn third = createSpawn("CppCompile", 3, ImmutableMap.of());
+    assertThat(third.getSandboxExecRoot().getRelative("a.h").isSymbolicLink()).isTrue();
+    third.createFileSystem();
+    assertThat(third.getSandboxExecRoot().getRelative("a.h").exists()).isFalse();
+  }
+}
@@ -0,0 +1,71 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.lib.sandbox;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.PathFragment;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link SandboxDirectoryPool}. */
+@RunWith(JUnit4.class)
+public class SandboxDirectoryPoolTest extends SandboxTestCase {
+  private Path poolBase;
+  private SandboxDirectoryPool pool;
+
+  @Before
+  public final void createPool() throws Exception {
+    poolBase = testRoot.getRelative("pool");
+    pool = new SandboxDirectoryPool(poolBase, PathFragment.create("execroot/main"), 2);
+  }
+
+  @After
+  public final void shutdownPool() {
+    pool.shutdown();
+  }
+
+  private void takeSandboxDirectory(Path sandboxPath) throws Exception {
+    while (!pool.takeSandboxDirectory(sandboxPath)) {
+      Thread.sleep(10);
+    }
+  }
+
+  @Test
+  public void testDirectoriesArePreCreatedAndRefilled() throws Exception {
+    for (int i = 0; i < 5; i++) {
+      Path sandboxPath = testRoot.getRelative(Integer.toString(i));
+      takeSandboxDirectory(sandboxPath);
+      assertThat(sandboxPath.getRelative("execroot/main").isDirectory()).isTrue();
+      assertThat(sandboxPath.getRelative("execroot/main").getDirectoryEntries()).isEmpty();
+    }
+  }
+
+  @Test
+  public void testPoolDoesNotGrowBeyondItsSize() throws Exception {
+    takeSandboxDirectory(testRoot.getRelative("0"));
+    while (poolBase.getDirectoryEntries().size() < 2) {
+      Thread.sleep(10);
+    }
+    pool.shutdown();
+    assertThat(poolBase.getDirectoryEntries()).hasSize(2);
+    pool = new SandboxDirectoryPool(testRoot.getRelative("pool2"), PathFragment.EMPTY_FRAGMENT, 0);
+    assertThat(pool.takeSandboxDirectory(testRoot.getRelative("1"))).isFalse();
+  }
+}
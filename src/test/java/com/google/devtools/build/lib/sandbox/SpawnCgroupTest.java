@@ -0,0 +1,146 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.lib.sandbox;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.fail;
+
+import com.google.devtools.build.lib.actions.ResourceSet;
+import com.google.devtools.build.lib.actions.SpawnResult;
+import com.google.devtools.build.lib.actions.SpawnResult.Status;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.Path;
+import java.io.IOException;
+import java.time.Duration;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Tests for {@link SpawnCgroup}.
+ *
+ * <p>The files of the cgroup v2 hierarchy are faked in an in-memory file system.
+ */
+@RunWith(JUnit4.class)
+public class SpawnCgroupTest extends SandboxTestCase {
+  private Path parent;
+
+  @Before
+  public final void createParent() throws Exception {
+    parent = testRoot.getRelative("sys/fs/cgroup/bazel");
+    parent.createDirectoryAndParents();
+  }
+
+  private static void write(Path file, String content) throws IOException {
+    FileSystemUtils.writeContent(file, UTF_8, content);
+  }
+
+  private static String read(Path file) throws IOException {
+    return FileSystemUtils.readContent(file, UTF_8);
+  }
+
+  @Test
+  public void testPrepareParentEnablesControllers() throws Exception {
+    write(parent.getRelative("cgroup.controllers"), "cpuset cpu io memory pids\n");
+    SpawnCgroup.prepareParent(parent);
+    assertThat(read(parent.getRelative("cgroup.subtree_control"))).isEqualTo("+memory +cpu");
+  }
+
+  @Test
+  public void testPrepareParentRequiresCgroupV2() throws Exception {
+    try {
+      SpawnCgroup.prepareParent(parent);
+      fail("Expected IOException");
+    } catch (IOException e) {
+      assertThat(e).hasMessageThat().contains("cgroup v2");
+    }
+  }
+
+  @Test
+  public void testPrepareParentRequiresControllers() throws Exception {
+    write(parent.getRelative("cgroup.controllers"), "cpu pids\n");
+    try {
+      SpawnCgroup.prepareParent(parent);
+      fail("Expected IOException");
+    } catch (IOException e) {
+      assertThat(e).hasMessageThat().contains("memory controller");
+    }
+  }
+
+  @Test
+  public void testLimitsAreDerivedFromResourceSet() throws Exception {
+    SpawnCgroup cgroup =
+        SpawnCgroup.create(parent, "1", ResourceSet.createWithRamCpuIo(256, 0.5, 0), 2);
+    assertThat(cgroup.getPath()).isEqualTo(parent.getRelative("1"));
+    assertThat(read(parent.getRelative("1/memory.max"))).isEqualTo("536870912");
+    assertThat(read(parent.getRelative("1/cpu.max"))).isEqualTo("100000 100000");
+  }
+
+  @Test
+  public void testNoLimitsWithoutFactorOrEstimate() throws Exception {
+    SpawnCgroup.create(parent, "1", ResourceSet.createWithRamCpuIo(256, 0.5, 0), 0);
+    assertThat(parent.getRelative("1").getDirectoryEntries()).isEmpty();
+    SpawnCgroup.create(parent, "2", ResourceSet.ZERO, 2);
+    assertThat(parent.getRelative("2").getDirectoryEntries()).isEmpty();
+  }
+
+  @Test
+  public void testCgroupLeftBehindIsReplaced() throws Exception {
+    parent.getRelative("1").createDirectory();
+    SpawnCgroup.create(parent, "1", ResourceSet.ZERO, 0).destroy();
+    assertThat(parent.getRelative("1").exists()).isFalse();
+  }
+
+  @Test
+  public void testResourceUsageAndOomKills() throws Exception {
+    SpawnCgroup cgroup = SpawnCgroup.create(parent, "1", ResourceSet.ZERO, 0);
+    Path path = cgroup.getPath();
+    write(
+        path.getRelative("cpu.stat"),
+        "usage_usec 3500000\nuser_usec 3000000\nsystem_usec 500000\nnr_periods 0\n");
+    write(path.getRelative("memory.peak"), "10485760\n");
+    write(path.getRelative("memory.events"), "low 0\nhigh 0\nmax 3\noom 1\noom_kill 0\n");
+
+    SpawnResult.Builder builder =
+        new SpawnResult.Builder()
+            .setRunnerName("linux-sandbox")
+            .setStatus(Status.SUCCESS)
+            .setExitCode(0);
+    cgroup.addResourceUsage(builder);
+    SpawnResult result = builder.build();
+    assertThat(result.getUserTime().get()).isEqualTo(Duration.ofSeconds(3));
+    assertThat(result.getSystemTime().get()).isEqualTo(Duration.ofMillis(500));
+    assertThat(result.getMemoryInKb().get()).isEqualTo(10240L);
+    assertThat(cgroup.wasOomKilled()).isFalse();
+
+    write(path.getRelative("memory.events"), "low 0\nhigh 0\nmax 5\noom 2\noom_kill 1\n");
+    assertThat(cgroup.wasOomKilled()).isTrue();
+  }
+
+  @Test
+  public void testPeakMemoryIsOptional() throws Exception {
+    SpawnCgroup cgroup = SpawnCgroup.create(parent, "1", ResourceSet.ZERO, 0);
+    write(cgroup.getPath().getRelative("cpu.stat"), "usage_usec 0\n");
+    SpawnResult.Builder builder =
+        new SpawnResult.Builder()
+            .setRunnerName("linux-sandbox")
+            .setStatus(Status.SUCCESS)
+            .setExitCode(0);
+    cgroup.addResourceUsage(builder);
+    assertThat(builder.build().getMemoryInKb().isPresent()).isFalse();
+  }
+}
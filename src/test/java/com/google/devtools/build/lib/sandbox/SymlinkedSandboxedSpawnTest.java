@@ -61,7 +61,8 @@ public class SymlinkedSandboxedSpawnTest extends SandboxTestCase {
             ImmutableMap.of(),
             ImmutableMap.of(PathFragment.create("such/input.txt"), helloTxt),
             ImmutableSet.of(PathFragment.create("very/output.txt")),
-            ImmutableSet.of(execRoot.getRelative("wow/writable")));
+            ImmutableSet.of(execRoot.getRelative("wow/writable")),
+            new SynchronousTreeDeleter());
 
     symlinkedExecRoot.createFileSystem();
 
@@ -85,7 +86,8 @@ public class SymlinkedSandboxedSpawnTest extends SandboxTestCase {
             ImmutableMap.of(),
             ImmutableMap.of(),
             ImmutableSet.of(outputFile.relativeTo(execRoot)),
-            ImmutableSet.of());
+            ImmutableSet.of(),
+            new SynchronousTreeDeleter());
     symlinkedExecRoot.createFileSystem();
 
     FileSystemUtils.createEmptyFile(outputFile);
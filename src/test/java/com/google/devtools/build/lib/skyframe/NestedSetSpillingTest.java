@@ -0,0 +1,109 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.skyframe;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.devtools.build.lib.actions.Artifact;
+import com.google.devtools.build.lib.actions.ArtifactRoot;
+import com.google.devtools.build.lib.analysis.config.BuildConfiguration;
+import com.google.devtools.build.lib.cmdline.Label;
+import com.google.devtools.build.lib.collect.nestedset.NestedSet;
+import com.google.devtools.build.lib.collect.nestedset.NestedSetBuilder;
+import com.google.devtools.build.lib.collect.nestedset.NestedSetSpiller;
+import com.google.devtools.build.lib.collect.nestedset.Order;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.PathFragment;
+import com.google.devtools.build.lib.vfs.Root;
+import com.google.devtools.build.lib.vfs.inmemoryfs.InMemoryFileSystem;
+import java.nio.file.Files;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for spilling nested sets of artifacts with {@link SkyframeExecutor}'s spiller. */
+@RunWith(JUnit4.class)
+public class NestedSetSpillingTest {
+
+  private java.nio.file.Path spillFile;
+  private Path outputBase;
+  private NestedSetSpiller spiller;
+
+  @Before
+  public void setUp() throws Exception {
+    spillFile = Files.createTempFile("nested_sets", null);
+    outputBase = new InMemoryFileSystem().getPath("/output_base");
+    spiller = SkyframeExecutor.createNestedSetSpiller(spillFile, outputBase);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    NestedSetSpiller.stopTracking();
+    spiller.close();
+    Files.deleteIfExists(spillFile);
+  }
+
+  @Test
+  public void testSpilledArtifactsAreReadBack() throws Exception {
+    ArtifactRoot sourceRoot =
+        ArtifactRoot.asSourceRoot(Root.fromPath(outputBase.getFileSystem().getPath("/workspace")));
+    Path execRoot = outputBase.getRelative("execroot/workspace");
+    ArtifactRoot derivedRoot =
+        ArtifactRoot.asDerivedRoot(execRoot, execRoot.getRelative("bazel-out/k8-fastbuild/bin"));
+    Artifact source = new Artifact(PathFragment.create("pkg/a.cc"), sourceRoot);
+    Artifact derived =
+        new Artifact(
+            derivedRoot,
+            PathFragment.create("bazel-out/k8-fastbuild/bin/pkg/liba.a"),
+            ConfiguredTargetKey.of(
+                Label.parseAbsoluteUnchecked("//pkg:a"), (BuildConfiguration) null));
+    NestedSetSpiller.startTracking(2);
+    NestedSet<Artifact> set =
+        NestedSetBuilder.<Artifact>stableOrder()
+            .add(source)
+            .addTransitive(NestedSetBuilder.create(Order.STABLE_ORDER, source, derived))
+            .add(derived)
+            .build();
+
+    assertThat(spiller.spillTracked()).isEqualTo(2);
+
+    List<Artifact> artifacts = set.toList();
+    assertThat(artifacts).containsExactly(source, derived).inOrder();
+    assertThat(artifacts.get(0).getPath()).isEqualTo(source.getPath());
+    assertThat(artifacts.get(0).isSourceArtifact()).isTrue();
+    assertThat(artifacts.get(1).getPath()).isEqualTo(derived.getPath());
+    assertThat(artifacts.get(1).getRoot()).isEqualTo(derivedRoot);
+    assertThat(artifacts.get(1).getArtifactOwner()).isEqualTo(derived.getArtifactOwner());
+  }
+
+  @Test
+  public void testClosedSpillerKeepsSpilledSetsReadable() throws Exception {
+    ArtifactRoot sourceRoot =
+        ArtifactRoot.asSourceRoot(Root.fromPath(outputBase.getFileSystem().getPath("/workspace")));
+    Artifact first = new Artifact(PathFragment.create("pkg/a.cc"), sourceRoot);
+    Artifact second = new Artifact(PathFragment.create("pkg/b.cc"), sourceRoot);
+    NestedSetSpiller.startTracking(2);
+    NestedSet<Artifact> spilled = NestedSetBuilder.create(Order.STABLE_ORDER, first, second);
+    assertThat(spiller.spillTracked()).isEqualTo(1);
+    spiller.close();
+
+    NestedSet<Artifact> notSpilled = NestedSetBuilder.create(Order.STABLE_ORDER, second, first);
+    assertThat(spiller.spillTracked()).isEqualTo(0);
+    assertThat(spilled.toList()).containsExactly(first, second).inOrder();
+    assertThat(notSpilled.toList()).containsExactly(second, first).inOrder();
+  }
+}
@@ -427,6 +427,101 @@ public class PackageFunctionTest extends BuildViewTestCase {
     assertThat(validPackage(skyKey)).isSameAs(value);
   }
 
+  @Test
+  public void testNewElementExcludedFromGlob() throws Exception {
+    scratch.file(
+        "foo/BUILD",
+        "sh_library(name = 'foo', srcs = glob(['**/*.txt'], exclude = ['gen/**']))");
+    scratch.file("foo/a.txt");
+    scratch.dir("foo/gen");
+    preparePackageLoading(rootDirectory);
+    SkyKey skyKey = PackageValue.key(PackageIdentifier.parse("@//foo"));
+    PackageValue value = validPackage(skyKey);
+    scratch.file("foo/gen/b.txt");
+    getSkyframeExecutor()
+        .invalidateFilesUnderPathForTesting(
+            reporter,
+            ModifiedFileSet.builder().modify(PathFragment.create("foo/gen/b.txt")).build(),
+            Root.fromPath(rootDirectory));
+    assertThat(validPackage(skyKey)).isSameAs(value);
+    assertSrcs(value, "foo", "//foo:a.txt");
+  }
+
+  @Test
+  public void testNewGlobCallMixingEvaluatedAndNewPatterns() throws Exception {
+    scratch.file(
+        "foo/BUILD",
+        "sh_library(name = 'foo', srcs = glob(['*.txt']))",
+        "sh_library(name = 'bar', srcs = glob(['*.sh']))");
+    for (String file : ImmutableList.of("a.txt", "b.txt", "a.sh", "b.sh", "a.cfg", "b.cfg")) {
+      scratch.file("foo/" + file);
+    }
+    preparePackageLoading(rootDirectory);
+    SkyKey skyKey = PackageValue.key(PackageIdentifier.parse("@//foo"));
+    validPackage(skyKey);
+
+    // The patterns which were already evaluated are taken from Skyframe, the others are globbed.
+    scratch.overwriteFile(
+        "foo/BUILD",
+        "sh_library(name = 'foo', srcs = glob(['*.txt', '*.cfg'], exclude = ['*.sh', 'b.*']))",
+        "sh_library(name = 'bar', srcs = glob(['*'], exclude = ['*.txt', 'BUILD']))");
+    getSkyframeExecutor()
+        .invalidateFilesUnderPathForTesting(
+            reporter,
+            ModifiedFileSet.builder().modify(PathFragment.create("foo/BUILD")).build(),
+            Root.fromPath(rootDirectory));
+    PackageValue value = validPackage(skyKey);
+    assertSrcs(value, "foo", "//foo:a.cfg", "//foo:a.txt");
+    assertSrcs(value, "bar", "//foo:a.cfg", "//foo:a.sh", "//foo:b.cfg", "//foo:b.sh");
+  }
+
+  @Test
+  public void testGlobChangesInPackageThatCannotBePatched() throws Exception {
+    // Packages with package groups are loaded normally when their glob results change.
+    scratch.file(
+        "foo/BUILD",
+        "package_group(name = 'group', packages = ['//foo'])",
+        "sh_library(name = 'foo', srcs = glob(['*.txt']))");
+    scratch.file("foo/a.txt");
+    preparePackageLoading(rootDirectory);
+    SkyKey skyKey = PackageValue.key(PackageIdentifier.parse("@//foo"));
+    assertSrcs(validPackage(skyKey), "foo", "//foo:a.txt");
+    for (String file : ImmutableList.of("b.txt", "c.txt", "d.txt")) {
+      scratch.file("foo/" + file);
+      getSkyframeExecutor()
+          .invalidateFilesUnderPathForTesting(
+              reporter,
+              ModifiedFileSet.builder().modify(PathFragment.create("foo/" + file)).build(),
+              Root.fromPath(rootDirectory));
+      validPackage(skyKey);
+    }
+    assertSrcs(
+        validPackage(skyKey), "foo", "//foo:a.txt", "//foo:b.txt", "//foo:c.txt", "//foo:d.txt");
+
+    // Once the BUILD file no longer prevents it, the package is patched again.
+    scratch.overwriteFile("foo/BUILD", "sh_library(name = 'foo', srcs = glob(['*.txt']))");
+    getSkyframeExecutor()
+        .invalidateFilesUnderPathForTesting(
+            reporter,
+            ModifiedFileSet.builder().modify(PathFragment.create("foo/BUILD")).build(),
+            Root.fromPath(rootDirectory));
+    validPackage(skyKey);
+    scratch.file("foo/e.txt");
+    getSkyframeExecutor()
+        .invalidateFilesUnderPathForTesting(
+            reporter,
+            ModifiedFileSet.builder().modify(PathFragment.create("foo/e.txt")).build(),
+            Root.fromPath(rootDirectory));
+    assertSrcs(
+        validPackage(skyKey),
+        "foo",
+        "//foo:a.txt",
+        "//foo:b.txt",
+        "//foo:c.txt",
+        "//foo:d.txt",
+        "//foo:e.txt");
+  }
+
   @Test
   public void testTransitiveSkylarkDepsStoredInPackage() throws Exception {
     scratch.file("foo/BUILD",
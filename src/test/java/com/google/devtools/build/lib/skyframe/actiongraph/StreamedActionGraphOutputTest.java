@@ -0,0 +1,119 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.skyframe.actiongraph;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.devtools.build.lib.actions.Artifact;
+import com.google.devtools.build.lib.actions.ArtifactRoot;
+import com.google.devtools.build.lib.analysis.AnalysisProtos;
+import com.google.devtools.build.lib.analysis.AnalysisProtos.ActionGraphContainer;
+import com.google.devtools.build.lib.collect.nestedset.NestedSet;
+import com.google.devtools.build.lib.collect.nestedset.NestedSetBuilder;
+import com.google.devtools.build.lib.collect.nestedset.NestedSetView;
+import com.google.devtools.build.lib.collect.nestedset.Order;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.Root;
+import com.google.devtools.build.lib.vfs.inmemoryfs.InMemoryFileSystem;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.WireFormat;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link StreamedActionGraphOutput} and the caches writing to it. */
+@RunWith(JUnit4.class)
+public class StreamedActionGraphOutputTest {
+
+  private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+  private final StreamedActionGraphOutput output = new StreamedActionGraphOutput(bytes);
+  private final KnownArtifacts knownArtifacts = new KnownArtifacts(output);
+  private final KnownNestedSets knownNestedSets = new KnownNestedSets(output, knownArtifacts);
+
+  private ArtifactRoot root;
+
+  @Before
+  public final void createRoot() {
+    Path execRoot = new InMemoryFileSystem().getPath("/exec");
+    root = ArtifactRoot.asSourceRoot(Root.fromPath(execRoot));
+  }
+
+  private Artifact artifact(String path) {
+    return new Artifact(root.getRoot().getRelative(path), root);
+  }
+
+  @Test
+  public void testRecordsAreWrittenOnceAndParseAsContainer() throws Exception {
+    Artifact a = artifact("a");
+    Artifact b = artifact("b");
+    NestedSet<Artifact> shared = NestedSetBuilder.create(Order.STABLE_ORDER, a, b);
+    NestedSet<Artifact> first =
+        NestedSetBuilder.<Artifact>stableOrder().add(artifact("c")).addTransitive(shared).build();
+    NestedSet<Artifact> second =
+        NestedSetBuilder.<Artifact>stableOrder().add(a).addTransitive(shared).build();
+
+    String firstId = knownNestedSets.dataToId(new NestedSetView<>(first));
+    String secondId = knownNestedSets.dataToId(new NestedSetView<>(second));
+    assertThat(knownNestedSets.dataToId(new NestedSetView<>(first))).isEqualTo(firstId);
+    assertThat(secondId).isNotEqualTo(firstId);
+    output.flush();
+
+    ActionGraphContainer container = ActionGraphContainer.parseFrom(bytes.toByteArray());
+    assertThat(container.getArtifactsList()).hasSize(3);
+    assertThat(container.getDepSetOfFilesList()).hasSize(3);
+    // The shared subset and the artifact a were written along with the first set.
+    AnalysisProtos.DepSetOfFiles firstDepSet = container.getDepSetOfFiles(1);
+    AnalysisProtos.DepSetOfFiles secondDepSet = container.getDepSetOfFiles(2);
+    assertThat(firstDepSet.getId()).isEqualTo(firstId);
+    assertThat(secondDepSet.getId()).isEqualTo(secondId);
+    assertThat(secondDepSet.getTransitiveDepSetIdsList())
+        .isEqualTo(firstDepSet.getTransitiveDepSetIdsList());
+  }
+
+  @Test
+  public void testRecordsPrecedeTheirReferences() throws Exception {
+    NestedSet<Artifact> inner =
+        NestedSetBuilder.create(Order.STABLE_ORDER, artifact("a"), artifact("b"));
+    NestedSet<Artifact> outer =
+        NestedSetBuilder.<Artifact>stableOrder().add(artifact("c")).addTransitive(inner).build();
+    knownNestedSets.dataToId(new NestedSetView<>(outer));
+    output.flush();
+
+    List<String> seenIds = new ArrayList<>();
+    CodedInputStream in = CodedInputStream.newInstance(bytes.toByteArray());
+    for (int tag = in.readTag(); tag != 0; tag = in.readTag()) {
+      assertThat(WireFormat.getTagWireType(tag)).isEqualTo(WireFormat.WIRETYPE_LENGTH_DELIMITED);
+      int fieldNumber = WireFormat.getTagFieldNumber(tag);
+      if (fieldNumber == ActionGraphContainer.ARTIFACTS_FIELD_NUMBER) {
+        seenIds.add("artifact " + AnalysisProtos.Artifact.parseFrom(in.readBytes()).getId());
+      } else {
+        assertThat(fieldNumber).isEqualTo(ActionGraphContainer.DEP_SET_OF_FILES_FIELD_NUMBER);
+        AnalysisProtos.DepSetOfFiles depSet =
+            AnalysisProtos.DepSetOfFiles.parseFrom(in.readBytes());
+        for (String id : depSet.getDirectArtifactIdsList()) {
+          assertThat(seenIds).contains("artifact " + id);
+        }
+        for (String id : depSet.getTransitiveDepSetIdsList()) {
+          assertThat(seenIds).contains("dep set " + id);
+        }
+        seenIds.add("dep set " + depSet.getId());
+      }
+    }
+    assertThat(seenIds).hasSize(5);
+  }
+}
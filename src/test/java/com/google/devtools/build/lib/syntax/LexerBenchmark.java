@@ -0,0 +1,93 @@
+// Copyright 2018 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.syntax;
+
+import com.google.caliper.BeforeExperiment;
+import com.google.caliper.Benchmark;
+import com.google.caliper.Param;
+import com.google.devtools.build.lib.events.NullEventHandler;
+import com.google.devtools.build.lib.vfs.PathFragment;
+
+/**
+ * Microbenchmarks for the {@link Lexer} and {@link Parser} on large generated BUILD files, such as
+ * the ones produced for third-party dependencies.
+ */
+public class LexerBenchmark {
+  @Param({"1000", "10000"})
+  int rules;
+
+  private ParserInputSource input;
+
+  @BeforeExperiment
+  void generateBuildFile() {
+    StringBuilder content = new StringBuilder();
+    content.append("load('//tools/build_defs:defs.bzl', 'java_import_external')\n\n");
+    for (int i = 0; i < rules; i++) {
+      content
+          .append("# Generated rule ")
+          .append(i)
+          .append('\n')
+          .append("java_library(\n")
+          .append("    name = \"lib_")
+          .append(i)
+          .append("\",\n")
+          .append("    srcs = glob([\"src/main/java/com/example/lib")
+          .append(i)
+          .append("/**/*.java\"]),\n")
+          .append("    javacopts = [\"-Xlint:all\", \"-Werror\"],\n")
+          .append("    visibility = [\"//visibility:public\"],\n")
+          .append("    deps = [\n")
+          .append("        \":lib_")
+          .append(i / 2)
+          .append("\",\n")
+          .append("        \"//third_party/java/guava\",\n")
+          .append("    ] + select({\n")
+          .append("        \"//conditions:default\": [],\n")
+          .append("    }),\n")
+          .append(")\n\n");
+    }
+    input =
+        ParserInputSource.create(content.toString(), PathFragment.create("/third_party/BUILD"));
+  }
+
+  @Benchmark
+  int lexAll(int reps) {
+    int tokens = 0;
+    for (int i = 0; i < reps; i++) {
+      tokens += new Lexer(input, NullEventHandler.INSTANCE).getTokens().size();
+    }
+    return tokens;
+  }
+
+  @Benchmark
+  int lexStreaming(int reps) {
+    int tokens = 0;
+    for (int i = 0; i < reps; i++) {
+      Lexer lexer = Lexer.createStreaming(input, NullEventHandler.INSTANCE);
+      while (lexer.nextToken().kind != TokenKind.EOF) {
+        tokens++;
+      }
+    }
+    return tokens;
+  }
+
+  @Benchmark
+  int parse(int reps) {
+    int statements = 0;
+    for (int i = 0; i < reps; i++) {
+      statements += Parser.parseFile(input, NullEventHandler.INSTANCE).statements.size();
+    }
+    return statements;
+  }
+}
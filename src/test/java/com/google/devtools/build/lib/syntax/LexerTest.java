@@ -496,6 +496,53 @@ public class LexerTest {
     assertThat(lastError).isEqualTo("/some/path.txt:1: unterminated string literal at eof");
   }
 
+  @Test
+  public void testKeywords() throws Exception {
+    assertThat(names(tokens("and as assert break class continue def del elif else except")))
+        .isEqualTo("AND AS ASSERT BREAK CLASS CONTINUE DEF DEL ELIF ELSE EXCEPT NEWLINE EOF");
+    assertThat(names(tokens("finally for from global if import in is lambda load nonlocal")))
+        .isEqualTo("FINALLY FOR FROM GLOBAL IF IMPORT IN IS LAMBDA LOAD NONLOCAL NEWLINE EOF");
+    assertThat(names(tokens("not or pass raise return try while with yield")))
+        .isEqualTo("NOT OR PASS RAISE RETURN TRY WHILE WITH YIELD NEWLINE EOF");
+    // Identifiers sharing a prefix, first and last character or length with a keyword.
+    assertThat(values(tokens("an ands ind iff dex loads fr0m Def")))
+        .isEqualTo(
+            "IDENTIFIER(an) IDENTIFIER(ands) IDENTIFIER(ind) IDENTIFIER(iff) IDENTIFIER(dex) "
+                + "IDENTIFIER(loads) IDENTIFIER(fr0m) IDENTIFIER(Def) NEWLINE EOF");
+  }
+
+  @Test
+  public void testIdentifiersAreShared() throws Exception {
+    Token[] tokens = tokens("name = name_x + name");
+    assertThat(tokens[0].value).isEqualTo("name");
+    assertThat(tokens[2].value).isEqualTo("name_x");
+    assertThat(tokens[4].value).isSameAs(tokens[0].value);
+  }
+
+  @Test
+  public void testStreamingLexerProducesSameTokens() throws Exception {
+    String input =
+        "def f(x):\n"
+            + "  # comment\n"
+            + "  if x:\n"
+            + "    return [a, 'b', 0x1f] # trailing\n"
+            + "y = f(1) ** 2\n";
+    Token[] expected = tokens(input);
+    Lexer lexer =
+        Lexer.createStreaming(
+            ParserInputSource.create(input, PathFragment.create("/some/path.txt")),
+            new Reporter(new EventBus()));
+    for (Token token : expected) {
+      Token actual = lexer.nextToken();
+      assertThat(actual.kind).isEqualTo(token.kind);
+      assertThat(actual.left).isEqualTo(token.left);
+      assertThat(actual.right).isEqualTo(token.right);
+      assertThat(actual.value).isEqualTo(token.value);
+    }
+    // Once exhausted, the streaming lexer keeps returning EOF.
+    assertThat(lexer.nextToken().kind).isEqualTo(TokenKind.EOF);
+  }
+
   @Test
   public void testLexerLocationCodec() throws Exception {
     new SerializationTester(createLexer("foo").createLocation(0, 2)).runTests();
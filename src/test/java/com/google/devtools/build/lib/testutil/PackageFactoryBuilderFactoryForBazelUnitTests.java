@@ -56,7 +56,7 @@ class PackageFactoryBuilderFactoryForBazelUnitTests implements BuilderFactoryFor
           attributeContainerFactory,
           environmentExtensions,
           version,
-          packageBuilderHelperForTesting);
+          packageBuilderHelperWrapper.apply(packageBuilderHelperForTesting));
     }
   }
 }
@@ -20,6 +20,7 @@ import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.when;
 
 import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ListenableFuture;
 import com.google.devtools.build.lib.runtime.commands.proto.BazelFlagsProto.FlagInfo;
 import java.io.IOException;
 import java.io.InputStream;
@@ -31,8 +32,11 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadLocalRandom;
 import org.junit.After;
 import org.junit.Before;
@@ -364,4 +368,56 @@ public class AsynchronousFileOutputStreamTest {
       // Expected.
     }
   }
+
+  @Test
+  public void testWritesAreBatchedAndBlockWhileBufferIsFull() throws Exception {
+    AsynchronousFileOutputStream out =
+        new AsynchronousFileOutputStream(mockChannel, /*maxBufferedBytes=*/ 5);
+    when(mockChannel.isOpen()).thenReturn(true);
+    List<String> writes = new ArrayList<>();
+    BlockingQueue<CompletionHandler<Integer, Void>> handlers = new LinkedBlockingQueue<>();
+    Mockito.doAnswer(
+            invocationOnMock -> {
+              ByteBuffer data = (ByteBuffer) invocationOnMock.getArguments()[0];
+              @SuppressWarnings("unchecked")
+              CompletionHandler<Integer, Void> handler =
+                  (CompletionHandler<Integer, Void>) invocationOnMock.getArguments()[3];
+              synchronized (writes) {
+                writes.add(
+                    invocationOnMock.getArguments()[1]
+                        + ":"
+                        + StandardCharsets.UTF_8.decode(data.duplicate()));
+              }
+              handlers.add(handler);
+              return null;
+            })
+        .when(mockChannel)
+        .write(
+            any(ByteBuffer.class),
+            any(Long.class),
+            eq(null),
+            Mockito.<CompletionHandler<Integer, Void>>anyObject());
+
+    out.write("abc");
+    out.write("de");
+    out.write("f");
+    Thread writer = new Thread(() -> out.write("ghi"));
+    writer.start();
+    while (writer.getState() != Thread.State.WAITING) {
+      Thread.sleep(1);
+    }
+    synchronized (writes) {
+      assertThat(writes).containsExactly("0:abc");
+    }
+
+    handlers.take().completed(3, null);
+    writer.join();
+    handlers.take().completed(3, null);
+    ListenableFuture<Void> closeFuture = out.closeAsync();
+    assertThat(closeFuture.isDone()).isFalse();
+    handlers.take().completed(3, null);
+    closeFuture.get();
+    assertThat(writes).containsExactly("0:abc", "3:def", "6:ghi").inOrder();
+    assertThat(out.getStats()).startsWith("9 bytes in 3 writes");
+  }
 }
@@ -327,6 +327,77 @@ public class GlobTest {
     }
   }
 
+  @Test
+  public void testGlobByPatternMatchesLikeGlob() throws Exception {
+    FileSystemUtils.createEmptyFile(tmpPath.getRelative("foo/file"));
+    FileSystemUtils.createEmptyFile(tmpPath.getRelative("food/.hidden"));
+    ImmutableList<String> patterns =
+        ImmutableList.of(
+            "**",
+            "**/*",
+            "**/wiz",
+            "foo/**",
+            "foo/**/file",
+            "**/barnacle/**",
+            "*",
+            "foo",
+            "foo/bar/wiz/file",
+            "foo/bar/wiz/file/**",
+            "*/bar*/wiz",
+            "food/*",
+            "food/.hidden",
+            "nope/**");
+    ThreadPoolExecutor executor = (ThreadPoolExecutor) Executors.newFixedThreadPool(10);
+    for (boolean excludeDirectories : new boolean[] {false, true}) {
+      List<List<Path>> byPattern =
+          new UnixGlob.Builder(tmpPath)
+              .addPatterns(patterns)
+              .setExcludeDirectories(excludeDirectories)
+              .setThreadPool(executor)
+              .globByPatternAsync(true)
+              .get();
+      assertThat(byPattern).hasSize(patterns.size());
+      for (int i = 0; i < patterns.size(); i++) {
+        assertThat(byPattern.get(i))
+            .containsExactlyElementsIn(
+                new UnixGlob.Builder(tmpPath)
+                    .addPattern(patterns.get(i))
+                    .setExcludeDirectories(excludeDirectories)
+                    .glob());
+      }
+    }
+    executor.shutdown();
+  }
+
+  @Test
+  public void testGlobByPatternListsEachDirectoryOnce() throws Exception {
+    List<Path> listedDirectories = Collections.synchronizedList(new ArrayList<>());
+    UnixGlob.FilesystemCalls syscalls = new UnixGlob.FilesystemCalls() {
+      @Override
+      public FileStatus statIfFound(Path path, Symlinks symlinks) throws IOException {
+        return UnixGlob.DEFAULT_SYSCALLS.statIfFound(path, symlinks);
+      }
+
+      @Override
+      public Collection<Dirent> readdir(Path path, Symlinks symlinks) throws IOException {
+        listedDirectories.add(path);
+        return UnixGlob.DEFAULT_SYSCALLS.readdir(path, symlinks);
+      }
+    };
+    ThreadPoolExecutor executor = (ThreadPoolExecutor) Executors.newFixedThreadPool(10);
+
+    new UnixGlob.Builder(tmpPath)
+        .addPatterns("**/*", "**/wiz", "*/barnacle/*", "foo/**")
+        .setFilesystemCalls(new AtomicReference<>(syscalls))
+        .setThreadPool(executor)
+        .globByPatternAsync(true)
+        .get();
+
+    assertThat(listedDirectories).containsNoDuplicates();
+    assertThat(listedDirectories).contains(tmpPath.getRelative("foo/bar/wiz"));
+    executor.shutdown();
+  }
+
   @Test
   public void testCheckCanBeInterrupted() throws Exception {
     final Thread mainThread = Thread.currentThread();
@@ -66,6 +66,35 @@ public class PathFragmentTest {
     assertThat(rootPath.hashCode()).isEqualTo(rootResult);
   }
 
+  @Test
+  public void testInternedFragmentsShareInstance() {
+    PathFragment first = create("bazel-out/k8-fastbuild/bin/foo/bar.o");
+    PathFragment second = create("bazel-out/k8-fastbuild/bin/foo").getRelative("bar.o");
+    assertThat(second).isNotSameAs(first);
+    assertThat(second.intern()).isSameAs(first.intern());
+    assertThat(create("bazel-out/k8-opt/bin/foo/bar.o").intern()).isNotSameAs(first.intern());
+  }
+
+  @Test
+  public void testInternedFragmentsBehaveLikeOriginals() {
+    for (String path :
+        ImmutableList.of(
+            "", "/", "a", "/a", "a/b/c", "/a/b/c", "../a/b", "a/../b", "bazel-out/k8/bin/x.o")) {
+      PathFragment original = create(path);
+      PathFragment interned = original.intern();
+      assertThat(interned).isEqualTo(original);
+      assertThat(interned.hashCode()).isEqualTo(original.hashCode());
+      assertThat(interned.getPathString()).isEqualTo(original.getPathString());
+      assertThat(interned.isAbsolute()).isEqualTo(original.isAbsolute());
+      assertThat(interned.getSegments()).isEqualTo(original.getSegments());
+      assertThat(interned.getBaseName()).isEqualTo(original.getBaseName());
+      assertThat(interned.getParentDirectory()).isEqualTo(original.getParentDirectory());
+      assertThat(interned.startsWith(original)).isTrue();
+      assertThat(interned.relativeTo(original)).isEqualTo(PathFragment.EMPTY_FRAGMENT);
+      assertThat(interned.compareTo(original)).isEqualTo(0);
+    }
+  }
+
   @Test
   public void testRelativeTo() {
     assertThat(create("foo/bar/baz").relativeTo("foo").getPathString()).isEqualTo("bar/baz");
@@ -34,6 +34,15 @@ public class PathFragmentWindowsTest {
     assertThat(create("c:\\bar\\baz").toString()).isEqualTo("C:/bar/baz");
   }
 
+  @Test
+  public void testInternKeepsCase() {
+    PathFragment lower = create("C:/foo/bar").intern();
+    PathFragment upper = create("C:/Foo/Bar").intern();
+    assertThat(upper).isEqualTo(lower);
+    assertThat(upper.getPathString()).isEqualTo("C:/Foo/Bar");
+    assertThat(lower.getPathString()).isEqualTo("C:/foo/bar");
+  }
+
   @Test
   public void testIsAbsoluteWindows() {
     assertThat(create("C:/").isAbsolute()).isTrue();